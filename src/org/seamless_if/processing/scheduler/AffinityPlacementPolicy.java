@@ -0,0 +1,340 @@
+/*
+ * seamframe: AffinityPlacementPolicy.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Places jobs on workers that already have their data. A worker that just
+ * ran an experiment, or the baseline experiment it depends on, has the model
+ * chain directory and database caches warm, and so has a worker that just
+ * ran the same model chain version, to a lesser extent.
+ * <p/>
+ * The policy remembers per worker the experiments and model chains it was
+ * recently assigned. When selecting a job for a worker it prefers, within a
+ * window of the first jobs in scheduling order, a job of a recent experiment,
+ * then a job of a recent model chain. A job of an experiment that is recent
+ * on another worker is held back for that worker, but no longer than the
+ * maximum wait after it became schedulable. The fraction of assignments to a
+ * worker with the experiment data is reported as the cache-hit rate.
+ */
+public class AffinityPlacementPolicy {
+
+    /**
+     * Looks up the baseline experiment of an experiment, if any.
+     */
+    public interface BaselineResolver {
+        Long getBaselineExperimentId(Long experimentId);
+    }
+
+
+    public static final long DEFAULT_MAX_WAIT_IN_MILLIS = 30000;
+    public static final int DEFAULT_LOOKAHEAD = 16;
+    public static final int DEFAULT_RECENT_EXPERIMENTS = 16;
+    public static final int DEFAULT_RECENT_MODEL_CHAINS = 4;
+
+    static final int NO_AFFINITY = 0;
+    static final int MODEL_CHAIN_AFFINITY = 1;
+    static final int EXPERIMENT_AFFINITY = 2;
+
+    private final long maxWaitInMillis;
+    private final int lookahead;
+    private final int recentExperiments;
+    private final int recentModelChains;
+    private volatile BaselineResolver baselineResolver;
+
+    private final Map<String, RecentWork> recentByWorker = new HashMap<String, RecentWork>();
+    private final Map<Long, Set<String>> workersByExperiment = new HashMap<Long, Set<String>>();
+
+    private long placementCount;
+    private long experimentHitCount;
+    private long modelChainHitCount;
+
+
+    /**
+     * The experiments and model chains a worker was recently assigned, least
+     * recently used first.
+     */
+    private class RecentWork {
+
+        private final String workerId;
+        private final LinkedHashMap<Long, Boolean> experiments;
+        private final LinkedHashMap<String, Boolean> modelChains;
+
+
+        RecentWork(String workerId) {
+            this.workerId = workerId;
+            this.experiments = new LinkedHashMap<Long, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                    if (size() <= recentExperiments)
+                        return false;
+                    forgetExperiment(eldest.getKey(), RecentWork.this.workerId);
+                    return true;
+                }
+            };
+            this.modelChains = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > recentModelChains;
+                }
+            };
+        }
+    }
+
+
+    public AffinityPlacementPolicy() {
+        this(DEFAULT_MAX_WAIT_IN_MILLIS, DEFAULT_LOOKAHEAD, DEFAULT_RECENT_EXPERIMENTS, DEFAULT_RECENT_MODEL_CHAINS);
+    }
+
+
+    /**
+     * @param maxWaitInMillis longest time a job is held back for a worker with its data
+     * @param lookahead number of first jobs in scheduling order to select from
+     * @param recentExperiments number of experiments remembered per worker
+     * @param recentModelChains number of model chains remembered per worker
+     */
+    public AffinityPlacementPolicy(long maxWaitInMillis, int lookahead, int recentExperiments, int recentModelChains) {
+        this.maxWaitInMillis = maxWaitInMillis;
+        this.lookahead = Math.max(1, lookahead);
+        this.recentExperiments = Math.max(1, recentExperiments);
+        this.recentModelChains = Math.max(1, recentModelChains);
+    }
+
+
+    public long getMaxWaitInMillis() {
+        return maxWaitInMillis;
+    }
+
+
+    public int getLookahead() {
+        return lookahead;
+    }
+
+
+    public BaselineResolver getBaselineResolver() {
+        return baselineResolver;
+    }
+
+
+    /**
+     * Sets how baseline experiments are found, without it only the
+     * experiment of a job itself is matched.
+     */
+    public void setBaselineResolver(BaselineResolver baselineResolver) {
+        this.baselineResolver = baselineResolver;
+    }
+
+
+    /**
+     * @return how well the worker is prepared for the job, one of
+     *         NO_AFFINITY, MODEL_CHAIN_AFFINITY and EXPERIMENT_AFFINITY
+     */
+    synchronized int getAffinity(WorkerInfo workerInfo, Job job) {
+        RecentWork recent = recentByWorker.get(workerInfo.getId());
+        if (recent == null)
+            return NO_AFFINITY;
+        for (Long experimentId : getDataExperimentIds(job)) {
+            if (recent.experiments.containsKey(experimentId))
+                return EXPERIMENT_AFFINITY;
+        }
+        ModelChainInfo chain = job.getModelChain();
+        if ((chain != null) && recent.modelChains.containsKey(chain.getId()))
+            return MODEL_CHAIN_AFFINITY;
+        return NO_AFFINITY;
+    }
+
+
+    /**
+     * Selects a job for the worker from the candidates, which are in
+     * scheduling order. Jobs held back for another worker are added to the
+     * held jobs, with the time they may still wait.
+     *
+     * @param workerInfo worker to select a job for
+     * @param candidates the first jobs the worker can process
+     * @param experimentOnly only select a job with the experiment data on the worker
+     * @param nowInMillis current time
+     * @param held receives the jobs held back for another worker
+     * @return the selected job, or null
+     */
+    public synchronized Job selectJob(WorkerInfo workerInfo, List<Job> candidates, boolean experimentOnly, long nowInMillis, Map<Job, Long> held) {
+        Job chainMatch = null;
+        Job first = null;
+        for (Job job : candidates) {
+            int affinity = getAffinity(workerInfo, job);
+            if (affinity == EXPERIMENT_AFFINITY)
+                return job;
+            if (experimentOnly)
+                continue;
+
+            long remainingWait = getRemainingWait(job, workerInfo, nowInMillis);
+            if (remainingWait > 0) {
+                held.put(job, remainingWait);
+                continue;
+            }
+            if ((affinity == MODEL_CHAIN_AFFINITY) && (chainMatch == null))
+                chainMatch = job;
+            if (first == null)
+                first = job;
+        }
+        return (chainMatch != null) ? chainMatch : first;
+    }
+
+
+    /**
+     * @return time the job may still be held back for another worker that
+     *         has its experiment data, or 0 if it should not be held
+     */
+    private long getRemainingWait(Job job, WorkerInfo workerInfo, long nowInMillis) {
+        long remaining = maxWaitInMillis - (nowInMillis - job.getLastStateChangeInMillis());
+        if (remaining <= 0)
+            return 0;
+        for (Long experimentId : getDataExperimentIds(job)) {
+            Set<String> workerIds = workersByExperiment.get(experimentId);
+            if (workerIds == null)
+                continue;
+            for (String workerId : workerIds) {
+                if (!workerId.equals(workerInfo.getId()))
+                    return remaining;
+            }
+        }
+        return 0;
+    }
+
+
+    /**
+     * Records the assignment, for the cache-hit statistics and as recent
+     * work of the worker.
+     */
+    public synchronized void jobAssigned(Job job, WorkerInfo workerInfo) {
+        placementCount++;
+        int affinity = getAffinity(workerInfo, job);
+        if (affinity == EXPERIMENT_AFFINITY)
+            experimentHitCount++;
+        else if (affinity == MODEL_CHAIN_AFFINITY)
+            modelChainHitCount++;
+
+        RecentWork recent = recentByWorker.get(workerInfo.getId());
+        if (recent == null) {
+            recent = new RecentWork(workerInfo.getId());
+            recentByWorker.put(workerInfo.getId(), recent);
+        }
+        if (job.getExperimentId() != null) {
+            recent.experiments.put(job.getExperimentId(), Boolean.TRUE);
+            Set<String> workerIds = workersByExperiment.get(job.getExperimentId());
+            if (workerIds == null) {
+                workerIds = new HashSet<String>();
+                workersByExperiment.put(job.getExperimentId(), workerIds);
+            }
+            workerIds.add(workerInfo.getId());
+        }
+        if (job.getModelChain() != null)
+            recent.modelChains.put(job.getModelChain().getId(), Boolean.TRUE);
+    }
+
+
+    /**
+     * Forgets the recent work of a worker that is no longer available.
+     */
+    public synchronized void workerRemoved(String workerId) {
+        RecentWork recent = recentByWorker.remove(workerId);
+        if (recent == null)
+            return;
+        for (Long experimentId : recent.experiments.keySet())
+            forgetExperiment(experimentId, workerId);
+    }
+
+
+    public synchronized void clear() {
+        recentByWorker.clear();
+        workersByExperiment.clear();
+        placementCount = 0;
+        experimentHitCount = 0;
+        modelChainHitCount = 0;
+    }
+
+
+    public synchronized long getPlacementCount() {
+        return placementCount;
+    }
+
+
+    /**
+     * @return number of jobs assigned to a worker that recently ran their
+     *         experiment or its baseline
+     */
+    public synchronized long getExperimentHitCount() {
+        return experimentHitCount;
+    }
+
+
+    /**
+     * @return number of jobs assigned to a worker that recently ran their
+     *         model chain, but not their experiment
+     */
+    public synchronized long getModelChainHitCount() {
+        return modelChainHitCount;
+    }
+
+
+    /**
+     * @return fraction of the jobs assigned to a worker with their
+     *         experiment data, 0 when no jobs were assigned
+     */
+    public synchronized double getCacheHitRate() {
+        if (placementCount == 0)
+            return 0.0;
+        return (double) experimentHitCount / placementCount;
+    }
+
+
+    private void forgetExperiment(Long experimentId, String workerId) {
+        Set<String> workerIds = workersByExperiment.get(experimentId);
+        if (workerIds == null)
+            return;
+        workerIds.remove(workerId);
+        if (workerIds.isEmpty())
+            workersByExperiment.remove(experimentId);
+    }
+
+
+    /**
+     * @return ids of the experiments whose data the job uses
+     */
+    private Long[] getDataExperimentIds(Job job) {
+        Long experimentId = job.getExperimentId();
+        if (experimentId == null)
+            return new Long[0];
+        BaselineResolver resolver = baselineResolver;
+        Long baselineId = (resolver != null) ? resolver.getBaselineExperimentId(experimentId) : null;
+        if ((baselineId == null) || baselineId.equals(experimentId))
+            return new Long[] {experimentId};
+        return new Long[] {experimentId, baselineId};
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * seamframe: CompactId.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Identifier of jobs, workers and model chains. An id is 128 bits: the
+ * high word holds the creation time in milliseconds and a 16 bit node
+ * number, the low word a sequence number that starts at a random value.
+ * Ids created by one node are therefore ordered by creation, and ids of
+ * different nodes do not collide as long as the nodes have different
+ * numbers, see setNodeId.
+ * <p/>
+ * Ids are immutable, compared on their two words and cheap to hash, so
+ * the scheduler uses them as keys of its collections. The string form is
+ * 32 hexadecimal digits, created once per id. Other strings, such as the
+ * ids of earlier versions, are accepted by parse as well: they are hashed
+ * to 128 bits and keep their text, so they format and compare as before.
+ */
+public final class CompactId implements Comparable<CompactId> {
+
+    private static final int TEXT_LENGTH = 32;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final SecureRandom random = new SecureRandom();
+    private static volatile int nodeId = random.nextInt() & 0xFFFF;
+    private static final AtomicLong sequence = new AtomicLong(random.nextLong());
+
+    private final long high;
+    private final long low;
+    private final int hash;
+    // text of an id that is not in compact form, otherwise created on demand
+    private volatile String text;
+    private final boolean compact;
+
+
+    private CompactId(long high, long low, String text, boolean compact) {
+        this.high = high;
+        this.low = low;
+        this.text = text;
+        this.compact = compact;
+        long h = (high ^ (high >>> 29)) * 0xBF58476D1CE4E5B9L + low;
+        h = (h ^ (h >>> 32)) * 0x94D049BB133111EBL;
+        this.hash = (int) (h ^ (h >>> 32));
+    }
+
+
+    public CompactId(long high, long low) {
+        this(high, low, null, true);
+    }
+
+
+    /**
+     * @return a new id, ordered after all ids created before by this node
+     */
+    public static CompactId next() {
+        long high = (System.currentTimeMillis() << 16) | nodeId;
+        return new CompactId(high, sequence.getAndIncrement(), null, true);
+    }
+
+
+    /**
+     * Sets the number of this node, included in the ids it creates. Nodes
+     * that create ids for the same scheduler should have different numbers,
+     * by default the number is random.
+     *
+     * @param id node number, 0 to 65535
+     */
+    public static void setNodeId(int id) {
+        if ((id < 0) || (id > 0xFFFF))
+            throw new IllegalArgumentException("Node id must be between 0 and 65535: " + id);
+        nodeId = id;
+    }
+
+
+    public static int getNodeId() {
+        return nodeId;
+    }
+
+
+    /**
+     * Parses the string form of an id. Strings that are not 32 hexadecimal
+     * digits are kept as they are, with a hash of them as the id.
+     *
+     * @param text string form of the id
+     * @return the id, or null for null
+     */
+    public static CompactId parse(String text) {
+        if (text == null)
+            return null;
+        if (isCompactText(text))
+            return new CompactId(parseHex(text, 0), parseHex(text, 16), text, true);
+        return new CompactId(hash64(text, 0xCBF29CE484222325L), hash64(text, 0x84222325CBF29CE4L), text, false);
+    }
+
+
+    /**
+     * @return creation time of a compact id in milliseconds
+     */
+    public long getTimeInMillis() {
+        return high >>> 16;
+    }
+
+
+    /**
+     * @return number of the node that created a compact id
+     */
+    public int getNode() {
+        return (int) (high & 0xFFFF);
+    }
+
+
+    public long getHigh() {
+        return high;
+    }
+
+
+    public long getLow() {
+        return low;
+    }
+
+
+    /**
+     * @return true if the id was created by next or parsed from 32
+     *         hexadecimal digits, false if it is kept as text
+     */
+    public boolean isCompact() {
+        return compact;
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof CompactId)) return false;
+
+        CompactId that = (CompactId) o;
+        if ((high != that.high) || (low != that.low) || (compact != that.compact))
+            return false;
+        return compact || text.equals(that.text);
+    }
+
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+
+    public int compareTo(CompactId other) {
+        if (high != other.high)
+            return (high < other.high) ? -1 : 1;
+        if (low != other.low)
+            return (low < other.low) ? -1 : 1;
+        if (compact != other.compact)
+            return compact ? -1 : 1;
+        return compact ? 0 : text.compareTo(other.text);
+    }
+
+
+    @Override
+    public String toString() {
+        String result = text;
+        if (result == null) {
+            char[] chars = new char[TEXT_LENGTH];
+            formatHex(high, chars, 0);
+            formatHex(low, chars, 16);
+            result = new String(chars);
+            text = result;
+        }
+        return result;
+    }
+
+
+    private static void formatHex(long value, char[] chars, int offset) {
+        for (int i = 15; i >= 0; i--) {
+            chars[offset + i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+
+    /**
+     * @return true if the text is 32 lower case hexadecimal digits
+     */
+    private static boolean isCompactText(String text) {
+        if (text.length() != TEXT_LENGTH)
+            return false;
+        for (int i = 0; i < TEXT_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (((c < '0') || (c > '9')) && ((c < 'a') || (c > 'f')))
+                return false;
+        }
+        return true;
+    }
+
+
+    private static long parseHex(String text, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            char c = text.charAt(i);
+            value = (value << 4) | ((c <= '9') ? (c - '0') : (c - 'a' + 10));
+        }
+        return value;
+    }
+
+
+    private static long hash64(String text, long seed) {
+        long h = seed;
+        for (int i = 0; i < text.length(); i++) {
+            h ^= text.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * seamframe: DeadlineSchedulingPolicy.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Schedules jobs earliest deadline first. Jobs without a deadline follow all
+ * jobs with one. Jobs with the same deadline are scheduled by priority class,
+ * and then in the order in which they were added to the queue.
+ */
+public class DeadlineSchedulingPolicy implements SchedulingPolicy {
+
+    public SchedulingKey createKey(Job job, long queueSequence) {
+        Long deadline = job.getDeadlineInMillis();
+        return new SchedulingKey((deadline != null) ? deadline : Long.MAX_VALUE,
+                job.getPriority().ordinal(), queueSequence);
+    }
+
+
+    public SchedulingKey updateKey(Job job, SchedulingKey previous, long queueSequence) {
+        return createKey(job, queueSequence);
+    }
+
+
+    public void jobAssigned(Job job) {
+        // order does not depend on earlier assignments
+    }
+}
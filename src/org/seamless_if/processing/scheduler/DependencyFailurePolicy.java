@@ -0,0 +1,68 @@
+/*
+ * seamframe: DependencyFailurePolicy.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Enumeration defining what happens to the jobs that depend on a job that
+ * did not complete without problems.
+ */
+public enum DependencyFailurePolicy {
+    /**
+     * Dependent jobs are only released after their dependencies completed
+     * OK, otherwise they are completed with errors, and so are the jobs that
+     * depend on them.
+     */
+    FAIL_DEPENDENTS,
+
+    /**
+     * Dependent jobs are also released after their dependencies completed
+     * with warnings, they are only failed on errors.
+     */
+    FAIL_DEPENDENTS_ON_ERRORS,
+
+    /**
+     * Dependent jobs are released once their dependencies completed, in
+     * whatever state.
+     */
+    RUN_DEPENDENTS;
+
+
+    /**
+     * Checks if a dependency that completed in the state allows the jobs
+     * that depend on it to be released.
+     *
+     * @param completedState state the dependency completed in
+     * @return true if dependent jobs can be released
+     */
+    public boolean isSatisfiedBy(JobState completedState) {
+        switch (this) {
+            case RUN_DEPENDENTS:
+                return true;
+            case FAIL_DEPENDENTS_ON_ERRORS:
+                return !JobState.COMPLETED_WITH_ERRORS.equals(completedState);
+            default:
+                return JobState.COMPLETED_OK.equals(completedState);
+        }
+    }
+}
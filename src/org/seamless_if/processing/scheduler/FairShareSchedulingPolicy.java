@@ -0,0 +1,100 @@
+/*
+ * seamframe: FairShareSchedulingPolicy.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Schedules jobs so that each submitter gets a share of the workers in
+ * proportion to its weight, using start time fair queueing.
+ * <p/>
+ * Each job is tagged with a virtual start time when it enters the queue: the
+ * later of the current virtual time and the virtual finish time of the
+ * previous job of the same submitter. The finish time is the start time plus
+ * the inverse of the weight of the submitter, the virtual time advances to
+ * the start time of each assigned job. A submitter that queues a large batch
+ * therefore gets increasing tags for its jobs, while jobs of other submitters
+ * are tagged near the current virtual time and interleave with the batch.
+ * A queued job keeps its start time when it gets a new key, so changing its
+ * priority does not charge its submitter again. Jobs that were already
+ * assigned when the policy is set are not charged at all.
+ * Jobs with equal tags are scheduled by priority class. Jobs without a
+ * submitter share the default group.
+ */
+public class FairShareSchedulingPolicy implements SchedulingPolicy {
+
+    // virtual time units per job for a submitter with weight 1
+    private static final long UNIT = 1000000L;
+
+    private static final String DEFAULT_GROUP = "";
+
+    private final Map<String, Double> weights = new HashMap<String, Double>();
+    private final Map<String, Long> finishTimes = new HashMap<String, Long>();
+    private long virtualTime = 0;
+
+
+    /**
+     * Sets the relative weight of the submitter, the default weight is 1.
+     */
+    public synchronized void setWeight(String submitter, double weight) {
+        if (weight <= 0)
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        weights.put(group(submitter), weight);
+    }
+
+
+    public synchronized double getWeight(String submitter) {
+        Double weight = weights.get(group(submitter));
+        return (weight != null) ? weight : 1.0;
+    }
+
+
+    public synchronized SchedulingKey createKey(Job job, long queueSequence) {
+        String group = group(job.getSubmitter());
+        Long previousFinish = finishTimes.get(group);
+        long start = (previousFinish != null) ? Math.max(virtualTime, previousFinish) : virtualTime;
+        long cost = Math.max(1L, Math.round(UNIT / getWeight(job.getSubmitter())));
+        finishTimes.put(group, start + cost);
+        return new SchedulingKey(start, job.getPriority().ordinal(), queueSequence);
+    }
+
+
+    public synchronized SchedulingKey updateKey(Job job, SchedulingKey previous, long queueSequence) {
+        long start = (previous != null) ? previous.getPrimary() : virtualTime;
+        return new SchedulingKey(start, job.getPriority().ordinal(), queueSequence);
+    }
+
+
+    public synchronized void jobAssigned(Job job) {
+        SchedulingKey key = job.getSchedulingKey();
+        if ((key != null) && (key.getPrimary() > virtualTime))
+            virtualTime = key.getPrimary();
+    }
+
+
+    private static String group(String submitter) {
+        return (submitter != null) ? submitter : DEFAULT_GROUP;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * seamframe: HistoryRetentionPolicy.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Describes how long completed jobs are retained by the JobHistory, either
+ * by age (time since the last state change of the job) or by count. A value
+ * of zero means no limit for that criterion. Instances are immutable.
+ */
+public final class HistoryRetentionPolicy {
+
+    /**
+     * Policy that retains all jobs.
+     */
+    public static final HistoryRetentionPolicy NONE = new HistoryRetentionPolicy(0, 0);
+
+    private final long maxAgeInMillis;
+    private final int maxCount;
+
+
+    public HistoryRetentionPolicy(long maxAgeInMillis, int maxCount) {
+        if ((maxAgeInMillis < 0) || (maxCount < 0))
+            throw new IllegalArgumentException("Retention limits can not be negative");
+        this.maxAgeInMillis = maxAgeInMillis;
+        this.maxCount = maxCount;
+    }
+
+
+    public static HistoryRetentionPolicy byAge(long maxAgeInMillis) {
+        return new HistoryRetentionPolicy(maxAgeInMillis, 0);
+    }
+
+
+    public static HistoryRetentionPolicy byCount(int maxCount) {
+        return new HistoryRetentionPolicy(0, maxCount);
+    }
+
+
+    public long getMaxAgeInMillis() {
+        return maxAgeInMillis;
+    }
+
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+
+    public boolean isLimitedByAge() {
+        return maxAgeInMillis > 0;
+    }
+
+
+    public boolean isLimitedByCount() {
+        return maxCount > 0;
+    }
+
+
+    /**
+     * @return true if a job last changed at the given time has expired
+     */
+    public boolean isExpired(long lastStateChangeInMillis, long nowInMillis) {
+        return isLimitedByAge() && (nowInMillis - lastStateChangeInMillis > maxAgeInMillis);
+    }
+
+
+    @Override
+    public String toString() {
+        return "HistoryRetentionPolicy[maxAgeInMillis=" + maxAgeInMillis + ", maxCount=" + maxCount + "]";
+    }
+}
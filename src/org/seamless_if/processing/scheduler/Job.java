@@ -23,7 +23,10 @@
 
 package org.seamless_if.processing.scheduler;
 
-import java.rmi.server.UID;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.dom4j.Element;
 import org.dom4j.dom.DOMElement;
@@ -31,26 +34,46 @@ import org.dom4j.dom.DOMElement;
 /**
  * A Job is a task to run a chain of models for a certain experiment. It can be
  * queued, scheduled and processed by a Worker.
+ * <p/>
+ * Changes to the state, model chain and assigned worker of a job are
+ * synchronized on the job itself, reading them never blocks.
  *
  * @author Rob Knapen; Alterra, Wageningen UR, NL
  */
 public class Job {
 
-    private String id;
-    private JobState state;
-    private ModelChainInfo modelChain;
-    private Long experimentId;
-    private WorkerInfo assignedToWorker;
-    private String logUrl;
+    private CompactId id;
+    private volatile JobState state;
+    private volatile ModelChainInfo modelChain;
+    private volatile Long experimentId;
+    private volatile WorkerInfo assignedToWorker;
+    private volatile String logUrl;
+    private volatile long lastStateChangeInMillis;
+    private volatile JobPriority priority;
+    private volatile Long deadlineInMillis;
+    private volatile String submitter;
+    private volatile int retryCount;
+    private final List<String> dependencies = new CopyOnWriteArrayList<String>();
+    private volatile String speculativeCopyOf;
+
+    // queue the job is currently in, and its position in that queue
+    private volatile JobQueue queue;
+    private volatile long queueSequence;
+    private volatile SchedulingKey schedulingKey;
 
 
     public Job() {
-        // ID is unique in time for this host
-        id = new UID().toString();
+        // ID is time ordered and unique over time for this node
+        id = CompactId.next();
         state = JobState.NEW;
         experimentId = 0L;
         assignedToWorker = null;
         logUrl = "";
+        lastStateChangeInMillis = System.currentTimeMillis();
+        priority = JobPriority.NORMAL;
+        deadlineInMillis = null;
+        submitter = null;
+        retryCount = 0;
     }
 
 
@@ -62,12 +85,20 @@ public class Job {
 
 
     public String getId() {
-        return id;
+        return (id != null) ? id.toString() : null;
     }
 
 
     public void setId(String id) {
-        this.id = id;
+        this.id = CompactId.parse(id);
+    }
+
+
+    /**
+     * @return the id, as used by the scheduler to index its collections
+     */
+    public CompactId getCompactId() {
+        return id;
     }
 
 
@@ -76,11 +107,32 @@ public class Job {
     }
 
 
-    public void setState(JobState state) {
+    public synchronized void setState(JobState state) {
+        JobState oldState = this.state;
+        WorkerInfo oldWorker = assignedToWorker;
+        long now = System.currentTimeMillis();
+        long millisInOldState = now - lastStateChangeInMillis;
         this.state = state;
+        // set state change stamp to now
+        lastStateChangeInMillis = now;
         if (JobState.WAITING_UNSCHEDULED.equals(state)) {
             assignedToWorker = null;
         }
+        if (queue != null) {
+            queue.jobChanged(this, oldState, modelChain, oldWorker);
+            if (oldState != state)
+                queue.jobLeftState(oldState, millisInOldState);
+        }
+    }
+
+
+    public long getLastStateChangeInMillis() {
+        return lastStateChangeInMillis;
+    }
+
+
+    public void setLastStateChangeInMillis(long lastStateChangeInMillis) {
+        this.lastStateChangeInMillis = lastStateChangeInMillis;
     }
 
 
@@ -89,8 +141,12 @@ public class Job {
     }
 
 
-    public void setModelChain(ModelChainInfo modelChain) {
+    public synchronized void setModelChain(ModelChainInfo modelChain) {
+        ModelChainInfo oldModelChain = this.modelChain;
         this.modelChain = modelChain;
+        if (queue != null) {
+            queue.jobChanged(this, state, oldModelChain, assignedToWorker);
+        }
     }
 
 
@@ -109,8 +165,130 @@ public class Job {
     }
 
 
-    public void setAssignedToWorker(WorkerInfo assignedToWorker) {
+    public synchronized void setAssignedToWorker(WorkerInfo assignedToWorker) {
+        WorkerInfo oldWorker = this.assignedToWorker;
         this.assignedToWorker = assignedToWorker;
+        if (queue != null) {
+            queue.jobChanged(this, state, modelChain, oldWorker);
+        }
+    }
+
+
+    public JobPriority getPriority() {
+        return priority;
+    }
+
+
+    /**
+     * Sets the priority class of the job. When the job is queued its position
+     * in the queue is updated.
+     */
+    public synchronized void setPriority(JobPriority priority) {
+        this.priority = (priority != null) ? priority : JobPriority.NORMAL;
+        if (queue != null) {
+            queue.jobPolicyFieldsChanged(this);
+        }
+    }
+
+
+    /**
+     * @return time before which the job should be completed, or null
+     */
+    public Long getDeadlineInMillis() {
+        return deadlineInMillis;
+    }
+
+
+    public synchronized void setDeadlineInMillis(Long deadlineInMillis) {
+        this.deadlineInMillis = deadlineInMillis;
+        if (queue != null) {
+            queue.jobPolicyFieldsChanged(this);
+        }
+    }
+
+
+    /**
+     * @return user or group that submitted the job, used for fair share
+     *         scheduling, or null
+     */
+    public String getSubmitter() {
+        return submitter;
+    }
+
+
+    public synchronized void setSubmitter(String submitter) {
+        this.submitter = submitter;
+        if (queue != null) {
+            queue.jobPolicyFieldsChanged(this);
+        }
+    }
+
+
+    /**
+     * @return number of times the job was requeued because its lease expired
+     */
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+
+    /**
+     * @return ids of the jobs that must be completed before this job can be
+     *         scheduled
+     */
+    public List<String> getDependencies() {
+        return Collections.unmodifiableList(dependencies);
+    }
+
+
+    public boolean hasDependencies() {
+        return !dependencies.isEmpty();
+    }
+
+
+    /**
+     * Adds a job that must be completed before this job can be scheduled.
+     * Dependencies are evaluated when the job is added to the Scheduler, they
+     * can not be changed once the job is queued.
+     *
+     * @param jobId id of the job to complete first
+     */
+    public void addDependency(String jobId) {
+        if ((jobId != null) && !dependencies.contains(jobId))
+            dependencies.add(jobId);
+    }
+
+
+    public void addDependency(Job job) {
+        addDependency(job.getId());
+    }
+
+
+    public void setDependencies(Collection<String> jobIds) {
+        dependencies.clear();
+        if (jobIds != null) {
+            for (String jobId : jobIds)
+                addDependency(jobId);
+        }
+    }
+
+
+    /**
+     * @return id of the straggler job this job is a speculative copy of, or
+     *         null when it is not a copy
+     */
+    public String getSpeculativeCopyOf() {
+        return speculativeCopyOf;
+    }
+
+
+    public void setSpeculativeCopyOf(String jobId) {
+        this.speculativeCopyOf = jobId;
     }
 
 
@@ -124,6 +302,40 @@ public class Job {
     }
 
 
+    /**
+     * Position of the job in the queue it was added to, lower values were
+     * queued earlier.
+     */
+    long getQueueSequence() {
+        return queueSequence;
+    }
+
+
+    /**
+     * Key of the job in the ready lists of the queue, assigned by the
+     * scheduling policy when the job entered the queue.
+     */
+    SchedulingKey getSchedulingKey() {
+        return schedulingKey;
+    }
+
+
+    void setSchedulingKey(SchedulingKey schedulingKey) {
+        this.schedulingKey = schedulingKey;
+    }
+
+
+    JobQueue getQueue() {
+        return queue;
+    }
+
+
+    void setQueue(JobQueue queue, long queueSequence) {
+        this.queue = queue;
+        this.queueSequence = queueSequence;
+    }
+
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -150,6 +362,19 @@ public class Job {
         root.add(new DOMElement("LogUrl").addText(logUrl));
         if (experimentId != null)
             root.add(new DOMElement("ExperimentId").addText(experimentId.toString()));
+        root.add(new DOMElement("Priority").addText(priority.toString()));
+        if (deadlineInMillis != null)
+            root.add(new DOMElement("DeadlineInMillis").addText(deadlineInMillis.toString()));
+        if (submitter != null)
+            root.add(new DOMElement("Submitter").addText(submitter));
+        if (speculativeCopyOf != null)
+            root.add(new DOMElement("SpeculativeCopyOf").addText(speculativeCopyOf));
+        if (!dependencies.isEmpty()) {
+            Element deps = new DOMElement("Dependencies");
+            for (String jobId : dependencies)
+                deps.add(new DOMElement("Dependency").addText(jobId));
+            root.add(deps);
+        }
         if (modelChain != null)
             root.add(modelChain.toXml());
         if (assignedToWorker != null)
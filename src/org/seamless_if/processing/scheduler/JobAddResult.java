@@ -0,0 +1,88 @@
+/*
+ * seamframe: JobAddResult.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Result of adding a single job in a batch, see Scheduler.addJobs. Either
+ * the job was added to the queue, or it was rejected for the reason given
+ * in the message.
+ */
+public class JobAddResult {
+
+    private final String jobId;
+    private final Job job;
+    private final String message;
+
+
+    private JobAddResult(String jobId, Job job, String message) {
+        this.jobId = jobId;
+        this.job = job;
+        this.message = message;
+    }
+
+
+    public static JobAddResult added(Job job) {
+        return new JobAddResult(job.getId(), job, null);
+    }
+
+
+    public static JobAddResult rejected(String jobId, String message) {
+        return new JobAddResult(jobId, null, message);
+    }
+
+
+    public boolean isAdded() {
+        return job != null;
+    }
+
+
+    /**
+     * @return id of the job, or null for a rejected job without id
+     */
+    public String getJobId() {
+        return jobId;
+    }
+
+
+    /**
+     * @return the queued job, or null when rejected
+     */
+    public Job getJob() {
+        return job;
+    }
+
+
+    /**
+     * @return reason the job was rejected, or null when added
+     */
+    public String getMessage() {
+        return message;
+    }
+
+
+    @Override
+    public String toString() {
+        return isAdded() ? "Added job " + jobId : "Rejected job " + jobId + ": " + message;
+    }
+}
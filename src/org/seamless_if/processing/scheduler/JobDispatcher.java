@@ -0,0 +1,42 @@
+/*
+ * seamframe: JobDispatcher.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Hands out the jobs assigned to a worker. Implemented by the Scheduler and
+ * by the ShardedScheduler, so a Worker can wait for jobs from either.
+ */
+public interface JobDispatcher {
+
+    /**
+     * Returns a job assigned to the worker that it did not start yet,
+     * waiting for one when there is none.
+     *
+     * @param workerId id of the worker requesting a job
+     * @param timeoutInMillis maximum time to wait for a job
+     * @return Job assigned to the worker, or null when the timeout expired
+     * @throws InterruptedException when interrupted while waiting
+     */
+    Job awaitJobForWorker(String workerId, long timeoutInMillis) throws InterruptedException;
+}
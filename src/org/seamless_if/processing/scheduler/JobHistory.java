@@ -23,64 +23,427 @@
 
 package org.seamless_if.processing.scheduler;
 
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
 
 /**
  * A history of Jobs that have been processed.
+ * <p/>
+ * The most recent jobs are kept in memory in order of completion and indexed
+ * by id. Both are concurrent collections, so lookups never block. When an
+ * archive directory is set and the number of jobs in memory grows beyond the
+ * hot window size, the oldest half of the window is spilled to an archive
+ * segment on disk (see JobHistorySegment). Lookups by id and by experiment
+ * fall back to the segments, iterating the history only visits the jobs in
+ * memory. Archived jobs keep all their fields except the worker they were
+ * assigned to.
+ * <p/>
+ * Adding a job never writes to disk itself: when the hot window or the
+ * retention policy needs to be enforced, a background maintenance thread is
+ * started, so the scheduler is not held up while a segment is written. The
+ * number of jobs in memory can exceed the hot window until it has run.
+ * <p/>
+ * A retention policy drops jobs, from memory and from the archive, that are
+ * too old or exceed the maximum count. Whole segments are dropped, so the
+ * retained count can exceed the maximum by less than one segment.
  *
  * @author Rob Knapen; Alterra, Wageningen UR, NL
  */
-public class JobHistory {
+public class JobHistory implements Iterable<Job> {
+
+    private static Logger logger = Logger.getLogger(JobHistory.class.getName());
+
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    public static final int DEFAULT_HOT_WINDOW_SIZE = 10000;
+
+    private final ConcurrentLinkedQueue<Job> items;
+    private final ConcurrentHashMap<CompactId, Job> index;
+    private final AtomicInteger itemCount = new AtomicInteger();
+
+    // archive segments, oldest first
+    private final CopyOnWriteArrayList<JobHistorySegment> segments = new CopyOnWriteArrayList<JobHistorySegment>();
+    private long nextSegmentNumber = 0;
+
+    private volatile File archiveDirectory = null;
+    private volatile int hotWindowSize = DEFAULT_HOT_WINDOW_SIZE;
+    private volatile HistoryRetentionPolicy retentionPolicy = HistoryRetentionPolicy.NONE;
 
-    private ArrayList<Job> items;
+    // serialises spilling, expiring and removing jobs
+    private final Object maintenanceLock = new Object();
+
+    // guards starting and stopping the background maintenance thread
+    private final Object maintenanceRequest = new Object();
+    private Thread maintenanceThread = null;
+    private boolean maintenanceRequested = false;
 
 
     public JobHistory() {
-        items = new ArrayList<Job>();
+        items = new ConcurrentLinkedQueue<Job>();
+        index = new ConcurrentHashMap<CompactId, Job>();
+    }
+
+
+    /**
+     * Sets the directory to spill jobs to, existing segments in it become part
+     * of the history. Null disables spilling, the history then grows without
+     * bounds unless limited by the retention policy.
+     */
+    public void setArchiveDirectory(File directory) throws IOException {
+        synchronized (maintenanceLock) {
+            segments.clear();
+            nextSegmentNumber = 0;
+            archiveDirectory = directory;
+            if (directory == null)
+                return;
+            if (!directory.isDirectory() && !directory.mkdirs())
+                throw new IOException("Can not create history archive directory " + directory);
+
+            // segment names sort by creation order
+            File[] files = directory.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                }
+            });
+            Arrays.sort(files);
+            for (File file : files) {
+                try {
+                    segments.add(JobHistorySegment.open(file));
+                    String number = file.getName().substring(SEGMENT_PREFIX.length(),
+                            file.getName().length() - SEGMENT_SUFFIX.length());
+                    nextSegmentNumber = Math.max(nextSegmentNumber, Long.parseLong(number, 16) + 1);
+                } catch (IOException e) {
+                    logger.warn("Skipping unreadable history segment " + file + ": " + e.getMessage());
+                } catch (NumberFormatException e) {
+                    logger.warn("Skipping history segment with invalid name " + file);
+                }
+            }
+        }
+        maintain();
+    }
+
+
+    public File getArchiveDirectory() {
+        return archiveDirectory;
+    }
+
+
+    /**
+     * Sets the maximum number of jobs kept in memory when an archive directory
+     * is set, zero for no maximum.
+     */
+    public void setHotWindowSize(int hotWindowSize) {
+        if (hotWindowSize < 0)
+            throw new IllegalArgumentException("Hot window size can not be negative");
+        this.hotWindowSize = hotWindowSize;
+        maintain();
+    }
+
+
+    public int getHotWindowSize() {
+        return hotWindowSize;
+    }
+
+
+    public void setRetentionPolicy(HistoryRetentionPolicy retentionPolicy) {
+        this.retentionPolicy = (retentionPolicy == null) ? HistoryRetentionPolicy.NONE : retentionPolicy;
+        maintain();
+    }
+
+
+    public HistoryRetentionPolicy getRetentionPolicy() {
+        return retentionPolicy;
     }
 
 
     public void addJob(Job job) {
-        if (!items.contains(job)) {
+        if (index.putIfAbsent(job.getCompactId(), job) == null) {
             items.add(job); // adds to the end of the list
+            itemCount.incrementAndGet();
+            if (needsMaintenance())
+                requestMaintenance();
         }
     }
 
 
     public void removeJob(String jobId) {
-        Iterator<Job> iter = items.iterator();
-        while (iter.hasNext()) {
-            if (iter.next().getId().equals(jobId)) {
-                iter.remove();
+        removeJob(CompactId.parse(jobId));
+    }
+
+
+    public void removeJob(CompactId jobId) {
+        synchronized (maintenanceLock) {
+            Job job = index.remove(jobId);
+            if ((job != null) && items.remove(job)) {
+                itemCount.decrementAndGet();
             }
         }
     }
 
 
+    /**
+     * @return the job with the given id, from memory or the archive, or null;
+     *         a job from the archive is a copy that is not assigned to a worker
+     */
     public Job getJob(String jobId) {
-        for (Job job : items) {
-            if (job.getId().equals(jobId)) {
-                return job;
+        return getJob(CompactId.parse(jobId));
+    }
+
+
+    /**
+     * @return the job with the given id, see getJob(String)
+     */
+    public Job getJob(CompactId jobId) {
+        Job job = index.get(jobId);
+        if ((job != null) || segments.isEmpty())
+            return job;
+
+        // most recent segments first
+        List<JobHistorySegment> snapshot = new ArrayList<JobHistorySegment>(segments);
+        for (int i = snapshot.size() - 1; i >= 0; i--) {
+            try {
+                job = snapshot.get(i).get(jobId.toString());
+            } catch (IOException e) {
+                logger.warn("Can not read history segment " + snapshot.get(i).getFile() + ": " + e.getMessage());
             }
+            if (job != null)
+                return isExpired(job, System.currentTimeMillis()) ? null : job;
         }
         return null;
     }
 
 
+    /**
+     * @return the jobs for the experiment, from memory and the archive, oldest first
+     */
+    public List<Job> getJobsForExperiment(Long experimentId) {
+        List<Job> result = new ArrayList<Job>();
+        if (experimentId == null)
+            return result;
+
+        long now = System.currentTimeMillis();
+        for (JobHistorySegment segment : segments) {
+            try {
+                for (Job job : segment.getJobsForExperiment(experimentId)) {
+                    if (!isExpired(job, now))
+                        result.add(job);
+                }
+            } catch (IOException e) {
+                logger.warn("Can not read history segment " + segment.getFile() + ": " + e.getMessage());
+            }
+        }
+        for (Job job : items) {
+            if (experimentId.equals(job.getExperimentId()))
+                result.add(job);
+        }
+        return result;
+    }
+
+
     public Iterator<Job> iterator() {
-        return items.iterator();
+        return Collections.unmodifiableCollection(items).iterator();
     }
 
 
+    /**
+     * @return the jobs kept in memory, archived jobs are not included
+     */
     public List<Job> getAll() {
-        return Collections.unmodifiableList(items);
+        return Collections.unmodifiableList(new ArrayList<Job>(items));
+    }
+
+
+    /**
+     * @return number of jobs kept in memory
+     */
+    public int size() {
+        return itemCount.get();
     }
 
 
+    /**
+     * @return number of jobs in the archive segments
+     */
+    public int getArchivedCount() {
+        int count = 0;
+        for (JobHistorySegment segment : segments)
+            count += segment.size();
+        return count;
+    }
+
+
+    /**
+     * Removes all jobs from memory, and deletes the archive segments.
+     */
     public void clear() {
-        items.clear();
+        synchronized (maintenanceLock) {
+            index.clear();
+            items.clear();
+            itemCount.set(0);
+            for (JobHistorySegment segment : segments) {
+                if (!segment.delete())
+                    logger.warn("Can not delete history segment " + segment.getFile());
+            }
+            segments.clear();
+        }
+    }
+
+
+    private boolean needsMaintenance() {
+        int size = itemCount.get();
+        HistoryRetentionPolicy policy = retentionPolicy;
+        if ((archiveDirectory != null) && (hotWindowSize > 0) && (size > hotWindowSize))
+            return true;
+        if (policy.isLimitedByCount() && (size > policy.getMaxCount()))
+            return true;
+        if (policy.isLimitedByAge()) {
+            Job oldest = items.peek();
+            return (oldest != null) && policy.isExpired(oldest.getLastStateChangeInMillis(), System.currentTimeMillis());
+        }
+        return false;
+    }
+
+
+    /**
+     * Runs maintain() on the background maintenance thread, starting it when
+     * it is not running.
+     */
+    private void requestMaintenance() {
+        synchronized (maintenanceRequest) {
+            maintenanceRequested = true;
+            if (maintenanceThread != null)
+                return;
+            maintenanceThread = new Thread(new Runnable() {
+                public void run() {
+                    runMaintenance();
+                }
+            }, "JobHistoryMaintenance");
+            maintenanceThread.setDaemon(true);
+            maintenanceThread.start();
+        }
+    }
+
+
+    private void runMaintenance() {
+        while (true) {
+            synchronized (maintenanceRequest) {
+                if (!maintenanceRequested) {
+                    maintenanceThread = null;
+                    maintenanceRequest.notifyAll();
+                    return;
+                }
+                maintenanceRequested = false;
+            }
+            try {
+                maintain();
+            } catch (RuntimeException e) {
+                logger.error("History maintenance failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+
+    /**
+     * Waits until the background maintenance thread has completed.
+     */
+    public void awaitMaintenance() throws InterruptedException {
+        synchronized (maintenanceRequest) {
+            while (maintenanceThread != null)
+                maintenanceRequest.wait();
+        }
+    }
+
+
+    /**
+     * Expires jobs, spills jobs beyond the hot window and enforces the
+     * maximum count of the retention policy.
+     */
+    public void maintain() {
+        synchronized (maintenanceLock) {
+            HistoryRetentionPolicy policy = retentionPolicy;
+            long now = System.currentTimeMillis();
+
+            // expire by age, jobs are in order of completion
+            if (policy.isLimitedByAge()) {
+                while (!segments.isEmpty() && policy.isExpired(segments.get(0).getNewestInMillis(), now))
+                    dropOldestSegment();
+                Job oldest;
+                while (((oldest = items.peek()) != null) && policy.isExpired(oldest.getLastStateChangeInMillis(), now))
+                    dropOldestItem();
+            }
+
+            // spill the oldest half of the hot window
+            if ((archiveDirectory != null) && (hotWindowSize > 0) && (itemCount.get() > hotWindowSize))
+                spill(itemCount.get() - hotWindowSize / 2);
+
+            // enforce the maximum count
+            if (policy.isLimitedByCount()) {
+                int total = itemCount.get() + getArchivedCount();
+                while (!segments.isEmpty() && (total > policy.getMaxCount())) {
+                    total -= segments.get(0).size();
+                    dropOldestSegment();
+                }
+                while ((itemCount.get() > policy.getMaxCount()) && !items.isEmpty())
+                    dropOldestItem();
+            }
+        }
+    }
+
+
+    private void spill(int count) {
+        // collect the oldest jobs, they stay available while written
+        List<Job> spilled = new ArrayList<Job>(count);
+        Iterator<Job> iter = items.iterator();
+        while (iter.hasNext() && (spilled.size() < count))
+            spilled.add(iter.next());
+        if (spilled.isEmpty())
+            return;
+
+        File file = new File(archiveDirectory, String.format("%s%016x%s", SEGMENT_PREFIX, nextSegmentNumber, SEGMENT_SUFFIX));
+        try {
+            segments.add(JobHistorySegment.write(file, spilled));
+            nextSegmentNumber++;
+        } catch (IOException e) {
+            logger.error("Can not write history segment " + file + ", keeping jobs in memory: " + e.getMessage());
+            return;
+        }
+
+        // only this lock removes jobs, so the spilled jobs are still at the head
+        for (int i = 0; i < spilled.size(); i++)
+            dropOldestItem();
+    }
+
+
+    private void dropOldestItem() {
+        Job job = items.poll();
+        if (job != null) {
+            index.remove(job.getCompactId());
+            itemCount.decrementAndGet();
+        }
+    }
+
+
+    private void dropOldestSegment() {
+        JobHistorySegment segment = segments.remove(0);
+        if (!segment.delete())
+            logger.warn("Can not delete history segment " + segment.getFile());
+    }
+
+
+    private boolean isExpired(Job job, long now) {
+        return retentionPolicy.isExpired(job.getLastStateChangeInMillis(), now);
     }
 }
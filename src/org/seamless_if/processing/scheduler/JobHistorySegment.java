@@ -0,0 +1,356 @@
+/*
+ * seamframe: JobHistorySegment.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable file with archived jobs, written by the JobHistory when jobs
+ * are spilled from its in memory window.
+ * <p/>
+ * The file holds the job records followed by an index of the record offsets
+ * sorted by job id hash and one sorted by experiment id, so a job can be
+ * looked up by binary search with a single record read. Only the indexes are
+ * kept in memory. Model chains are restored as detached ModelChainInfo
+ * instances, the assigned worker is not archived.
+ */
+public class JobHistorySegment {
+
+    private static final int MAGIC = 0x4a485347; // "JHSG"
+    private static final int VERSION = 1;
+
+    private final File file;
+    private final int count;
+    // (id hash << 32 | record offset), sorted
+    private final long[] idIndex;
+    // experiment ids and the offsets of their records, sorted by experiment id
+    private final long[] experimentIds;
+    private final int[] experimentOffsets;
+    private final long oldestInMillis;
+    private final long newestInMillis;
+
+
+    private JobHistorySegment(File file, int count, long[] idIndex, long[] experimentIds, int[] experimentOffsets,
+                              long oldestInMillis, long newestInMillis) {
+        this.file = file;
+        this.count = count;
+        this.idIndex = idIndex;
+        this.experimentIds = experimentIds;
+        this.experimentOffsets = experimentOffsets;
+        this.oldestInMillis = oldestInMillis;
+        this.newestInMillis = newestInMillis;
+    }
+
+
+    /**
+     * Writes the jobs to a new segment file. The file is written to a
+     * temporary file first and renamed when complete, so a segment file is
+     * never seen half written.
+     */
+    public static JobHistorySegment write(File file, List<Job> jobs) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        final long[] idIndex = new long[jobs.size()];
+        final long[] experimentIds = new long[jobs.size()];
+        final int[] experimentOffsets = new int[jobs.size()];
+        int experimentCount = 0;
+        long oldest = Long.MAX_VALUE;
+        long newest = Long.MIN_VALUE;
+
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut, 64 * 1024));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int i = 0; i < jobs.size(); i++) {
+                Job job = jobs.get(i);
+                int offset = out.size();
+                byte[] record = encode(job);
+                out.writeInt(record.length);
+                out.write(record);
+
+                idIndex[i] = ((long) job.getId().hashCode() << 32) | (offset & 0xffffffffL);
+                if (job.getExperimentId() != null) {
+                    experimentIds[experimentCount] = job.getExperimentId();
+                    experimentOffsets[experimentCount] = offset;
+                    experimentCount++;
+                }
+                oldest = Math.min(oldest, job.getLastStateChangeInMillis());
+                newest = Math.max(newest, job.getLastStateChangeInMillis());
+            }
+            Arrays.sort(idIndex);
+
+            // sort experiment index entries by experiment id
+            Integer[] order = new Integer[experimentCount];
+            for (int i = 0; i < experimentCount; i++)
+                order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    long ea = experimentIds[a];
+                    long eb = experimentIds[b];
+                    return (ea < eb) ? -1 : ((ea == eb) ? 0 : 1);
+                }
+            });
+
+            int indexOffset = out.size();
+            out.writeInt(jobs.size());
+            for (long entry : idIndex)
+                out.writeLong(entry);
+            out.writeInt(experimentCount);
+            for (Integer i : order) {
+                out.writeLong(experimentIds[i]);
+                out.writeInt(experimentOffsets[i]);
+            }
+            out.writeLong(oldest);
+            out.writeLong(newest);
+            out.writeInt(indexOffset);
+            out.writeInt(MAGIC);
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+
+        if (file.exists() && !file.delete())
+            throw new IOException("Can not replace history segment " + file);
+        if (!tempFile.renameTo(file))
+            throw new IOException("Can not rename " + tempFile + " to " + file);
+        return open(file);
+    }
+
+
+    /**
+     * Opens an existing segment file and reads its indexes.
+     */
+    public static JobHistorySegment open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length < 16)
+                throw new IOException("Not a history segment: " + file);
+            raf.seek(0);
+            if (raf.readInt() != MAGIC)
+                throw new IOException("Not a history segment: " + file);
+            int version = raf.readInt();
+            if (version != VERSION)
+                throw new IOException("Unsupported history segment version " + version + ": " + file);
+            raf.seek(length - 8);
+            int indexOffset = raf.readInt();
+            if ((raf.readInt() != MAGIC) || (indexOffset < 8) || (indexOffset > length - 8))
+                throw new IOException("Corrupt history segment: " + file);
+
+            byte[] footer = new byte[(int) (length - 8 - indexOffset)];
+            raf.seek(indexOffset);
+            raf.readFully(footer);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+            int count = in.readInt();
+            long[] idIndex = new long[count];
+            for (int i = 0; i < count; i++)
+                idIndex[i] = in.readLong();
+            int experimentCount = in.readInt();
+            long[] experimentIds = new long[experimentCount];
+            int[] experimentOffsets = new int[experimentCount];
+            for (int i = 0; i < experimentCount; i++) {
+                experimentIds[i] = in.readLong();
+                experimentOffsets[i] = in.readInt();
+            }
+            long oldest = in.readLong();
+            long newest = in.readLong();
+            return new JobHistorySegment(file, count, idIndex, experimentIds, experimentOffsets, oldest, newest);
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    public File getFile() {
+        return file;
+    }
+
+
+    public int size() {
+        return count;
+    }
+
+
+    public long getOldestInMillis() {
+        return oldestInMillis;
+    }
+
+
+    public long getNewestInMillis() {
+        return newestInMillis;
+    }
+
+
+    /**
+     * @return the archived job with the given id, or null if not in this segment
+     */
+    public Job get(String jobId) throws IOException {
+        long key = (long) jobId.hashCode() << 32;
+        int i = Arrays.binarySearch(idIndex, key);
+        if (i < 0)
+            i = -i - 1;
+        if ((i >= idIndex.length) || ((idIndex[i] >> 32) != jobId.hashCode()))
+            return null;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            for (; (i < idIndex.length) && ((idIndex[i] >> 32) == jobId.hashCode()); i++) {
+                Job job = read(raf, (int) idIndex[i]);
+                if (jobId.equals(job.getId()))
+                    return job;
+            }
+            return null;
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    /**
+     * @return the archived jobs for the experiment, empty if there are none
+     */
+    public List<Job> getJobsForExperiment(long experimentId) throws IOException {
+        int i = Arrays.binarySearch(experimentIds, experimentId);
+        if (i < 0)
+            return Collections.emptyList();
+        // binary search may land anywhere in a run of equal ids
+        while ((i > 0) && (experimentIds[i - 1] == experimentId))
+            i--;
+
+        List<Job> result = new ArrayList<Job>();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            for (; (i < experimentIds.length) && (experimentIds[i] == experimentId); i++)
+                result.add(read(raf, experimentOffsets[i]));
+        } finally {
+            raf.close();
+        }
+        return result;
+    }
+
+
+    public boolean delete() {
+        return file.delete();
+    }
+
+
+    private static Job read(RandomAccessFile raf, int offset) throws IOException {
+        raf.seek(offset);
+        byte[] record = new byte[raf.readInt()];
+        raf.readFully(record);
+        return decode(record);
+    }
+
+
+    private static byte[] encode(Job job) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(job.getId());
+        writeString(out, job.getState().toString());
+        Long experimentId = job.getExperimentId();
+        out.writeBoolean(experimentId != null);
+        out.writeLong((experimentId != null) ? experimentId : 0L);
+        ModelChainInfo chain = job.getModelChain();
+        out.writeBoolean(chain != null);
+        if (chain != null) {
+            writeString(out, chain.getId());
+            writeString(out, chain.getName());
+            writeString(out, chain.getVersion());
+        }
+        writeString(out, job.getLogUrl());
+        out.writeLong(job.getLastStateChangeInMillis());
+        writeString(out, job.getPriority().toString());
+        Long deadline = job.getDeadlineInMillis();
+        out.writeBoolean(deadline != null);
+        out.writeLong((deadline != null) ? deadline : 0L);
+        writeString(out, job.getSubmitter());
+        out.writeInt(job.getRetryCount());
+        List<String> dependencies = job.getDependencies();
+        out.writeInt(dependencies.size());
+        for (String dependency : dependencies)
+            out.writeUTF(dependency);
+        writeString(out, job.getSpeculativeCopyOf());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+
+    private static Job decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        Job job = new Job();
+        job.setId(in.readUTF());
+        job.setState(JobState.valueOf(readString(in)));
+        boolean hasExperimentId = in.readBoolean();
+        long experimentId = in.readLong();
+        job.setExperimentId(hasExperimentId ? experimentId : null);
+        if (in.readBoolean()) {
+            ModelChainInfo chain = new ModelChainInfo();
+            chain.setId(readString(in));
+            chain.setName(readString(in));
+            chain.setVersion(readString(in));
+            job.setModelChain(chain);
+        }
+        job.setLogUrl(readString(in));
+        job.setLastStateChangeInMillis(in.readLong());
+        job.setPriority(JobPriority.valueOf(readString(in)));
+        boolean hasDeadline = in.readBoolean();
+        long deadline = in.readLong();
+        job.setDeadlineInMillis(hasDeadline ? deadline : null);
+        job.setSubmitter(readString(in));
+        job.setRetryCount(in.readInt());
+        int dependencyCount = in.readInt();
+        List<String> dependencies = new ArrayList<String>(dependencyCount);
+        for (int i = 0; i < dependencyCount; i++)
+            dependencies.add(in.readUTF());
+        job.setDependencies(dependencies);
+        job.setSpeculativeCopyOf(readString(in));
+        return job;
+    }
+
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
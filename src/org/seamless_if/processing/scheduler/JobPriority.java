@@ -0,0 +1,45 @@
+/*
+ * seamframe: JobPriority.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Enumeration defining the priority classes of a Job, in order of scheduling
+ * precedence.
+ */
+public enum JobPriority {
+    /**
+     * Urgent job, scheduled before all other jobs.
+     */
+    HIGH,
+
+    /**
+     * Default priority.
+     */
+    NORMAL,
+
+    /**
+     * Background job, only scheduled when no other jobs are waiting.
+     */
+    LOW
+}
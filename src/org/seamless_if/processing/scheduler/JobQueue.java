@@ -25,66 +25,263 @@ package org.seamless_if.processing.scheduler;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A queue of Jobs, waiting to be scheduled to Workers for processing.
+ * <p/>
+ * Jobs are kept in queue order and indexed by id, by the worker they are
+ * assigned to, by time of assignment while they are not started, and per
+ * model chain and state in ready lists ordered by the position of the job
+ * in the queue. Jobs in the queue report changes of
+ * their state, model chain and assigned worker back to the queue so that
+ * the indexes stay up to date. The ready lists are ordered on the key the
+ * scheduling policy assigns to a job when it enters the queue (by default
+ * the position in the queue). Finding a job for a worker therefore only
+ * needs to look at the heads of the ready lists of the model chains the
+ * worker supports.
+ * <p/>
+ * All indexes are concurrent maps. Changes to a single job are serialised by
+ * the lock of that job, changes to different jobs and all lookups proceed in
+ * parallel without blocking each other.
  *
  * @author Rob Knapen; Alterra, Wageningen UR, NL
  */
-public class JobQueue {
+public class JobQueue implements Iterable<Job> {
 
-    private ArrayList<Job> items;
+    /**
+     * Job states for which jobs are kept in the ready lists, in order of
+     * scheduling priority.
+     */
+    private static final JobState[] READY_STATES = {JobState.ABORTED, JobState.WAITING_UNSCHEDULED};
+
+    private final ConcurrentHashMap<CompactId, Job> items;
+    private final ConcurrentSkipListMap<Long, Job> ordered;
+    private final ConcurrentHashMap<CompactId, ConcurrentSkipListMap<Long, Job>> jobsByWorker;
+    private final ConcurrentHashMap<ModelChainInfo, EnumMap<JobState, ConcurrentSkipListMap<SchedulingKey, Job>>> readyJobs;
+
+    // assigned jobs not started yet, ordered by time of assignment, with the
+    // key each job is indexed under
+    private final ConcurrentSkipListMap<SchedulingKey, Job> scheduledJobs;
+    private final ConcurrentHashMap<CompactId, SchedulingKey> scheduledKeys;
+    private final AtomicLong nextSequence;
+    private volatile SchedulingPolicy schedulingPolicy;
+
+    // number of queued jobs per state and per model chain id, and the time
+    // jobs spent in each state before leaving it
+    private final EnumMap<JobState, AtomicInteger> stateCounts;
+    private final ConcurrentHashMap<CompactId, AtomicInteger> modelChainCounts;
+    private final EnumMap<JobState, LatencyStatistics> timeInState;
 
     // TODO private static Logger logger = Logger.getLogger(ExperimentQueue.class.getName());
 
     public JobQueue() {
-        items = new ArrayList<Job>();
+        items = new ConcurrentHashMap<CompactId, Job>();
+        ordered = new ConcurrentSkipListMap<Long, Job>();
+        jobsByWorker = new ConcurrentHashMap<CompactId, ConcurrentSkipListMap<Long, Job>>();
+        readyJobs = new ConcurrentHashMap<ModelChainInfo, EnumMap<JobState, ConcurrentSkipListMap<SchedulingKey, Job>>>();
+        scheduledJobs = new ConcurrentSkipListMap<SchedulingKey, Job>();
+        scheduledKeys = new ConcurrentHashMap<CompactId, SchedulingKey>();
+        nextSequence = new AtomicLong();
+        schedulingPolicy = new FifoSchedulingPolicy();
+        // filled once, so the maps are only read concurrently
+        stateCounts = new EnumMap<JobState, AtomicInteger>(JobState.class);
+        timeInState = new EnumMap<JobState, LatencyStatistics>(JobState.class);
+        for (JobState state : JobState.values()) {
+            stateCounts.put(state, new AtomicInteger());
+            timeInState.put(state, new LatencyStatistics());
+        }
+        modelChainCounts = new ConcurrentHashMap<CompactId, AtomicInteger>();
+    }
+
+
+    public SchedulingPolicy getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
+
+    /**
+     * Sets the policy that orders the ready lists, and reorders the jobs that
+     * are already queued in queue order. A new policy creates the keys of
+     * the jobs that still wait to be assigned as if they entered the queue,
+     * the other jobs only get a key in its order.
+     *
+     * @param policy scheduling policy to use
+     */
+    public void setSchedulingPolicy(SchedulingPolicy policy) {
+        if (policy == null)
+            throw new IllegalArgumentException("Scheduling policy can not be null");
+        boolean changed = (policy != schedulingPolicy);
+        schedulingPolicy = policy;
+        for (Job job : ordered.values()) {
+            synchronized (job) {
+                if (job.getQueue() == this)
+                    updateSchedulingKey(job, changed);
+            }
+        }
     }
 
 
     public boolean add(Job job) {
-        if (!items.contains(job)) {
+        if (items.putIfAbsent(job.getCompactId(), job) != null)
+            return false;
+
+        synchronized (job) {
             job.setState(JobState.WAITING_UNSCHEDULED);
-            return items.add(job); // adds to the end of the list
+            job.setQueue(this, nextSequence.getAndIncrement());
+            job.setSchedulingKey(schedulingPolicy.createKey(job, job.getQueueSequence()));
+            ordered.put(job.getQueueSequence(), job); // adds to the end of the queue
+            index(job, job.getState(), job.getModelChain(), job.getAssignedToWorker());
         }
-        return false;
+        return true;
     }
 
 
     public boolean remove(Job job) {
-        return items.remove(job);
+        if (job == null)
+            return false;
+        return remove(job.getCompactId());
     }
 
 
     public boolean remove(String jobId) {
-    	boolean result = false;
-        Iterator<Job> iter = items.iterator();
-        while (iter.hasNext()) {
-            Job job = iter.next();
-            if (job.getId().equals(jobId)) {
-                iter.remove();
-                result = true;
-            }
+        return remove(CompactId.parse(jobId));
+    }
+
+
+    public boolean remove(CompactId jobId) {
+        Job job = items.remove(jobId);
+        if (job == null)
+            return false;
+
+        synchronized (job) {
+            ordered.remove(job.getQueueSequence());
+            unindex(job, job.getState(), job.getModelChain(), job.getAssignedToWorker());
+            job.setQueue(null, job.getQueueSequence());
+        }
+        return true;
+    }
+
+
+    /**
+     * Assigns the job to the worker and sets it to WAITING_SCHEDULED, if it
+     * is still in this queue and waiting to be scheduled. The check and the
+     * assignment are atomic, so concurrent state updates for the job can
+     * not be lost and a job is never assigned twice.
+     *
+     * @param job to assign
+     * @param workerInfo worker to assign the job to
+     * @return true if the job was assigned
+     */
+    public boolean assign(Job job, WorkerInfo workerInfo) {
+        synchronized (job) {
+            if ((job.getQueue() != this) || !isReadyState(job.getState()))
+                return false;
+            job.setAssignedToWorker(workerInfo);
+            job.setState(JobState.WAITING_SCHEDULED);
+            schedulingPolicy.jobAssigned(job);
+            return true;
+        }
+    }
+
+
+    /**
+     * Resets the assignment of the job to the worker and sets it back to
+     * WAITING_UNSCHEDULED, if it is still in this queue and assigned to that
+     * worker.
+     *
+     * @param job to unassign
+     * @param workerInfo worker the job should be assigned to
+     * @return true if the assignment was reset
+     */
+    public boolean unassign(Job job, WorkerInfo workerInfo) {
+        return unassign(job, workerInfo, JobState.WAITING_UNSCHEDULED);
+    }
+
+
+    /**
+     * Resets the assignment of the job to the worker and sets it to the
+     * specified state, if it is still in this queue and assigned to that
+     * worker.
+     *
+     * @param job to unassign
+     * @param workerInfo worker the job should be assigned to
+     * @param state new state of the job
+     * @return true if the assignment was reset
+     */
+    public boolean unassign(Job job, WorkerInfo workerInfo, JobState state) {
+        synchronized (job) {
+            if ((job.getQueue() != this) || !workerInfo.equals(job.getAssignedToWorker()))
+                return false;
+            job.setAssignedToWorker(null);
+            job.setState(state);
+            return true;
+        }
+    }
+
+
+    /**
+     * Moves the assignment of the job from one worker to another, if it is
+     * still in this queue, assigned to the first worker and not started yet.
+     * The job stays WAITING_SCHEDULED, with its state change stamp reset.
+     *
+     * @param job to reassign
+     * @param fromWorker worker the job should be assigned to
+     * @param toWorker worker to assign the job to
+     * @return true if the job was reassigned
+     */
+    public boolean reassign(Job job, WorkerInfo fromWorker, WorkerInfo toWorker) {
+        synchronized (job) {
+            if ((job.getQueue() != this) || !fromWorker.equals(job.getAssignedToWorker())
+                    || !JobState.WAITING_SCHEDULED.equals(job.getState()))
+                return false;
+            job.setAssignedToWorker(toWorker);
+            job.setState(JobState.WAITING_SCHEDULED);
+            return true;
         }
-        return result;
     }
 
 
     public Iterator<Job> iterator() {
-        return items.iterator();
+        final Iterator<Job> iter = ordered.values().iterator();
+        return new Iterator<Job>() {
+            private Job current = null;
+
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            public Job next() {
+                current = iter.next();
+                return current;
+            }
+
+            public void remove() {
+                JobQueue.this.remove(current.getCompactId());
+            }
+        };
     }
 
 
     public List<Job> getAll() {
-        return Collections.unmodifiableList(items);
+        return Collections.unmodifiableList(new ArrayList<Job>(ordered.values()));
     }
     
 
     public Job getFirst() {
-        if (items.size() > 0) {
-            return items.get(0);
+        Map.Entry<Long, Job> first = ordered.firstEntry();
+        if (first != null) {
+            return first.getValue();
         } else {
             return null;
         }
@@ -93,20 +290,21 @@ public class JobQueue {
 
     public Job getAndRemoveFirst() {
         Job job = getFirst();
-        if (job != null) {
-            items.remove(0);
+        while ((job != null) && !remove(job.getCompactId())) {
+            // removed by someone else in the meantime, try the next one
+            job = getFirst();
         }
         return job;
     }
 
 
     public Job get(String jobId) {
-        for (Job job : items) {
-            if (job.getId().equals(jobId)) {
-                return job;
-            }
-        }
-        return null;
+        return items.get(CompactId.parse(jobId));
+    }
+
+
+    public Job get(CompactId jobId) {
+        return items.get(jobId);
     }
 
 
@@ -118,15 +316,102 @@ public class JobQueue {
      * @return Job assigned to worker, or null
      */
     public Job getFirstJobForWorker(String workerId) {
-        for (Job job : items) {
-            if ((job.getAssignedToWorker() != null) && (job.getAssignedToWorker().getId().equals(workerId))) {
+        return getFirstJobForWorker(CompactId.parse(workerId));
+    }
+
+
+    public Job getFirstJobForWorker(CompactId workerId) {
+        ConcurrentSkipListMap<Long, Job> assigned = jobsByWorker.get(workerId);
+        if (assigned == null)
+            return null;
+        Map.Entry<Long, Job> first = assigned.firstEntry();
+        return (first != null) ? first.getValue() : null;
+    }
+
+
+    /**
+     * Returns the first job in the queue that is assigned to the worker with
+     * the specified id and has the specified state.
+     *
+     * @param workerId
+     * @param state
+     * @return Job assigned to worker, or null
+     */
+    public Job getFirstJobForWorker(String workerId, JobState state) {
+        return getFirstJobForWorker(CompactId.parse(workerId), state);
+    }
+
+
+    public Job getFirstJobForWorker(CompactId workerId, JobState state) {
+        ConcurrentSkipListMap<Long, Job> assigned = jobsByWorker.get(workerId);
+        if (assigned == null)
+            return null;
+        for (Job job : assigned.values()) {
+            if (state.equals(job.getState()))
                 return job;
-            }
         }
         return null;
     }
 
 
+    /**
+     * Returns the number of jobs in the queue that are assigned to the worker
+     * with the specified id, i.e. the number of slots of the worker in use.
+     *
+     * @param workerId
+     * @return number of jobs assigned to the worker
+     */
+    public int countJobsForWorker(String workerId) {
+        return countJobsForWorker(CompactId.parse(workerId));
+    }
+
+
+    public int countJobsForWorker(CompactId workerId) {
+        ConcurrentSkipListMap<Long, Job> assigned = jobsByWorker.get(workerId);
+        return (assigned != null) ? assigned.size() : 0;
+    }
+
+
+    /**
+     * Returns all jobs in the queue that are assigned to the worker with the
+     * specified id.
+     *
+     * @param workerId
+     * @return List of jobs assigned to the worker, possibly empty
+     */
+    public List<Job> getJobsForWorker(String workerId) {
+        return getJobsForWorker(CompactId.parse(workerId));
+    }
+
+
+    public List<Job> getJobsForWorker(CompactId workerId) {
+        ConcurrentSkipListMap<Long, Job> assigned = jobsByWorker.get(workerId);
+        if (assigned == null)
+            return Collections.emptyList();
+        return new ArrayList<Job>(assigned.values());
+    }
+
+
+    /**
+     * Returns the workers that currently have jobs in the queue assigned to
+     * them.
+     *
+     * @return List of workers with assigned jobs, possibly empty
+     */
+    public List<WorkerInfo> getAssignedWorkers() {
+        List<WorkerInfo> result = new ArrayList<WorkerInfo>(jobsByWorker.size());
+        for (ConcurrentSkipListMap<Long, Job> assigned : jobsByWorker.values()) {
+            Map.Entry<Long, Job> first = assigned.firstEntry();
+            if (first != null) {
+                WorkerInfo workerInfo = first.getValue().getAssignedToWorker();
+                if (workerInfo != null)
+                    result.add(workerInfo);
+            }
+        }
+        return result;
+    }
+
+
     /**
      * Returns true when there are jobs in the queue assigned to the worker
      * with the specified id.
@@ -135,7 +420,13 @@ public class JobQueue {
      * @return true when jobs are assigned to the worker
      */
     public boolean jobsAssignedToWorker(String workerId) {
-        return (getFirstJobForWorker(workerId) != null);
+        return jobsAssignedToWorker(CompactId.parse(workerId));
+    }
+
+
+    public boolean jobsAssignedToWorker(CompactId workerId) {
+        ConcurrentSkipListMap<Long, Job> assigned = jobsByWorker.get(workerId);
+        return ((assigned != null) && !assigned.isEmpty());
     }
 
 
@@ -148,26 +439,90 @@ public class JobQueue {
      * @return Job that can be processed by the worker
      */
     public Job findJobForWorker(WorkerInfo workerInfo) {
-        // give priority to ABORTED jobs
-        for (Job job : items) {
-            if (job.getState().equals(JobState.ABORTED) && workerInfo.hasMatchingModelChain(job.getModelChain())) {
-			    return job;
-			}
+        for (JobState state : READY_STATES) {
+            // oldest job over the heads of the ready lists of each chain
+            Map.Entry<SchedulingKey, Job> found = null;
+            for (ModelChainInfo chain : workerInfo.getAvailableModelChains()) {
+                EnumMap<JobState, ConcurrentSkipListMap<SchedulingKey, Job>> chainJobs = readyJobs.get(chain);
+                if (chainJobs == null)
+                    continue;
+                Map.Entry<SchedulingKey, Job> head = chainJobs.get(state).firstEntry();
+                if ((head != null) && ((found == null) || (head.getKey().compareTo(found.getKey()) < 0)))
+                    found = head;
+            }
+            if (found != null)
+                return found.getValue();
         }
 
-        // check unscheduled jobs
-        for (Job job : items) {
-            if (job.getState().equals(JobState.WAITING_UNSCHEDULED) && workerInfo.hasMatchingModelChain(job.getModelChain())) {
-			    return job;
-			}
+        return null;
+    }
+
+
+    /**
+     * Lists the first jobs that can be processed by the worker, in the order
+     * in which findJobForWorker would return them.
+     *
+     * @param workerInfo
+     * @param limit maximum number of jobs to return
+     * @return jobs that can be processed by the worker
+     */
+    public List<Job> findJobsForWorker(WorkerInfo workerInfo, int limit) {
+        List<Job> found = new ArrayList<Job>();
+        for (JobState state : READY_STATES) {
+            if (found.size() >= limit)
+                break;
+            // the first jobs of each chain, merged in scheduling order
+            List<Map.Entry<SchedulingKey, Job>> entries = new ArrayList<Map.Entry<SchedulingKey, Job>>();
+            for (ModelChainInfo chain : workerInfo.getAvailableModelChains()) {
+                EnumMap<JobState, ConcurrentSkipListMap<SchedulingKey, Job>> chainJobs = readyJobs.get(chain);
+                if (chainJobs == null)
+                    continue;
+                int count = 0;
+                for (Map.Entry<SchedulingKey, Job> entry : chainJobs.get(state).entrySet()) {
+                    if (count++ >= limit - found.size())
+                        break;
+                    entries.add(entry);
+                }
+            }
+            Collections.sort(entries, new Comparator<Map.Entry<SchedulingKey, Job>>() {
+                public int compare(Map.Entry<SchedulingKey, Job> a, Map.Entry<SchedulingKey, Job> b) {
+                    return a.getKey().compareTo(b.getKey());
+                }
+            });
+            for (Map.Entry<SchedulingKey, Job> entry : entries) {
+                if (found.size() >= limit)
+                    break;
+                found.add(entry.getValue());
+            }
         }
+        return found;
+    }
+
 
+    /**
+     * Finds the job that was assigned longest ago to another worker and not
+     * started yet, that the specified worker can process. Only jobs assigned
+     * before the specified time are considered.
+     *
+     * @param workerInfo worker looking for a job
+     * @param assignedBeforeInMillis latest time of assignment
+     * @return Job that can be taken over by the worker, or null
+     */
+    public Job findStealableJobForWorker(WorkerInfo workerInfo, long assignedBeforeInMillis) {
+        SchedulingKey last = new SchedulingKey(assignedBeforeInMillis, Long.MAX_VALUE, Long.MAX_VALUE);
+        for (Job job : scheduledJobs.headMap(last, true).values()) {
+            WorkerInfo assignedTo = job.getAssignedToWorker();
+            if ((assignedTo != null) && !assignedTo.equals(workerInfo) && workerInfo.hasMatchingModelChain(job.getModelChain()))
+                return job;
+        }
         return null;
     }
 
 
     public void clear() {
-        items.clear();
+        for (CompactId jobId : items.keySet()) {
+            remove(jobId);
+        }
     }
 
 
@@ -176,6 +531,180 @@ public class JobQueue {
     }
 
 
+    /**
+     * @return number of queued jobs in the state
+     */
+    public int size(JobState state) {
+        return stateCounts.get(state).get();
+    }
+
+
+    /**
+     * @return number of queued jobs for the model chain with the id
+     */
+    public int sizeForModelChain(String modelChainId) {
+        if (modelChainId == null)
+            return 0;
+        AtomicInteger count = modelChainCounts.get(CompactId.parse(modelChainId));
+        return (count != null) ? count.get() : 0;
+    }
+
+
+    /**
+     * @return ids of the model chains that jobs were queued for
+     */
+    public Set<String> getModelChainIds() {
+        Set<String> ids = new HashSet<String>();
+        for (CompactId id : modelChainCounts.keySet())
+            ids.add(id.toString());
+        return Collections.unmodifiableSet(ids);
+    }
+
+
+    /**
+     * @return statistics of the time jobs spent in the state before they
+     *         changed to another state
+     */
+    public LatencyStatistics getTimeInState(JobState state) {
+        return timeInState.get(state);
+    }
+
+
+    /**
+     * Called by a queued job when it leaves a state.
+     */
+    void jobLeftState(JobState state, long millisInState) {
+        timeInState.get(state).record(millisInState * 1000000L);
+    }
+
+
+    /**
+     * Called by a queued job after its state, model chain or assigned worker
+     * changed, to move it to the matching indexes. The caller holds the lock
+     * of the job.
+     */
+    void jobChanged(Job job, JobState oldState, ModelChainInfo oldModelChain, WorkerInfo oldWorker) {
+        unindex(job, oldState, oldModelChain, oldWorker);
+        index(job, job.getState(), job.getModelChain(), job.getAssignedToWorker());
+    }
+
+
+    /**
+     * Called by a job in the queue, while holding its lock, when fields that
+     * the scheduling policy uses have changed. The job gets a new key from
+     * the current policy.
+     */
+    void jobPolicyFieldsChanged(Job job) {
+        updateSchedulingKey(job, false);
+    }
+
+
+    private void updateSchedulingKey(Job job, boolean newPolicy) {
+        SchedulingPolicy policy = schedulingPolicy;
+        SchedulingKey key;
+        if (!newPolicy)
+            key = policy.updateKey(job, job.getSchedulingKey(), job.getQueueSequence());
+        else if (isWaitingState(job.getState()))
+            key = policy.createKey(job, job.getQueueSequence());
+        else
+            key = policy.updateKey(job, null, job.getQueueSequence());
+
+        unindex(job, job.getState(), job.getModelChain(), job.getAssignedToWorker());
+        job.setSchedulingKey(key);
+        index(job, job.getState(), job.getModelChain(), job.getAssignedToWorker());
+    }
+
+
+    private void index(Job job, JobState state, ModelChainInfo modelChain, WorkerInfo worker) {
+        stateCounts.get(state).incrementAndGet();
+        if (modelChain != null) {
+            AtomicInteger count = modelChainCounts.get(modelChain.getCompactId());
+            if (count == null) {
+                AtomicInteger created = new AtomicInteger();
+                count = modelChainCounts.putIfAbsent(modelChain.getCompactId(), created);
+                if (count == null)
+                    count = created;
+            }
+            count.incrementAndGet();
+        }
+
+        if (worker != null) {
+            ConcurrentSkipListMap<Long, Job> assigned = jobsByWorker.get(worker.getCompactId());
+            if (assigned == null) {
+                ConcurrentSkipListMap<Long, Job> created = new ConcurrentSkipListMap<Long, Job>();
+                assigned = jobsByWorker.putIfAbsent(worker.getCompactId(), created);
+                if (assigned == null)
+                    assigned = created;
+            }
+            assigned.put(job.getQueueSequence(), job);
+
+            if (JobState.WAITING_SCHEDULED.equals(state)) {
+                SchedulingKey key = new SchedulingKey(job.getLastStateChangeInMillis(), 0, job.getQueueSequence());
+                scheduledKeys.put(job.getCompactId(), key);
+                scheduledJobs.put(key, job);
+            }
+        }
+
+        if ((modelChain != null) && isReadyState(state)) {
+            EnumMap<JobState, ConcurrentSkipListMap<SchedulingKey, Job>> chainJobs = readyJobs.get(modelChain);
+            if (chainJobs == null) {
+                // ready lists for a chain are created once and never removed
+                EnumMap<JobState, ConcurrentSkipListMap<SchedulingKey, Job>> created = new EnumMap<JobState, ConcurrentSkipListMap<SchedulingKey, Job>>(JobState.class);
+                for (JobState readyState : READY_STATES)
+                    created.put(readyState, new ConcurrentSkipListMap<SchedulingKey, Job>());
+                chainJobs = readyJobs.putIfAbsent(modelChain, created);
+                if (chainJobs == null)
+                    chainJobs = created;
+            }
+            chainJobs.get(state).put(job.getSchedulingKey(), job);
+        }
+    }
+
+
+    private void unindex(Job job, JobState state, ModelChainInfo modelChain, WorkerInfo worker) {
+        stateCounts.get(state).decrementAndGet();
+        if (modelChain != null) {
+            AtomicInteger count = modelChainCounts.get(modelChain.getCompactId());
+            if (count != null)
+                count.decrementAndGet();
+        }
+
+        if (worker != null) {
+            ConcurrentSkipListMap<Long, Job> assigned = jobsByWorker.get(worker.getCompactId());
+            if (assigned != null)
+                assigned.remove(job.getQueueSequence());
+
+            SchedulingKey key = scheduledKeys.remove(job.getCompactId());
+            if (key != null)
+                scheduledJobs.remove(key);
+        }
+
+        if ((modelChain != null) && isReadyState(state)) {
+            EnumMap<JobState, ConcurrentSkipListMap<SchedulingKey, Job>> chainJobs = readyJobs.get(modelChain);
+            if (chainJobs != null)
+                chainJobs.get(state).remove(job.getSchedulingKey());
+        }
+    }
+
+
+    private static boolean isReadyState(JobState state) {
+        for (JobState ready : READY_STATES) {
+            if (ready.equals(state))
+                return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * @return true if a job in the state still waits to be assigned
+     */
+    private static boolean isWaitingState(JobState state) {
+        return isReadyState(state) || JobState.WAITING_DEPENDENCIES.equals(state)
+                || JobState.WAITING_RETRY.equals(state);
+    }
+
+
 /*
     public String toString() {
         StringBuffer output = new StringBuffer();
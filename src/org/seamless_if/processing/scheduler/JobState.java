@@ -39,6 +39,12 @@ public enum JobState {
      */
     REMOVED,
 
+    /**
+     * Job in queue, waiting for the jobs it depends on to be completed
+     * before it can be scheduled.
+     */
+    WAITING_DEPENDENCIES,
+
     /**
      * Job in queue, waiting to be scheduled to a worker.
      */
@@ -49,6 +55,12 @@ public enum JobState {
      */
     WAITING_SCHEDULED,
 
+    /**
+     * Job in queue, its lease expired and it waits for the retry backoff to
+     * pass before it is scheduled again.
+     */
+    WAITING_RETRY,
+
     /**
      * Job in queue, being processed by a worker.
      */
@@ -76,6 +88,17 @@ public enum JobState {
     COMPLETED_WITH_WARNINGS;
 
 
+    /**
+     * Checks if the state indicates that processing of the job has finished,
+     * i.e. the job belongs in the history.
+     *
+     * @return true if the state is one of the COMPLETED states
+     */
+    public boolean isCompleted() {
+        return (this.equals(COMPLETED_OK) || this.equals(COMPLETED_WITH_WARNINGS) || this.equals(COMPLETED_WITH_ERRORS));
+    }
+
+
     /**
      * Checks if the state can be set externally (i.e. by a Worker client)
      * or if it is intended for internal use only (i.e. it can only be set
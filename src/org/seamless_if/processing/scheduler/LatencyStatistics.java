@@ -0,0 +1,105 @@
+/*
+ * seamframe: LatencyStatistics.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Running statistics over a series of measured latencies, for example the
+ * time between a job becoming schedulable and the Scheduler dispatching it.
+ * Safe for use by multiple threads.
+ */
+public class LatencyStatistics {
+
+    private long count;
+    private long totalNanos;
+    private long minNanos;
+    private long maxNanos;
+    private long lastNanos;
+
+
+    public LatencyStatistics() {
+        reset();
+    }
+
+
+    /**
+     * Adds a measured latency to the statistics.
+     *
+     * @param nanos measured latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        count++;
+        totalNanos += nanos;
+        lastNanos = nanos;
+        if (nanos < minNanos)
+            minNanos = nanos;
+        if (nanos > maxNanos)
+            maxNanos = nanos;
+    }
+
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+
+    public synchronized double getAverageMillis() {
+        if (count == 0)
+            return 0.0;
+        return totalNanos / (count * 1000000.0);
+    }
+
+
+    public synchronized double getMinMillis() {
+        if (count == 0)
+            return 0.0;
+        return minNanos / 1000000.0;
+    }
+
+
+    public synchronized double getMaxMillis() {
+        return maxNanos / 1000000.0;
+    }
+
+
+    public synchronized double getLastMillis() {
+        return lastNanos / 1000000.0;
+    }
+
+
+    public synchronized void reset() {
+        count = 0;
+        totalNanos = 0;
+        minNanos = Long.MAX_VALUE;
+        maxNanos = 0;
+        lastNanos = 0;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return String.format("count=%d, avg=%.3f ms, min=%.3f ms, max=%.3f ms, last=%.3f ms",
+                count, getAverageMillis(), getMinMillis(), getMaxMillis(), getLastMillis());
+    }
+
+}
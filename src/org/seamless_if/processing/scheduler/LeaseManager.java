@@ -0,0 +1,274 @@
+/*
+ * seamframe: LeaseManager.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of leases that expire unless renewed, for worker liveness, for
+ * jobs assigned to workers and for jobs waiting to be retried.
+ * <p/>
+ * Leases are kept in a delay queue ordered on expiry time, so checking for
+ * expired leases only touches the leases that actually expired. Renewing a
+ * lease only updates its expiry time, the lease keeps its place in the delay
+ * queue until it comes up and is then put back with the new expiry time.
+ * Renewing is therefore cheap enough to be done on every heartbeat. Leases
+ * are looked up per type by the compact id of the worker or job, so no key
+ * has to be built for a lookup.
+ */
+public class LeaseManager {
+
+    /**
+     * The kinds of things leases are held for.
+     */
+    public enum Type {
+        /**
+         * Liveness of a worker, renewed by state updates and heartbeats.
+         */
+        WORKER,
+
+        /**
+         * A job assigned to a worker, renewed while the job is in progress.
+         */
+        JOB,
+
+        /**
+         * Backoff of a job waiting to be retried, never renewed.
+         */
+        RETRY,
+
+        /**
+         * A job held back for a preferred worker, never renewed.
+         */
+        AFFINITY,
+
+        /**
+         * A job in progress that becomes a straggler when it expires, never
+         * renewed.
+         */
+        STRAGGLER,
+
+        /**
+         * A job assigned to a worker that may be taken over by another worker
+         * when it expires before the job is started, never renewed.
+         */
+        STEAL
+    }
+
+
+    /**
+     * A lease on something identified by type and id.
+     */
+    public static class Lease implements Delayed {
+
+        private final Type type;
+        private final CompactId id;
+        // guarded by the lease, so renewing and expiring do not overlap
+        private long expiresAtNanos;
+        private boolean expired;
+        // expiry time the lease is ordered on in the delay queue
+        private long queuedExpiresAtNanos;
+
+
+        private Lease(Type type, CompactId id, long expiresAtNanos) {
+            this.type = type;
+            this.id = id;
+            this.expiresAtNanos = expiresAtNanos;
+            this.queuedExpiresAtNanos = expiresAtNanos;
+        }
+
+
+        public Type getType() {
+            return type;
+        }
+
+
+        public CompactId getId() {
+            return id;
+        }
+
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(queuedExpiresAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+
+        public int compareTo(Delayed other) {
+            long diff = queuedExpiresAtNanos - ((Lease) other).queuedExpiresAtNanos;
+            return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+        }
+
+
+        @Override
+        public String toString() {
+            return type + " lease on " + id;
+        }
+    }
+
+
+    private final EnumMap<Type, ConcurrentHashMap<CompactId, Lease>> leases;
+    private final DelayQueue<Lease> expiries = new DelayQueue<Lease>();
+
+
+    public LeaseManager() {
+        // filled once, so the map is only read concurrently
+        leases = new EnumMap<Type, ConcurrentHashMap<CompactId, Lease>>(Type.class);
+        for (Type type : Type.values())
+            leases.put(type, new ConcurrentHashMap<CompactId, Lease>());
+    }
+
+
+    /**
+     * Grants a new lease, replacing an existing lease on the same thing.
+     *
+     * @param type kind of lease
+     * @param id of the worker or job
+     * @param durationInMillis time until the lease expires
+     */
+    public void grant(Type type, CompactId id, long durationInMillis) {
+        Lease lease = new Lease(type, id, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationInMillis));
+        leases.get(type).put(id, lease);
+        expiries.add(lease);
+    }
+
+
+    /**
+     * Extends an existing lease.
+     *
+     * @param type kind of lease
+     * @param id of the worker or job
+     * @param durationInMillis time from now until the lease expires
+     * @return false if there is no lease to renew
+     */
+    public boolean renew(Type type, CompactId id, long durationInMillis) {
+        Lease lease = leases.get(type).get(id);
+        if (lease == null)
+            return false;
+        synchronized (lease) {
+            if (lease.expired)
+                return false;
+            lease.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationInMillis);
+            return true;
+        }
+    }
+
+
+    /**
+     * Renews the lease, or grants a new one when there is none.
+     */
+    public void renewOrGrant(Type type, CompactId id, long durationInMillis) {
+        if (!renew(type, id, durationInMillis))
+            grant(type, id, durationInMillis);
+    }
+
+
+    /**
+     * Releases the lease, it will not expire anymore.
+     */
+    public void release(Type type, CompactId id) {
+        // the delay queue entry is discarded when it comes up
+        leases.get(type).remove(id);
+    }
+
+
+    public boolean isHeld(Type type, CompactId id) {
+        return leases.get(type).containsKey(id);
+    }
+
+
+    /**
+     * Removes and returns the leases that expired, without waiting.
+     *
+     * @return expired leases, possibly empty
+     */
+    public List<Lease> pollExpired() {
+        List<Lease> expired = new ArrayList<Lease>();
+        Lease lease;
+        while ((lease = expiries.poll()) != null) {
+            handleDue(lease, expired);
+        }
+        return expired;
+    }
+
+
+    /**
+     * Waits until at least one lease expired or the specified time passed,
+     * and then removes and returns the leases that expired.
+     *
+     * @param maxWaitInMillis maximum time to wait
+     * @return expired leases, possibly empty
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public List<Lease> awaitExpired(long maxWaitInMillis) throws InterruptedException {
+        List<Lease> expired = new ArrayList<Lease>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitInMillis);
+        long remaining = deadline - System.nanoTime();
+        while (expired.isEmpty() && (remaining > 0)) {
+            Lease lease = expiries.poll(remaining, TimeUnit.NANOSECONDS);
+            if (lease != null)
+                handleDue(lease, expired);
+            remaining = deadline - System.nanoTime();
+        }
+        expired.addAll(pollExpired());
+        return expired;
+    }
+
+
+    public void clear() {
+        for (ConcurrentHashMap<CompactId, Lease> typeLeases : leases.values())
+            typeLeases.clear();
+        expiries.clear();
+    }
+
+
+    /**
+     * Handles a lease that came up in the delay queue: discards it when it
+     * was released or replaced, puts it back when it was renewed, and
+     * otherwise removes it as expired. Checking the expiry time and marking
+     * the lease expired is done under the lock of the lease, so a renewal
+     * either extends the lease in time or fails.
+     */
+    private void handleDue(Lease lease, List<Lease> expired) {
+        ConcurrentHashMap<CompactId, Lease> typeLeases = leases.get(lease.getType());
+        if (typeLeases.get(lease.getId()) != lease)
+            return;
+        synchronized (lease) {
+            long expiresAtNanos = lease.expiresAtNanos;
+            if (expiresAtNanos - System.nanoTime() > 0) {
+                lease.queuedExpiresAtNanos = expiresAtNanos;
+                expiries.add(lease);
+                return;
+            }
+            lease.expired = true;
+        }
+        if (typeLeases.remove(lease.getId(), lease))
+            expired.add(lease);
+    }
+}
@@ -23,8 +23,6 @@
 
 package org.seamless_if.processing.scheduler;
 
-import java.rmi.server.UID;
-
 import org.dom4j.Element;
 import org.dom4j.dom.DOMElement;
 
@@ -36,26 +34,34 @@ import org.dom4j.dom.DOMElement;
  */
 public class ModelChainInfo {
 
-    private String id;
+    private CompactId id;
     private String name;
     private String version;
 
 
     public ModelChainInfo() {
-        // ID is unique over time for this host
-        id = new UID().toString();
+        // ID is time ordered and unique over time for this node
+        id = CompactId.next();
         name = "New ModelChainInfo";
         version = "1.0.0";
     }
 
 
     public String getId() {
-        return id;
+        return (id != null) ? id.toString() : null;
     }
 
 
     public void setId(String id) {
-        this.id = id;
+        this.id = CompactId.parse(id);
+    }
+
+
+    /**
+     * @return the id, as used by the scheduler to index its collections
+     */
+    public CompactId getCompactId() {
+        return id;
     }
 
 
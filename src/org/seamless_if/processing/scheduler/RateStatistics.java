@@ -0,0 +1,108 @@
+/*
+ * seamframe: RateStatistics.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Counts events over a sliding window of one second buckets, for example
+ * the number of jobs completed in the last minute. Safe for use by multiple
+ * threads.
+ */
+public class RateStatistics {
+
+    public static final int DEFAULT_WINDOW_IN_SEC = 60;
+
+    private final long[] counts;
+    private final long[] seconds;
+    private long total;
+
+
+    public RateStatistics() {
+        this(DEFAULT_WINDOW_IN_SEC);
+    }
+
+
+    /**
+     * @param windowInSec length of the sliding window in seconds
+     */
+    public RateStatistics(int windowInSec) {
+        counts = new long[Math.max(1, windowInSec)];
+        seconds = new long[counts.length];
+    }
+
+
+    /**
+     * Counts an event that happened now.
+     */
+    public synchronized void record() {
+        long second = System.currentTimeMillis() / 1000;
+        int bucket = (int) (second % counts.length);
+        if (seconds[bucket] != second) {
+            // bucket was last used a window or more ago
+            seconds[bucket] = second;
+            counts[bucket] = 0;
+        }
+        counts[bucket]++;
+        total++;
+    }
+
+
+    /**
+     * @return number of events in the sliding window
+     */
+    public synchronized long getCountInWindow() {
+        long oldest = System.currentTimeMillis() / 1000 - counts.length;
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if (seconds[i] > oldest)
+                count += counts[i];
+        }
+        return count;
+    }
+
+
+    /**
+     * @return average number of events per minute over the sliding window
+     */
+    public double getRatePerMinute() {
+        return getCountInWindow() * 60.0 / counts.length;
+    }
+
+
+    /**
+     * @return number of events since created or reset
+     */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+
+    public synchronized void reset() {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = 0;
+            seconds[i] = 0;
+        }
+        total = 0;
+    }
+
+}
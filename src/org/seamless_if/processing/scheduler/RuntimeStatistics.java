@@ -0,0 +1,113 @@
+/*
+ * seamframe: RuntimeStatistics.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.util.Arrays;
+
+/**
+ * Statistics over the most recent run times of the jobs of a model chain,
+ * used to recognise jobs that run far longer than usual. Safe for use by
+ * multiple threads.
+ */
+public class RuntimeStatistics {
+
+    public static final int DEFAULT_SAMPLE_SIZE = 256;
+
+    // ring buffer with the most recent run times
+    private final long[] samples;
+    private int next;
+    private long count;
+
+
+    public RuntimeStatistics() {
+        this(DEFAULT_SAMPLE_SIZE);
+    }
+
+
+    /**
+     * @param sampleSize number of most recent run times kept
+     */
+    public RuntimeStatistics(int sampleSize) {
+        samples = new long[Math.max(1, sampleSize)];
+    }
+
+
+    /**
+     * Adds the run time of a completed job.
+     *
+     * @param millis run time in milliseconds
+     */
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        count++;
+    }
+
+
+    /**
+     * @return total number of run times recorded
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+
+    /**
+     * @return number of run times the percentiles are based on
+     */
+    public synchronized int getSampleCount() {
+        return (int) Math.min(count, samples.length);
+    }
+
+
+    /**
+     * Returns the run time that the fraction of the recent jobs did not
+     * exceed, using the nearest rank.
+     *
+     * @param fraction between 0 and 1, for example 0.95
+     * @return run time in milliseconds, or 0 when nothing was recorded
+     */
+    public synchronized long getPercentile(double fraction) {
+        int size = getSampleCount();
+        if (size == 0)
+            return 0;
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(fraction * size);
+        return sorted[Math.min(size, Math.max(1, rank)) - 1];
+    }
+
+
+    public synchronized void reset() {
+        next = 0;
+        count = 0;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return String.format("count=%d, p50=%d ms, p95=%d ms", count, getPercentile(0.5), getPercentile(0.95));
+    }
+
+}
@@ -23,39 +23,59 @@
 
 package org.seamless_if.processing.scheduler;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
-import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.dom.DOMElement;
-import org.dom4j.io.XMLWriter;
+import org.seamless_if.processing.scheduler.dto.JobAddResultTO;
+import org.seamless_if.processing.scheduler.dto.JobTO;
 import org.seamless_if.processing.sofa.SeamException;
 
 /**
- * Singleton object that coordinates between a set of Workers and list of Jobs
- * in a Queue. It schedules Jobs to Workers, follows progress, and keeps track
- * of the availability of each Worker.
+ * Coordinates between a set of Workers and list of Jobs in a Queue. It
+ * schedules Jobs to Workers, follows progress, and keeps track of the
+ * availability of each Worker.
  * <p/>
- * Note: Uses the enum pattern to implement the singleton, access it with
- * Scheduler.INSTANCE.
+ * Note: the scheduler of the server is a singleton, access it with
+ * Scheduler.INSTANCE. A ShardedScheduler creates a separate instance for
+ * each of its shards.
+ * <p/>
+ * Workers, queue and history are kept in concurrent collections. Queries
+ * never block, state updates lock only the worker or job concerned, so many
+ * workers can report in parallel. Scheduling passes are serialised among
+ * each other by a separate lock.
  *
  * @author Rob Knapen; Alterra, Wageningen UR, NL
  */
-public enum Scheduler {
-
-    INSTANCE;
+public class Scheduler implements JobDispatcher {
 
     /**
-     * Required state update frequency for workers, before they will be
-     * considered to have timed out and set to unavailable.
+     * Default required state update or heartbeat frequency for workers,
+     * before their lease expires and they are set to UNKNOWN.
      */
-    private static long WORKER_STATE_UPDATE_TIMEOUT_IN_SEC = 30;
+    private static final long WORKER_STATE_UPDATE_TIMEOUT_IN_SEC = 30;
 
     /**
      * Time in seconds that the scheduler will sleep inbetween scheduling
@@ -63,22 +83,116 @@ public enum Scheduler {
      */
     private static long SCHEDULER_SLEEP_TIME_IN_SEC = 10;
 
+    /**
+     * Maximum time in seconds the lease expiry thread waits for a lease to
+     * expire, when scheduling in event driven mode.
+     */
+    private static long WORKER_TIMEOUT_CHECK_INTERVAL_IN_SEC = 10;
+
+    /**
+     * Default time in seconds a worker has to start a job assigned to one of
+     * its slots, and between heartbeats for a job in progress, before the
+     * lease of the job expires and it is requeued.
+     */
+    private static final long JOB_START_TIMEOUT_IN_SEC = 30;
+
+    /**
+     * Default number of times a job is retried after its lease expired while
+     * in progress, before it is completed with errors.
+     */
+    private static final int MAX_JOB_RETRIES = 3;
+
+    /**
+     * Default backoff before the first retry of a job, doubled for each next
+     * retry up to the maximum.
+     */
+    private static final long RETRY_BACKOFF_IN_MILLIS = 1000;
+    private static final long MAX_RETRY_BACKOFF_IN_MILLIS = 60000;
+
+    /**
+     * Marker value for no pending scheduling request.
+     */
+    private static final long NO_SCHEDULING_REQUEST = -1L;
+
     /**
      * Logger for the Scheduler.
      */
     private static Logger logger = Logger.getLogger(Scheduler.class.getName());
 
+    /**
+     * The scheduler of the server.
+     */
+    public static final Scheduler INSTANCE = new Scheduler();
+
     /**
      * Name of file used to persist scheduler data.
      */
-    private static String schedulerFileName = null;
+    private String schedulerFileName = null;
 
 
-    private WorkerInfoList workers = new WorkerInfoList();
-    private JobQueue jobQueue = new JobQueue();
+    private final WorkerInfoList workers = new WorkerInfoList();
+    private final JobQueue jobQueue = new JobQueue();
     private JobHistory jobHistory = new JobHistory();
 
-    // TODO figure out which methods have to be synchronized
+    private SchedulingMode schedulingMode = SchedulingMode.POLLING;
+    private final LatencyStatistics dispatchLatency = new LatencyStatistics();
+    private final SchedulerMetrics metrics = new SchedulerMetrics(jobQueue, workers, dispatchLatency);
+    private volatile String metricsObjectName = SchedulerMetrics.OBJECT_NAME;
+    private volatile AffinityPlacementPolicy affinityPolicy = null;
+
+    // ids of the jobs waiting for each job, guarded by the scheduling lock,
+    // and the jobs completed since these were last checked
+    private final Map<String, Set<String>> dependentJobIds = new HashMap<String, Set<String>>();
+    private final ConcurrentLinkedQueue<String> completedJobIds = new ConcurrentLinkedQueue<String>();
+    private volatile DependencyFailurePolicy dependencyFailurePolicy = DependencyFailurePolicy.FAIL_DEPENDENTS;
+
+    // run times per model chain id, flagged stragglers, and the speculative
+    // copy of each straggler, with the workers to signal about new copies
+    private final ConcurrentHashMap<String, RuntimeStatistics> runtimeStatistics = new ConcurrentHashMap<String, RuntimeStatistics>();
+    private volatile StragglerPolicy stragglerPolicy = null;
+    private final ConcurrentHashMap<CompactId, Boolean> stragglerJobIds = new ConcurrentHashMap<CompactId, Boolean>();
+    private final ConcurrentHashMap<CompactId, CompactId> speculativeCopies = new ConcurrentHashMap<CompactId, CompactId>();
+    private final ConcurrentHashMap<CompactId, Boolean> failedOriginalIds = new ConcurrentHashMap<CompactId, Boolean>();
+    private final ConcurrentLinkedQueue<String> speculativeAssignments = new ConcurrentLinkedQueue<String>();
+    private final AtomicLong stragglerCount = new AtomicLong();
+    private final AtomicLong speculativeCopyCount = new AtomicLong();
+    private final AtomicLong speculativeWinCount = new AtomicLong();
+
+    // assigned jobs not started in time can be taken over by other workers
+    private volatile long workStealingThresholdInMillis = 0;
+    private final AtomicLong stolenJobCount = new AtomicLong();
+
+    // time (System.nanoTime) of the oldest scheduling request not yet handled
+    private final Object schedulingSignal = new Object();
+    private long schedulingRequestedAtNanos = NO_SCHEDULING_REQUEST;
+
+    // monitors that workers waiting for a job assignment are parked on
+    private final ConcurrentHashMap<String, Object> jobAssignmentSignals = new ConcurrentHashMap<String, Object>();
+
+    // journal of changes when persisting to a file, or null
+    private volatile SchedulerJournal journal = null;
+
+    // serialises scheduling passes and worker availability checks
+    private final Object schedulingLock = new Object();
+
+    // serialises looking up and introducing model chains by name and version
+    private final Object modelChainLock = new Object();
+
+    // leases on worker liveness, assigned jobs and job retries
+    private final LeaseManager leases = new LeaseManager();
+    private volatile long workerLeaseTimeoutInMillis = WORKER_STATE_UPDATE_TIMEOUT_IN_SEC * 1000;
+    private volatile long jobLeaseTimeoutInMillis = JOB_START_TIMEOUT_IN_SEC * 1000;
+    private volatile int maxJobRetries = MAX_JOB_RETRIES;
+    private volatile long retryBackoffInMillis = RETRY_BACKOFF_IN_MILLIS;
+    private volatile long maxRetryBackoffInMillis = MAX_RETRY_BACKOFF_IN_MILLIS;
+
+
+    /**
+     * Use Scheduler.INSTANCE, separate instances are only created for the
+     * shards of a ShardedScheduler.
+     */
+    Scheduler() {
+    }
 
 
     public void log(String message, boolean fatal) {
@@ -93,16 +207,18 @@ public enum Scheduler {
 
 
     public WorkerInfo registerWorker(WorkerInfo workerInfo) {
-    	// check for duplicate queue entries
-        if (getWorker(workerInfo.getId()) != null) {
+    	// check for duplicate queue entries, adding fails for a known ID
+        if (!workers.add(workerInfo)) {
             log("Cancelling registration of worker [" + workerInfo + "], a worker with the same ID is already registered.", true);
             return null;
         }
-        workerInfo.setState(WorkerState.UNKNOWN);
-        if (workers.add(workerInfo))
-        	return workerInfo;
-        else
-        	return null;
+        journal(SchedulerJournal.WORKER_REGISTERED, workerInfo.getId(), workerInfo.getIp(), workerInfo.getName(),
+                String.valueOf(workerInfo.getCapacity()));
+        for (ModelChainInfo info : workerInfo.getAvailableModelChains()) {
+            journal(SchedulerJournal.CHAIN_ADDED, workerInfo.getId(), info.getId(), info.getName(), info.getVersion());
+        }
+        leases.grant(LeaseManager.Type.WORKER, workerInfo.getCompactId(), workerLeaseTimeoutInMillis);
+        return workerInfo;
     }
     
     
@@ -123,7 +239,17 @@ public enum Scheduler {
 
 
     public void unregisterWorker(String workerId) {
+    	WorkerInfo workerInfo = workers.get(workerId);
     	workers.remove(workerId);
+    	journal(SchedulerJournal.WORKER_REMOVED, workerId);
+    	leases.release(LeaseManager.Type.WORKER, CompactId.parse(workerId));
+    	AffinityPlacementPolicy affinity = affinityPolicy;
+    	if (affinity != null)
+    		affinity.workerRemoved(workerId);
+    	if ((workerInfo != null) && requeueJobsOfWorker(workerInfo, false))
+    		requestScheduling();
+    	signalJobAssigned(workerId);
+    	jobAssignmentSignals.remove(workerId);
     }
     
     
@@ -137,21 +263,36 @@ public enum Scheduler {
     	if (worker == null)
     		return null;
     	
-    	// check if model chain with name and version already exists
-    	List<ModelChainInfo> current = getAllKnownModelChainsInfo();
-    	for (ModelChainInfo info : current) {
-    		if (modelChainName.equalsIgnoreCase(info.getName()) && modelChainVersion.equalsIgnoreCase(info.getVersion())) {
-    			worker.addAvailableModelChain(info);
-    			return info;
-    		}
+    	synchronized (modelChainLock) {
+	    	// use the model chain with name and version if it already exists,
+	    	// otherwise introduce a new model chain
+	    	ModelChainInfo info = workers.getModelChain(modelChainName, modelChainVersion);
+	    	if (info == null) {
+	    		info = new ModelChainInfo();
+	    		info.setName(modelChainName);
+	    		info.setVersion(modelChainVersion);
+	    	}
+	    	worker.addAvailableModelChain(info);
+	    	journal(SchedulerJournal.CHAIN_ADDED, workerId, info.getId(), info.getName(), info.getVersion());
+	    	return info;
+    	}
+    }
+
+
+    /**
+     * Registers a model chain that is known elsewhere, keeping its id, for
+     * example in another shard of a ShardedScheduler.
+     */
+    public ModelChainInfo registerModelChainForWorker(String workerId, ModelChainInfo modelChain) {
+    	WorkerInfo worker = getWorker(workerId);
+    	if ((worker == null) || (modelChain == null))
+    		return null;
+
+    	synchronized (modelChainLock) {
+    		worker.addAvailableModelChain(modelChain);
+    		journal(SchedulerJournal.CHAIN_ADDED, workerId, modelChain.getId(), modelChain.getName(), modelChain.getVersion());
+    		return modelChain;
     	}
-    	
-    	// introduce new model chain
-    	ModelChainInfo info = new ModelChainInfo();
-    	info.setName(modelChainName);
-    	info.setVersion(modelChainVersion);
-    	worker.addAvailableModelChain(info);
-    	return info;
     }
     
     
@@ -165,7 +306,10 @@ public enum Scheduler {
     	if (worker == null)
     		return null;
     	
-    	return worker.removeAvailableModelChain(modelChainId);
+    	ModelChainInfo removed = worker.removeAvailableModelChain(modelChainId);
+    	if (removed != null)
+    		journal(SchedulerJournal.CHAIN_REMOVED, workerId, modelChainId);
+    	return removed;
     }
     
     
@@ -176,12 +320,15 @@ public enum Scheduler {
     
     
     public ModelChainInfo getModelChainInfo(String modelChainId) {
-    	List<ModelChainInfo> available = workers.getCurrentlyKnownModelChainsInfo();
-    	for (ModelChainInfo info : available) {
-    		if (info.getId().equals(modelChainId))
-    			return info;
-    	}
-    	return null;
+    	return workers.getModelChain(modelChainId);
+    }
+
+
+    /**
+     * @return the workers that accept jobs and can run the model chain
+     */
+    public List<WorkerInfo> getAcceptingWorkersForModelChain(String modelChainId) {
+    	return workers.getAcceptingWorkersForModelChain(workers.getModelChain(modelChainId));
     }
     
     
@@ -205,10 +352,159 @@ public enum Scheduler {
             return null;
         }
         job.setState(JobState.WAITING_UNSCHEDULED);
-        if (jobQueue.add(job))
-        	return job;
-        else
-        	return null;
+        if (job.hasDependencies()) {
+            // registered under the scheduling lock, so no completion is missed
+            synchronized (schedulingLock) {
+                if (dependsOn(job, job.getId(), Collections.<String, Job>emptyMap())) {
+                    log("Cancelling adding [" + job + "] to queue, its dependencies form a cycle.", true);
+                    return null;
+                }
+                synchronized (job) {
+                    if (!jobQueue.add(job))
+                        return null;
+                    job.setState(JobState.WAITING_DEPENDENCIES);
+                    journalJobAdded(job);
+                }
+                checkDependencies(job);
+            }
+        } else {
+            synchronized (job) {
+                if (!jobQueue.add(job))
+                    return null;
+                journalJobAdded(job);
+            }
+        }
+        requestScheduling();
+        return job;
+    }
+
+
+    /**
+     * Adds new jobs for the experiments, all using the same model chain. The
+     * model chain is resolved once; when it is unknown all jobs are rejected.
+     *
+     * @return the result for each experiment, in the same order
+     */
+    public List<JobAddResult> addJobs(String modelChainId, Collection<Long> experimentIds) {
+        ModelChainInfo chain = getModelChainInfo(modelChainId);
+        List<Job> jobs = new ArrayList<Job>(experimentIds.size());
+        for (Long experimentId : experimentIds) {
+            Job job = new Job();
+            job.setExperimentId(experimentId);
+            job.setModelChain(chain);
+            jobs.add(job);
+        }
+        return addJobs(jobs);
+    }
+
+
+    /**
+     * Adds a batch of jobs to the queue. The whole batch is validated first
+     * (no duplicate ids, model chain registered by a worker), then all valid jobs are queued
+     * and journalled together, so the scheduler never assigns from a partly
+     * added batch. Invalid jobs are rejected without affecting the others.
+     *
+     * @return the result for each job, in the same order as the batch
+     */
+    public List<JobAddResult> addJobs(Collection<Job> jobs) {
+        List<JobAddResult> results = new ArrayList<JobAddResult>(jobs.size());
+        List<Job> valid = new ArrayList<Job>(jobs.size());
+        Map<String, Job> batchJobs = new HashMap<String, Job>();
+        for (Job job : jobs) {
+            JobAddResult rejected = validateNewJob(job, batchJobs);
+            if (rejected != null) {
+                logger.warn(rejected);
+                results.add(rejected);
+            } else {
+                valid.add(job);
+                results.add(null);
+            }
+        }
+
+        if (!valid.isEmpty()) {
+            List<String[]> records = new ArrayList<String[]>(valid.size());
+            Iterator<Job> next = valid.iterator();
+            synchronized (schedulingLock) {
+                for (int i = 0; i < results.size(); i++) {
+                    if (results.get(i) != null)
+                        continue;
+                    Job job = next.next();
+                    job.setState(JobState.WAITING_UNSCHEDULED);
+                    synchronized (job) {
+                        if (jobQueue.add(job)) {
+                            if (job.hasDependencies())
+                                job.setState(JobState.WAITING_DEPENDENCIES);
+                            records.add(jobAddedFields(job));
+                            results.set(i, JobAddResult.added(job));
+                        } else {
+                            results.set(i, JobAddResult.rejected(job.getId(), "A job with the same ID is already queued."));
+                        }
+                    }
+                }
+                SchedulerJournal current = journal;
+                if (current != null)
+                    current.appendAll(SchedulerJournal.JOB_ADDED, records);
+                for (Job job : valid) {
+                    if (JobState.WAITING_DEPENDENCIES.equals(job.getState()))
+                        checkDependencies(job);
+                }
+            }
+            if (!records.isEmpty())
+                requestScheduling();
+        }
+        return results;
+    }
+
+
+    /**
+     * Adds a batch of jobs received from a remote caller. Model chains are
+     * resolved by ID against the registered model chains, each only once.
+     *
+     * @return the result for each job, in the same order as the batch
+     */
+    public List<JobAddResultTO> addJobTOs(Collection<JobTO> jobTOs) {
+        Map<String, ModelChainInfo> chains = new HashMap<String, ModelChainInfo>();
+        List<Job> jobs = new ArrayList<Job>(jobTOs.size());
+        for (JobTO to : jobTOs) {
+            if (to == null) {
+                jobs.add(null);
+                continue;
+            }
+            Job job = to.toJob();
+            String chainId = (to.getModelChain() != null) ? to.getModelChain().getId() : null;
+            if (!chains.containsKey(chainId))
+                chains.put(chainId, (chainId != null) ? getModelChainInfo(chainId) : null);
+            job.setModelChain(chains.get(chainId));
+            job.setAssignedToWorker(null);
+            jobs.add(job);
+        }
+
+        List<JobAddResultTO> results = new ArrayList<JobAddResultTO>(jobs.size());
+        for (JobAddResult result : addJobs(jobs))
+            results.add(new JobAddResultTO(result));
+        return results;
+    }
+
+
+    /**
+     * @return the rejection for a job that can not be added, or null if valid
+     */
+    private JobAddResult validateNewJob(Job job, Map<String, Job> batchJobs) {
+        if (job == null)
+            return JobAddResult.rejected(null, "No job given.");
+        if (batchJobs.containsKey(job.getId()))
+            return JobAddResult.rejected(job.getId(), "A job with the same ID is already in the batch.");
+        batchJobs.put(job.getId(), job);
+        if (getJob(job.getId()) != null)
+            return JobAddResult.rejected(job.getId(), "A job with the same ID is already queued.");
+        ModelChainInfo chain = (job.getModelChain() != null) ? workers.getModelChain(job.getModelChain().getId()) : null;
+        if (chain == null)
+            return JobAddResult.rejected(job.getId(), "Currently no calculation node provides the model chain.");
+        if (dependsOn(job, job.getId(), batchJobs))
+            return JobAddResult.rejected(job.getId(), "The dependencies of the job form a cycle.");
+        if (chain != job.getModelChain())
+            job.setModelChain(chain);
+        return null;
     }
 
 
@@ -232,6 +528,37 @@ public enum Scheduler {
     }
 
 
+    /**
+     * @return all jobs for the experiment in the history, including archived jobs
+     */
+    public List<Job> getJobsForExperimentFromHistory(Long experimentId) {
+        return jobHistory.getJobsForExperiment(experimentId);
+    }
+
+
+    /**
+     * Sets the directory the job history spills older jobs to, or null to
+     * keep all jobs in memory.
+     */
+    public void setHistoryArchiveDirectory(String directory) {
+        try {
+            jobHistory.setArchiveDirectory((directory == null) ? null : new File(directory));
+        } catch (IOException ex) {
+            throw new SeamException(ex, "Failed to open job history archive! Error: %s", ex.getMessage());
+        }
+    }
+
+
+    public void setHistoryHotWindowSize(int hotWindowSize) {
+        jobHistory.setHotWindowSize(hotWindowSize);
+    }
+
+
+    public void setHistoryRetentionPolicy(HistoryRetentionPolicy retentionPolicy) {
+        jobHistory.setRetentionPolicy(retentionPolicy);
+    }
+
+
     public Job getJob(String jobId) {
         Job job = jobQueue.get(jobId);
         if (job != null) {
@@ -241,258 +568,1710 @@ public enum Scheduler {
     }
 
 
-    public synchronized Job getJobForWorker(String workerId) {
+    /**
+     * Checks if jobs are waiting that the worker can process. The worker
+     * does not have to be registered with this scheduler.
+     *
+     * @param workerInfo worker to check for
+     * @return true if a job is waiting to be scheduled for one of the model
+     *         chains of the worker
+     */
+    public boolean hasJobsWaitingFor(WorkerInfo workerInfo) {
+        return jobQueue.findJobForWorker(workerInfo) != null;
+    }
+
+
+    public Job getJobForWorker(String workerId) {
         Job job = jobQueue.getFirstJobForWorker(workerId);
         return job;
     }
 
 
-    public synchronized void updateWorkerState(String workerId, WorkerState newState) {
-        if (!newState.canBeSetExternally()) {
-            log("A client is not allowed to set worker state to " + newState, true);
-            return;
-        }
+    /**
+     * Returns the first job assigned to the worker with the specified id that
+     * it did not start yet. Workers with more than one slot use this to pick
+     * up the job for a free slot.
+     *
+     * @param workerId id of the worker
+     * @return Job in state WAITING_SCHEDULED assigned to the worker, or null
+     */
+    public Job getNextJobForWorker(String workerId) {
+        return jobQueue.getFirstJobForWorker(workerId, JobState.WAITING_SCHEDULED);
+    }
 
-        WorkerInfo workerInfo = workers.get(workerId);
-        if (workerInfo == null) {
-            log("No worker registered with id: " + workerId, true);
-            return;
-        }
 
-        workerInfo.setState(newState);
+    /**
+     * Returns the jobs assigned to the worker with the specified id, one for
+     * each of its slots in use.
+     *
+     * @param workerId id of the worker
+     * @return List of jobs assigned to the worker, possibly empty
+     */
+    public List<Job> getJobsForWorker(String workerId) {
+        return Collections.unmodifiableList(jobQueue.getJobsForWorker(workerId));
     }
 
 
     /**
-     * Updates the state of a job, called by a Worker. Based on the newState
-     * specified the Scheduler decides what to do with the job, for example
-     * remove it from the queue and place it in the history. Note that not
-     * all states can be set this way, Workers are only allowed to set part
-     * of the possible states.
+     * Sets the number of jobs the worker processes concurrently.
      *
-     * @param jobId
-     * @param newState
+     * @param workerId id of the worker
+     * @param capacity number of slots, at least 1
      */
-    public synchronized void updateJobState(String jobId, JobState newState) {
-        if (!newState.canBeSetExternally()) {
-            log("A client is not allowed to set job state to " + newState, true);
+    public void updateWorkerCapacity(String workerId, int capacity) {
+        WorkerInfo workerInfo = workers.get(workerId);
+        if (workerInfo == null) {
+            log("No worker registered with id: " + workerId, true);
             return;
         }
 
-        Job job = jobQueue.get(jobId);
-        if (job == null) {
-            log("Queue does not contain a job with id: " + jobId, true);
-            return;
-        }
+        workerInfo.setCapacity(capacity);
+        journal(SchedulerJournal.WORKER_CAPACITY, workerId, String.valueOf(capacity));
+        requestScheduling();
+    }
 
-        switch (newState) {
-            case IN_PROGRESS:
-            case ABORTED:
-                // do nothing besides updating the state, job stays queued
-                job.setState(newState);
-                break;
 
-            case COMPLETED_OK:
-            case COMPLETED_WITH_WARNINGS:
-            case COMPLETED_WITH_ERRORS:
-                // job must have been IN_PROGRESS
-                if (!job.getState().equals(JobState.IN_PROGRESS))
-                        log("Invalid job state change from " + job.getState() + " to " + newState, true);
-                job.setState(newState);
-                moveJobToHistory(job);
-                break;
+    /**
+     * Returns a job assigned to the worker with the specified id that it did
+     * not start yet, waiting for the scheduler to assign one when there is
+     * none. This allows workers to wait for work without polling
+     * getJobForWorker. Note that jobs are only assigned to workers that
+     * accept jobs, see WorkerInfo.isAcceptingJobs.
+     *
+     * @param workerId id of the worker requesting a job
+     * @param timeoutInMillis maximum time to wait for a job
+     * @return Job assigned to the worker, or null when the timeout expired
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public Job awaitJobForWorker(String workerId, long timeoutInMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInMillis;
+        Object signal = getJobAssignmentSignal(workerId);
+        synchronized (signal) {
+            Job job = getNextJobForWorker(workerId);
+            long remaining = timeoutInMillis;
+            while ((job == null) && (remaining > 0) && (getWorker(workerId) != null)) {
+                signal.wait(remaining);
+                job = getNextJobForWorker(workerId);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return job;
         }
-
-        // TODO save changes
     }
 
 
-    private void moveJobToHistory(Job job) {
-        jobQueue.remove(job.getId());
-        jobHistory.addJob(job);
-        // TODO save changes
+    /**
+     * Transfer Object variant of awaitJobForWorker, for remote clients.
+     *
+     * @param workerId id of the worker requesting a job
+     * @param timeoutInMillis maximum time to wait for a job
+     * @return JobTO for the job assigned to the worker, or null when the
+     *         timeout expired
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public JobTO awaitJobTOForWorker(String workerId, long timeoutInMillis) throws InterruptedException {
+        Job job = awaitJobForWorker(workerId, timeoutInMillis);
+        if (job == null)
+            return null;
+        return new JobTO(job);
     }
 
 
-    public synchronized void scheduleJobs() {
-
-        checkWorkersStateUpdateTimeout();
-        updateJobsStateForWorkerAvailability();
-
-        for (WorkerInfo workerInfo : workers) {
-            if (workerInfo.getState().equals(WorkerState.IDLE)) {
-                if (!jobQueue.jobsAssignedToWorker(workerInfo.getId())) {
-                    Job job = jobQueue.findJobForWorker(workerInfo);
-                    if (job != null) {
-                        job.setAssignedToWorker(workerInfo);
-                        job.setState(JobState.WAITING_SCHEDULED);
-                    }
-                }
-            }
+    private Object getJobAssignmentSignal(String workerId) {
+        Object signal = jobAssignmentSignals.get(workerId);
+        if (signal == null) {
+            Object created = new Object();
+            signal = jobAssignmentSignals.putIfAbsent(workerId, created);
+            if (signal == null)
+                signal = created;
         }
+        return signal;
     }
 
 
     /**
-     * Checks all registered workers to see which one did not update its
-     * state in time (before the specified timeout constant). When state
-     * has not been updated in time it is set to UNKNOWN.
+     * Wakes up the worker waiting in awaitJobForWorker, if any. Must not be
+     * called while holding the scheduler lock, since waiting workers hold
+     * their signal while checking for jobs.
      */
-    private synchronized void checkWorkersStateUpdateTimeout() {
-        long thresholdTime = System.currentTimeMillis() - WORKER_STATE_UPDATE_TIMEOUT_IN_SEC * 1000;
-        for (WorkerInfo workerInfo : workers) {
-            if (workerInfo.getLastStateUpdateInMillis() < thresholdTime) {
-                workerInfo.setState(WorkerState.UNKNOWN);
+    private void signalJobAssigned(String workerId) {
+        Object signal = jobAssignmentSignals.get(workerId);
+        if (signal != null) {
+            synchronized (signal) {
+                signal.notifyAll();
             }
         }
     }
 
 
-    /**
-     * Checks current job assignments to workers and when a job is
-     * assigned to a worker that is no longer available resets the
-     * assignment and set the job state to UNSCHEDULED.
-     */
-    private synchronized void updateJobsStateForWorkerAvailability() {
-        Iterator<Job> iterator = jobQueue.iterator();
-        while (iterator.hasNext()) {
-            Job queuedJob = iterator.next();
-            if ((queuedJob.getAssignedToWorker() != null) && (!queuedJob.getAssignedToWorker().getState().isAvailableState())) {
-                queuedJob.setAssignedToWorker(null);
-                queuedJob.setState(JobState.WAITING_UNSCHEDULED);
-            }
+    public void updateWorkerState(String workerId, WorkerState newState) {
+        if (!newState.canBeSetExternally()) {
+            log("A client is not allowed to set worker state to " + newState, true);
+            return;
+        }
+
+        WorkerInfo workerInfo = workers.get(workerId);
+        if (workerInfo == null) {
+            log("No worker registered with id: " + workerId, true);
+            return;
         }
-    }
 
+        workerInfo.setState(newState);
+        renewLeases(workerInfo);
+        if (!newState.isAvailableState()) {
+            // jobs of a worker that can not process them are requeued
+            if (requeueJobsOfWorker(workerInfo, false))
+                requestScheduling();
+        } else if (WorkerState.IDLE.equals(newState)) {
+            requestScheduling();
+        }
+    }
 
-    private static volatile boolean stopRequested = false;
-    private static volatile Thread schedulerThread;
 
-    
     /**
-     * Runs the scheduling at the specified update frequency as a separate
-     * thread.
+     * Lightweight liveness signal from a worker, renews the lease of the
+     * worker and of the jobs it has in progress without changing any state.
+     * State updates also count as heartbeat.
+     *
+     * @param workerId id of the worker
+     * @return false if no worker with the id is registered
      */
-    public void start() {
-        if (schedulerThread != null)
-            return;
-
-        schedulerThread = new Thread(new Runnable() {
-            public void run() {
-                try {
-                    while (!stopRequested) {
-                        log("Scheduling jobs...", false);
-                        Scheduler.INSTANCE.scheduleJobs();
-                        log("Sleeping for " + SCHEDULER_SLEEP_TIME_IN_SEC + " sec.", false);
-                        Thread.sleep(SCHEDULER_SLEEP_TIME_IN_SEC * 1000);
-                    }
-                    log("Scheduler thread stopped", false);
-                    schedulerThread = null; // TODO test if we can do this
-                } catch (InterruptedException e) {
-                    log("Scheduler thread stopped by error", false);
-                    e.printStackTrace();
-                    schedulerThread = null;
-                }
-            }
-        });
-        log("Starting scheduler thread", false);
-        schedulerThread.start();
+    public boolean heartbeat(String workerId) {
+        WorkerInfo workerInfo = workers.get(workerId);
+        if (workerInfo == null)
+            return false;
+        renewLeases(workerInfo);
+        return true;
     }
 
 
     /**
-     * Requests stopping of the background scheduling thread.
+     * Lightweight liveness signal for a single job, renews the lease of the
+     * job when it is assigned to a worker.
+     *
+     * @param jobId id of the job
+     * @return false if the job has no lease, i.e. it is not assigned
      */
-    public void stop() {
-        stopRequested = true;
+    public boolean heartbeatJob(String jobId) {
+        return leases.renew(LeaseManager.Type.JOB, CompactId.parse(jobId), jobLeaseTimeoutInMillis);
     }
 
 
-    public void clear() {
-        if (schedulerThread != null) {
-            throw new SeamException("Can not clear the scheduler queue while it is running!");
-        } else {
-            jobQueue.clear();
-            jobHistory.clear();
-            workers.clear();
+    private void renewLeases(WorkerInfo workerInfo) {
+        leases.renewOrGrant(LeaseManager.Type.WORKER, workerInfo.getCompactId(), workerLeaseTimeoutInMillis);
+        for (Job job : jobQueue.getJobsForWorker(workerInfo.getCompactId())) {
+            // jobs not started yet must be picked up before their lease expires
+            if (JobState.IN_PROGRESS.equals(job.getState()))
+                leases.renew(LeaseManager.Type.JOB, job.getCompactId(), jobLeaseTimeoutInMillis);
         }
     }
 
 
     /**
-     * Sets the name of the file to be used to persist scheduler data.
-     *
-     * @param filename Name of file that holds scheduler information
+     * Sets the time after which a worker that did not send a state update or
+     * heartbeat is considered gone, its state is set to UNKNOWN and its jobs
+     * are requeued.
      */
-    public synchronized void setFileName(String filename) {
-        if ((filename != null) && (schedulerFileName == null) || (!schedulerFileName.equals(filename))) {
-            logger.info("Setting scheduler state filename to: " + filename);
-            schedulerFileName = filename;
+    public void setWorkerLeaseTimeoutInMillis(long timeoutInMillis) {
+        workerLeaseTimeoutInMillis = timeoutInMillis;
+    }
 
-            // see if we are initializing and need to restore data from the file
-            // Scheduling must not be active, queue must still be empty and the file must exist
-            if ((schedulerThread == null) && (jobQueue.size() == 0) && (new File(filename).exists())) {
-                logger.info("Initialising scheduler state from file: " + filename);
-                load();
-            }
-        }
+
+    public long getWorkerLeaseTimeoutInMillis() {
+        return workerLeaseTimeoutInMillis;
     }
 
 
     /**
-     * Returns the name of the file used to persist the scheduler state in.
-     *
-     * @return filename
+     * Sets the time a worker has to start a job assigned to it, and the time
+     * between heartbeats for a job in progress, before the job is requeued.
      */
-    public synchronized String getQueueFileName() {
-        return schedulerFileName;
+    public void setJobLeaseTimeoutInMillis(long timeoutInMillis) {
+        jobLeaseTimeoutInMillis = timeoutInMillis;
     }
 
 
-    public Element toXml() {
-        Element root = new DOMElement("Scheduler");
-
-        Element jobs = root.addElement("Jobs");
-        Iterator<Job> iterQueue = jobQueue.iterator();
-        while (iterQueue.hasNext()) {
-            jobs.add(iterQueue.next().toXml());
-        }
-        Iterator<Job> iterHistory = jobHistory.iterator();
-        while (iterHistory.hasNext()) {
-            jobs.add(iterHistory.next().toXml());
-        }
-
-        return root;
+    public long getJobLeaseTimeoutInMillis() {
+        return jobLeaseTimeoutInMillis;
     }
 
 
     /**
-     * Saves the current state of the scheduler.
+     * Sets how jobs are retried when their lease expires while in progress.
+     * Before retry n the job waits backoff * 2^(n-1), but at most maxBackoff,
+     * after maxRetries retries the job is completed with errors.
+     *
+     * @param maxRetries maximum number of retries
+     * @param backoffInMillis backoff before the first retry
+     * @param maxBackoffInMillis maximum backoff
      */
-    public synchronized void save() {
-        save(schedulerFileName);
+    public void setJobRetryPolicy(int maxRetries, long backoffInMillis, long maxBackoffInMillis) {
+        maxJobRetries = maxRetries;
+        retryBackoffInMillis = backoffInMillis;
+        maxRetryBackoffInMillis = maxBackoffInMillis;
     }
 
 
     /**
-     * Saves the current state of the scheduler in a file with the specified
-     * name.
+     * Updates the state of a job, called by a Worker. Based on the newState
+     * specified the Scheduler decides what to do with the job, for example
+     * remove it from the queue and place it in the history. Note that not
+     * all states can be set this way, Workers are only allowed to set part
+     * of the possible states. While work stealing is enabled jobs can not
+     * be set IN_PROGRESS this way, workers must use startJob instead.
      *
-     * @param filename of file to store scheduler state in
+     * @param jobId
+     * @param newState
      */
-    public synchronized void save(String filename) {
-        logger.info("Saving scheduler state to file: " + filename);
-
-        Document document = DocumentHelper.createDocument(toXml());
-
+    public void updateJobState(String jobId, JobState newState) {
+        if (!newState.canBeSetExternally()) {
+            log("A client is not allowed to set job state to " + newState, true);
+            return;
+        }
+
+        Job job = jobQueue.get(jobId);
+        if (job == null) {
+            // a worker may report late, for example when it lost the race
+            // with a speculative copy, or after its lease expired
+            Job finished = jobHistory.getJob(jobId);
+            if (finished != null) {
+                logger.info("Ignoring state " + newState + " of finished job " + jobId + " in state " + finished.getState());
+                return;
+            }
+            log("Queue does not contain a job with id: " + jobId, true);
+            return;
+        }
+
+        synchronized (job) {
+            switch (newState) {
+                case IN_PROGRESS:
+                    // the job may have been taken over by another worker,
+                    // which only startJob can check
+                    if (workStealingThresholdInMillis > 0) {
+                        log("Job " + jobId + " must be started with startJob while work stealing is enabled", true);
+                        return;
+                    }
+                    markJobStarted(job);
+                    break;
+
+                case ABORTED:
+                    // job stays queued and can be rescheduled
+                    job.setState(newState);
+                    journalJobState(job);
+                    leases.release(LeaseManager.Type.JOB, job.getCompactId());
+                    requestScheduling();
+                    break;
+
+                case COMPLETED_OK:
+                case COMPLETED_WITH_WARNINGS:
+                case COMPLETED_WITH_ERRORS:
+                    // job must have been IN_PROGRESS
+                    if (!job.getState().equals(JobState.IN_PROGRESS))
+                            log("Invalid job state change from " + job.getState() + " to " + newState, true);
+                    recordRuntime(job, newState);
+                    // a failed straggler waits for its copy, see completeSpeculativeExecution
+                    if ((job.getSpeculativeCopyOf() != null)
+                            || (JobState.COMPLETED_WITH_ERRORS.equals(newState) && speculativeCopies.containsKey(job.getCompactId())))
+                        break;
+                    job.setState(newState);
+                    journalJobState(job);
+                    moveJobToHistory(job);
+                    requestScheduling();
+                    break;
+            }
+        }
+
+        if (newState.isCompleted())
+            completeSpeculativeExecution(job, newState);
+    }
+
+
+    /**
+     * Starts a job assigned to the worker, called by the worker before it
+     * runs the job. Unlike updateJobState this only succeeds when the job is
+     * still assigned to the worker and waiting to be started, so a job that
+     * was taken over by another worker, see setWorkStealingThresholdInMillis,
+     * or requeued after its lease expired is never run twice.
+     *
+     * @param workerId id of the worker that wants to run the job
+     * @param jobId id of the job
+     * @return true if the job is now IN_PROGRESS and the worker should run
+     *         it, false if the worker must not run it
+     */
+    public boolean startJob(String workerId, String jobId) {
+        Job job = jobQueue.get(jobId);
+        if (job == null)
+            return false;
+        synchronized (job) {
+            WorkerInfo assignedTo = job.getAssignedToWorker();
+            if ((job.getQueue() != jobQueue) || (assignedTo == null) || !assignedTo.getId().equals(workerId)
+                    || !JobState.WAITING_SCHEDULED.equals(job.getState())) {
+                logger.info("Worker " + workerId + " can not start job " + jobId + " in state " + job.getState());
+                return false;
+            }
+            markJobStarted(job);
+            return true;
+        }
+    }
+
+
+    /**
+     * Sets the job IN_PROGRESS. The job stays queued, its lease is renewed
+     * by heartbeats. The caller holds the lock of the job.
+     */
+    private void markJobStarted(Job job) {
+        job.setState(JobState.IN_PROGRESS);
+        journalJobState(job);
+        leases.renewOrGrant(LeaseManager.Type.JOB, job.getCompactId(), jobLeaseTimeoutInMillis);
+        leases.release(LeaseManager.Type.STEAL, job.getCompactId());
+        watchForStraggler(job);
+    }
+
+
+    /**
+     * Adds the run time of a job that completed to the statistics of its
+     * model chain. Failed runs are left out, they may have ended early.
+     */
+    private void recordRuntime(Job job, JobState completedState) {
+        ModelChainInfo chain = job.getModelChain();
+        if ((chain == null) || JobState.COMPLETED_WITH_ERRORS.equals(completedState))
+            return;
+        RuntimeStatistics statistics = runtimeStatistics.get(chain.getId());
+        if (statistics == null) {
+            RuntimeStatistics created = new RuntimeStatistics();
+            statistics = runtimeStatistics.putIfAbsent(chain.getId(), created);
+            if (statistics == null)
+                statistics = created;
+        }
+        statistics.record(System.currentTimeMillis() - job.getLastStateChangeInMillis());
+    }
+
+
+    /**
+     * Grants a lease that expires when the job, just started, runs longer
+     * than the straggler threshold of its model chain. The caller holds the
+     * lock of the job.
+     */
+    private void watchForStraggler(Job job) {
+        StragglerPolicy policy = stragglerPolicy;
+        ModelChainInfo chain = job.getModelChain();
+        if ((policy == null) || (chain == null))
+            return;
+        long threshold = policy.getThresholdInMillis(runtimeStatistics.get(chain.getId()));
+        if (threshold >= 0)
+            leases.grant(LeaseManager.Type.STRAGGLER, job.getCompactId(), threshold);
+    }
+
+
+    /**
+     * Flags a job in progress that exceeded the straggler threshold, and
+     * assigns a speculative copy of it to another worker when the policy
+     * asks for it. The caller holds the scheduling lock.
+     *
+     * @return true if a copy was assigned
+     */
+    private boolean handleStraggler(Job job) {
+        StragglerPolicy policy = stragglerPolicy;
+        if (policy == null)
+            return false;
+        if (stragglerJobIds.putIfAbsent(job.getCompactId(), Boolean.TRUE) == null) {
+            stragglerCount.incrementAndGet();
+            logger.warn("Job " + job.getId() + " is a straggler, in progress for "
+                    + (System.currentTimeMillis() - job.getLastStateChangeInMillis()) + " ms");
+        }
+        if (!policy.isSpeculative() || (job.getSpeculativeCopyOf() != null) || speculativeCopies.containsKey(job.getCompactId()))
+            return false;
+
+        WorkerInfo workerInfo = findWorkerForSpeculativeCopy(job);
+        if (workerInfo == null) {
+            leases.grant(LeaseManager.Type.STRAGGLER, job.getCompactId(), policy.getRetryIntervalInMillis());
+            return false;
+        }
+
+        Job copy = new Job(job.getModelChain(), job.getExperimentId());
+        copy.setPriority(job.getPriority());
+        copy.setDeadlineInMillis(job.getDeadlineInMillis());
+        copy.setSubmitter(job.getSubmitter());
+        copy.setSpeculativeCopyOf(job.getId());
+        copy.setState(JobState.WAITING_UNSCHEDULED);
+        synchronized (copy) {
+            if (!jobQueue.add(copy))
+                return false;
+            journalJobAdded(copy);
+        }
+        speculativeCopies.put(job.getCompactId(), copy.getCompactId());
+        speculativeCopyCount.incrementAndGet();
+        logger.info("Started speculative copy " + copy.getId() + " of job " + job.getId() + " on worker " + workerInfo.getId());
+
+        // otherwise the copy is assigned by a next scheduling pass
+        if (assignJob(copy, workerInfo))
+            speculativeAssignments.add(workerInfo.getId());
+        return true;
+    }
+
+
+    /**
+     * @return a worker, other than the one running the job, that accepts
+     *         jobs for its model chain and has a free slot, or null
+     */
+    private WorkerInfo findWorkerForSpeculativeCopy(Job job) {
+        for (WorkerInfo workerInfo : workers.getAcceptingWorkersForModelChain(job.getModelChain())) {
+            if (workerInfo.equals(job.getAssignedToWorker()) || !workerInfo.isAcceptingJobs())
+                continue;
+            if (workerInfo.getCapacity() > jobQueue.countJobsForWorker(workerInfo.getCompactId()))
+                return workerInfo;
+        }
+        return null;
+    }
+
+
+    /**
+     * Called after a job completed. The first of a straggler and its
+     * speculative copy to complete successfully wins, the other one is
+     * cancelled. When the copy wins, the original job completes with the
+     * state of the copy, so that jobs depending on it see the result. A run
+     * that fails while the other one is still running is dropped, the
+     * original only fails when both runs failed.
+     */
+    private void completeSpeculativeExecution(Job job, JobState completedState) {
+        boolean failed = JobState.COMPLETED_WITH_ERRORS.equals(completedState);
+        CompactId originalId = CompactId.parse(job.getSpeculativeCopyOf());
+        if (originalId == null) {
+            // a failed original still queued waited for a copy that is gone
+            if (!speculativeCopies.containsKey(job.getCompactId()) && (job.getQueue() != jobQueue))
+                return;
+            synchronized (schedulingLock) {
+                CompactId copyId = speculativeCopies.get(job.getCompactId());
+                Job copy = (copyId != null) ? jobQueue.get(copyId) : null;
+                if (!failed || (copy == null)) {
+                    if (copyId != null)
+                        speculativeCopies.remove(job.getCompactId());
+                    cancelJob(copy);
+                    if (failed)
+                        completeJob(job, completedState);
+                    return;
+                }
+                // the copy may still succeed, the original waits for it
+                synchronized (job) {
+                    WorkerInfo assignedTo = job.getAssignedToWorker();
+                    if ((assignedTo == null) || !jobQueue.unassign(job, assignedTo, JobState.IN_PROGRESS))
+                        return;
+                    leases.release(LeaseManager.Type.JOB, job.getCompactId());
+                    leases.release(LeaseManager.Type.STRAGGLER, job.getCompactId());
+                    failedOriginalIds.put(job.getCompactId(), Boolean.TRUE);
+                    logger.info("Job " + job.getId() + " failed, waiting for its speculative copy");
+                }
+            }
+            requestScheduling();
+            return;
+        }
+
+        synchronized (schedulingLock) {
+            Job original = jobQueue.get(originalId);
+            boolean originalFailed = failedOriginalIds.containsKey(originalId);
+            if (failed && (original != null) && !originalFailed) {
+                // the original is still running and may succeed
+                logger.info("Speculative copy " + job.getId() + " of job " + originalId + " failed");
+                speculativeCopies.remove(originalId);
+                cancelJob(job);
+            } else if (original != null) {
+                speculativeCopies.remove(originalId);
+                failedOriginalIds.remove(originalId);
+                if (!failed) {
+                    logger.info("Speculative copy " + job.getId() + " of job " + originalId + " completed first");
+                    speculativeWinCount.incrementAndGet();
+                }
+                completeJob(original, completedState);
+                cancelJob(job);
+            } else {
+                // the original failed in the meantime, the copy counts
+                completeJob(job, completedState);
+            }
+        }
+        requestScheduling();
+    }
+
+
+    /**
+     * Completes a job that is still queued with the specified state.
+     */
+    private void completeJob(Job job, JobState completedState) {
+        synchronized (job) {
+            if (job.getQueue() != jobQueue)
+                return;
+            job.setState(completedState);
+            journalJobState(job);
+            moveJobToHistory(job);
+        }
+    }
+
+
+    /**
+     * Removes a queued job that is no longer needed. A worker running it
+     * finds out when heartbeatJob fails, its later state updates are
+     * ignored.
+     * The caller holds the scheduling lock.
+     */
+    private void cancelJob(Job job) {
+        if (job == null)
+            return;
+        synchronized (job) {
+            if (job.getQueue() != jobQueue)
+                return;
+            logger.info("Cancelling job " + job.getId());
+            job.setState(JobState.REMOVED);
+            journalJobState(job);
+            moveJobToHistory(job);
+        }
+    }
+
+
+    private void moveJobToHistory(Job job) {
+        // add to history first, so lookups always find the job somewhere
+        jobHistory.addJob(job);
+        jobQueue.remove(job);
+        leases.release(LeaseManager.Type.JOB, job.getCompactId());
+        leases.release(LeaseManager.Type.RETRY, job.getCompactId());
+        leases.release(LeaseManager.Type.STRAGGLER, job.getCompactId());
+        leases.release(LeaseManager.Type.STEAL, job.getCompactId());
+        stragglerJobIds.remove(job.getCompactId());
+        completedJobIds.add(job.getId());
+        if (job.getState().isCompleted())
+            metrics.recordJobCompleted();
+    }
+
+
+    /**
+     * Checks if a job depends, directly or through other queued jobs, on the
+     * job with the specified id.
+     *
+     * @param job job to check the dependencies of
+     * @param jobId id of the job to look for
+     * @param pending jobs about to be queued, that are checked as well
+     * @return true if the job depends on the job with the id
+     */
+    private boolean dependsOn(Job job, String jobId, Map<String, Job> pending) {
+        Set<String> visited = new HashSet<String>();
+        List<String> toVisit = new ArrayList<String>(job.getDependencies());
+        while (!toVisit.isEmpty()) {
+            String dependency = toVisit.remove(toVisit.size() - 1);
+            if (dependency.equals(jobId))
+                return true;
+            if (!visited.add(dependency))
+                continue;
+            Job next = jobQueue.get(dependency);
+            if (next == null)
+                next = pending.get(dependency);
+            if (next != null)
+                toVisit.addAll(next.getDependencies());
+        }
+        return false;
+    }
+
+
+    /**
+     * Releases a job waiting for its dependencies when they all completed,
+     * or completes it with errors when one of them failed, according to the
+     * dependency failure policy. Otherwise the job is registered with the
+     * dependencies it still waits for. The caller holds the scheduling lock.
+     *
+     * @return true if the job was released
+     */
+    private boolean checkDependencies(Job job) {
+        DependencyFailurePolicy policy = dependencyFailurePolicy;
+        String failed = null;
+        boolean waiting = false;
+        for (String dependencyId : job.getDependencies()) {
+            // a job not submitted yet is waited for as well
+            Job dependency = getJob(dependencyId);
+            if ((dependency == null) || !dependency.getState().isCompleted()) {
+                Set<String> dependents = dependentJobIds.get(dependencyId);
+                if (dependents == null) {
+                    dependents = new HashSet<String>();
+                    dependentJobIds.put(dependencyId, dependents);
+                }
+                dependents.add(job.getId());
+                waiting = true;
+            } else if (!policy.isSatisfiedBy(dependency.getState())) {
+                failed = dependencyId;
+            }
+        }
+
+        synchronized (job) {
+            if (!JobState.WAITING_DEPENDENCIES.equals(job.getState()) || (job.getQueue() != jobQueue))
+                return false;
+            if (failed != null) {
+                log("Job " + job.getId() + " failed, dependency " + failed + " did not complete OK", false);
+                job.setState(JobState.COMPLETED_WITH_ERRORS);
+                journalJobState(job);
+                moveJobToHistory(job);
+            } else if (!waiting) {
+                job.setState(JobState.WAITING_UNSCHEDULED);
+                journalJobState(job);
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Checks the jobs that wait for the jobs completed since the last check,
+     * failures cascade to the jobs that depend on failed jobs in turn. The
+     * caller holds the scheduling lock.
+     */
+    private void releaseDependentJobs() {
+        String completedId;
+        while ((completedId = completedJobIds.poll()) != null) {
+            Set<String> dependents = dependentJobIds.remove(completedId);
+            if (dependents == null)
+                continue;
+            for (String dependentId : dependents) {
+                Job dependent = jobQueue.get(dependentId);
+                if (dependent != null)
+                    checkDependencies(dependent);
+            }
+        }
+    }
+
+
+    /**
+     * Registers the restored jobs waiting for dependencies, and releases the
+     * ones whose dependencies already completed. Also links the restored
+     * speculative copies to their originals.
+     */
+    private void restoreDependencies() {
+        synchronized (schedulingLock) {
+            dependentJobIds.clear();
+            completedJobIds.clear();
+            for (Job job : jobQueue.getAll()) {
+                if (JobState.WAITING_DEPENDENCIES.equals(job.getState()))
+                    checkDependencies(job);
+                if (job.getSpeculativeCopyOf() != null)
+                    speculativeCopies.put(CompactId.parse(job.getSpeculativeCopyOf()), job.getCompactId());
+            }
+            releaseDependentJobs();
+        }
+    }
+
+
+    public void scheduleJobs() {
+        synchronized (schedulingLock) {
+            handleExpiredLeases(leases.pollExpired());
+        }
+        assignJobsToAcceptingWorkers();
+    }
+
+
+    /**
+     * Assigns waiting jobs to idle workers, without checking the availability
+     * of workers first, and wakes up the workers waiting for them.
+     */
+    private void assignJobsToAcceptingWorkers() {
+        for (String workerId : assignJobs()) {
+            signalJobAssigned(workerId);
+        }
+    }
+
+
+    /**
+     * Assigns waiting jobs to idle workers. Records the dispatch latency for
+     * the oldest pending scheduling request handled by this pass.
+     *
+     * @return ids of the workers that were assigned a job
+     */
+    private List<String> assignJobs() {
+        synchronized (schedulingLock) {
+            long passStartNanos = System.nanoTime();
+            long requestedAtNanos = takeSchedulingRequest();
+            releaseDependentJobs();
+            Set<String> assigned = new LinkedHashSet<String>();
+            String copyWorkerId;
+            while ((copyWorkerId = speculativeAssignments.poll()) != null)
+                assigned.add(copyWorkerId);
+            AffinityPlacementPolicy affinity = affinityPolicy;
+            Map<Job, Long> held = new HashMap<Job, Long>();
+
+            // first place jobs on workers that have their data
+            if (affinity != null) {
+                for (WorkerInfo workerInfo : workers.getAcceptingWorkers()) {
+                    if (assignJobsToWorker(workerInfo, affinity, true, held))
+                        assigned.add(workerInfo.getId());
+                }
+            }
+            for (WorkerInfo workerInfo : workers.getAcceptingWorkers()) {
+                if (assignJobsToWorker(workerInfo, affinity, false, held))
+                    assigned.add(workerInfo.getId());
+            }
+
+            // let workers with free slots take over jobs not started in time
+            long stealThreshold = workStealingThresholdInMillis;
+            if (stealThreshold > 0) {
+                for (WorkerInfo workerInfo : workers.getAcceptingWorkers()) {
+                    if (stealJobsForWorker(workerInfo, stealThreshold))
+                        assigned.add(workerInfo.getId());
+                }
+            }
+
+            // schedule again when held jobs may no longer wait
+            for (Map.Entry<Job, Long> entry : held.entrySet()) {
+                Job job = entry.getKey();
+                if ((job.getAssignedToWorker() == null) && !leases.isHeld(LeaseManager.Type.AFFINITY, job.getCompactId()))
+                    leases.grant(LeaseManager.Type.AFFINITY, job.getCompactId(), entry.getValue());
+            }
+
+            long passEndNanos = System.nanoTime();
+            if (requestedAtNanos != NO_SCHEDULING_REQUEST)
+                dispatchLatency.record(passEndNanos - requestedAtNanos);
+            metrics.recordSchedulingPass(passEndNanos - passStartNanos);
+            return new ArrayList<String>(assigned);
+        }
+    }
+
+
+    /**
+     * Fills the free slots of the worker with waiting jobs.
+     *
+     * @return true if a job was assigned to the worker
+     */
+    private boolean assignJobsToWorker(WorkerInfo workerInfo, AffinityPlacementPolicy affinity, boolean experimentOnly, Map<Job, Long> held) {
+        if (!workerInfo.isAcceptingJobs())
+            return false;
+
+        int freeSlots = workerInfo.getCapacity() - jobQueue.countJobsForWorker(workerInfo.getCompactId());
+        boolean assignedToWorker = false;
+        while (freeSlots > 0) {
+            // assigning fails when a worker changed the job state
+            // in the meantime, it will be retried in a next pass
+            Job job;
+            if (affinity == null)
+                job = jobQueue.findJobForWorker(workerInfo);
+            else
+                job = affinity.selectJob(workerInfo, jobQueue.findJobsForWorker(workerInfo, affinity.getLookahead()),
+                        experimentOnly, System.currentTimeMillis(), held);
+            if ((job == null) || !assignJob(job, workerInfo))
+                break;
+            assignedToWorker = true;
+            freeSlots--;
+        }
+        return assignedToWorker;
+    }
+
+
+    private boolean assignJob(Job job, WorkerInfo workerInfo) {
+        synchronized (job) {
+            if (!jobQueue.assign(job, workerInfo))
+                return false;
+            journal(SchedulerJournal.JOB_ASSIGNED, job.getId(), workerInfo.getId());
+            leases.grant(LeaseManager.Type.JOB, job.getCompactId(), jobLeaseTimeoutInMillis);
+            leases.release(LeaseManager.Type.AFFINITY, job.getCompactId());
+            long stealThreshold = workStealingThresholdInMillis;
+            if (stealThreshold > 0)
+                leases.grant(LeaseManager.Type.STEAL, job.getCompactId(), stealThreshold);
+            AffinityPlacementPolicy affinity = affinityPolicy;
+            if (affinity != null)
+                affinity.jobAssigned(job, workerInfo);
+            return true;
+        }
+    }
+
+
+    /**
+     * Fills the free slots of the worker with jobs assigned to other workers
+     * longer than the threshold ago, that were not started yet.
+     *
+     * @return true if a job was assigned to the worker
+     */
+    private boolean stealJobsForWorker(WorkerInfo workerInfo, long thresholdInMillis) {
+        if (!workerInfo.isAcceptingJobs())
+            return false;
+
+        int freeSlots = workerInfo.getCapacity() - jobQueue.countJobsForWorker(workerInfo.getCompactId());
+        boolean assignedToWorker = false;
+        while (freeSlots > 0) {
+            long assignedBefore = System.currentTimeMillis() - thresholdInMillis;
+            Job job = jobQueue.findStealableJobForWorker(workerInfo, assignedBefore);
+            if ((job == null) || !stealJob(job, workerInfo))
+                break;
+            assignedToWorker = true;
+            freeSlots--;
+        }
+        return assignedToWorker;
+    }
+
+
+    /**
+     * Moves a job that was not started yet to the worker. Fails when the
+     * job was started or requeued in the meantime.
+     */
+    private boolean stealJob(Job job, WorkerInfo workerInfo) {
+        synchronized (job) {
+            WorkerInfo from = job.getAssignedToWorker();
+            if ((from == null) || !jobQueue.reassign(job, from, workerInfo))
+                return false;
+            journal(SchedulerJournal.JOB_ASSIGNED, job.getId(), workerInfo.getId());
+            leases.grant(LeaseManager.Type.JOB, job.getCompactId(), jobLeaseTimeoutInMillis);
+            leases.grant(LeaseManager.Type.STEAL, job.getCompactId(), workStealingThresholdInMillis);
+            AffinityPlacementPolicy affinity = affinityPolicy;
+            if (affinity != null)
+                affinity.jobAssigned(job, workerInfo);
+            stolenJobCount.incrementAndGet();
+            logger.info("Job " + job.getId() + " moved from worker " + from.getId() + " to idle worker " + workerInfo.getId());
+            return true;
+        }
+    }
+
+
+    private boolean unassignJob(Job job, WorkerInfo workerInfo) {
+        synchronized (job) {
+            if (!jobQueue.unassign(job, workerInfo))
+                return false;
+            journalJobState(job);
+            leases.release(LeaseManager.Type.JOB, job.getCompactId());
+            return true;
+        }
+    }
+
+
+    /**
+     * Requeues a job that was in progress on a worker that is gone. The job
+     * waits for a backoff before it can be scheduled again, unless it was
+     * retried too often already, then it is completed with errors.
+     */
+    private boolean retryJob(Job job, WorkerInfo workerInfo) {
+        synchronized (job) {
+            int retryCount = job.getRetryCount() + 1;
+            if (retryCount <= maxJobRetries) {
+                if (!jobQueue.unassign(job, workerInfo, JobState.WAITING_RETRY))
+                    return false;
+                job.setRetryCount(retryCount);
+                journalJobState(job);
+                leases.release(LeaseManager.Type.JOB, job.getCompactId());
+                long backoff = retryBackoffInMillis << Math.min(retryCount - 1, 30);
+                leases.grant(LeaseManager.Type.RETRY, job.getCompactId(), Math.min(backoff, maxRetryBackoffInMillis));
+                return true;
+            }
+            if (!workerInfo.equals(job.getAssignedToWorker()) || (job.getQueue() != jobQueue))
+                return false;
+            log("Job " + job.getId() + " failed after " + maxJobRetries + " retries", false);
+            if ((job.getSpeculativeCopyOf() == null) && !speculativeCopies.containsKey(job.getCompactId())) {
+                job.setState(JobState.COMPLETED_WITH_ERRORS);
+                journalJobState(job);
+                moveJobToHistory(job);
+                return true;
+            }
+        }
+        // a straggler or its copy fails as if the worker reported it
+        completeSpeculativeExecution(job, JobState.COMPLETED_WITH_ERRORS);
+        return true;
+    }
+
+
+    /**
+     * Requeues the jobs assigned to the worker. Jobs in progress are retried
+     * with backoff when retry is requested, all other jobs are made
+     * available for scheduling right away.
+     *
+     * @return true if any job was requeued
+     */
+    private boolean requeueJobsOfWorker(WorkerInfo workerInfo, boolean retry) {
+        boolean changed = false;
+        for (Job job : jobQueue.getJobsForWorker(workerInfo.getCompactId())) {
+            if (retry && JobState.IN_PROGRESS.equals(job.getState()))
+                changed |= retryJob(job, workerInfo);
+            else
+                changed |= unassignJob(job, workerInfo);
+        }
+        return changed;
+    }
+
+
+    /**
+     * Handles leases that expired. Workers are set to UNKNOWN and their jobs
+     * are requeued, jobs not started in time are requeued, jobs in progress
+     * without heartbeat are retried, and jobs that waited for their backoff
+     * become available for scheduling.
+     *
+     * @return true if jobs became available for scheduling
+     */
+    private boolean handleExpiredLeases(List<LeaseManager.Lease> expired) {
+        boolean changed = false;
+        for (LeaseManager.Lease lease : expired) {
+            switch (lease.getType()) {
+                case WORKER:
+                    WorkerInfo workerInfo = workers.get(lease.getId());
+                    if (workerInfo == null)
+                        break;
+                    logger.info("Lease expired for worker " + workerInfo.getId());
+                    workerInfo.setState(WorkerState.UNKNOWN);
+                    changed |= requeueJobsOfWorker(workerInfo, true);
+                    break;
+
+                case JOB:
+                    Job job = jobQueue.get(lease.getId());
+                    WorkerInfo assignedTo = (job != null) ? job.getAssignedToWorker() : null;
+                    if (assignedTo == null)
+                        break;
+                    logger.info("Lease expired for job " + job.getId() + " in state " + job.getState());
+                    if (JobState.IN_PROGRESS.equals(job.getState()))
+                        changed |= retryJob(job, assignedTo);
+                    else
+                        changed |= unassignJob(job, assignedTo);
+                    break;
+
+                case STRAGGLER:
+                    Job straggler = jobQueue.get(lease.getId());
+                    if ((straggler != null) && JobState.IN_PROGRESS.equals(straggler.getState()))
+                        changed |= handleStraggler(straggler);
+                    break;
+
+                case STEAL:
+                    // an assigned job may now go to another worker
+                    Job assigned = jobQueue.get(lease.getId());
+                    changed |= (assigned != null) && JobState.WAITING_SCHEDULED.equals(assigned.getState());
+                    break;
+
+                case AFFINITY:
+                    // a held job may now go to any worker
+                    changed |= (jobQueue.get(lease.getId()) != null);
+                    break;
+
+                case RETRY:
+                    Job retried = jobQueue.get(lease.getId());
+                    if (retried == null)
+                        break;
+                    synchronized (retried) {
+                        if (JobState.WAITING_RETRY.equals(retried.getState())) {
+                            retried.setState(JobState.WAITING_UNSCHEDULED);
+                            journalJobState(retried);
+                            changed = true;
+                        }
+                    }
+                    break;
+            }
+        }
+        return changed;
+    }
+
+
+    /**
+     * Handles expired leases, without waiting. Requests a scheduling pass
+     * when jobs became available.
+     */
+    private void checkLeases() {
+        synchronized (schedulingLock) {
+            if (handleExpiredLeases(leases.pollExpired()))
+                requestScheduling();
+        }
+    }
+
+
+    /**
+     * Signals that the queue or the workers changed in a way that might allow
+     * jobs to be scheduled. In event driven mode this wakes up the scheduler
+     * thread, multiple requests before the next pass are coalesced.
+     */
+    private void requestScheduling() {
+        synchronized (schedulingSignal) {
+            if (schedulingRequestedAtNanos == NO_SCHEDULING_REQUEST)
+                schedulingRequestedAtNanos = System.nanoTime();
+            schedulingSignal.notifyAll();
+        }
+    }
+
+
+    private long takeSchedulingRequest() {
+        synchronized (schedulingSignal) {
+            long requestedAtNanos = schedulingRequestedAtNanos;
+            schedulingRequestedAtNanos = NO_SCHEDULING_REQUEST;
+            return requestedAtNanos;
+        }
+    }
+
+
+    /**
+     * Waits until a scheduling request is pending, or stop is requested.
+     */
+    private void awaitSchedulingRequest() throws InterruptedException {
+        synchronized (schedulingSignal) {
+            while (!stopRequested && (schedulingRequestedAtNanos == NO_SCHEDULING_REQUEST))
+                schedulingSignal.wait();
+        }
+    }
+
+
+    /**
+     * Waits for the specified time, or until stop is requested.
+     */
+    private void sleepUnlessStopped(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        synchronized (schedulingSignal) {
+            long remaining = millis;
+            while (!stopRequested && (remaining > 0)) {
+                schedulingSignal.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+
+    /**
+     * Returns statistics on the time between a change that might allow jobs
+     * to be scheduled (job added, worker became idle, job completed or
+     * aborted) and the end of the scheduling pass that handled it.
+     *
+     * @return dispatch latency statistics
+     */
+    public LatencyStatistics getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+
+    /**
+     * @return metrics of the scheduler, also available as MBean once the
+     *         scheduler was started
+     */
+    public SchedulerMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * Sets the JMX name the metrics are registered under when started, to
+     * tell apart the schedulers of different shards.
+     */
+    void setMetricsObjectName(String objectName) {
+        metricsObjectName = objectName;
+    }
+
+
+    private volatile boolean stopRequested = false;
+    private volatile Thread schedulerThread;
+    private volatile Thread timeoutCheckThread;
+
+
+    /**
+     * Sets the way the background scheduling thread decides when to schedule
+     * jobs. Can only be changed while the scheduler is not running.
+     *
+     * @param mode scheduling mode to use
+     */
+    public synchronized void setSchedulingMode(SchedulingMode mode) {
+        if (isRunning()) {
+            throw new SeamException("Can not change the scheduling mode while the scheduler is running!");
+        }
+        schedulingMode = mode;
+    }
+
+
+    public synchronized SchedulingMode getSchedulingMode() {
+        return schedulingMode;
+    }
+
+
+    /**
+     * Sets the policy that decides the order in which waiting jobs are
+     * assigned to workers, see FifoSchedulingPolicy (the default),
+     * PrioritySchedulingPolicy, DeadlineSchedulingPolicy and
+     * FairShareSchedulingPolicy. Jobs already queued are reordered.
+     *
+     * @param policy scheduling policy to use
+     */
+    public void setSchedulingPolicy(SchedulingPolicy policy) {
+        synchronized (schedulingLock) {
+            jobQueue.setSchedulingPolicy(policy);
+        }
+    }
+
+
+    public SchedulingPolicy getSchedulingPolicy() {
+        return jobQueue.getSchedulingPolicy();
+    }
+
+
+    /**
+     * Sets the policy that places jobs on workers that recently ran their
+     * experiment or model chain, see AffinityPlacementPolicy. Setting it to
+     * null (the default) places jobs on the first accepting worker.
+     *
+     * @param policy affinity placement policy to use, or null
+     */
+    public void setAffinityPlacementPolicy(AffinityPlacementPolicy policy) {
+        synchronized (schedulingLock) {
+            affinityPolicy = policy;
+            metrics.setAffinityPlacementPolicy(policy);
+        }
+        requestScheduling();
+    }
+
+
+    public AffinityPlacementPolicy getAffinityPlacementPolicy() {
+        return affinityPolicy;
+    }
+
+
+    /**
+     * Sets what happens to jobs that depend on a job that did not complete
+     * OK, see DependencyFailurePolicy. By default they fail as well.
+     *
+     * @param policy dependency failure policy to use
+     */
+    public void setDependencyFailurePolicy(DependencyFailurePolicy policy) {
+        dependencyFailurePolicy = policy;
+    }
+
+
+    public DependencyFailurePolicy getDependencyFailurePolicy() {
+        return dependencyFailurePolicy;
+    }
+
+
+    /**
+     * Sets the policy that flags jobs running much longer than usual for
+     * their model chain, and optionally starts a speculative copy of them on
+     * another worker. Setting it to null (the default) disables this. Jobs
+     * already in progress are not checked.
+     *
+     * @param policy straggler policy to use, or null
+     */
+    public void setStragglerPolicy(StragglerPolicy policy) {
+        stragglerPolicy = policy;
+    }
+
+
+    public StragglerPolicy getStragglerPolicy() {
+        return stragglerPolicy;
+    }
+
+
+    /**
+     * @return run times of the recently completed jobs of the model chain,
+     *         or null when none completed yet
+     */
+    public RuntimeStatistics getRuntimeStatistics(String modelChainId) {
+        return runtimeStatistics.get(modelChainId);
+    }
+
+
+    /**
+     * @return true if the job is in progress and flagged as straggler
+     */
+    public boolean isStraggler(String jobId) {
+        return stragglerJobIds.containsKey(CompactId.parse(jobId));
+    }
+
+
+    /**
+     * @return number of jobs flagged as straggler
+     */
+    public long getStragglerCount() {
+        return stragglerCount.get();
+    }
+
+
+    /**
+     * @return number of speculative copies started
+     */
+    public long getSpeculativeCopyCount() {
+        return speculativeCopyCount.get();
+    }
+
+
+    /**
+     * @return number of speculative copies that completed before the
+     *         straggler they were a copy of
+     */
+    public long getSpeculativeWinCount() {
+        return speculativeWinCount.get();
+    }
+
+
+    /**
+     * Sets the time after which a job assigned to a worker that did not
+     * start it yet may be taken over by another worker that can run it and
+     * has a free slot. Should be shorter than the job lease timeout, after
+     * which the job is requeued anyway. Workers must use startJob, setting
+     * a job IN_PROGRESS with updateJobState is rejected while this is
+     * enabled. A threshold of 0 disables this, the default.
+     *
+     * @param thresholdInMillis time a job may wait for its worker
+     */
+    public void setWorkStealingThresholdInMillis(long thresholdInMillis) {
+        workStealingThresholdInMillis = Math.max(0, thresholdInMillis);
+    }
+
+
+    public long getWorkStealingThresholdInMillis() {
+        return workStealingThresholdInMillis;
+    }
+
+
+    /**
+     * @return number of jobs taken over from the worker they were assigned to
+     */
+    public long getStolenJobCount() {
+        return stolenJobCount.get();
+    }
+
+    
+    /**
+     * Runs the scheduling as a separate thread, depending on the scheduling
+     * mode either at the specified update frequency or whenever scheduling
+     * is requested.
+     */
+    public synchronized void start() {
+        if (isRunning())
+            return;
+
+        stopRequested = false;
+        metrics.registerMBean(metricsObjectName);
+        if (SchedulingMode.EVENT_DRIVEN.equals(schedulingMode)) {
+            startEventDriven();
+        } else {
+            startPolling();
+        }
+    }
+
+
+    private void startPolling() {
+        schedulerThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!stopRequested) {
+                        scheduleJobs();
+                        sleepUnlessStopped(SCHEDULER_SLEEP_TIME_IN_SEC * 1000);
+                    }
+                    log("Scheduler thread stopped", false);
+                } catch (InterruptedException e) {
+                    log("Scheduler thread stopped by error", false);
+                    e.printStackTrace();
+                } finally {
+                    schedulerThread = null;
+                }
+            }
+        });
+        log("Starting scheduler thread", false);
+        schedulerThread.start();
+    }
+
+
+    private void startEventDriven() {
+        schedulerThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    // handle anything that happened before starting
+                    requestScheduling();
+                    while (!stopRequested) {
+                        awaitSchedulingRequest();
+                        if (!stopRequested)
+                            assignJobsToAcceptingWorkers();
+                    }
+                    log("Scheduler thread stopped", false);
+                } catch (InterruptedException e) {
+                    log("Scheduler thread stopped by error", false);
+                    e.printStackTrace();
+                } finally {
+                    schedulerThread = null;
+                }
+            }
+        });
+
+        timeoutCheckThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    // only woken up when a lease expires
+                    while (!stopRequested) {
+                        List<LeaseManager.Lease> expired = leases.awaitExpired(WORKER_TIMEOUT_CHECK_INTERVAL_IN_SEC * 1000);
+                        synchronized (schedulingLock) {
+                            if (handleExpiredLeases(expired))
+                                requestScheduling();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    if (!stopRequested) {
+                        log("Lease expiry thread stopped by error", false);
+                        e.printStackTrace();
+                    }
+                } finally {
+                    timeoutCheckThread = null;
+                }
+            }
+        });
+
+        log("Starting event driven scheduler thread", false);
+        schedulerThread.start();
+        timeoutCheckThread.start();
+    }
+
+
+    /**
+     * Returns true while the background scheduling thread is running.
+     *
+     * @return true if the scheduler is running
+     */
+    public boolean isRunning() {
+        return (schedulerThread != null) || (timeoutCheckThread != null);
+    }
+
+
+    /**
+     * Requests stopping of the background scheduling thread.
+     */
+    public void stop() {
+        stopRequested = true;
+        synchronized (schedulingSignal) {
+            schedulingSignal.notifyAll();
+        }
+        Thread leaseThread = timeoutCheckThread;
+        if (leaseThread != null)
+            leaseThread.interrupt();
+    }
+
+
+    public void clear() {
+        if (isRunning()) {
+            throw new SeamException("Can not clear the scheduler queue while it is running!");
+        } else {
+            jobQueue.clear();
+            jobHistory.clear();
+            workers.clear();
+            leases.clear();
+            synchronized (schedulingLock) {
+                dependentJobIds.clear();
+                completedJobIds.clear();
+            }
+            runtimeStatistics.clear();
+            stragglerJobIds.clear();
+            speculativeCopies.clear();
+            failedOriginalIds.clear();
+            speculativeAssignments.clear();
+            metrics.reset();
+            stragglerCount.set(0);
+            speculativeCopyCount.set(0);
+            speculativeWinCount.set(0);
+            stolenJobCount.set(0);
+            if (affinityPolicy != null)
+                affinityPolicy.clear();
+            if (journal != null)
+                journal.compact();
+        }
+    }
+
+
+    /**
+     * Sets the name of the file to be used to persist scheduler data. From
+     * then on all changes are recorded in a journal next to it. When the
+     * scheduler is not running and its queue is still empty the state is
+     * restored first, from the journal when there is one and otherwise from
+     * the file itself. Jobs that were in progress are set to ABORTED, so
+     * they will be rescheduled first. Setting the name to null stops
+     * recording changes.
+     *
+     * @param filename Name of file that holds scheduler information
+     */
+    public synchronized void setFileName(String filename) {
+        if ((filename == null) ? (schedulerFileName == null) : filename.equals(schedulerFileName))
+            return;
+
+        logger.info("Setting scheduler state filename to: " + filename);
+        if (journal != null) {
+            SchedulerJournal current = journal;
+            journal = null;
+            current.close();
+        }
+        schedulerFileName = filename;
+        if (filename == null)
+            return;
+
+        SchedulerJournal newJournal = new SchedulerJournal(filename, new SchedulerJournal.SnapshotWriter() {
+            public void writeSnapshot(SchedulerJournal.RecordHandler out) {
+                writeJournalSnapshot(out);
+            }
+        });
+
+        // see if we are initializing and need to restore data from the file
+        // Scheduling must not be active and queue must still be empty
+        if (!isRunning() && (jobQueue.size() == 0)) {
+            if (SchedulerJournal.exists(filename)) {
+                logger.info("Recovering scheduler state from journal: " + filename);
+                recover(newJournal);
+            } else if (new File(filename).exists()) {
+                logger.info("Initialising scheduler state from file: " + filename);
+                load();
+            }
+        }
+
+        // start with a snapshot of the current state and an empty journal
+        newJournal.compact();
+        newJournal.open();
+        journal = newJournal;
+    }
+
+
+    private void journal(String type, String... fields) {
+        SchedulerJournal current = journal;
+        if (current != null)
+            current.append(type, fields);
+    }
+
+
+    private void journalJobAdded(Job job) {
+        journal(SchedulerJournal.JOB_ADDED, jobAddedFields(job));
+    }
+
+
+    private static String[] jobAddedFields(Job job) {
+        ModelChainInfo chain = job.getModelChain();
+        Long deadline = job.getDeadlineInMillis();
+        return new String[] {job.getId(), String.valueOf(job.getExperimentId()),
+                (chain != null) ? chain.getId() : null,
+                (chain != null) ? chain.getName() : null,
+                (chain != null) ? chain.getVersion() : null,
+                job.getLogUrl(),
+                job.getPriority().toString(),
+                (deadline != null) ? deadline.toString() : null,
+                job.getSubmitter(),
+                job.hasDependencies() ? joinJobIds(job.getDependencies()) : null,
+                job.getSpeculativeCopyOf()};
+    }
+
+
+    private static String joinJobIds(List<String> jobIds) {
+        StringBuilder joined = new StringBuilder();
+        for (String jobId : jobIds) {
+            if (joined.length() > 0)
+                joined.append(',');
+            joined.append(jobId);
+        }
+        return joined.toString();
+    }
+
+
+    private void journalJobState(Job job) {
+        journal(SchedulerJournal.JOB_STATE, jobStateFields(job));
+    }
+
+
+    private static String[] jobStateFields(Job job) {
+        return new String[] {job.getId(), job.getState().toString(),
+                String.valueOf(job.getLastStateChangeInMillis()), String.valueOf(job.getRetryCount())};
+    }
+
+
+    /**
+     * Writes the records that recreate the current state, for a compacted
+     * journal snapshot.
+     */
+    private void writeJournalSnapshot(SchedulerJournal.RecordHandler out) {
+        for (WorkerInfo workerInfo : workers) {
+            out.handle(SchedulerJournal.WORKER_REGISTERED, new String[] {workerInfo.getId(), workerInfo.getIp(), workerInfo.getName(),
+                    String.valueOf(workerInfo.getCapacity())});
+            for (ModelChainInfo info : workerInfo.getAvailableModelChains()) {
+                out.handle(SchedulerJournal.CHAIN_ADDED, new String[] {workerInfo.getId(), info.getId(), info.getName(), info.getVersion()});
+            }
+        }
+        Iterator<Job> iterQueue = jobQueue.iterator();
+        while (iterQueue.hasNext()) {
+            writeJournalSnapshot(iterQueue.next(), out);
+        }
+        Iterator<Job> iterHistory = jobHistory.iterator();
+        while (iterHistory.hasNext()) {
+            writeJournalSnapshot(iterHistory.next(), out);
+        }
+    }
+
+
+    private void writeJournalSnapshot(Job job, SchedulerJournal.RecordHandler out) {
+        WorkerInfo assignedTo = job.getAssignedToWorker();
+        out.handle(SchedulerJournal.JOB_ADDED, jobAddedFields(job));
+        if (assignedTo != null)
+            out.handle(SchedulerJournal.JOB_ASSIGNED, new String[] {job.getId(), assignedTo.getId()});
+        out.handle(SchedulerJournal.JOB_STATE, jobStateFields(job));
+    }
+
+
+    /**
+     * Restores the state from journal snapshot and journal, and marks jobs
+     * that were in progress as ABORTED.
+     */
+    private void recover(SchedulerJournal fromJournal) {
+        final Map<String, ModelChainInfo> chains = new HashMap<String, ModelChainInfo>();
+        int count = fromJournal.replay(new SchedulerJournal.RecordHandler() {
+            public void handle(String type, String[] fields) {
+                applyJournalRecord(type, fields, chains);
+            }
+        });
+        logger.info("Replayed " + count + " scheduler journal records");
+
+        for (Job job : jobQueue.getAll()) {
+            if (JobState.IN_PROGRESS.equals(job.getState())) {
+                job.setAssignedToWorker(null);
+                job.setState(JobState.ABORTED);
+            } else if (JobState.WAITING_SCHEDULED.equals(job.getState())
+                    || JobState.WAITING_RETRY.equals(job.getState())) {
+                job.setState(JobState.WAITING_UNSCHEDULED);
+            }
+        }
+
+        // recovered workers must report back in time
+        for (WorkerInfo workerInfo : workers) {
+            leases.renewOrGrant(LeaseManager.Type.WORKER, workerInfo.getCompactId(), workerLeaseTimeoutInMillis);
+        }
+        restoreDependencies();
+
+        // replayed state changes are not part of the statistics
+        metrics.reset();
+    }
+
+
+    /**
+     * Applies a single journal record to the state. Records that were already
+     * applied, or refer to unknown workers or jobs, are ignored.
+     */
+    private void applyJournalRecord(String type, String[] fields, Map<String, ModelChainInfo> chains) {
+        if (SchedulerJournal.WORKER_REGISTERED.equals(type)) {
+            if (workers.get(fields[0]) == null) {
+                WorkerInfo workerInfo = new WorkerInfo(fields[1], fields[2]);
+                workerInfo.setId(fields[0]);
+                if ((fields.length > 3) && (fields[3] != null))
+                    workerInfo.setCapacity(Integer.parseInt(fields[3]));
+                workers.add(workerInfo);
+            }
+        } else if (SchedulerJournal.WORKER_CAPACITY.equals(type)) {
+            WorkerInfo workerInfo = workers.get(fields[0]);
+            if (workerInfo != null)
+                workerInfo.setCapacity(Integer.parseInt(fields[1]));
+        } else if (SchedulerJournal.WORKER_REMOVED.equals(type)) {
+            workers.remove(fields[0]);
+        } else if (SchedulerJournal.CHAIN_ADDED.equals(type)) {
+            WorkerInfo workerInfo = workers.get(fields[0]);
+            if (workerInfo != null)
+                workerInfo.addAvailableModelChain(restoreModelChain(fields[1], fields[2], fields[3], chains));
+        } else if (SchedulerJournal.CHAIN_REMOVED.equals(type)) {
+            WorkerInfo workerInfo = workers.get(fields[0]);
+            if (workerInfo != null)
+                workerInfo.removeAvailableModelChain(fields[1]);
+        } else if (SchedulerJournal.JOB_ADDED.equals(type)) {
+            if (getJob(fields[0]) == null) {
+                Job job = new Job();
+                job.setId(fields[0]);
+                job.setExperimentId(Long.valueOf(fields[1]));
+                if (fields[2] != null)
+                    job.setModelChain(restoreModelChain(fields[2], fields[3], fields[4], chains));
+                job.setLogUrl(fields[5]);
+                if (fields.length > 8) {
+                    job.setPriority(JobPriority.valueOf(fields[6]));
+                    job.setDeadlineInMillis((fields[7] != null) ? Long.valueOf(fields[7]) : null);
+                    job.setSubmitter(fields[8]);
+                }
+                if ((fields.length > 9) && (fields[9] != null))
+                    job.setDependencies(Arrays.asList(fields[9].split(",")));
+                if (fields.length > 10)
+                    job.setSpeculativeCopyOf(fields[10]);
+                jobQueue.add(job);
+                if (job.hasDependencies())
+                    job.setState(JobState.WAITING_DEPENDENCIES);
+            }
+        } else if (SchedulerJournal.JOB_ASSIGNED.equals(type)) {
+            Job job = jobQueue.get(fields[0]);
+            WorkerInfo workerInfo = workers.get(fields[1]);
+            if ((job != null) && (workerInfo != null)) {
+                job.setAssignedToWorker(workerInfo);
+                job.setState(JobState.WAITING_SCHEDULED);
+            }
+        } else if (SchedulerJournal.JOB_STATE.equals(type)) {
+            Job job = jobQueue.get(fields[0]);
+            if (job != null) {
+                JobState state = JobState.valueOf(fields[1]);
+                job.setState(state);
+                if ((fields.length > 2) && (fields[2] != null))
+                    job.setLastStateChangeInMillis(Long.parseLong(fields[2]));
+                if ((fields.length > 3) && (fields[3] != null))
+                    job.setRetryCount(Integer.parseInt(fields[3]));
+                if (state.isCompleted() || JobState.REMOVED.equals(state))
+                    moveJobToHistory(job);
+            }
+        } else {
+            logger.warn("Ignoring unknown scheduler journal record: " + type);
+        }
+    }
+
+
+    private static ModelChainInfo restoreModelChain(String id, String name, String version, Map<String, ModelChainInfo> chains) {
+        ModelChainInfo info = chains.get(id);
+        if (info == null) {
+            info = new ModelChainInfo();
+            info.setId(id);
+            info.setName(name);
+            info.setVersion(version);
+            chains.put(id, info);
+        }
+        return info;
+    }
+
+
+    /**
+     * Returns the name of the file used to persist the scheduler state in.
+     *
+     * @return filename
+     */
+    public synchronized String getQueueFileName() {
+        return schedulerFileName;
+    }
+
+
+    public Element toXml() {
+        Element root = new DOMElement("Scheduler");
+
+        Element jobs = root.addElement("Jobs");
+        Iterator<Job> iterQueue = jobQueue.iterator();
+        while (iterQueue.hasNext()) {
+            jobs.add(iterQueue.next().toXml());
+        }
+        Iterator<Job> iterHistory = jobHistory.iterator();
+        while (iterHistory.hasNext()) {
+            jobs.add(iterHistory.next().toXml());
+        }
+
+        return root;
+    }
+
+
+    /**
+     * Saves the current state of the scheduler.
+     */
+    public synchronized void save() {
+        save(schedulerFileName);
+    }
+
+
+    /**
+     * Saves the current state of the scheduler in a file with the specified
+     * name.
+     *
+     * @param filename of file to store scheduler state in
+     */
+    public synchronized void save(String filename) {
+        logger.info("Saving scheduler state to file: " + filename);
+
+        // write to a temporary file first, so a failure does not destroy
+        // the previously saved state
+        File file = new File(filename);
+        File tempFile = new File(filename + ".tmp");
         try {
-            XMLWriter writer = new XMLWriter(new FileWriter(new File(filename), false));
-            writer.write(document);
-            writer.close();
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile, false));
+            try {
+                SchedulerStateWriter writer = new SchedulerStateWriter(out);
+                writer.write(workers, jobQueue, jobHistory);
+                writer.close();
+            } finally {
+                out.close();
+            }
         }
         catch (Exception ex) {
             throw new SeamException(ex, "Failed to save scheduler state! Error: %s", ex.getMessage());
         }
+        if ((file.exists() && !file.delete()) || !tempFile.renameTo(file))
+            throw new SeamException("Failed to save scheduler state! Could not replace file: " + filename);
 
         logger.info("Saving scheduler state completed");
     }
@@ -508,38 +2287,67 @@ public enum Scheduler {
 
     /**
      * Restores the state of the queue from the file with the specified file
-     * name.
+     * name. Workers and jobs that are already known are skipped. Jobs in the
+     * history are restored as they were, jobs that were in progress are set
+     * to ABORTED and all other queued jobs to WAITING_UNSCHEDULED, so they
+     * will be scheduled again.
      *
      * @param filename to restore queue state from
      */
     public synchronized void load(String filename) {
         logger.info("Loading scheduler data from file: " + filename);
 
-        /* TODO
-        StringBuilder contents = new StringBuilder();
-
         try {
-            BufferedReader input = new BufferedReader(new FileReader(new File(filename)));
+            InputStream in = new BufferedInputStream(new FileInputStream(filename));
             try {
-                String line;
-                while ((line = input.readLine()) != null) {
-                    contents.append(line);
-                    contents.append(System.getProperty("line.separator"));
-                }
-            }
-            finally {
-                input.close();
+                SchedulerStateReader reader = new SchedulerStateReader(in);
+                reader.read(new SchedulerStateReader.Handler() {
+                    public void workerRead(WorkerInfo workerInfo) {
+                        if (workers.get(workerInfo.getCompactId()) == null) {
+                            workers.add(workerInfo);
+                            leases.grant(LeaseManager.Type.WORKER, workerInfo.getCompactId(), workerLeaseTimeoutInMillis);
+                        }
+                    }
+
+                    public void jobRead(Job job) {
+                        restoreJob(job);
+                    }
+                });
+                reader.close();
+            } finally {
+                in.close();
             }
         }
-        catch (IOException ex) {
-            throw new SeamException(ex, "Failed to load queue information! Error: %s", ex
-                    .getMessage());
+        catch (Exception ex) {
+            throw new SeamException(ex, "Failed to load scheduler state! Error: %s", ex.getMessage());
         }
 
-        _expQueue.restoreState(contents.toString());
-        */
+        restoreDependencies();
+        metrics.reset();
+
+        // record the loaded state when journaling
+        if (journal != null)
+            journal.compact();
 
         logger.info("Loading scheduler data completed");
     }
 
+
+    private void restoreJob(Job job) {
+        if (getJob(job.getId()) != null)
+            return;
+
+        JobState state = job.getState();
+        if (state.isCompleted() || JobState.REMOVED.equals(state)) {
+            jobHistory.addJob(job);
+        } else {
+            // adding resets state and assignment
+            jobQueue.add(job);
+            if (JobState.IN_PROGRESS.equals(state) || JobState.ABORTED.equals(state))
+                job.setState(JobState.ABORTED);
+            else if (JobState.WAITING_DEPENDENCIES.equals(state))
+                job.setState(JobState.WAITING_DEPENDENCIES);
+        }
+    }
+
 }
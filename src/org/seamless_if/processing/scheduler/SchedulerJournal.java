@@ -0,0 +1,595 @@
+/*
+ * seamframe: SchedulerJournal.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+import org.seamless_if.processing.sofa.SeamException;
+
+/**
+ * Append-only journal of changes to the state of the Scheduler, together
+ * with a compacted snapshot of that state. Each change costs one appended
+ * record, independent of the size of queue and history. After a configurable
+ * number of records the journal is compacted: the current state is written
+ * as a snapshot and the journal is truncated.
+ * <p/>
+ * Compaction triggered by appending runs on a background thread, so the
+ * snapshot is never written on the (locked) request path. It first moves
+ * the journal aside under the journal lock and continues appending to a new
+ * one, then writes the snapshot without blocking appends, and finally
+ * deletes the old journal. Replaying reads the snapshot, the old journal
+ * when still there, and the journal, in that order. For the snapshot to
+ * include every change in the old journal, changes must be applied to the
+ * state before their record is appended.
+ * <p/>
+ * Snapshot and journal use the same line based record format: a record type
+ * followed by its fields and a CRC32 checksum, separated by tabs. Replaying
+ * stops at the first record that can not be read or has a wrong checksum,
+ * which is what a write interrupted by a crash leaves behind. Replaying a
+ * record that was already applied must have no effect, since a change can
+ * end up both in a snapshot and in the journal after it.
+ */
+public class SchedulerJournal {
+
+    /**
+     * Record fields: worker id, ip, name, capacity.
+     */
+    public static final String WORKER_REGISTERED = "WORKER_REGISTERED";
+
+    /**
+     * Record fields: worker id, capacity.
+     */
+    public static final String WORKER_CAPACITY = "WORKER_CAPACITY";
+
+    /**
+     * Record fields: worker id.
+     */
+    public static final String WORKER_REMOVED = "WORKER_REMOVED";
+
+    /**
+     * Record fields: worker id, model chain id, name, version.
+     */
+    public static final String CHAIN_ADDED = "CHAIN_ADDED";
+
+    /**
+     * Record fields: worker id, model chain id.
+     */
+    public static final String CHAIN_REMOVED = "CHAIN_REMOVED";
+
+    /**
+     * Record fields: job id, experiment id, model chain id, name, version,
+     * log url, priority, deadline in millis, submitter, ids of the jobs it
+     * depends on (comma separated), id of the job it is a speculative copy
+     * of.
+     */
+    public static final String JOB_ADDED = "JOB_ADDED";
+
+    /**
+     * Record fields: job id, worker id.
+     */
+    public static final String JOB_ASSIGNED = "JOB_ASSIGNED";
+
+    /**
+     * Record fields: job id, job state, time of the state change in millis,
+     * retry count.
+     */
+    public static final String JOB_STATE = "JOB_STATE";
+
+    /**
+     * Number of appended records after which the journal is compacted.
+     */
+    private static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String OLD_SUFFIX = ".old";
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String NULL_FIELD = "\\0";
+    private static final String ENCODING = "UTF-8";
+    private static final Charset CHARSET = Charset.forName(ENCODING);
+
+    private static Logger logger = Logger.getLogger(SchedulerJournal.class.getName());
+
+
+    /**
+     * Receives records, either read while replaying or produced while
+     * writing a snapshot.
+     */
+    public interface RecordHandler {
+        void handle(String type, String[] fields);
+    }
+
+
+    /**
+     * Produces the records that describe the complete current state, used
+     * when compacting the journal.
+     */
+    public interface SnapshotWriter {
+        void writeSnapshot(RecordHandler out);
+    }
+
+
+    private final File journalFile;
+    private final File oldJournalFile;
+    private final File snapshotFile;
+    private final SnapshotWriter snapshotWriter;
+
+    /**
+     * Serialises compactions, taken before the journal lock.
+     */
+    private final Object compactionLock = new Object();
+    private Thread compactionThread;
+    private Writer writer;
+    private FileOutputStream output;
+    private int recordsSinceSnapshot;
+    private int compactionThreshold;
+    private boolean syncOnWrite;
+
+
+    /**
+     * Creates a journal for the scheduler state file with the specified name.
+     * Journal and snapshot are stored next to it, with the extensions
+     * .journal and .snapshot added. The journal is not opened for writing
+     * until open() is called, so that it can be replayed first.
+     *
+     * @param stateFileName name of the scheduler state file
+     * @param snapshotWriter produces the state when compacting
+     */
+    public SchedulerJournal(String stateFileName, SnapshotWriter snapshotWriter) {
+        this.journalFile = new File(stateFileName + JOURNAL_SUFFIX);
+        this.oldJournalFile = new File(stateFileName + JOURNAL_SUFFIX + OLD_SUFFIX);
+        this.snapshotFile = new File(stateFileName + SNAPSHOT_SUFFIX);
+        this.snapshotWriter = snapshotWriter;
+        this.compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+        this.syncOnWrite = false;
+    }
+
+
+    /**
+     * Checks if a journal or snapshot exists for the scheduler state file
+     * with the specified name.
+     *
+     * @param stateFileName name of the scheduler state file
+     * @return true if there is something to replay
+     */
+    public static boolean exists(String stateFileName) {
+        return new File(stateFileName + JOURNAL_SUFFIX).exists()
+            || new File(stateFileName + JOURNAL_SUFFIX + OLD_SUFFIX).exists()
+            || new File(stateFileName + SNAPSHOT_SUFFIX).exists()
+            || new File(stateFileName + SNAPSHOT_SUFFIX + TEMP_SUFFIX).exists();
+    }
+
+
+    public synchronized int getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+
+    public synchronized void setCompactionThreshold(int compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+
+    public synchronized boolean isSyncOnWrite() {
+        return syncOnWrite;
+    }
+
+
+    /**
+     * When set, every appended record is forced to disk before append
+     * returns. Safer, but much slower than leaving it to the OS.
+     *
+     * @param syncOnWrite true to sync after every record
+     */
+    public synchronized void setSyncOnWrite(boolean syncOnWrite) {
+        this.syncOnWrite = syncOnWrite;
+    }
+
+
+    /**
+     * Reads the snapshot and then the journal, passing every record to the
+     * handler in the order it was written.
+     *
+     * @param handler to apply the records
+     * @return number of records replayed
+     */
+    public synchronized int replay(RecordHandler handler) {
+        // a snapshot that was written but not yet moved in place is complete
+        File tempSnapshot = new File(snapshotFile.getPath() + TEMP_SUFFIX);
+        if (!snapshotFile.exists() && tempSnapshot.exists()) {
+            tempSnapshot.renameTo(snapshotFile);
+        }
+
+        int count = 0;
+        if (snapshotFile.exists())
+            count += replay(snapshotFile, handler);
+        if (oldJournalFile.exists())
+            count += replay(oldJournalFile, handler);
+        if (journalFile.exists())
+            count += replay(journalFile, handler);
+        return count;
+    }
+
+
+    private int replay(File file, RecordHandler handler) {
+        int count = 0;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] record = decode(line);
+                    if (record == null) {
+                        logger.warn("Stopped replaying " + file + " at unreadable record " + (count + 1));
+                        break;
+                    }
+                    String[] fields = new String[record.length - 1];
+                    System.arraycopy(record, 1, fields, 0, fields.length);
+                    handler.handle(record[0], fields);
+                    count++;
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            throw new SeamException(ex, "Failed to replay scheduler journal %s! Error: %s", file, ex.getMessage());
+        }
+        return count;
+    }
+
+
+    /**
+     * Opens the journal for appending records.
+     */
+    public synchronized void open() {
+        if (writer != null)
+            return;
+        openWriter(true);
+    }
+
+
+    /**
+     * Closes the journal, without compacting it. Waits for a compaction
+     * running in the background to complete first.
+     */
+    public void close() {
+        awaitCompaction();
+        synchronized (this) {
+            closeWriter();
+        }
+    }
+
+
+    private void closeWriter() {
+        if (writer == null)
+            return;
+        try {
+            writer.close();
+        } catch (IOException ex) {
+            throw new SeamException(ex, "Failed to close scheduler journal! Error: %s", ex.getMessage());
+        } finally {
+            writer = null;
+            output = null;
+        }
+    }
+
+
+    /**
+     * Appends records of the same type in one write, with a single flush
+     * (and sync, when enabled) for all of them.
+     *
+     * @param type of the records
+     * @param records fields of each record
+     */
+    public synchronized void appendAll(String type, List<String[]> records) {
+        if (records.isEmpty())
+            return;
+        if (writer == null) {
+            // closed while the change was being made
+            logger.warn("Scheduler journal is closed, not recording " + records.size() + " " + type);
+            return;
+        }
+        try {
+            StringBuilder lines = new StringBuilder();
+            for (String[] fields : records)
+                lines.append(encode(type, fields));
+            writer.write(lines.toString());
+            writer.flush();
+            if (syncOnWrite)
+                output.getFD().sync();
+        } catch (IOException ex) {
+            throw new SeamException(ex, "Failed to append to scheduler journal! Error: %s", ex.getMessage());
+        }
+
+        recordsSinceSnapshot += records.size();
+        if (recordsSinceSnapshot >= compactionThreshold)
+            startCompaction();
+    }
+
+
+    /**
+     * Appends a record to the journal, and starts compacting the journal in
+     * the background when the compaction threshold is reached.
+     *
+     * @param type of the record
+     * @param fields of the record
+     */
+    public synchronized void append(String type, String... fields) {
+        if (writer == null) {
+            // closed while the change was being made
+            logger.warn("Scheduler journal is closed, not recording " + type);
+            return;
+        }
+        try {
+            writer.write(encode(type, fields));
+            writer.flush();
+            if (syncOnWrite)
+                output.getFD().sync();
+        } catch (IOException ex) {
+            throw new SeamException(ex, "Failed to append to scheduler journal! Error: %s", ex.getMessage());
+        }
+
+        recordsSinceSnapshot++;
+        if (recordsSinceSnapshot >= compactionThreshold)
+            startCompaction();
+    }
+
+
+    /**
+     * Starts compacting the journal on a background thread, unless that is
+     * already being done. Called with the journal lock held.
+     */
+    private void startCompaction() {
+        if (compactionThread != null)
+            return;
+        compactionThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    compact();
+                } catch (SeamException ex) {
+                    logger.error("Failed to compact scheduler journal " + journalFile, ex);
+                } finally {
+                    synchronized (SchedulerJournal.this) {
+                        compactionThread = null;
+                        SchedulerJournal.this.notifyAll();
+                    }
+                }
+            }
+        }, "SchedulerJournalCompaction");
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+    }
+
+
+    /**
+     * Waits until a compaction running in the background has completed.
+     */
+    public synchronized void awaitCompaction() {
+        boolean interrupted = false;
+        while ((compactionThread != null) && (compactionThread != Thread.currentThread())) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+
+    /**
+     * Writes the current state as a new snapshot and truncates the journal.
+     * Appending is only blocked while the journal is moved aside, not while
+     * the snapshot is written.
+     */
+    public void compact() {
+        synchronized (compactionLock) {
+            rotate();
+            writeSnapshot();
+            if (oldJournalFile.exists() && !oldJournalFile.delete())
+                throw new SeamException("Failed to delete old scheduler journal " + oldJournalFile);
+        }
+    }
+
+
+    /**
+     * Moves the journal aside and continues with an empty one. Records of an
+     * old journal left by an interrupted compaction are kept, as they may
+     * not be in the snapshot.
+     */
+    private synchronized void rotate() {
+        boolean wasOpen = (writer != null);
+        closeWriter();
+        if (journalFile.exists()) {
+            if (oldJournalFile.exists()) {
+                appendFile(journalFile, oldJournalFile);
+                if (!journalFile.delete())
+                    throw new SeamException("Failed to truncate scheduler journal " + journalFile);
+            } else if (!journalFile.renameTo(oldJournalFile)) {
+                throw new SeamException("Failed to move scheduler journal " + journalFile + " aside");
+            }
+        }
+        if (wasOpen)
+            openWriter(false);
+        recordsSinceSnapshot = 0;
+    }
+
+
+    private static void appendFile(File from, File to) {
+        try {
+            FileInputStream in = new FileInputStream(from);
+            try {
+                FileOutputStream out = new FileOutputStream(to, true);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = in.read(buffer)) > 0)
+                        out.write(buffer, 0, read);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            throw new SeamException(ex, "Failed to append %s to %s! Error: %s", from, to, ex.getMessage());
+        }
+    }
+
+
+    private void writeSnapshot() {
+        File tempSnapshot = new File(snapshotFile.getPath() + TEMP_SUFFIX);
+        try {
+            final Writer snapshot = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempSnapshot, false), ENCODING));
+            final List<IOException> errors = new ArrayList<IOException>();
+            try {
+                snapshotWriter.writeSnapshot(new RecordHandler() {
+                    public void handle(String type, String[] fields) {
+                        try {
+                            if (errors.isEmpty())
+                                snapshot.write(encode(type, fields));
+                        } catch (IOException ex) {
+                            errors.add(ex);
+                        }
+                    }
+                });
+            } finally {
+                snapshot.close();
+            }
+            if (!errors.isEmpty())
+                throw errors.get(0);
+        } catch (IOException ex) {
+            throw new SeamException(ex, "Failed to write scheduler snapshot! Error: %s", ex.getMessage());
+        }
+
+        // replace the old snapshot, replay picks up the temporary file when
+        // interrupted inbetween
+        if (snapshotFile.exists() && !snapshotFile.delete())
+            throw new SeamException("Failed to replace scheduler snapshot " + snapshotFile);
+        if (!tempSnapshot.renameTo(snapshotFile))
+            throw new SeamException("Failed to replace scheduler snapshot " + snapshotFile);
+    }
+
+
+    private void openWriter(boolean append) {
+        try {
+            output = new FileOutputStream(journalFile, append);
+            writer = new BufferedWriter(new OutputStreamWriter(output, ENCODING));
+        } catch (IOException ex) {
+            throw new SeamException(ex, "Failed to open scheduler journal %s! Error: %s", journalFile, ex.getMessage());
+        }
+    }
+
+
+    private static String encode(String type, String[] fields) {
+        StringBuilder line = new StringBuilder();
+        line.append(type);
+        for (String field : fields) {
+            line.append('\t');
+            if (field == null) {
+                line.append(NULL_FIELD);
+            } else {
+                escape(field, line);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(line.toString().getBytes(CHARSET));
+        line.append('\t').append(Long.toHexString(crc.getValue())).append('\n');
+        return line.toString();
+    }
+
+
+    /**
+     * Decodes a record line into its type and fields.
+     *
+     * @return type followed by the fields, or null when the line is damaged
+     */
+    private static String[] decode(String line) {
+        int lastTab = line.lastIndexOf('\t');
+        if (lastTab < 0)
+            return null;
+        String content = line.substring(0, lastTab);
+        CRC32 crc = new CRC32();
+        crc.update(content.getBytes(CHARSET));
+        if (!Long.toHexString(crc.getValue()).equals(line.substring(lastTab + 1)))
+            return null;
+
+        String[] parts = content.split("\t", -1);
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = NULL_FIELD.equals(parts[i]) ? null : unescape(parts[i]);
+        }
+        return parts;
+    }
+
+
+    private static void escape(String field, StringBuilder out) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+
+    private static String unescape(String field) {
+        if (field.indexOf('\\') < 0)
+            return field;
+        StringBuilder out = new StringBuilder(field.length());
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if ((c == '\\') && (i + 1 < field.length())) {
+                char next = field.charAt(++i);
+                switch (next) {
+                    case 't': out.append('\t'); break;
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    default: out.append(next);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+}
@@ -0,0 +1,333 @@
+/*
+ * seamframe: SchedulerMetrics.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-process metrics of the Scheduler: queue depth per job state and per
+ * model chain, time jobs spend in each state, dispatch latency, completed
+ * jobs per minute, worker utilisation and scheduling pass duration.
+ * <p/>
+ * Queue depths are counted by the JobQueue as jobs change, the other values
+ * are recorded as they happen, so reading the metrics is cheap. The metrics
+ * can be exposed as MBean, see registerMBean.
+ */
+public class SchedulerMetrics implements SchedulerMetricsMBean {
+
+    public static final String OBJECT_NAME = "org.seamless_if.processing.scheduler:type=SchedulerMetrics";
+
+    private static Logger logger = Logger.getLogger(SchedulerMetrics.class.getName());
+
+    private final JobQueue jobQueue;
+    private final WorkerInfoList workers;
+    private final LatencyStatistics dispatchLatency;
+    private final LatencyStatistics schedulingPassDuration = new LatencyStatistics();
+    private final RateStatistics completedJobs = new RateStatistics();
+    private volatile AffinityPlacementPolicy affinityPolicy = null;
+
+
+    SchedulerMetrics(JobQueue jobQueue, WorkerInfoList workers, LatencyStatistics dispatchLatency) {
+        this.jobQueue = jobQueue;
+        this.workers = workers;
+        this.dispatchLatency = dispatchLatency;
+    }
+
+
+    /**
+     * Registers the metrics with the platform MBean server, when not
+     * registered yet.
+     *
+     * @return true if the metrics are registered
+     */
+    public boolean registerMBean() {
+        return registerMBean(OBJECT_NAME);
+    }
+
+
+    /**
+     * Registers the metrics with the platform MBean server under the name,
+     * when not registered yet.
+     *
+     * @param objectName JMX object name to register the metrics under
+     * @return true if the metrics are registered
+     */
+    public boolean registerMBean(String objectName) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(objectName);
+            synchronized (this) {
+                if (!server.isRegistered(name))
+                    server.registerMBean(this, name);
+            }
+            return true;
+        } catch (JMException ex) {
+            logger.warn("Failed to register scheduler metrics MBean: " + ex.getMessage());
+            return false;
+        }
+    }
+
+
+    void recordSchedulingPass(long nanos) {
+        schedulingPassDuration.record(nanos);
+    }
+
+
+    void recordJobCompleted() {
+        completedJobs.record();
+    }
+
+
+    public LatencyStatistics getSchedulingPassDuration() {
+        return schedulingPassDuration;
+    }
+
+
+    public LatencyStatistics getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+
+    public LatencyStatistics getTimeInState(JobState state) {
+        return jobQueue.getTimeInState(state);
+    }
+
+
+    public int getQueueDepth() {
+        return jobQueue.size();
+    }
+
+
+    public int getQueueDepth(JobState state) {
+        return jobQueue.size(state);
+    }
+
+
+    public String getQueueDepthByState() {
+        StringBuilder depths = new StringBuilder();
+        for (JobState state : JobState.values()) {
+            int depth = jobQueue.size(state);
+            if (depth == 0)
+                continue;
+            if (depths.length() > 0)
+                depths.append(", ");
+            depths.append(state).append('=').append(depth);
+        }
+        return depths.toString();
+    }
+
+
+    public String getQueueDepthByModelChain() {
+        StringBuilder depths = new StringBuilder();
+        for (String modelChainId : jobQueue.getModelChainIds()) {
+            int depth = jobQueue.sizeForModelChain(modelChainId);
+            if (depth == 0)
+                continue;
+            if (depths.length() > 0)
+                depths.append(", ");
+            depths.append(modelChainId).append('=').append(depth);
+        }
+        return depths.toString();
+    }
+
+
+    public int getQueueDepthForState(String state) {
+        return jobQueue.size(JobState.valueOf(state));
+    }
+
+
+    public int getQueueDepthForModelChain(String modelChainId) {
+        return jobQueue.sizeForModelChain(modelChainId);
+    }
+
+
+    public String getTimeInState() {
+        StringBuilder times = new StringBuilder();
+        for (JobState state : JobState.values()) {
+            LatencyStatistics statistics = jobQueue.getTimeInState(state);
+            if (statistics.getCount() == 0)
+                continue;
+            if (times.length() > 0)
+                times.append("; ");
+            times.append(state).append(": ").append(statistics);
+        }
+        return times.toString();
+    }
+
+
+    public double getAverageTimeInStateMillis(String state) {
+        return jobQueue.getTimeInState(JobState.valueOf(state)).getAverageMillis();
+    }
+
+
+    public long getDispatchCount() {
+        return dispatchLatency.getCount();
+    }
+
+
+    public double getDispatchLatencyAverageMillis() {
+        return dispatchLatency.getAverageMillis();
+    }
+
+
+    public double getDispatchLatencyMaxMillis() {
+        return dispatchLatency.getMaxMillis();
+    }
+
+
+    public long getSchedulingPassCount() {
+        return schedulingPassDuration.getCount();
+    }
+
+
+    public double getSchedulingPassAverageMillis() {
+        return schedulingPassDuration.getAverageMillis();
+    }
+
+
+    public double getSchedulingPassMaxMillis() {
+        return schedulingPassDuration.getMaxMillis();
+    }
+
+
+    public long getCompletedJobCount() {
+        return completedJobs.getTotal();
+    }
+
+
+    /**
+     * @return jobs completed per minute, over the last minute
+     */
+    public double getJobsPerMinute() {
+        return completedJobs.getRatePerMinute();
+    }
+
+
+    /**
+     * @return number of workers in an available state
+     */
+    public int getWorkerCount() {
+        int count = 0;
+        for (WorkerInfo workerInfo : workers) {
+            if (workerInfo.getState().isAvailableState())
+                count++;
+        }
+        return count;
+    }
+
+
+    /**
+     * @return number of slots of available workers that have a job assigned
+     */
+    public int getUsedWorkerSlots() {
+        int used = 0;
+        for (WorkerInfo workerInfo : workers) {
+            if (workerInfo.getState().isAvailableState())
+                used += Math.min(workerInfo.getCapacity(), jobQueue.countJobsForWorker(workerInfo.getCompactId()));
+        }
+        return used;
+    }
+
+
+    /**
+     * @return number of slots of available workers
+     */
+    public int getTotalWorkerSlots() {
+        int total = 0;
+        for (WorkerInfo workerInfo : workers) {
+            if (workerInfo.getState().isAvailableState())
+                total += workerInfo.getCapacity();
+        }
+        return total;
+    }
+
+
+    /**
+     * @return fraction of the slots of available workers that have a job
+     *         assigned, 0 when there are no available workers
+     */
+    public double getWorkerUtilisation() {
+        int used = 0;
+        int total = 0;
+        for (WorkerInfo workerInfo : workers) {
+            if (workerInfo.getState().isAvailableState()) {
+                used += Math.min(workerInfo.getCapacity(), jobQueue.countJobsForWorker(workerInfo.getCompactId()));
+                total += workerInfo.getCapacity();
+            }
+        }
+        return (total == 0) ? 0.0 : (double) used / total;
+    }
+
+
+    void setAffinityPlacementPolicy(AffinityPlacementPolicy policy) {
+        affinityPolicy = policy;
+    }
+
+
+    /**
+     * @return number of jobs placed by the affinity placement policy, 0 when
+     *         the scheduler has none
+     */
+    public long getAffinityPlacementCount() {
+        AffinityPlacementPolicy affinity = affinityPolicy;
+        return (affinity != null) ? affinity.getPlacementCount() : 0;
+    }
+
+
+    public long getAffinityExperimentHitCount() {
+        AffinityPlacementPolicy affinity = affinityPolicy;
+        return (affinity != null) ? affinity.getExperimentHitCount() : 0;
+    }
+
+
+    public long getAffinityModelChainHitCount() {
+        AffinityPlacementPolicy affinity = affinityPolicy;
+        return (affinity != null) ? affinity.getModelChainHitCount() : 0;
+    }
+
+
+    public double getAffinityCacheHitRate() {
+        AffinityPlacementPolicy affinity = affinityPolicy;
+        return (affinity != null) ? affinity.getCacheHitRate() : 0.0;
+    }
+
+
+    /**
+     * Resets the recorded statistics, queue depths are not affected.
+     */
+    public void reset() {
+        dispatchLatency.reset();
+        schedulingPassDuration.reset();
+        completedJobs.reset();
+        for (JobState state : JobState.values())
+            jobQueue.getTimeInState(state).reset();
+    }
+
+}
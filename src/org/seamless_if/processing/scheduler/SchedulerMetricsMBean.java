@@ -0,0 +1,79 @@
+/*
+ * seamframe: SchedulerMetricsMBean.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Management interface of the scheduler metrics, for monitoring the
+ * Scheduler through JMX. Times are in milliseconds.
+ */
+public interface SchedulerMetricsMBean {
+
+    int getQueueDepth();
+
+    String getQueueDepthByState();
+
+    String getQueueDepthByModelChain();
+
+    int getQueueDepthForState(String state);
+
+    int getQueueDepthForModelChain(String modelChainId);
+
+    String getTimeInState();
+
+    double getAverageTimeInStateMillis(String state);
+
+    long getDispatchCount();
+
+    double getDispatchLatencyAverageMillis();
+
+    double getDispatchLatencyMaxMillis();
+
+    long getSchedulingPassCount();
+
+    double getSchedulingPassAverageMillis();
+
+    double getSchedulingPassMaxMillis();
+
+    long getCompletedJobCount();
+
+    double getJobsPerMinute();
+
+    int getWorkerCount();
+
+    int getUsedWorkerSlots();
+
+    int getTotalWorkerSlots();
+
+    double getWorkerUtilisation();
+
+    long getAffinityPlacementCount();
+
+    long getAffinityExperimentHitCount();
+
+    long getAffinityModelChainHitCount();
+
+    double getAffinityCacheHitRate();
+
+    void reset();
+}
@@ -0,0 +1,218 @@
+/*
+ * seamframe: SchedulerStateReader.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Reads the state of the Scheduler from an XML stream, as written by the
+ * SchedulerStateWriter, one element at a time. Workers and jobs are handed
+ * to a handler as soon as they are read, so memory use does not depend on
+ * the size of the file. Files written by the earlier Scheduler.toXml based
+ * save, with workers and model chains nested in every job, are read too.
+ */
+public class SchedulerStateReader {
+
+    /**
+     * Receives the workers and jobs read from the stream.
+     */
+    public interface Handler {
+        void workerRead(WorkerInfo workerInfo);
+
+        void jobRead(Job job);
+    }
+
+
+    private final XMLStreamReader reader;
+    private final Map<String, ModelChainInfo> chains = new HashMap<String, ModelChainInfo>();
+    private final Map<String, WorkerInfo> workers = new HashMap<String, WorkerInfo>();
+
+
+    public SchedulerStateReader(InputStream in) throws XMLStreamException {
+        reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+    }
+
+
+    /**
+     * Reads the stream to the end, passing every worker and job to the
+     * handler. References from jobs to workers and model chains are resolved
+     * to the objects read before.
+     *
+     * @param handler to process workers and jobs
+     * @throws XMLStreamException when reading fails
+     */
+    public void read(Handler handler) throws XMLStreamException {
+        while (reader.hasNext()) {
+            if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("ModelChainInfo".equals(name)) {
+                    readModelChain();
+                } else if ("WorkerInfo".equals(name)) {
+                    handler.workerRead(readWorker());
+                } else if ("Job".equals(name)) {
+                    handler.jobRead(readJob());
+                }
+            }
+        }
+    }
+
+
+    public void close() throws XMLStreamException {
+        reader.close();
+    }
+
+
+    private ModelChainInfo readModelChain() throws XMLStreamException {
+        String id = reader.getAttributeValue(null, "id");
+        ModelChainInfo info = chains.get(id);
+        if (info == null) {
+            info = new ModelChainInfo();
+            info.setId(id);
+            chains.put(id, info);
+        }
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("Name".equals(name)) {
+                    info.setName(reader.getElementText());
+                } else if ("Version".equals(name)) {
+                    info.setVersion(reader.getElementText());
+                }
+            } else if ((event == XMLStreamConstants.END_ELEMENT) && "ModelChainInfo".equals(reader.getLocalName())) {
+                break;
+            }
+        }
+        return info;
+    }
+
+
+    private ModelChainInfo readModelChainReference() {
+        String id = reader.getAttributeValue(null, "id");
+        ModelChainInfo info = chains.get(id);
+        if (info == null) {
+            // unknown chain, keep the id so the job can still be matched
+            info = new ModelChainInfo();
+            info.setId(id);
+            chains.put(id, info);
+        }
+        return info;
+    }
+
+
+    private WorkerInfo readWorker() throws XMLStreamException {
+        WorkerInfo workerInfo = new WorkerInfo();
+        workerInfo.setId(reader.getAttributeValue(null, "id"));
+        long lastStateUpdateInMillis = workerInfo.getLastStateUpdateInMillis();
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("ip".equals(name)) {
+                    workerInfo.setIp(reader.getElementText());
+                } else if ("Name".equals(name)) {
+                    workerInfo.setName(reader.getElementText());
+                } else if ("State".equals(name)) {
+                    workerInfo.setState(WorkerState.valueOf(reader.getElementText().trim()));
+                } else if ("LastStateUpdateInMillis".equals(name)) {
+                    lastStateUpdateInMillis = Long.parseLong(reader.getElementText().trim());
+                } else if ("Capacity".equals(name)) {
+                    workerInfo.setCapacity(Integer.parseInt(reader.getElementText().trim()));
+                } else if ("ModelChainInfo".equals(name)) {
+                    workerInfo.addAvailableModelChain(readModelChain());
+                } else if ("ModelChainInfoRef".equals(name)) {
+                    workerInfo.addAvailableModelChain(readModelChainReference());
+                }
+            } else if ((event == XMLStreamConstants.END_ELEMENT) && "WorkerInfo".equals(reader.getLocalName())) {
+                break;
+            }
+        }
+
+        // setting the state also sets the time stamp
+        workerInfo.setLastStateUpdateInMillis(lastStateUpdateInMillis);
+        if (!workers.containsKey(workerInfo.getId()))
+            workers.put(workerInfo.getId(), workerInfo);
+        return workerInfo;
+    }
+
+
+    private Job readJob() throws XMLStreamException {
+        Job job = new Job();
+        job.setId(reader.getAttributeValue(null, "id"));
+        long lastStateChangeInMillis = job.getLastStateChangeInMillis();
+
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if ("State".equals(name)) {
+                    job.setState(JobState.valueOf(reader.getElementText().trim()));
+                } else if ("LastStateChangeInMillis".equals(name)) {
+                    lastStateChangeInMillis = Long.parseLong(reader.getElementText().trim());
+                } else if ("LogUrl".equals(name)) {
+                    job.setLogUrl(reader.getElementText());
+                } else if ("ExperimentId".equals(name)) {
+                    job.setExperimentId(Long.valueOf(reader.getElementText().trim()));
+                } else if ("Priority".equals(name)) {
+                    job.setPriority(JobPriority.valueOf(reader.getElementText().trim()));
+                } else if ("DeadlineInMillis".equals(name)) {
+                    job.setDeadlineInMillis(Long.valueOf(reader.getElementText().trim()));
+                } else if ("Submitter".equals(name)) {
+                    job.setSubmitter(reader.getElementText());
+                } else if ("SpeculativeCopyOf".equals(name)) {
+                    job.setSpeculativeCopyOf(reader.getElementText().trim());
+                } else if ("Dependency".equals(name)) {
+                    job.addDependency(reader.getElementText().trim());
+                } else if ("ModelChainInfo".equals(name)) {
+                    job.setModelChain(readModelChain());
+                } else if ("ModelChainInfoRef".equals(name)) {
+                    job.setModelChain(readModelChainReference());
+                } else if ("WorkerInfoRef".equals(name)) {
+                    job.setAssignedToWorker(workers.get(reader.getAttributeValue(null, "id")));
+                } else if ("WorkerInfo".equals(name)) {
+                    // older format, full worker nested in the job
+                    String id = reader.getAttributeValue(null, "id");
+                    WorkerInfo nested = readWorker();
+                    job.setAssignedToWorker(workers.containsKey(id) ? workers.get(id) : nested);
+                }
+            } else if ((event == XMLStreamConstants.END_ELEMENT) && "Job".equals(reader.getLocalName())) {
+                break;
+            }
+        }
+
+        // setting the state also sets the time stamp
+        job.setLastStateChangeInMillis(lastStateChangeInMillis);
+        return job;
+    }
+
+}
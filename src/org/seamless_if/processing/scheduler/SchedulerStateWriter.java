@@ -0,0 +1,202 @@
+/*
+ * seamframe: SchedulerStateWriter.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes the state of the Scheduler as XML to a stream, one element at a time
+ * instead of building a document in memory first. Model chains and workers
+ * are written once, jobs refer to them by id. Memory use only depends on the
+ * number of model chains, not on the size of queue and history.
+ * <p/>
+ * A model chain used by a job that was not known when the model chains were
+ * written (because it was added concurrently) is written in full inside
+ * that job. SchedulerStateReader accepts both forms.
+ */
+public class SchedulerStateWriter {
+
+    /**
+     * Version of the file format, written as attribute of the root element.
+     */
+    public static final String FORMAT_VERSION = "2";
+
+    private final XMLStreamWriter writer;
+    private final Map<String, ModelChainInfo> writtenChains = new LinkedHashMap<String, ModelChainInfo>();
+
+
+    public SchedulerStateWriter(OutputStream out) throws XMLStreamException {
+        writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+    }
+
+
+    /**
+     * Writes the complete state. The queue and history iterators are each
+     * traversed twice, once to collect the model chains and once to write
+     * the jobs.
+     *
+     * @param workers registered workers
+     * @param queue jobs in the queue
+     * @param history jobs in the history
+     * @throws XMLStreamException when writing fails
+     */
+    public void write(Iterable<WorkerInfo> workers, Iterable<Job> queue, Iterable<Job> history) throws XMLStreamException {
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("Scheduler");
+        writer.writeAttribute("version", FORMAT_VERSION);
+
+        // model chains
+        Map<String, ModelChainInfo> chains = new LinkedHashMap<String, ModelChainInfo>();
+        for (WorkerInfo workerInfo : workers) {
+            for (ModelChainInfo info : workerInfo.getAvailableModelChains()) {
+                chains.put(info.getId(), info);
+            }
+        }
+        collectModelChains(queue.iterator(), chains);
+        collectModelChains(history.iterator(), chains);
+        writer.writeStartElement("ModelChainInfos");
+        for (ModelChainInfo info : chains.values()) {
+            writeModelChain(info);
+        }
+        writer.writeEndElement();
+
+        // workers
+        writer.writeStartElement("Workers");
+        for (WorkerInfo workerInfo : workers) {
+            writeWorker(workerInfo);
+        }
+        writer.writeEndElement();
+
+        // jobs, queue before history
+        writer.writeStartElement("Jobs");
+        writeJobs(queue.iterator());
+        writeJobs(history.iterator());
+        writer.writeEndElement();
+
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+
+    public void close() throws XMLStreamException {
+        writer.close();
+    }
+
+
+    private static void collectModelChains(Iterator<Job> jobs, Map<String, ModelChainInfo> chains) {
+        while (jobs.hasNext()) {
+            ModelChainInfo info = jobs.next().getModelChain();
+            if ((info != null) && !chains.containsKey(info.getId()))
+                chains.put(info.getId(), info);
+        }
+    }
+
+
+    private void writeModelChain(ModelChainInfo info) throws XMLStreamException {
+        writer.writeStartElement("ModelChainInfo");
+        writer.writeAttribute("id", info.getId());
+        writeTextElement("Name", info.getName());
+        writeTextElement("Version", info.getVersion());
+        writer.writeEndElement();
+        writtenChains.put(info.getId(), info);
+    }
+
+
+    private void writeWorker(WorkerInfo workerInfo) throws XMLStreamException {
+        writer.writeStartElement("WorkerInfo");
+        writer.writeAttribute("id", workerInfo.getId());
+        writeTextElement("ip", workerInfo.getIp());
+        writeTextElement("Name", workerInfo.getName());
+        writeTextElement("State", workerInfo.getState().toString());
+        writeTextElement("LastStateUpdateInMillis", String.valueOf(workerInfo.getLastStateUpdateInMillis()));
+        writeTextElement("Capacity", String.valueOf(workerInfo.getCapacity()));
+        writer.writeStartElement("ModelChainInfos");
+        for (ModelChainInfo info : workerInfo.getAvailableModelChains()) {
+            writeModelChainReference(info);
+        }
+        writer.writeEndElement();
+        writer.writeEndElement();
+    }
+
+
+    private void writeJobs(Iterator<Job> jobs) throws XMLStreamException {
+        while (jobs.hasNext()) {
+            Job job = jobs.next();
+            writer.writeStartElement("Job");
+            writer.writeAttribute("id", job.getId());
+            writeTextElement("State", job.getState().toString());
+            writeTextElement("LastStateChangeInMillis", String.valueOf(job.getLastStateChangeInMillis()));
+            writeTextElement("LogUrl", job.getLogUrl());
+            if (job.getExperimentId() != null)
+                writeTextElement("ExperimentId", job.getExperimentId().toString());
+            writeTextElement("Priority", job.getPriority().toString());
+            if (job.getDeadlineInMillis() != null)
+                writeTextElement("DeadlineInMillis", job.getDeadlineInMillis().toString());
+            if (job.getSubmitter() != null)
+                writeTextElement("Submitter", job.getSubmitter());
+            if (job.getSpeculativeCopyOf() != null)
+                writeTextElement("SpeculativeCopyOf", job.getSpeculativeCopyOf());
+            if (job.hasDependencies()) {
+                writer.writeStartElement("Dependencies");
+                for (String jobId : job.getDependencies())
+                    writeTextElement("Dependency", jobId);
+                writer.writeEndElement();
+            }
+            if (job.getModelChain() != null)
+                writeModelChainReference(job.getModelChain());
+            if (job.getAssignedToWorker() != null) {
+                writer.writeEmptyElement("WorkerInfoRef");
+                writer.writeAttribute("id", job.getAssignedToWorker().getId());
+            }
+            writer.writeEndElement();
+        }
+    }
+
+
+    private void writeModelChainReference(ModelChainInfo info) throws XMLStreamException {
+        if (writtenChains.containsKey(info.getId())) {
+            writer.writeEmptyElement("ModelChainInfoRef");
+            writer.writeAttribute("id", info.getId());
+        } else {
+            writeModelChain(info);
+        }
+    }
+
+
+    private void writeTextElement(String name, String text) throws XMLStreamException {
+        writer.writeStartElement(name);
+        if (text != null)
+            writer.writeCharacters(text);
+        writer.writeEndElement();
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * seamframe: SchedulingKey.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Position of a Job in the ready lists of a JobQueue, as determined by the
+ * SchedulingPolicy when the job enters the queue. Keys are compared by the
+ * primary and secondary values, lower values are scheduled first, and then
+ * by queue sequence, so keys of different jobs are never equal.
+ */
+public final class SchedulingKey implements Comparable<SchedulingKey> {
+
+    private final long primary;
+    private final long secondary;
+    private final long sequence;
+
+
+    public SchedulingKey(long primary, long secondary, long sequence) {
+        this.primary = primary;
+        this.secondary = secondary;
+        this.sequence = sequence;
+    }
+
+
+    public long getPrimary() {
+        return primary;
+    }
+
+
+    public long getSecondary() {
+        return secondary;
+    }
+
+
+    public long getSequence() {
+        return sequence;
+    }
+
+
+    public int compareTo(SchedulingKey other) {
+        if (primary != other.primary)
+            return (primary < other.primary) ? -1 : 1;
+        if (secondary != other.secondary)
+            return (secondary < other.secondary) ? -1 : 1;
+        if (sequence != other.sequence)
+            return (sequence < other.sequence) ? -1 : 1;
+        return 0;
+    }
+
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SchedulingKey)) return false;
+        return compareTo((SchedulingKey) o) == 0;
+    }
+
+
+    @Override
+    public int hashCode() {
+        return (int) (sequence ^ (sequence >>> 32));
+    }
+
+
+    @Override
+    public String toString() {
+        return primary + "/" + secondary + "/" + sequence;
+    }
+}
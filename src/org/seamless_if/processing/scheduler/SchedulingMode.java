@@ -0,0 +1,44 @@
+/*
+ * seamframe: SchedulingMode.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * The ways in which the Scheduler background thread can decide when to
+ * schedule jobs in the queue to workers.
+ */
+public enum SchedulingMode {
+    /**
+     * Jobs are scheduled at a fixed interval, regardless of changes in the
+     * queue or in the state of workers.
+     */
+    POLLING,
+
+    /**
+     * Jobs are scheduled as soon as a job is added, a worker becomes idle or
+     * a job completes. Signals that arrive while a scheduling pass is running
+     * are coalesced into a single next pass. Worker state update timeouts are
+     * checked by a separate low frequency timer.
+     */
+    EVENT_DRIVEN
+}
@@ -0,0 +1,69 @@
+/*
+ * seamframe: SchedulingPolicy.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Decides the order in which waiting jobs are assigned to workers.
+ * <p/>
+ * The JobQueue keeps its ready lists sorted on the key the policy creates
+ * for a job when it enters the queue, so finding the next job for a worker
+ * only compares the heads of the ready lists. Policies that depend on what
+ * was scheduled before, like fair share, are told about every job that is
+ * assigned to a worker. Aborted jobs are always rescheduled before waiting
+ * jobs, whatever the policy.
+ */
+public interface SchedulingPolicy {
+
+    /**
+     * Creates the scheduling key for a job entering the queue. Called while
+     * holding the lock of the job.
+     *
+     * @param job that enters the queue
+     * @param queueSequence position of the job in the queue
+     * @return key of the job, lower keys are scheduled first
+     */
+    SchedulingKey createKey(Job job, long queueSequence);
+
+
+    /**
+     * Creates a new key for a job that is already queued, after fields the
+     * policy uses changed or after the policy was set on the queue. Called
+     * while holding the lock of the job.
+     *
+     * @param job in the queue
+     * @param previous key this policy created for the job before, or null
+     *        when the job was keyed by another policy
+     * @param queueSequence position of the job in the queue
+     * @return new key of the job, lower keys are scheduled first
+     */
+    SchedulingKey updateKey(Job job, SchedulingKey previous, long queueSequence);
+
+
+    /**
+     * Called after a job was assigned to a worker.
+     *
+     * @param job that was assigned
+     */
+    void jobAssigned(Job job);
+}
@@ -0,0 +1,453 @@
+/*
+ * seamframe: ShardedScheduler.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.seamless_if.processing.sofa.SeamException;
+
+/**
+ * Partitions the scheduling over several Scheduler instances, the shards.
+ * Jobs are hash partitioned on their experiment id, so all jobs of an
+ * experiment are in the same shard. Each shard has its own queue, history
+ * and journal, so shards schedule and recover independently.
+ * <p/>
+ * A worker is registered with one shard at a time, its home shard is chosen
+ * round robin. A worker waiting for a job while its shard has no jobs for
+ * it is moved to a shard that does, see awaitJobForWorker. It stays there
+ * until that shard runs dry as well. Model chains are registered once here
+ * and shared by all shards, so a chain has the same id in every shard.
+ * <p/>
+ * Workers should use the methods of the ShardedScheduler, which route each
+ * call to the shard that currently holds the worker or job.
+ */
+public class ShardedScheduler implements JobDispatcher {
+
+    /**
+     * Longest time a waiting worker stays with a shard without jobs for it,
+     * before checking the other shards again.
+     */
+    public static final long STEAL_CHECK_INTERVAL_IN_MILLIS = 1000;
+
+    private static Logger logger = Logger.getLogger(ShardedScheduler.class.getName());
+
+    private final Scheduler[] shards;
+    private final ConcurrentHashMap<String, Scheduler> shardOfWorker = new ConcurrentHashMap<String, Scheduler>();
+    private final ConcurrentHashMap<String, Scheduler> shardOfJob = new ConcurrentHashMap<String, Scheduler>();
+    private final AtomicInteger nextHomeShard = new AtomicInteger();
+    private final AtomicLong stolenWorkerCount = new AtomicLong();
+
+    // model chains shared by the shards, by id and by name and version
+    private final Map<String, ModelChainInfo> chainsById = new HashMap<String, ModelChainInfo>();
+    private final Map<String, ModelChainInfo> chainsByNameAndVersion = new HashMap<String, ModelChainInfo>();
+
+    // serialises moving workers between shards
+    private final Object stealLock = new Object();
+
+
+    /**
+     * @param shardCount number of shards, at least 1
+     */
+    public ShardedScheduler(int shardCount) {
+        if (shardCount < 1)
+            throw new IllegalArgumentException("Number of shards must be at least 1");
+        shards = new Scheduler[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Scheduler();
+            shards[i].setMetricsObjectName(SchedulerMetrics.OBJECT_NAME + ",shard=" + i);
+        }
+    }
+
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+
+    public Scheduler getShard(int index) {
+        return shards[index];
+    }
+
+
+    /**
+     * @return index of the shard that holds the jobs of the experiment
+     */
+    public int getShardIndex(Long experimentId) {
+        if (experimentId == null)
+            return 0;
+        // spread consecutive ids, sign bit dropped
+        long hash = experimentId.longValue() * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 1) % shards.length);
+    }
+
+
+    public Scheduler getShardForExperiment(Long experimentId) {
+        return shards[getShardIndex(experimentId)];
+    }
+
+
+    /**
+     * @return the shard the worker is currently registered with, or null
+     */
+    public Scheduler getShardForWorker(String workerId) {
+        return shardOfWorker.get(workerId);
+    }
+
+
+    /**
+     * Returns the shard of the job, as recorded when the job was added. Jobs
+     * the shards created themselves, such as speculative copies, are looked
+     * up in the queues and histories of the shards once.
+     *
+     * @return the shard that has the job in its queue or history, or null
+     */
+    public Scheduler getShardForJob(String jobId) {
+        Scheduler shard = shardOfJob.get(jobId);
+        if (shard != null)
+            return shard;
+
+        for (Scheduler candidate : shards) {
+            if (candidate.getJobFromQueue(jobId) != null) {
+                shard = candidate;
+                break;
+            }
+        }
+        if (shard == null) {
+            for (Scheduler candidate : shards) {
+                if (candidate.getJobFromHistory(jobId) != null) {
+                    shard = candidate;
+                    break;
+                }
+            }
+        }
+        if (shard != null)
+            shardOfJob.put(jobId, shard);
+        return shard;
+    }
+
+
+    /**
+     * Sets the file each shard persists its state in, with the index of the
+     * shard appended to the name, see Scheduler.setFileName. The workers,
+     * model chains and jobs that the shards restore are routed to them
+     * again.
+     *
+     * @param filename base name of the files
+     */
+    public void setFileName(String filename) {
+        for (int i = 0; i < shards.length; i++)
+            shards[i].setFileName((filename != null) ? filename + ".shard" + i : null);
+        restoreRouting();
+    }
+
+
+    /**
+     * Rebuilds the routing of workers, model chains and queued jobs from the
+     * state of the shards.
+     */
+    private void restoreRouting() {
+        synchronized (stealLock) {
+            for (Scheduler shard : shards) {
+                for (WorkerInfo workerInfo : shard.getAllWorkers()) {
+                    shardOfWorker.put(workerInfo.getId(), shard);
+                    for (ModelChainInfo info : workerInfo.getAvailableModelChains())
+                        restoreModelChain(info);
+                }
+                for (Job job : shard.getAllJobsFromQueue()) {
+                    shardOfJob.put(job.getId(), shard);
+                    if (job.getModelChain() != null)
+                        restoreModelChain(job.getModelChain());
+                }
+            }
+        }
+    }
+
+
+    private void restoreModelChain(ModelChainInfo info) {
+        synchronized (chainsById) {
+            if (chainsById.containsKey(info.getId()))
+                return;
+            chainsById.put(info.getId(), info);
+            chainsByNameAndVersion.put(info.getName().toLowerCase() + '\n' + info.getVersion().toLowerCase(), info);
+        }
+    }
+
+
+    public void setSchedulingMode(SchedulingMode mode) {
+        for (Scheduler shard : shards)
+            shard.setSchedulingMode(mode);
+    }
+
+
+    public void start() {
+        for (Scheduler shard : shards)
+            shard.start();
+    }
+
+
+    public void stop() {
+        for (Scheduler shard : shards)
+            shard.stop();
+    }
+
+
+    /**
+     * Lets every shard schedule its waiting jobs, for use without a running
+     * scheduler thread.
+     */
+    public void scheduleJobs() {
+        for (Scheduler shard : shards)
+            shard.scheduleJobs();
+    }
+
+
+    public WorkerInfo registerWorker(String ip, String name) {
+        return registerWorker(new WorkerInfo(ip, name));
+    }
+
+
+    public WorkerInfo registerWorker(WorkerInfo workerInfo) {
+        Scheduler home = shards[(nextHomeShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length];
+        shardOfWorker.put(workerInfo.getId(), home);
+        home.registerWorker(workerInfo);
+        return workerInfo;
+    }
+
+
+    public void unregisterWorker(String workerId) {
+        synchronized (stealLock) {
+            Scheduler shard = shardOfWorker.remove(workerId);
+            if (shard != null)
+                shard.unregisterWorker(workerId);
+        }
+    }
+
+
+    /**
+     * Registers the model chain for the worker, using the same model chain
+     * in all shards.
+     */
+    public ModelChainInfo registerModelChainForWorker(String workerId, String modelChainName, String modelChainVersion) {
+        if ((modelChainName == null) || (modelChainVersion == null))
+            return null;
+        ModelChainInfo info;
+        synchronized (chainsById) {
+            String key = modelChainName.toLowerCase() + '\n' + modelChainVersion.toLowerCase();
+            info = chainsByNameAndVersion.get(key);
+            if (info == null) {
+                info = new ModelChainInfo();
+                info.setName(modelChainName);
+                info.setVersion(modelChainVersion);
+                chainsByNameAndVersion.put(key, info);
+                chainsById.put(info.getId(), info);
+            }
+        }
+        synchronized (stealLock) {
+            Scheduler shard = getRequiredShardForWorker(workerId);
+            return shard.registerModelChainForWorker(workerId, info);
+        }
+    }
+
+
+    public ModelChainInfo getModelChainInfo(String modelChainId) {
+        synchronized (chainsById) {
+            return chainsById.get(modelChainId);
+        }
+    }
+
+
+    public void updateWorkerState(String workerId, WorkerState newState) {
+        getRequiredShardForWorker(workerId).updateWorkerState(workerId, newState);
+    }
+
+
+    public void updateWorkerCapacity(String workerId, int capacity) {
+        getRequiredShardForWorker(workerId).updateWorkerCapacity(workerId, capacity);
+    }
+
+
+    public boolean heartbeat(String workerId) {
+        Scheduler shard = shardOfWorker.get(workerId);
+        return (shard != null) && shard.heartbeat(workerId);
+    }
+
+
+    public Job addJob(Long experimentId, String modelChainId) {
+        Job job = new Job();
+        job.setExperimentId(experimentId);
+        job.setModelChain(getModelChainInfo(modelChainId));
+        if (job.getModelChain() == null) {
+            logger.warn("Cancelling adding [" + job + "] to queue, currently no calculation node provides a model chain with ID: " + modelChainId);
+            return null;
+        }
+        return addJob(job);
+    }
+
+
+    /**
+     * Adds the job to the shard of its experiment.
+     */
+    public Job addJob(Job job) {
+        Scheduler shard = getShardForExperiment(job.getExperimentId());
+        Job added = shard.addJob(job);
+        if (added != null)
+            shardOfJob.put(added.getId(), shard);
+        return added;
+    }
+
+
+    public Job getJob(String jobId) {
+        Scheduler shard = getShardForJob(jobId);
+        return (shard != null) ? shard.getJob(jobId) : null;
+    }
+
+
+    /**
+     * @return the jobs in the queues of all shards
+     */
+    public List<Job> getAllJobsFromQueue() {
+        List<Job> jobs = new ArrayList<Job>();
+        for (Scheduler shard : shards)
+            jobs.addAll(shard.getAllJobsFromQueue());
+        return Collections.unmodifiableList(jobs);
+    }
+
+
+    public void updateJobState(String jobId, JobState newState) {
+        Scheduler shard = getShardForJob(jobId);
+        if (shard == null)
+            throw new SeamException("Queue does not contain a job with id: " + jobId);
+        shard.updateJobState(jobId, newState);
+    }
+
+
+    /**
+     * Starts a job assigned to the worker, see Scheduler.startJob.
+     */
+    public boolean startJob(String workerId, String jobId) {
+        Scheduler shard = shardOfWorker.get(workerId);
+        return (shard != null) && shard.startJob(workerId, jobId);
+    }
+
+
+    public boolean heartbeatJob(String jobId) {
+        Scheduler shard = getShardForJob(jobId);
+        return (shard != null) && shard.heartbeatJob(jobId);
+    }
+
+
+    /**
+     * Returns a job assigned to the worker that it did not start yet, waiting
+     * for one when there is none. While waiting the worker is moved to
+     * another shard when its own shard has no jobs for it and the other
+     * shard has.
+     *
+     * @param workerId id of the worker requesting a job
+     * @param timeoutInMillis maximum time to wait for a job
+     * @return Job assigned to the worker, or null when the timeout expired
+     * @throws InterruptedException when interrupted while waiting
+     */
+    public Job awaitJobForWorker(String workerId, long timeoutInMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInMillis;
+        while (true) {
+            Scheduler shard = shardOfWorker.get(workerId);
+            if (shard == null)
+                return null;
+            Job job = shard.getNextJobForWorker(workerId);
+            if (job != null)
+                return job;
+            if (stealWorker(workerId))
+                continue;
+
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                return null;
+            job = shard.awaitJobForWorker(workerId, Math.min(remaining, STEAL_CHECK_INTERVAL_IN_MILLIS));
+            if (job != null)
+                return job;
+        }
+    }
+
+
+    /**
+     * @return number of times a worker was moved to another shard
+     */
+    public long getStolenWorkerCount() {
+        return stolenWorkerCount.get();
+    }
+
+
+    /**
+     * Moves the worker to another shard with jobs waiting for it, when its
+     * current shard has none and it has no jobs assigned there.
+     *
+     * @return true if the worker was moved
+     */
+    private boolean stealWorker(String workerId) {
+        synchronized (stealLock) {
+            Scheduler current = shardOfWorker.get(workerId);
+            WorkerInfo workerInfo = (current != null) ? current.getWorker(workerId) : null;
+            if ((workerInfo == null) || !workerInfo.isAcceptingJobs() || current.hasJobsWaitingFor(workerInfo)
+                    || !current.getJobsForWorker(workerId).isEmpty())
+                return false;
+
+            for (Scheduler target : shards) {
+                if ((target == current) || !target.hasJobsWaitingFor(workerInfo))
+                    continue;
+
+                WorkerInfo moved = new WorkerInfo(workerInfo.getIp(), workerInfo.getName());
+                moved.setId(workerId);
+                moved.setCapacity(workerInfo.getCapacity());
+                WorkerState state = workerInfo.getState();
+                current.unregisterWorker(workerId);
+                shardOfWorker.put(workerId, target);
+                target.registerWorker(moved);
+                for (ModelChainInfo info : workerInfo.getAvailableModelChains())
+                    target.registerModelChainForWorker(workerId, info);
+                target.updateWorkerState(workerId, state);
+                stolenWorkerCount.incrementAndGet();
+                logger.info("Moved worker " + workerId + " to a shard with waiting jobs");
+                return true;
+            }
+            return false;
+        }
+    }
+
+
+    private Scheduler getRequiredShardForWorker(String workerId) {
+        Scheduler shard = shardOfWorker.get(workerId);
+        if (shard == null)
+            throw new SeamException("No worker registered with id: " + workerId);
+        return shard;
+    }
+
+}
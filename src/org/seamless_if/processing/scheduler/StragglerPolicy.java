@@ -0,0 +1,119 @@
+/*
+ * seamframe: StragglerPolicy.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+/**
+ * Decides when a job in progress is a straggler, and whether a speculative
+ * copy of it is started on another worker.
+ * <p/>
+ * A job is a straggler when it runs longer than a percentile of the recent
+ * run times of its model chain, multiplied by a factor. Until enough run
+ * times of the chain are known no job is flagged. With speculation enabled
+ * a copy of a straggler is assigned to another worker that accepts jobs for
+ * the chain; the first of the two to complete wins and the other one is
+ * cancelled. When no such worker is available the check is repeated after
+ * the retry interval.
+ */
+public class StragglerPolicy {
+
+    public static final double DEFAULT_PERCENTILE = 0.95;
+    public static final double DEFAULT_FACTOR = 1.5;
+    public static final int DEFAULT_MIN_SAMPLES = 10;
+    public static final long DEFAULT_RETRY_INTERVAL_IN_MILLIS = 10000;
+
+    private final double percentile;
+    private final double factor;
+    private final int minSamples;
+    private final boolean speculative;
+    private final long retryIntervalInMillis;
+
+
+    /**
+     * @param percentile fraction of the run times, for example 0.95
+     * @param factor multiplier of the percentile run time
+     * @param minSamples number of run times needed before flagging jobs
+     * @param speculative start a copy of stragglers on another worker
+     * @param retryIntervalInMillis time before trying again to start a copy
+     */
+    public StragglerPolicy(double percentile, double factor, int minSamples, boolean speculative, long retryIntervalInMillis) {
+        this.percentile = percentile;
+        this.factor = factor;
+        this.minSamples = Math.max(1, minSamples);
+        this.speculative = speculative;
+        this.retryIntervalInMillis = retryIntervalInMillis;
+    }
+
+
+    /**
+     * @return policy that only flags stragglers
+     */
+    public static StragglerPolicy detect() {
+        return new StragglerPolicy(DEFAULT_PERCENTILE, DEFAULT_FACTOR, DEFAULT_MIN_SAMPLES, false, DEFAULT_RETRY_INTERVAL_IN_MILLIS);
+    }
+
+
+    /**
+     * @return policy that flags stragglers and starts a copy of them
+     */
+    public static StragglerPolicy speculate() {
+        return new StragglerPolicy(DEFAULT_PERCENTILE, DEFAULT_FACTOR, DEFAULT_MIN_SAMPLES, true, DEFAULT_RETRY_INTERVAL_IN_MILLIS);
+    }
+
+
+    /**
+     * @param statistics recent run times of the model chain of the job
+     * @return run time after which a job is a straggler, or -1 when not
+     *         enough run times are known
+     */
+    public long getThresholdInMillis(RuntimeStatistics statistics) {
+        if ((statistics == null) || (statistics.getSampleCount() < minSamples))
+            return -1;
+        return (long) Math.ceil(statistics.getPercentile(percentile) * factor);
+    }
+
+
+    public double getPercentile() {
+        return percentile;
+    }
+
+
+    public double getFactor() {
+        return factor;
+    }
+
+
+    public int getMinSamples() {
+        return minSamples;
+    }
+
+
+    public boolean isSpeculative() {
+        return speculative;
+    }
+
+
+    public long getRetryIntervalInMillis() {
+        return retryIntervalInMillis;
+    }
+}
@@ -23,11 +23,10 @@
 
 package org.seamless_if.processing.scheduler;
 
-import java.rmi.server.UID;
-import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.dom4j.Element;
 import org.dom4j.dom.DOMElement;
@@ -35,27 +34,39 @@ import org.dom4j.dom.DOMElement;
 /**
  * A Worker represents a computer node that can process Jobs. I.e. it has certain
  * model chains installed and can run them to process experiments.
+ * <p/>
+ * Available model chains are kept in order of addition and indexed by id.
+ * When registered, changes to the state and the available model chains are
+ * reported to the WorkerInfoList so it can keep its indexes up to date.
  *
  * @author Rob Knapen; Alterra, Wageningen UR, NL
  */
 public class WorkerInfo {
 
     private String ip;
-    private WorkerState state;
-    private long lastStateUpdateInMillis;
+    private volatile WorkerState state;
+    private volatile long lastStateUpdateInMillis;
+    private volatile int capacity;
     private String name;
-    private String id;
-    private ArrayList<ModelChainInfo> availableModelChains;
+    private CompactId id;
+    private CopyOnWriteArrayList<ModelChainInfo> availableModelChains;
+    private ConcurrentHashMap<CompactId, ModelChainInfo> availableModelChainsById;
+
+    // list the worker is currently registered in, and its position in that list
+    private volatile WorkerInfoList list;
+    private volatile long listSequence;
 
 
     public WorkerInfo() {
-        // ID is unique over time for this host
-        id = new UID().toString();
+        // ID is time ordered and unique over time for this node
+        id = CompactId.next();
         ip = "127.0.0.1";
         state = WorkerState.UNKNOWN;
         lastStateUpdateInMillis = System.currentTimeMillis();
         name = "New Worker";
-        availableModelChains = new ArrayList<ModelChainInfo>();
+        capacity = 1;
+        availableModelChains = new CopyOnWriteArrayList<ModelChainInfo>();
+        availableModelChainsById = new ConcurrentHashMap<CompactId, ModelChainInfo>();
     }
 
 
@@ -67,12 +78,20 @@ public class WorkerInfo {
 
 
     public String getId() {
-        return id;
+        return (id != null) ? id.toString() : null;
     }
 
 
     public void setId(String id) {
-        this.id = id;
+        this.id = CompactId.parse(id);
+    }
+
+
+    /**
+     * @return the id, as used by the scheduler to index its collections
+     */
+    public CompactId getCompactId() {
+        return id;
     }
 
 
@@ -88,12 +107,65 @@ public class WorkerInfo {
         return state;
     }
 
-    public void setState(WorkerState state) {
+    public synchronized void setState(WorkerState state) {
         this.state = state;
         // set state update stamp to now
         lastStateUpdateInMillis = System.currentTimeMillis();
+        WorkerInfoList current = list;
+        if (current != null) {
+            current.workerStateChanged(this);
+        }
+    }
+
+
+    /**
+     * Sets the state to UNKNOWN when it was not updated since the specified
+     * time. Checking and setting is atomic with respect to setState, so a
+     * state update that arrives during the check is never overwritten.
+     *
+     * @param thresholdInMillis time before which the state must have been updated
+     * @return true if the state changed because of the timeout
+     */
+    public synchronized boolean expireStateIfNotUpdatedSince(long thresholdInMillis) {
+        if (lastStateUpdateInMillis >= thresholdInMillis)
+            return false;
+        boolean changed = !WorkerState.UNKNOWN.equals(state);
+        setState(WorkerState.UNKNOWN);
+        return changed;
+    }
+
+    /**
+     * @return maximum number of jobs the worker processes concurrently
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Worker capacity must be at least 1: " + capacity);
+        this.capacity = capacity;
+        WorkerInfoList current = list;
+        if (current != null) {
+            current.workerStateChanged(this);
+        }
     }
 
+
+    /**
+     * Checks if jobs can be assigned to the worker, provided it has free
+     * slots. A worker with a single slot only accepts jobs when IDLE, a
+     * worker with more slots also when BUSY with the jobs it already has.
+     *
+     * @return true if the worker accepts jobs in its current state
+     */
+    public boolean isAcceptingJobs() {
+        WorkerState current = state;
+        return WorkerState.IDLE.equals(current) || ((capacity > 1) && WorkerState.BUSY.equals(current));
+    }
+
+
     public long getLastStateUpdateInMillis() {
         return lastStateUpdateInMillis;
     }
@@ -133,14 +205,22 @@ public class WorkerInfo {
     }
 
     public void addAvailableModelChain(ModelChainInfo info) {
-        if (!availableModelChains.contains(info)) {
+        synchronized (this) {
+            if (availableModelChainsById.putIfAbsent(info.getCompactId(), info) != null)
+                return;
             availableModelChains.add(info);
         }
+        // outside of the lock, the list locks itself and then its workers
+        WorkerInfoList current = list;
+        if (current != null) {
+            current.modelChainChanged(this, info);
+        }
     }
 
 
     public boolean hasMatchingModelChain(ModelChainInfo modelChain) {
-        return availableModelChains.contains(modelChain);
+        return (modelChain != null) && (modelChain.getCompactId() != null)
+                && availableModelChainsById.containsKey(modelChain.getCompactId());
     }
 
 
@@ -156,6 +236,7 @@ public class WorkerInfo {
         root.add(new DOMElement("Name").addText(getName()));
         root.add(new DOMElement("State").addText(state.toString()));
         root.add(new DOMElement("LastStateUpdateInMillis").addText(String.valueOf(lastStateUpdateInMillis)));
+        root.add(new DOMElement("Capacity").addText(String.valueOf(capacity)));
 
         Element chainInfos = new DOMElement("ModelChainInfos");
         for (ModelChainInfo info : availableModelChains) {
@@ -170,15 +251,34 @@ public class WorkerInfo {
 	public ModelChainInfo removeAvailableModelChain(String modelChainId) {
 		if (modelChainId == null)
 			return null;
-		Iterator<ModelChainInfo> iter = availableModelChains.iterator();
-		while (iter.hasNext()) {
-			ModelChainInfo info = iter.next();
-			if (modelChainId.equals(info.getId())) {
-				iter.remove();
-				return info;
-			}
+		ModelChainInfo info;
+		synchronized (this) {
+			info = availableModelChainsById.remove(CompactId.parse(modelChainId));
+			if (info == null)
+				return null;
+			availableModelChains.remove(info);
+		}
+		WorkerInfoList current = list;
+		if (current != null) {
+			current.modelChainChanged(this, info);
 		}
-		return null;
+		return info;
+	}
+
+
+	WorkerInfoList getList() {
+		return list;
+	}
+
+
+	long getListSequence() {
+		return listSequence;
+	}
+
+
+	void setList(WorkerInfoList list, long listSequence) {
+		this.list = list;
+		this.listSequence = listSequence;
 	}
 
 }
@@ -24,64 +24,359 @@
 package org.seamless_if.processing.scheduler;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A list of Workers, available to process jobs.
+ * <p/>
+ * Workers register rarely but are iterated and looked up on every scheduling
+ * pass and state update, so the list is copy-on-write with an additional
+ * index by worker id. Reads never block, changes to the list are serialised.
+ * <p/>
+ * The list also keeps an index of the model chains currently provided by the
+ * registered workers, by id and by name and version, the workers capable of
+ * running each chain, and the workers that accept jobs. Registered workers
+ * report changes to their state and model chains, so the indexes are kept up
+ * to date incrementally. Workers are only added and removed one at a time
+ * or in bulk through the overridden methods, which keep the indexes in sync.
+ * Changes by position are not supported.
  *
  * @author Rob Knapen; Alterra, Wageningen UR, NL
  */
-public class WorkerInfoList extends ArrayList<WorkerInfo> {
+public class WorkerInfoList extends CopyOnWriteArrayList<WorkerInfo> {
 
 	private static final long serialVersionUID = 1L;
 
+	private final ConcurrentHashMap<CompactId, WorkerInfo> index = new ConcurrentHashMap<CompactId, WorkerInfo>();
+
+	// model chains provided by at least one worker
+	private final ConcurrentHashMap<CompactId, ModelChainInfo> chainsById = new ConcurrentHashMap<CompactId, ModelChainInfo>();
+	private final ConcurrentHashMap<String, ModelChainInfo> chainsByNameAndVersion = new ConcurrentHashMap<String, ModelChainInfo>();
+	private final ConcurrentHashMap<CompactId, Set<WorkerInfo>> workersByChain = new ConcurrentHashMap<CompactId, Set<WorkerInfo>>();
+
+	// workers accepting jobs in order of registration
+	private final ConcurrentSkipListMap<Long, WorkerInfo> acceptingWorkers = new ConcurrentSkipListMap<Long, WorkerInfo>();
+	private final AtomicLong nextSequence = new AtomicLong();
+
 
 	public WorkerInfoList() {
     }
 
 
     @Override
-    public boolean add(WorkerInfo workerInfo) {
-        if (!contains(workerInfo)) {
+    public synchronized boolean add(WorkerInfo workerInfo) {
+        if (index.putIfAbsent(workerInfo.getCompactId(), workerInfo) == null) {
+            workerInfo.setList(this, nextSequence.getAndIncrement());
             workerInfo.setState(WorkerState.UNKNOWN);
+            for (ModelChainInfo info : workerInfo.getAvailableModelChains()) {
+                modelChainChanged(workerInfo, info);
+            }
             return super.add(workerInfo);
         }
         return false;
     }
 
 
-    public void remove(String workerId) {
-        Iterator<WorkerInfo> iter = iterator();
-        while (iter.hasNext()) {
-            WorkerInfo workerInfo = iter.next();
-            if (workerInfo.getId().equals(workerId)) {
-                workerInfo.setState(WorkerState.REMOVED);
-                iter.remove();
-            }
+    @Override
+    public boolean addIfAbsent(WorkerInfo workerInfo) {
+        return add(workerInfo);
+    }
+
+
+    @Override
+    public synchronized boolean addAll(Collection<? extends WorkerInfo> workerInfos) {
+        return addAllAbsent(workerInfos) > 0;
+    }
+
+
+    @Override
+    public synchronized int addAllAbsent(Collection<? extends WorkerInfo> workerInfos) {
+        int added = 0;
+        for (WorkerInfo workerInfo : workerInfos) {
+            if (add(workerInfo))
+                added++;
         }
+        return added;
+    }
+
+
+    @Override
+    public void add(int position, WorkerInfo workerInfo) {
+        throw new UnsupportedOperationException("Workers are kept in order of registration");
+    }
+
+
+    @Override
+    public boolean addAll(int position, Collection<? extends WorkerInfo> workerInfos) {
+        throw new UnsupportedOperationException("Workers are kept in order of registration");
+    }
+
+
+    @Override
+    public WorkerInfo set(int position, WorkerInfo workerInfo) {
+        throw new UnsupportedOperationException("Workers are kept in order of registration");
+    }
+
+
+    public synchronized void remove(String workerId) {
+        WorkerInfo workerInfo = index.remove(CompactId.parse(workerId));
+        if (workerInfo != null)
+            removeIndexed(workerInfo);
+    }
+
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        if (!(o instanceof WorkerInfo))
+            return false;
+        WorkerInfo workerInfo = (WorkerInfo) o;
+        if (!index.remove(workerInfo.getCompactId(), workerInfo))
+            return false;
+        removeIndexed(workerInfo);
+        return true;
+    }
+
+
+    @Override
+    public synchronized WorkerInfo remove(int position) {
+        WorkerInfo workerInfo = get(position);
+        remove(workerInfo);
+        return workerInfo;
+    }
+
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> c) {
+        boolean changed = false;
+        for (Object o : c) {
+            changed |= remove(o);
+        }
+        return changed;
+    }
+
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> c) {
+        boolean changed = false;
+        for (WorkerInfo workerInfo : this) {
+            if (!c.contains(workerInfo))
+                changed |= remove(workerInfo);
+        }
+        return changed;
+    }
+
+
+    @Override
+    public List<WorkerInfo> subList(int fromIndex, int toIndex) {
+        return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
     }
 
 
     public WorkerInfo get(String workerId) {
+        return get(CompactId.parse(workerId));
+    }
+
+
+    public WorkerInfo get(CompactId workerId) {
+        return index.get(workerId);
+    }
+
+
+    /**
+     * Removes a worker that was just removed from the index. The worker is
+     * detached under its own lock first, so a concurrent state change cannot
+     * put it back in the accepting workers.
+     */
+    private void removeIndexed(WorkerInfo workerInfo) {
+        synchronized (workerInfo) {
+            long sequence = workerInfo.getListSequence();
+            workerInfo.setList(null, 0);
+            acceptingWorkers.remove(sequence, workerInfo);
+            workerInfo.setState(WorkerState.REMOVED);
+        }
+        for (ModelChainInfo info : workerInfo.getAvailableModelChains()) {
+            unindexModelChain(workerInfo, info);
+        }
+        super.remove(workerInfo);
+    }
+
+
+    @Override
+    public synchronized void clear() {
         for (WorkerInfo workerInfo : this) {
-            if (workerInfo.getId().equals(workerId)) {
-                return workerInfo;
+            synchronized (workerInfo) {
+                workerInfo.setList(null, 0);
             }
         }
-        return null;
+        index.clear();
+        chainsById.clear();
+        chainsByNameAndVersion.clear();
+        workersByChain.clear();
+        acceptingWorkers.clear();
+        super.clear();
     }
-    
-    
+
+
     public List<ModelChainInfo> getCurrentlyKnownModelChainsInfo() {
-    	List<ModelChainInfo> result = new ArrayList<ModelChainInfo>();
-    	for (WorkerInfo workerInfo : this) {
-    		List<ModelChainInfo> available = workerInfo.getAvailableModelChains();
-    		for (ModelChainInfo info : available) {
-    			if (!result.contains(info))
-    				result.add(info);
-    		}
-    	}
-    	return result;
+    	return new ArrayList<ModelChainInfo>(chainsById.values());
+    }
+
+
+    /**
+     * @return model chain with the id provided by any worker, or null
+     */
+    public ModelChainInfo getModelChain(String modelChainId) {
+        return (modelChainId == null) ? null : chainsById.get(CompactId.parse(modelChainId));
+    }
+
+
+    /**
+     * @return model chain with the name and version (ignoring case) provided
+     *         by any worker, or null
+     */
+    public ModelChainInfo getModelChain(String modelChainName, String modelChainVersion) {
+        if ((modelChainName == null) || (modelChainVersion == null))
+            return null;
+        return chainsByNameAndVersion.get(nameAndVersionKey(modelChainName, modelChainVersion));
+    }
+
+
+    /**
+     * @return the registered workers that can run the model chain
+     */
+    public Set<WorkerInfo> getWorkersForModelChain(ModelChainInfo modelChain) {
+        Set<WorkerInfo> capable = (modelChain == null) ? null : workersByChain.get(modelChain.getCompactId());
+        if (capable == null)
+            return Collections.emptySet();
+        return Collections.unmodifiableSet(capable);
+    }
+
+
+    /**
+     * @return the registered workers that currently accept jobs (see
+     *         WorkerInfo.isAcceptingJobs), in order of registration
+     */
+    public Collection<WorkerInfo> getAcceptingWorkers() {
+        return Collections.unmodifiableCollection(acceptingWorkers.values());
+    }
+
+
+    /**
+     * @return the workers that accept jobs and can run the model chain, in
+     *         order of registration
+     */
+    public List<WorkerInfo> getAcceptingWorkersForModelChain(ModelChainInfo modelChain) {
+        Set<WorkerInfo> capable = (modelChain == null) ? null : workersByChain.get(modelChain.getCompactId());
+        List<WorkerInfo> result = new ArrayList<WorkerInfo>();
+        if (capable == null)
+            return result;
+
+        // intersect by iterating the smaller of the two sets
+        if (capable.size() < acceptingWorkers.size()) {
+            for (WorkerInfo workerInfo : capable) {
+                if (acceptingWorkers.get(workerInfo.getListSequence()) == workerInfo)
+                    result.add(workerInfo);
+            }
+            Collections.sort(result, new Comparator<WorkerInfo>() {
+                public int compare(WorkerInfo a, WorkerInfo b) {
+                    long sa = a.getListSequence();
+                    long sb = b.getListSequence();
+                    return (sa < sb) ? -1 : ((sa == sb) ? 0 : 1);
+                }
+            });
+        } else {
+            for (WorkerInfo workerInfo : acceptingWorkers.values()) {
+                if (capable.contains(workerInfo))
+                    result.add(workerInfo);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Called by a registered worker, while holding its own lock, after its
+     * state or capacity changed.
+     */
+    void workerStateChanged(WorkerInfo workerInfo) {
+        if (workerInfo.getList() != this)
+            return;
+        if (workerInfo.isAcceptingJobs()) {
+            acceptingWorkers.put(workerInfo.getListSequence(), workerInfo);
+        } else {
+            acceptingWorkers.remove(workerInfo.getListSequence(), workerInfo);
+        }
+    }
+
+
+    /**
+     * Called by a registered worker after a model chain was added to or
+     * removed from it. The index is updated to what the worker currently
+     * provides, so the order in which concurrent changes are reported does
+     * not matter.
+     */
+    synchronized void modelChainChanged(WorkerInfo workerInfo, ModelChainInfo info) {
+        if ((workerInfo.getList() == this) && workerInfo.hasMatchingModelChain(info)) {
+            indexModelChain(workerInfo, info);
+        } else {
+            unindexModelChain(workerInfo, info);
+        }
+    }
+
+
+    private void indexModelChain(WorkerInfo workerInfo, ModelChainInfo info) {
+        Set<WorkerInfo> capable = workersByChain.get(info.getCompactId());
+        if (capable == null) {
+            capable = newConcurrentSet();
+            workersByChain.put(info.getCompactId(), capable);
+            chainsById.put(info.getCompactId(), info);
+        }
+        capable.add(workerInfo);
+        if ((info.getName() != null) && (info.getVersion() != null)) {
+            String key = nameAndVersionKey(info.getName(), info.getVersion());
+            if (!chainsByNameAndVersion.containsKey(key))
+                chainsByNameAndVersion.put(key, info);
+        }
+    }
+
+
+    private void unindexModelChain(WorkerInfo workerInfo, ModelChainInfo info) {
+        Set<WorkerInfo> capable = workersByChain.get(info.getCompactId());
+        if ((capable == null) || !capable.remove(workerInfo) || !capable.isEmpty())
+            return;
+
+        // no worker provides the chain anymore
+        workersByChain.remove(info.getCompactId());
+        ModelChainInfo removed = chainsById.remove(info.getCompactId());
+        if ((removed != null) && (removed.getName() != null) && (removed.getVersion() != null)) {
+            String key = nameAndVersionKey(removed.getName(), removed.getVersion());
+            if (chainsByNameAndVersion.remove(key, removed)) {
+                // another chain might have the same name and version
+                for (ModelChainInfo other : chainsById.values()) {
+                    if (key.equals(nameAndVersionKey(other.getName(), other.getVersion()))) {
+                        chainsByNameAndVersion.put(key, other);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+
+    private static String nameAndVersionKey(String name, String version) {
+        return String.valueOf(name).toLowerCase() + '\n' + String.valueOf(version).toLowerCase();
+    }
+
+
+    private static Set<WorkerInfo> newConcurrentSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<WorkerInfo, Boolean>());
     }
 }
@@ -0,0 +1,496 @@
+/*
+ * seamframe: BinaryCodec.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler.dto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.seamless_if.processing.scheduler.JobPriority;
+import org.seamless_if.processing.scheduler.JobState;
+import org.seamless_if.processing.scheduler.WorkerState;
+
+/**
+ * Compact binary form of the Transfer Objects, an alternative to their XML
+ * form for clients that exchange them often, such as polling workers.
+ * <p/>
+ * A message is the length of the rest of the message as 4 byte integer, the
+ * format version as 1 byte, and the encoded object: a JobTO, WorkerTO,
+ * ModelChainInfoTO, JobAddResultTO or a list of them. Integers are variable
+ * length encoded, strings as UTF-8 and enums by ordinal, so reordering the
+ * constants of JobState, WorkerState or JobPriority requires a new version.
+ * <p/>
+ * Within a message each worker and model chain is encoded once. Further
+ * occurrences, with the same id, refer to the first by its number, so a
+ * list of jobs assigned to the same worker contains that worker and its
+ * model chains only once. Decoded messages share these objects the same way.
+ */
+public final class BinaryCodec {
+
+    /**
+     * Version of the format written, messages of later versions can not be
+     * read.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Largest message accepted, to reject garbage before allocating for it.
+     */
+    public static final int MAX_MESSAGE_LENGTH = 64 * 1024 * 1024;
+
+    private static final int NULL = 0;
+    private static final int JOB = 1;
+    private static final int WORKER = 2;
+    private static final int WORKER_REFERENCE = 3;
+    private static final int CHAIN = 4;
+    private static final int CHAIN_REFERENCE = 5;
+    private static final int JOB_ADD_RESULT = 6;
+    private static final int LIST = 7;
+
+
+    private BinaryCodec() {
+    }
+
+
+    /**
+     * @param transferObject object to encode, a Transfer Object of this
+     *        package, a list of them, or null
+     * @return the message, including its length
+     */
+    public static byte[] encode(Object transferObject) {
+        Encoder encoder = new Encoder();
+        encoder.writeObject(transferObject);
+        return encoder.toMessage();
+    }
+
+
+    /**
+     * @param message encoded message, including its length
+     * @return the decoded Transfer Object, list or null
+     * @throws IOException when the message is not valid
+     */
+    public static Object decode(byte[] message) throws IOException {
+        if (message.length < 5)
+            throw new IOException("Message too short: " + message.length + " bytes");
+        int length = ((message[0] & 0xFF) << 24) | ((message[1] & 0xFF) << 16) | ((message[2] & 0xFF) << 8) | (message[3] & 0xFF);
+        if (length != message.length - 4)
+            throw new IOException("Message length " + length + " does not match the " + (message.length - 4) + " bytes received");
+        return new Decoder(message, 4, message.length).readMessage();
+    }
+
+
+    /**
+     * Writes the message for the object to the output.
+     */
+    public static void write(DataOutput out, Object transferObject) throws IOException {
+        out.write(encode(transferObject));
+    }
+
+
+    /**
+     * Reads a message from the input, written by write.
+     */
+    public static Object read(DataInput in) throws IOException {
+        int length = in.readInt();
+        if ((length < 1) || (length > MAX_MESSAGE_LENGTH))
+            throw new IOException("Invalid message length: " + length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return new Decoder(body, 0, length).readMessage();
+    }
+
+
+    private static class Encoder {
+
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        private final Map<String, Integer> workers = new HashMap<String, Integer>();
+        private final Map<String, Integer> chains = new HashMap<String, Integer>();
+
+
+        Encoder() {
+            // room for the length, filled in by toMessage
+            for (int i = 0; i < 4; i++)
+                out.write(0);
+            out.write(VERSION);
+        }
+
+
+        byte[] toMessage() {
+            byte[] message = out.toByteArray();
+            int length = message.length - 4;
+            message[0] = (byte) (length >>> 24);
+            message[1] = (byte) (length >>> 16);
+            message[2] = (byte) (length >>> 8);
+            message[3] = (byte) length;
+            return message;
+        }
+
+
+        void writeObject(Object value) {
+            if (value == null) {
+                out.write(NULL);
+            } else if (value instanceof JobTO) {
+                writeJob((JobTO) value);
+            } else if (value instanceof WorkerTO) {
+                writeWorker((WorkerTO) value);
+            } else if (value instanceof ModelChainInfoTO) {
+                writeChain((ModelChainInfoTO) value);
+            } else if (value instanceof JobAddResultTO) {
+                writeJobAddResult((JobAddResultTO) value);
+            } else if (value instanceof List<?>) {
+                List<?> list = (List<?>) value;
+                out.write(LIST);
+                writeInt(list.size());
+                for (Object item : list)
+                    writeObject(item);
+            } else {
+                throw new IllegalArgumentException("Can not encode " + value.getClass().getName());
+            }
+        }
+
+
+        private void writeJob(JobTO job) {
+            out.write(JOB);
+            writeString(job.getId());
+            writeEnum(job.getState());
+            writeObject(job.getModelChain());
+            writeLong(job.getExperimentId());
+            writeObject(job.getAssignedToWorker());
+            writeString(job.getLogUrl());
+            writeEnum(job.getPriority());
+            writeLong(job.getDeadlineInMillis());
+            writeString(job.getSubmitter());
+            List<String> dependencies = job.getDependencies();
+            if (dependencies == null) {
+                writeInt(0);
+            } else {
+                writeInt(dependencies.size() + 1);
+                for (String jobId : dependencies)
+                    writeString(jobId);
+            }
+            writeString(job.getSpeculativeCopyOf());
+        }
+
+
+        private void writeWorker(WorkerTO worker) {
+            Integer reference = workers.get(worker.getId());
+            if (reference != null) {
+                out.write(WORKER_REFERENCE);
+                writeInt(reference.intValue());
+                return;
+            }
+            if (worker.getId() != null)
+                workers.put(worker.getId(), workers.size());
+            out.write(WORKER);
+            writeString(worker.getId());
+            writeString(worker.getIp());
+            writeEnum(worker.getState());
+            writeLong(worker.getLastStateUpdateInMillis());
+            writeString(worker.getName());
+            writeInt(worker.getCapacity());
+            List<ModelChainInfoTO> available = worker.getAvailableModelChains();
+            writeInt((available != null) ? available.size() : 0);
+            if (available != null) {
+                for (ModelChainInfoTO chain : available)
+                    writeObject(chain);
+            }
+        }
+
+
+        private void writeChain(ModelChainInfoTO chain) {
+            Integer reference = chains.get(chain.getId());
+            if (reference != null) {
+                out.write(CHAIN_REFERENCE);
+                writeInt(reference.intValue());
+                return;
+            }
+            if (chain.getId() != null)
+                chains.put(chain.getId(), chains.size());
+            out.write(CHAIN);
+            writeString(chain.getId());
+            writeString(chain.getName());
+            writeString(chain.getVersion());
+        }
+
+
+        private void writeJobAddResult(JobAddResultTO result) {
+            out.write(JOB_ADD_RESULT);
+            writeString(result.getJobId());
+            out.write(result.isAdded() ? 1 : 0);
+            writeString(result.getMessage());
+            writeObject(result.getJob());
+        }
+
+
+        /**
+         * Writes an unsigned variable length integer, 7 bits per byte.
+         */
+        private void writeInt(long value) {
+            while ((value & ~0x7FL) != 0) {
+                out.write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.write((int) value);
+        }
+
+
+        private void writeLong(Long value) {
+            if (value == null) {
+                out.write(0);
+            } else {
+                out.write(1);
+                writeLong(value.longValue());
+            }
+        }
+
+
+        private void writeLong(long value) {
+            // zigzag, so small negative values are short as well
+            writeInt((value << 1) ^ (value >> 63));
+        }
+
+
+        private void writeEnum(Enum<?> value) {
+            writeInt((value != null) ? value.ordinal() + 1 : 0);
+        }
+
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeInt(0);
+                return;
+            }
+            byte[] bytes;
+            try {
+                bytes = value.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            writeInt(bytes.length + 1);
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+
+
+    private static class Decoder {
+
+        private final byte[] in;
+        private int position;
+        private final int end;
+        private final List<WorkerTO> workers = new ArrayList<WorkerTO>();
+        private final List<ModelChainInfoTO> chains = new ArrayList<ModelChainInfoTO>();
+
+
+        Decoder(byte[] in, int offset, int end) {
+            this.in = in;
+            this.position = offset;
+            this.end = end;
+        }
+
+
+        Object readMessage() throws IOException {
+            int version = readByte();
+            if ((version < 1) || (version > VERSION))
+                throw new IOException("Unsupported message version: " + version);
+            Object result = readObject();
+            if (position != end)
+                throw new IOException((end - position) + " bytes left after message");
+            return result;
+        }
+
+
+        private Object readObject() throws IOException {
+            int type = readByte();
+            switch (type) {
+                case NULL:
+                    return null;
+                case JOB:
+                    return readJob();
+                case WORKER:
+                    return readWorker();
+                case WORKER_REFERENCE:
+                    return reference(workers, readInt());
+                case CHAIN:
+                    return readChain();
+                case CHAIN_REFERENCE:
+                    return reference(chains, readInt());
+                case JOB_ADD_RESULT:
+                    return readJobAddResult();
+                case LIST:
+                    int size = readInt();
+                    List<Object> list = new ArrayList<Object>(Math.min(size, end - position));
+                    for (int i = 0; i < size; i++)
+                        list.add(readObject());
+                    return list;
+                default:
+                    throw new IOException("Unknown object type " + type + " at " + (position - 1));
+            }
+        }
+
+
+        private JobTO readJob() throws IOException {
+            JobTO job = new JobTO(readString());
+            job.setState(readEnum(JobState.values()));
+            job.setModelChain(readObject(ModelChainInfoTO.class));
+            job.setExperimentId(readNullableLong());
+            job.setAssignedToWorker(readObject(WorkerTO.class));
+            job.setLogUrl(readString());
+            job.setPriority(readEnum(JobPriority.values()));
+            job.setDeadlineInMillis(readNullableLong());
+            job.setSubmitter(readString());
+            int dependencyCount = readInt();
+            if (dependencyCount == 0) {
+                job.setDependencies(null);
+            } else {
+                List<String> dependencies = new ArrayList<String>();
+                for (int i = 1; i < dependencyCount; i++)
+                    dependencies.add(readString());
+                job.setDependencies(dependencies);
+            }
+            job.setSpeculativeCopyOf(readString());
+            return job;
+        }
+
+
+        private WorkerTO readWorker() throws IOException {
+            WorkerTO worker = new WorkerTO(readString());
+            if (worker.getId() != null)
+                workers.add(worker);
+            worker.setIp(readString());
+            worker.setState(readEnum(WorkerState.values()));
+            worker.setLastStateUpdateInMillis(readLong());
+            worker.setName(readString());
+            worker.setCapacity(readInt());
+            int chainCount = readInt();
+            ArrayList<ModelChainInfoTO> available = new ArrayList<ModelChainInfoTO>(Math.min(chainCount, end - position));
+            for (int i = 0; i < chainCount; i++)
+                available.add(readObject(ModelChainInfoTO.class));
+            worker.setAvailableModelChains(available);
+            return worker;
+        }
+
+
+        private ModelChainInfoTO readChain() throws IOException {
+            ModelChainInfoTO chain = new ModelChainInfoTO(readString());
+            if (chain.getId() != null)
+                chains.add(chain);
+            chain.setName(readString());
+            chain.setVersion(readString());
+            return chain;
+        }
+
+
+        private JobAddResultTO readJobAddResult() throws IOException {
+            JobAddResultTO result = new JobAddResultTO();
+            result.setJobId(readString());
+            result.setAdded(readByte() != 0);
+            result.setMessage(readString());
+            result.setJob(readObject(JobTO.class));
+            return result;
+        }
+
+
+        private <T> T readObject(Class<T> type) throws IOException {
+            Object value = readObject();
+            if ((value != null) && !type.isInstance(value))
+                throw new IOException("Expected " + type.getSimpleName() + " but found " + value.getClass().getSimpleName());
+            return type.cast(value);
+        }
+
+
+        private <T> T reference(List<T> table, int index) throws IOException {
+            if (index >= table.size())
+                throw new IOException("Reference to unknown object " + index);
+            return table.get(index);
+        }
+
+
+        private int readByte() throws IOException {
+            if (position >= end)
+                throw new IOException("Unexpected end of message");
+            return in[position++] & 0xFF;
+        }
+
+
+        private int readInt() throws IOException {
+            long value = readVarLong();
+            if ((value < 0) || (value > Integer.MAX_VALUE))
+                throw new IOException("Integer out of range: " + value);
+            return (int) value;
+        }
+
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Malformed variable length integer");
+        }
+
+
+        private long readLong() throws IOException {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+
+        private Long readNullableLong() throws IOException {
+            return (readByte() == 0) ? null : Long.valueOf(readLong());
+        }
+
+
+        private <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+            int ordinal = readInt();
+            if (ordinal == 0)
+                return null;
+            if (ordinal > values.length)
+                throw new IOException("Unknown constant " + (ordinal - 1) + " of " + values[0].getDeclaringClass().getSimpleName());
+            return values[ordinal - 1];
+        }
+
+
+        private String readString() throws IOException {
+            int length = readInt();
+            if (length == 0)
+                return null;
+            length--;
+            if (length > end - position)
+                throw new IOException("Unexpected end of message");
+            String value = new String(in, position, length, "UTF-8");
+            position += length;
+            return value;
+        }
+    }
+
+}
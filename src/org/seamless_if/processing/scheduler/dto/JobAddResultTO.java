@@ -0,0 +1,107 @@
+/*
+ * seamframe: JobAddResultTO.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler.dto;
+
+import org.dom4j.Element;
+import org.dom4j.dom.DOMElement;
+import org.seamless_if.processing.scheduler.JobAddResult;
+
+/**
+ * Transfer Object for exchanging the result of adding a job in a batch.
+ */
+public class JobAddResultTO {
+
+    private String jobId;
+    private boolean added;
+    private String message;
+    private JobTO job;
+
+
+    public JobAddResultTO() {
+    }
+
+
+    public JobAddResultTO(JobAddResult result) {
+        setJobId(result.getJobId());
+        setAdded(result.isAdded());
+        setMessage(result.getMessage());
+        if (result.getJob() != null)
+            setJob(new JobTO(result.getJob()));
+        else
+            setJob(null);
+    }
+
+
+    public String getJobId() {
+        return jobId;
+    }
+
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+
+    public boolean isAdded() {
+        return added;
+    }
+
+
+    public void setAdded(boolean added) {
+        this.added = added;
+    }
+
+
+    public String getMessage() {
+        return message;
+    }
+
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+
+    public JobTO getJob() {
+        return job;
+    }
+
+
+    public void setJob(JobTO job) {
+        this.job = job;
+    }
+
+
+    public Element toXml() {
+        Element root = new DOMElement("jobAddResult");
+        if (jobId != null)
+            root.addAttribute("jobId", jobId);
+        root.add(new DOMElement("added").addText(String.valueOf(added)));
+        if (message != null)
+            root.add(new DOMElement("message").addText(message));
+        if (job != null)
+            root.add(job.toXml());
+        return root;
+    }
+}
@@ -23,9 +23,13 @@
 
 package org.seamless_if.processing.scheduler.dto;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import org.dom4j.Element;
 import org.dom4j.dom.DOMElement;
 import org.seamless_if.processing.scheduler.Job;
+import org.seamless_if.processing.scheduler.JobPriority;
 import org.seamless_if.processing.scheduler.JobState;
 
 /**
@@ -42,6 +46,11 @@ public class JobTO {
     private Long experimentId;
     private WorkerTO assignedToWorker;
     private String logUrl;
+    private JobPriority priority;
+    private Long deadlineInMillis;
+    private String submitter;
+    private List<String> dependencies;
+    private String speculativeCopyOf;
 
     public JobTO() {
         this(new Job());
@@ -62,6 +71,20 @@ public class JobTO {
         else
         	setAssignedToWorker(null);
         setLogUrl(obj.getLogUrl());
+        setPriority(obj.getPriority());
+        setDeadlineInMillis(obj.getDeadlineInMillis());
+        setSubmitter(obj.getSubmitter());
+        setDependencies(new ArrayList<String>(obj.getDependencies()));
+        setSpeculativeCopyOf(obj.getSpeculativeCopyOf());
+    }
+
+
+    /**
+     * Creates an empty Transfer Object with only the id set, for the
+     * BinaryCodec to fill in.
+     */
+    JobTO(String id) {
+        setId(id);
     }
 
 
@@ -76,6 +99,11 @@ public class JobTO {
         else
         	obj.setAssignedToWorker(null);
         obj.setLogUrl(getLogUrl());
+        obj.setPriority(getPriority());
+        obj.setDeadlineInMillis(getDeadlineInMillis());
+        obj.setSubmitter(getSubmitter());
+        obj.setDependencies(getDependencies());
+        obj.setSpeculativeCopyOf(getSpeculativeCopyOf());
         return obj;
     }
 
@@ -140,6 +168,62 @@ public class JobTO {
     }
 
 
+    public JobPriority getPriority() {
+        return priority;
+    }
+
+
+    public void setPriority(JobPriority priority) {
+        this.priority = priority;
+    }
+
+
+    public Long getDeadlineInMillis() {
+        return deadlineInMillis;
+    }
+
+
+    public void setDeadlineInMillis(Long deadlineInMillis) {
+        this.deadlineInMillis = deadlineInMillis;
+    }
+
+
+    public String getSubmitter() {
+        return submitter;
+    }
+
+
+    public void setSubmitter(String submitter) {
+        this.submitter = submitter;
+    }
+
+
+    /**
+     * @return ids of the jobs that must be completed before this job
+     */
+    public List<String> getDependencies() {
+        return dependencies;
+    }
+
+
+    public void setDependencies(List<String> dependencies) {
+        this.dependencies = dependencies;
+    }
+
+
+    /**
+     * @return id of the job this job is a speculative copy of, or null
+     */
+    public String getSpeculativeCopyOf() {
+        return speculativeCopyOf;
+    }
+
+
+    public void setSpeculativeCopyOf(String speculativeCopyOf) {
+        this.speculativeCopyOf = speculativeCopyOf;
+    }
+
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -167,6 +251,20 @@ public class JobTO {
 
         if (experimentId != null)
             root.add(new DOMElement("experimentId").addText(experimentId.toString()));
+        if (priority != null)
+            root.add(new DOMElement("priority").addText(priority.toString()));
+        if (deadlineInMillis != null)
+            root.add(new DOMElement("deadlineInMillis").addText(deadlineInMillis.toString()));
+        if (submitter != null)
+            root.add(new DOMElement("submitter").addText(submitter));
+        if (speculativeCopyOf != null)
+            root.add(new DOMElement("speculativeCopyOf").addText(speculativeCopyOf));
+        if ((dependencies != null) && !dependencies.isEmpty()) {
+            Element deps = new DOMElement("dependencies");
+            for (String jobId : dependencies)
+                deps.add(new DOMElement("dependency").addText(jobId));
+            root.add(deps);
+        }
         if (modelChain != null)
         	root.add(modelChain.toXml());
         if (assignedToWorker != null)
@@ -54,6 +54,15 @@ public class ModelChainInfoTO {
     }
 
 
+    /**
+     * Creates an empty Transfer Object with only the id set, for the
+     * BinaryCodec to fill in.
+     */
+    ModelChainInfoTO(String id) {
+        setId(id);
+    }
+
+
     public ModelChainInfo toModelChainInfo() {
         ModelChainInfo obj = new ModelChainInfo();
         obj.setId(getId());
@@ -44,6 +44,7 @@ public class WorkerTO {
     private WorkerState state;
     private long lastStateUpdateInMillis;
     private String name;
+    private int capacity;
     private ArrayList<ModelChainInfoTO> availableModelChains;
 
 
@@ -62,6 +63,7 @@ public class WorkerTO {
         setState(obj.getState());
         setLastStateUpdateInMillis(obj.getLastStateUpdateInMillis());
         setName(obj.getName());
+        setCapacity(obj.getCapacity());
 
         availableModelChains = new ArrayList<ModelChainInfoTO>();
         availableModelChains.clear();
@@ -71,6 +73,16 @@ public class WorkerTO {
     }
 
 
+    /**
+     * Creates an empty Transfer Object with only the id set, for the
+     * BinaryCodec to fill in.
+     */
+    WorkerTO(String id) {
+        setId(id);
+        availableModelChains = new ArrayList<ModelChainInfoTO>();
+    }
+
+
     public WorkerInfo toWorker() {
         WorkerInfo obj = new WorkerInfo();
         obj.setId(getId());
@@ -78,6 +90,7 @@ public class WorkerTO {
         obj.setState(getState());
         obj.setLastStateUpdateInMillis(getLastStateUpdateInMillis());
         obj.setName(getName());
+        obj.setCapacity(getCapacity());
 
         for (ModelChainInfoTO mc : getAvailableModelChains()) {
             obj.addAvailableModelChain(mc.toModelChainInfo());
@@ -126,6 +139,16 @@ public class WorkerTO {
     }
 
 
+    public int getCapacity() {
+        return capacity;
+    }
+
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+
     public String getId() {
         return id;
     }
@@ -188,6 +211,7 @@ public class WorkerTO {
         root.add(new DOMElement("state").addText(state.toString()));
         root.add(new DOMElement("ip").addText(ip));
         root.add(new DOMElement("name").addText(name));
+        root.add(new DOMElement("capacity").addText(String.valueOf(capacity)));
         Element chains = new DOMElement("availableModelChains");
         for (ModelChainInfoTO chain : availableModelChains)
         	chains.add(chain.toXml());
@@ -35,11 +35,24 @@
 package org.seamless_if.processing.sofa;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import nl.alterra.openmi.sdk.backbone.Argument;
 import nl.alterra.openmi.sdk.backbone.Arguments;
 import nl.alterra.openmi.sdk.backbone.LinkableComponent;
+import nl.alterra.openmi.sdk.backbone.TimeStamp;
 import nl.alterra.openmi.sdk.configuration.Composition;
 import nl.alterra.openmi.sdk.configuration.SystemDeployer;
 import nl.alterra.openmi.sdk.configuration.Trigger;
@@ -47,6 +60,7 @@ import nl.alterra.openmi.sdk.extensions.IArguments;
 
 import org.apache.log4j.Logger;
 import org.openmi.standard.IEvent;
+import org.openmi.standard.ILink;
 import org.openmi.standard.ILinkableComponent;
 import org.openmi.standard.IListener;
 import org.openmi.standard.IEvent.EventType;
@@ -79,6 +93,30 @@ public class SeamChain implements IListener {
     protected Composition composition;
 
 
+    /**
+     * Time saved by retrieving inputs in parallel during the last run.
+     */
+    private volatile long inputTimeSavedInMillis;
+
+
+    /**
+     * Value comparisons of inputs avoided by fingerprints during the last run.
+     */
+    private volatile long avoidedInputComparisonCount;
+
+
+    /**
+     * Whether independent triggers are pulled concurrently.
+     */
+    private boolean parallelExecution;
+
+
+    /**
+     * Triggers being pulled in parallel, null when not executing in parallel.
+     */
+    private volatile ParallelRun currentRun;
+
+
     /**
      * Logger for the instance.
      */
@@ -241,6 +279,18 @@ public class SeamChain implements IListener {
      * @param triggers the triggers
      */
     public void execute(ArrayList<Trigger> triggers) {
+        for (SeamLinkableComponent component : getSeamComponents()) {
+            component.resetInputTimeSaved();
+            component.resetInputComparisonCounts();
+        }
+
+        List<List<Trigger>> groups = null;
+        if (parallelExecution && (triggers.size() > 1)) {
+            groups = partitionTriggers(triggers);
+            if (groups.size() > 1)
+                logger.debug("Executing " + groups.size() + " independent groups of triggers in parallel");
+        }
+
         SystemDeployer deployer;
         deployer = new SystemDeployer("deployer");
         deployer.setComposition(composition);
@@ -249,8 +299,319 @@ public class SeamChain implements IListener {
         deployer.setBlocking(true);
 
         subscribeListeners();
-        deployer.start();
-        unsubscribeListeners();
+        try {
+            if ((groups == null) || (groups.size() < 2))
+                deployer.start();
+            else
+                executeInParallel(groups, deployer);
+        } finally {
+            unsubscribeListeners();
+        }
+
+        long saved = 0;
+        for (SeamLinkableComponent component : getSeamComponents())
+            saved += component.getInputTimeSavedInMillis();
+        inputTimeSavedInMillis = saved;
+        if (saved > 0)
+            logger.debug("Retrieving inputs in parallel saved " + saved + " ms");
+
+        long avoided = 0;
+        long compared = 0;
+        for (SeamLinkableComponent component : getSeamComponents()) {
+            avoided += component.getAvoidedInputComparisonCount();
+            compared += component.getInputComparisonCount();
+        }
+        avoidedInputComparisonCount = avoided;
+        logger.debug("Detected input changes with " + avoided + " fingerprint and " + compared + " value comparisons");
+    }
+
+
+    /**
+     * Pulls the groups of triggers concurrently, each group in a task of its
+     * own, with the triggers within a group pulled one after another. Follows
+     * the same sequence as a single time step run of the blocking deployer:
+     * the composition is prepared, the triggers are pulled for the time the
+     * deployer would pull them for, and the composition is finished once all
+     * groups have stopped. The first error raised by a group (e.g. by an
+     * abort) cancels the other groups, which stop before pulling their next
+     * trigger, and is rethrown after the composition has been finished.
+     *
+     * @param groups   of triggers that do not share any components
+     * @param deployer that would run the triggers one after another
+     */
+    private void executeInParallel(List<List<Trigger>> groups, SystemDeployer deployer) {
+        composition.prepare();
+
+        ParallelRun run = new ParallelRun(getPullTime(deployer), groups.size());
+        currentRun = run;
+        try {
+            for (List<Trigger> group : groups)
+                run.submit(group);
+            run.await();
+        } finally {
+            currentRun = null;
+        }
+
+        composition.finish();
+        run.rethrowFirstError();
+    }
+
+
+    /**
+     * Returns the time the deployer pulls its triggers for in its first time
+     * step, see SystemDeployer.run().
+     */
+    private static TimeStamp getPullTime(SystemDeployer deployer) {
+        return new TimeStamp(deployer.getStartTime() + deployer.getTimeStep() / (24 * 3600));
+    }
+
+
+    /**
+     * State of a parallel execution of groups of triggers.
+     */
+    private class ParallelRun {
+        private final TimeStamp time;
+        private final CountDownLatch stopped;
+        private final List<Future<?>> futures = new CopyOnWriteArrayList<Future<?>>();
+        private final List<RuntimeException> errors = new ArrayList<RuntimeException>();
+        private volatile boolean cancelled;
+
+        ParallelRun(TimeStamp time, int groupCount) {
+            this.time = time;
+            this.stopped = new CountDownLatch(groupCount);
+        }
+
+        void submit(final List<Trigger> group) {
+            FutureTask<Object> task = new FutureTask<Object>(new Runnable() {
+                public void run() {
+                    pullTriggers(group);
+                }
+            }, null) {
+                @Override
+                public void run() {
+                    // counts down for tasks cancelled before they started too
+                    try {
+                        super.run();
+                    } finally {
+                        stopped.countDown();
+                    }
+                }
+            };
+            futures.add(task);
+            if (cancelled)
+                task.cancel(false);
+            GroupExecutorHolder.EXECUTOR.execute(task);
+        }
+
+        private void pullTriggers(List<Trigger> group) {
+            try {
+                for (Trigger trigger : group) {
+                    if (cancelled || Thread.currentThread().isInterrupted())
+                        return;
+                    composition.pull(trigger, time);
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Records the error and cancels all groups, unless the run was
+         * cancelled already, in which case the error is a consequence of
+         * the cancellation and dropped.
+         */
+        void fail(RuntimeException e) {
+            synchronized (errors) {
+                if (cancelled)
+                    return;
+                errors.add(e);
+                cancelled = true;
+            }
+            for (Future<?> future : futures)
+                future.cancel(true);
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    stopped.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // stop the groups, but wait for them before finishing
+                    interrupted = true;
+                    fail(new SeamException("Interrupted while executing model chain " + composition.getID()));
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        void rethrowFirstError() {
+            synchronized (errors) {
+                if (!errors.isEmpty())
+                    throw errors.get(0);
+            }
+        }
+    }
+
+
+    /**
+     * Executor for pulling groups of triggers in parallel, shared by all
+     * model chains and created when first used. Its threads do not keep the
+     * JVM alive.
+     */
+    private static class GroupExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "SeamTriggers-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+
+    /**
+     * Partitions the triggers into groups that can be executed independently.
+     * Two triggers end up in the same group when the subgraphs of components
+     * they pull from (following the links of the composition upstream) share
+     * at least one component. The order of the triggers is kept within each
+     * group, and the groups are ordered by their first trigger.
+     *
+     * @param triggers to partition
+     * @return list of groups of triggers
+     */
+    protected List<List<Trigger>> partitionTriggers(List<Trigger> triggers) {
+        // sources of each component, following links from target to source
+        Map<ILinkableComponent, List<ILinkableComponent>> sources = new HashMap<ILinkableComponent, List<ILinkableComponent>>();
+        for (ILink link : composition.getLinks()) {
+            List<ILinkableComponent> list = sources.get(link.getTargetComponent());
+            if (list == null) {
+                list = new ArrayList<ILinkableComponent>();
+                sources.put(link.getTargetComponent(), list);
+            }
+            list.add(link.getSourceComponent());
+        }
+
+        // union-find over the components, keyed on the trigger owning them first
+        Map<ILinkableComponent, Trigger> owners = new HashMap<ILinkableComponent, Trigger>();
+        Map<Trigger, Trigger> parents = new HashMap<Trigger, Trigger>();
+        for (Trigger trigger : triggers) {
+            parents.put(trigger, trigger);
+
+            LinkedList<ILinkableComponent> pending = new LinkedList<ILinkableComponent>();
+            List<ILinkableComponent> visited = new ArrayList<ILinkableComponent>();
+            pending.add(trigger);
+            while (!pending.isEmpty()) {
+                ILinkableComponent component = pending.removeFirst();
+                if (visited.contains(component))
+                    continue;
+                visited.add(component);
+
+                Trigger owner = owners.get(component);
+                if (owner == null)
+                    owners.put(component, trigger);
+                else
+                    parents.put(findRoot(parents, owner), findRoot(parents, trigger));
+
+                List<ILinkableComponent> list = sources.get(component);
+                if (list != null)
+                    pending.addAll(list);
+            }
+        }
+
+        Map<Trigger, List<Trigger>> groups = new LinkedHashMap<Trigger, List<Trigger>>();
+        for (Trigger trigger : triggers) {
+            Trigger root = findRoot(parents, trigger);
+            List<Trigger> group = groups.get(root);
+            if (group == null) {
+                group = new ArrayList<Trigger>();
+                groups.put(root, group);
+            }
+            group.add(trigger);
+        }
+        return new ArrayList<List<Trigger>>(groups.values());
+    }
+
+
+    private static Trigger findRoot(Map<Trigger, Trigger> parents, Trigger trigger) {
+        Trigger root = trigger;
+        while (parents.get(root) != root)
+            root = parents.get(root);
+        return root;
+    }
+
+
+    /**
+     * Sets whether the triggers of the model chain are executed in parallel.
+     * When enabled, triggers that do not share any components upstream (see
+     * partitionTriggers) are pulled concurrently, each group in its own
+     * thread. Components shared by triggers are always pulled from a single
+     * thread. By default the triggers are executed one after another.
+     *
+     * @param parallelExecution true to execute independent triggers in parallel
+     */
+    public void setParallelExecution(boolean parallelExecution) {
+        this.parallelExecution = parallelExecution;
+    }
+
+
+    /**
+     * Returns whether independent triggers are executed in parallel.
+     *
+     * @return true when executing independent triggers in parallel
+     */
+    public boolean isParallelExecution() {
+        return parallelExecution;
+    }
+
+
+    /**
+     * Sets for all components in the model chain whether they retrieve inputs
+     * from different components in parallel, see
+     * SeamLinkableComponent.setParallelInputs.
+     *
+     * @param parallelInputs true to retrieve inputs in parallel
+     */
+    public void setParallelInputs(boolean parallelInputs) {
+        for (SeamLinkableComponent component : getSeamComponents())
+            component.setParallelInputs(parallelInputs);
+    }
+
+
+    /**
+     * Returns the time the components saved by retrieving inputs in parallel
+     * during the last run of the model chain.
+     *
+     * @return time saved in milliseconds
+     */
+    public long getInputTimeSavedInMillis() {
+        return inputTimeSavedInMillis;
+    }
+
+
+    /**
+     * Returns the number of times the components found an input unchanged
+     * by its fingerprint during the last run of the model chain, instead of
+     * comparing all its values.
+     *
+     * @return number of avoided value comparisons
+     */
+    public long getAvoidedInputComparisonCount() {
+        return avoidedInputComparisonCount;
+    }
+
+
+    private List<SeamLinkableComponent> getSeamComponents() {
+        List<SeamLinkableComponent> components = new ArrayList<SeamLinkableComponent>();
+        for (ILinkableComponent component : composition.getLinkableComponents()) {
+            if (component instanceof SeamLinkableComponent)
+                components.add((SeamLinkableComponent) component);
+        }
+        return components;
     }
 
 
@@ -313,7 +674,9 @@ public class SeamChain implements IListener {
     }
 
     /**
-     * Sends an abort signal to the components in the chain.
+     * Sends an abort signal to the components in the chain. When triggers
+     * are pulled in parallel the groups are cancelled instead, and the
+     * components are finished once all groups have stopped.
      */
     public void abort() {
 //      This below with the events will not work, as the events are never received by the components, 
@@ -321,11 +684,19 @@ public class SeamChain implements IListener {
 //		Event event = new Event();
 //		event.setType(IEvent.EventType.Other);
 //		event.setDescription("ABORT");
+        SeamException error = new SeamException("Execution of experiment aborted");
+        ParallelRun run = currentRun;
+        if (run != null) {
+            // other groups may still be calculating, the components are
+            // finished by executeInParallel once they have stopped
+            run.fail(error);
+            throw error;
+        }
         ILinkableComponent[] linkableComponents = this.getComposition().getLinkableComponents();
         for (ILinkableComponent linkableComponent : linkableComponents) {
             linkableComponent.finish();
         }
-        throw new SeamException("Execution of experiment aborted");
+        throw error;
     }
 
     /* (non-Javadoc)
@@ -36,11 +36,26 @@ package org.seamless_if.processing.sofa;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import nl.alterra.openmi.sdk.backbone.Argument;
 import nl.alterra.openmi.sdk.backbone.Arguments;
@@ -56,6 +71,7 @@ import org.openmi.standard.IElementSet;
 import org.openmi.standard.IEvent;
 import org.openmi.standard.IInputExchangeItem;
 import org.openmi.standard.ILink;
+import org.openmi.standard.ILinkableComponent;
 import org.openmi.standard.IOutputExchangeItem;
 import org.openmi.standard.ITime;
 import org.openmi.standard.IValueSet;
@@ -93,11 +109,14 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
     private String svnPasswd;
     //	boolean specifying whether zip files should be made or not
     private boolean makeZip;
+    //	boolean specifying whether inputs from different components are retrieved in parallel
+    private volatile boolean parallelInputs;
 
     public static final Argument SVNURL = new Argument("SVNURL", null, false, "Url to svn repository");
     public static final Argument SVNUSERNAME = new Argument("SVNUSERNAME", null, false, "svn repository username");
     public static final Argument SVNPASSWD = new Argument("SVNPASSWD", null, false, "svn repository password");
     public static final Argument ZIPMODELIO = new Argument("ZIPMODELIO", "", false, "Boolean: if true makes zip files, one per farmtype");
+    public static final Argument PARALLELINPUTS = new Argument("PARALLELINPUTS", "", false, "Boolean: if true retrieves inputs from different components in parallel");
 
     protected final Logger logger = Logger.getLogger(this.getClass());
 
@@ -106,38 +125,6 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
      */
     public static final String EXPERIMENT = "org.seamless_ip.ontologies.seamproj.Experiment";
 
-    /**
-     * Status enumeration, used internally to track the state of the linkable
-     * component.
-     */
-    private enum Status {
-        /**
-         * The component is created but not initialised.
-         */
-        New,
-
-        /**
-         * The component is created and initialised, but not computed.
-         */
-        Initialized,
-
-        /**
-         * Component computations have finished.
-         */
-        Computed,
-
-        /**
-         * Component inputs have changed, and must be recomputed.
-         */
-        Invalidated
-    }
-
-    /**
-     * Current Status of the linkable component. Used to track when e.g. inputs
-     * have changed and calculation of the model is needed.
-     */
-    private Status status;
-
     /**
      * Access to DomainManager singleton. It is initialised in the class
      * constructor and can be used to retrieve information from the database and
@@ -169,6 +156,56 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
 
     private Long experimentID;
 
+    /**
+     * Input types that each output type depends on, as declared by the
+     * component. When nothing is declared all outputs depend on all inputs
+     * and are always calculated together, otherwise outputs without a
+     * declaration depend on all inputs.
+     */
+    private final Map<Class<?>, Set<Class<?>>> outputDependencies = new HashMap<Class<?>, Set<Class<?>>>();
+
+    /**
+     * Output types that have been calculated for the current inputs.
+     */
+    private final Set<Class<?>> computedOutputs = new HashSet<Class<?>>();
+
+    /**
+     * Fingerprints of the current output values, per output type. Two equal
+     * fingerprints guarantee equal values; zero means unknown.
+     */
+    private final Map<Class<?>, Long> outputFingerprints = new HashMap<Class<?>, Long>();
+
+    /**
+     * Fingerprints of the output values the current inputs were taken from,
+     * per input type.
+     */
+    private final Map<Class<?>, Long> inputFingerprints = new HashMap<Class<?>, Long>();
+
+    /**
+     * Number of input changes detected by comparing fingerprints, and by
+     * comparing the values themselves.
+     */
+    private final AtomicLong fingerprintComparisons = new AtomicLong();
+    private final AtomicLong deepComparisons = new AtomicLong();
+
+    /**
+     * Source of unique version fingerprints, shared by all components.
+     */
+    private static final AtomicLong FINGERPRINT_VERSION = new AtomicLong();
+
+    /**
+     * Serialises the calculations of the component, which can be requested
+     * by several components at the same time when inputs are retrieved in
+     * parallel.
+     */
+    private final Object computeLock = new Object();
+
+    /**
+     * Time saved by retrieving inputs in parallel, compared to retrieving
+     * them one after the other.
+     */
+    private final AtomicLong inputTimeSavedInNanos = new AtomicLong();
+
     /**
      * This is the main constructor of a Seamless Linkable Component. In the
      * constructor you should register the model interface using the
@@ -181,7 +218,6 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
      */
     public SeamLinkableComponent(String ID) {
         super(ID);
-        this.status = Status.New;
         Arguments arguments = new Arguments();
         arguments.add(SVNURL);
         arguments.add(SVNUSERNAME);
@@ -307,66 +343,272 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
     }
 
 
+    /**
+     * Declares the input types that the output of the specified type is
+     * calculated from. Once a component declares dependencies, a change of
+     * an input only invalidates the outputs depending on it, and a request
+     * for an output recalculates that output together with the other
+     * invalidated outputs, which are all cleared before the calculation.
+     * The executeHook methods may produce only the requested output or all
+     * outputs; values added to outputs that are still up to date are
+     * discarded. Outputs without a declaration still depend on all inputs.
+     *
+     * @param outputType type of a registered output exchange item
+     * @param inputTypes types of the inputs the output depends on
+     */
+    protected void declareOutputDependencies(Class<?> outputType, Class<?>... inputTypes) {
+        if (!outputs.containsKey(outputType))
+            throw new SeamException(getID() + " has no output for type " + outputType.getSimpleName());
+
+        Set<Class<?>> dependencies = new LinkedHashSet<Class<?>>();
+        for (Class<?> inputType : inputTypes) {
+            if (!inputs.containsKey(inputType))
+                throw new SeamException(getID() + " has no input for type " + inputType.getSimpleName());
+            dependencies.add(inputType);
+        }
+        outputDependencies.put(outputType, dependencies);
+    }
+
+
     @SuppressWarnings("unchecked")
     @Override
     public IValueSet getValuesHook(ITime time, ILink link) {
         logger.debug(getID().concat(" getValues called through link ".concat(link.getID())));
 
-        // check all inputs for the component
-        for (IInputExchangeItem item : inputExchangeItems) {
-            if (item instanceof SeamInputExchangeItem) {
-                // find the link for the input
-                SeamInputExchangeItem seamitem = (SeamInputExchangeItem) item;
-                Class type = seamitem.getOntologyType();
-                ILink ilink = this.findLinkForInputExchangeItem(item);
+        synchronized (computeLock) {
+            // check all inputs for the component
+            List<InputRequest> requests = new ArrayList<InputRequest>();
+            for (IInputExchangeItem item : inputExchangeItems) {
+                if (item instanceof SeamInputExchangeItem) {
+                    // find the link for the input
+                    ILink ilink = this.findLinkForInputExchangeItem(item);
+                    if (ilink == null)
+                        logger.error(getID() + " missing link for input " + item.toString());
+                    else
+                        requests.add(new InputRequest((SeamInputExchangeItem<?>) item, ilink));
+                }
+            }
+
+            if (parallelInputs)
+                retrieveInputsInParallel(time, requests);
+            else {
+                for (InputRequest request : requests)
+                    request.retrieve(time);
+            }
 
-                if (ilink == null) {
-                    logger.error(getID() + " missing link for input " + item.toString());
-                } else {
-                    // get the cached (previous input) values
-                    ValueSet values = inputs.get(type);
+            for (InputRequest request : requests) {
+                Class<?> type = request.item.getOntologyType();
 
-                    // get the new input values through the link
-                    ValueSet result = (ValueSet) ilink.getSourceComponent().getValues(time, ilink.getID());
+                // get the cached (previous input) values
+                ValueSet<?> values = inputs.get(type);
 
-                    if (result == null) {
-                        logger.warn(getID() + " input " + item.toString() + " received NULL, replaced by empty ValueSet!");
-                        result = new ValueSet();
-                    }
+                // get the new input values through the link
+                ValueSet<?> result = request.result;
 
-                    // Check if anything has changed
-                    // FIXME: this doesn't work due to problems with experiment component-fssim/capri component:
-                    // empty data statements are received in CAPRI/FSSIM component, although they are full when
-                    // leaving the experiment component (weird stuff). With the lines below, this doesn't work:
-                    // it invalidates the model runs as the inputs and outputs of the models somehow are not
-                    // equal, e.g. not referring to the same object.
+                long fingerprint = request.fingerprint;
+                if (result == null) {
+                    logger.warn(getID() + " input " + request.item.toString() + " received NULL, replaced by empty ValueSet!");
+                    result = new ValueSet<Object>();
+                    fingerprint = 0;
+                }
+
+                // Check if anything has changed
+                // FIXME: this doesn't work due to problems with experiment component-fssim/capri component:
+                // empty data statements are received in CAPRI/FSSIM component, although they are full when
+                // leaving the experiment component (weird stuff). With the lines below, this doesn't work:
+                // it invalidates the model runs as the inputs and outputs of the models somehow are not
+                // equal, e.g. not referring to the same object.
+                if (!sameFingerprint(inputFingerprints.get(type), fingerprint)) {
+                    deepComparisons.incrementAndGet();
                     if (!values.equals(result)) {
+                        // keep a copy, the source refills its outputs in place
                         inputs.remove(type);
-                        inputs.put(type, result);
-                        this.status = Status.Invalidated;
+                        inputs.put(type, new ValueSet<Object>(result));
+                        invalidateOutputsDependingOn(type);
                     }
-                }
+                } else
+                    fingerprintComparisons.incrementAndGet();
+
+                if (fingerprint != 0)
+                    inputFingerprints.put(type, fingerprint);
+                else
+                    inputFingerprints.remove(type);
             }
+
+            // get the type of output requested
+            ILinkEx olink = (ILinkEx) link;
+            SeamOutputExchangeItem seamout = (SeamOutputExchangeItem) olink.getSourceExchangeItem();
+            Class type = seamout.getOntologyType();
+
+            // when inputs have changed or output is not available, run the model again
+            if (!computedOutputs.contains(type) || (outputs.get(type).size() == 0)) {
+                // clear the outputs that are recalculated: all of them when no
+                // dependencies are declared, otherwise the requested one and
+                // the ones invalidated by changed inputs
+                Set<Class<?>> recalculated = new HashSet<Class<?>>();
+                Map<Class<?>, Integer> upToDate = new HashMap<Class<?>, Integer>();
+                for (Class<?> output : outputs.keySet()) {
+                    ValueSet<?> values = outputs.get(output);
+                    if (outputDependencies.isEmpty() || (output == type) || !computedOutputs.contains(output)) {
+                        values.clear();
+                        outputFingerprints.remove(output);
+                        recalculated.add(output);
+                    } else
+                        upToDate.put(output, values.size());
+                }
+
+                // perform the calculations
+                execute(time, link);
+
+                // drop what the hooks added to outputs that were up to date
+                for (Map.Entry<Class<?>, Integer> entry : upToDate.entrySet()) {
+                    ValueSet<?> values = outputs.get(entry.getKey());
+                    if (values.size() > entry.getValue())
+                        values.subList(entry.getValue(), values.size()).clear();
+                }
+                computedOutputs.addAll(recalculated);
+
+                // stamp the recalculated outputs the hooks did not stamp themselves
+                for (Class<?> computed : recalculated) {
+                    if (!outputFingerprints.containsKey(computed))
+                        outputFingerprints.put(computed, FINGERPRINT_VERSION.incrementAndGet());
+                }
+            } else
+                logger.debug(getID() + " output " + type.getSimpleName() + " is up to date");
+
+            // return the values that were requested
+            logger.info(getID() + " returns " + outputs.get(type).size() + " values");
+            return outputs.get(type);
+        }
+    }
+
+
+    private static boolean sameFingerprint(Long previous, long fingerprint) {
+        return (fingerprint != 0) && (previous != null) && (previous.longValue() == fingerprint);
+    }
+
+
+    /**
+     * Stamps the output of the specified type with a fingerprint of its
+     * values, e.g. a hash of their content or a version of the data they
+     * were read from. Can be called from the executeHook methods; outputs
+     * that are not stamped get a new unique version after each calculation.
+     * Components receiving the output skip comparing the values themselves
+     * when the fingerprint is unchanged, so equal fingerprints must only be
+     * used for equal values.
+     *
+     * @param outputType  type of a registered output exchange item
+     * @param fingerprint of the values, not zero
+     */
+    protected void setOutputFingerprint(Class<?> outputType, long fingerprint) {
+        if (fingerprint == 0)
+            throw new SeamException(getID() + " can not use zero as fingerprint");
+        synchronized (computeLock) {
+            outputFingerprints.put(outputType, fingerprint);
+        }
+    }
+
+
+    /**
+     * Returns the fingerprint of the current values of the output of the
+     * specified type.
+     *
+     * @param outputType type of a registered output exchange item
+     * @return the fingerprint, or zero when the output was not calculated
+     */
+    public long getOutputFingerprint(Class<?> outputType) {
+        synchronized (computeLock) {
+            Long fingerprint = outputFingerprints.get(outputType);
+            return (fingerprint == null) ? 0 : fingerprint.longValue();
         }
+    }
 
-        // get the type of output requested
-        ILinkEx olink = (ILinkEx) link;
-        SeamOutputExchangeItem seamout = (SeamOutputExchangeItem) olink.getSourceExchangeItem();
-        Class type = seamout.getOntologyType();
 
-        // when inputs have changed or output is not available, run the model again
-        if ((this.status != Status.Computed) || (outputs.get(type).size() == 0)) {
-            // clear all cached outputs
-            for (ValueSet v : outputs.values())
-                v.clear();
+    /**
+     * Marks the outputs depending on the input of the specified type as no
+     * longer calculated, so they are recalculated when requested next.
+     *
+     * @param inputType type of the input that has changed
+     */
+    private void invalidateOutputsDependingOn(Class<?> inputType) {
+        Iterator<Class<?>> iterator = computedOutputs.iterator();
+        while (iterator.hasNext()) {
+            Set<Class<?>> dependencies = outputDependencies.get(iterator.next());
+            if ((dependencies == null) || dependencies.contains(inputType))
+                iterator.remove();
+        }
+    }
+
 
-            // perform the calculations
-            execute(time, link);
+    /**
+     * Retrieves the inputs, with the inputs from each source component in a
+     * separate task. Inputs from the same source component are retrieved one
+     * after the other, so the component calculates once and returns its
+     * cached outputs for the other inputs. The calling thread runs the first
+     * task, and any task that did not start yet when it is needed, so tasks
+     * waiting for nested tasks can not exhaust the executor.
+     *
+     * @param time for which the inputs are requested
+     * @param requests inputs to retrieve
+     */
+    private void retrieveInputsInParallel(final ITime time, List<InputRequest> requests) {
+        Map<ILinkableComponent, List<InputRequest>> bySource = new LinkedHashMap<ILinkableComponent, List<InputRequest>>();
+        for (InputRequest request : requests) {
+            List<InputRequest> group = bySource.get(request.link.getSourceComponent());
+            if (group == null) {
+                group = new ArrayList<InputRequest>();
+                bySource.put(request.link.getSourceComponent(), group);
+            }
+            group.add(request);
+        }
+        if (bySource.size() < 2) {
+            for (InputRequest request : requests)
+                request.retrieve(time);
+            return;
         }
 
-        // return the values that were requested
-        logger.info(getID() + " returns " + outputs.get(type).size() + " values");
-        return outputs.get(type);
+        long start = System.nanoTime();
+        List<FutureTask<Long>> tasks = new ArrayList<FutureTask<Long>>();
+        for (final List<InputRequest> group : bySource.values()) {
+            tasks.add(new FutureTask<Long>(new Callable<Long>() {
+                public Long call() {
+                    long groupStart = System.nanoTime();
+                    for (InputRequest request : group)
+                        request.retrieve(time);
+                    return System.nanoTime() - groupStart;
+                }
+            }));
+        }
+        ExecutorService executor = InputExecutorHolder.EXECUTOR;
+        for (int i = 1; i < tasks.size(); i++)
+            executor.execute(tasks.get(i));
+
+        long sequentialNanos = 0;
+        RuntimeException failure = null;
+        for (FutureTask<Long> task : tasks) {
+            // no effect when the task already started
+            task.run();
+            try {
+                sequentialNanos += task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SeamException(e, "%s interrupted while retrieving inputs", getID());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    if (e.getCause() instanceof RuntimeException)
+                        failure = (RuntimeException) e.getCause();
+                    else
+                        failure = new SeamException(e.getCause());
+                }
+            }
+        }
+        if (failure != null)
+            throw failure;
+
+        long saved = sequentialNanos - (System.nanoTime() - start);
+        if (saved > 0)
+            inputTimeSavedInNanos.addAndGet(saved);
+        logger.debug(getID() + " retrieved inputs from " + tasks.size() + " components in parallel, saving " + (saved / 1000000) + " ms");
     }
 
 
@@ -397,7 +639,7 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
 
         // create set of id's from the target element set, which must be ID-based
         IElementSet es = link.getTargetElementSet();
-        ArrayList<String> ids = createIdListFromElementSet(es);
+        IdList ids = createIdListFromElementSet(es);
 
         if (ids.size() > 0) {
             String msg = "Running model calculation for ID-based selection of " + ids.size() + " instance(s) of " + type.getSimpleName();
@@ -408,7 +650,7 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
             // filter output IIndicatorValue based on selected IDs
             // (this is fail-safe when model does not do it)
             if (type == IIndicatorValue.class)
-                filterIndicatorValueSetForIdList(outputs.get(type), ids);
+                filterIndicatorValueSetForIdList(outputs.get(type), ids.index);
 
             msg = "Completed calculation for " + ids.size() + " instance(s) of " + type.getSimpleName();
             sendEvent(new Event(time, Event.EventType.Informative, this, msg));
@@ -422,19 +664,19 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
             sendEvent(new Event(time, Event.EventType.Informative, this, msg));
         }
         sendCompletedModelEvent();
-        this.status = Status.Computed;
     }
 
 
     /**
      * Creates a list of IDs from the specified ElementSet, which is expected to
      * be ID-based. When it is not ID-based (ElementType.IDBased) then an empty
-     * list will be returned.
+     * list will be returned. The list is indexed, so contains() is a hash
+     * lookup for filtering and for models checking whether an ID is selected.
      *
      * @param elementSet to get IDs from
      * @return List of IDs, can be empty
      */
-    private ArrayList<String> createIdListFromElementSet(IElementSet elementSet) {
+    private IdList createIdListFromElementSet(IElementSet elementSet) {
         ArrayList<String> ids = new ArrayList<String>();
         if ((elementSet != null) && (elementSet.getElementType().equals(IElementSet.ElementType.IDBased))) {
             for (int i = 0; i < elementSet.getElementCount(); i++) {
@@ -442,33 +684,35 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
             }
         }
 
-        return ids;
+        return new IdList(ids);
     }
 
 
     /**
      * Processes the specified ValueSet with IIndicatorValue instances and
-     * removes all items from it that have an ID that is not in the given list
-     * of IDs.
+     * removes all items from it that have an ID that is not in the given set
+     * of IDs. The items to keep are moved to the front of the value set in a
+     * single pass, after which the remainder is cut off.
      *
      * @param valueSet to be processed
      * @param ids      of items to keep
      * @return filtered value set
      */
     private ValueSet<IIndicatorValue> filterIndicatorValueSetForIdList(
-            ValueSet<IIndicatorValue> valueSet, ArrayList<String> ids) {
+            ValueSet<IIndicatorValue> valueSet, Set<String> ids) {
         if ((valueSet != null) && (valueSet.size() > 0)) {
-            ArrayList<Object> removables = new ArrayList<Object>();
-
-            // find the things to be removed
+            int kept = 0;
             for (int i = 0; i < valueSet.size(); i++) {
-                if (!ids.contains(valueSet.getValue(i).getIndicator().getId().toString()))
-                    removables.add(valueSet.getValue(i));
+                IIndicatorValue value = valueSet.getValue(i);
+                if (ids.contains(value.getIndicator().getId().toString()))
+                    valueSet.set(kept++, value);
             }
 
-            // remove them from the value set
-            for (Object obj : removables)
-                valueSet.remove(obj);
+            int removed = valueSet.size() - kept;
+            if (removed > 0) {
+                valueSet.subList(kept, valueSet.size()).clear();
+                logger.debug(getID() + " removed " + removed + " indicator values that were not requested");
+            }
         }
 
         return valueSet;
@@ -497,6 +741,9 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
      * calculate for the specified time and ontology class, and also only for
      * the instances with one of the specified ids. Or, when not optimised,
      * calculate everything. Outputs should be stored in the outputs Map.
+     * Checking whether an id is selected with ids.contains() takes constant
+     * time, so models can skip unselected instances up front; IIndicatorValue
+     * outputs are filtered on the ids afterwards in any case.
      *
      * @param time for which model calculation is requested
      * @param aClass    Ontology class for which model calculation is requested
@@ -541,6 +788,9 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
                     setMakeZip(false);
                 }
             }
+            if (PARALLELINPUTS.equalsKey(arg.getKey())) {
+                setParallelInputs(arg.getValue().equalsIgnoreCase("TRUE"));
+            }
 
         }
 
@@ -549,7 +799,7 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
 //			experiment.setId(experimentID);
 //		}
 
-        this.status = Status.Initialized;
+        computedOutputs.clear();
     }
 
     /**
@@ -750,10 +1000,149 @@ public abstract class SeamLinkableComponent extends LinkableComponent {
 	public boolean isMakeZip() {
 		return makeZip;
 	}
+
+
+	/**
+	 * Sets whether inputs from different source components are retrieved in
+	 * parallel, instead of one after the other. Off by default. The source
+	 * components then calculate at the same time, so they must not share
+	 * state other than through their links.
+	 *
+	 * @param parallelInputs true to retrieve inputs in parallel
+	 */
+	public void setParallelInputs(boolean parallelInputs) {
+		this.parallelInputs = parallelInputs;
+	}
+
+
+	public boolean isParallelInputs() {
+		return parallelInputs;
+	}
+
+
+	/**
+	 * Returns the time saved by retrieving inputs in parallel since the last
+	 * reset, i.e. the time retrieving them one after the other would have
+	 * taken minus the time it took.
+	 *
+	 * @return time saved in milliseconds
+	 */
+	public long getInputTimeSavedInMillis() {
+		return inputTimeSavedInNanos.get() / 1000000;
+	}
+
+
+	public void resetInputTimeSaved() {
+		inputTimeSavedInNanos.set(0);
+	}
+
+
+	/**
+	 * Returns the number of times an input was found unchanged by comparing
+	 * fingerprints, avoiding a comparison of all its values.
+	 *
+	 * @return number of avoided value comparisons
+	 */
+	public long getAvoidedInputComparisonCount() {
+		return fingerprintComparisons.get();
+	}
+
+
+	/**
+	 * Returns the number of times the values of an input had to be compared
+	 * to detect a change, because fingerprints were missing or different.
+	 *
+	 * @return number of value comparisons
+	 */
+	public long getInputComparisonCount() {
+		return deepComparisons.get();
+	}
+
+
+	public void resetInputComparisonCounts() {
+		fingerprintComparisons.set(0);
+		deepComparisons.set(0);
+	}
 	
 	@Override
     public boolean equals(Object obj) {
         return super.equals(obj);
     }
+
+
+    /**
+     * An input of the component, and the values retrieved for it.
+     */
+    @SuppressWarnings("unchecked")
+    private static class InputRequest {
+        final SeamInputExchangeItem<?> item;
+        final ILink link;
+        volatile ValueSet<?> result;
+        volatile long fingerprint;
+
+        InputRequest(SeamInputExchangeItem<?> item, ILink link) {
+            this.item = item;
+            this.link = link;
+        }
+
+        void retrieve(ITime time) {
+            ILinkableComponent source = link.getSourceComponent();
+            result = (ValueSet<?>) source.getValues(time, link.getID());
+            // a recalculation in between gives a new fingerprint, which only
+            // causes the values to be compared
+            if (source instanceof SeamLinkableComponent) {
+                SeamOutputExchangeItem<?> output = (SeamOutputExchangeItem<?>) ((ILinkEx) link).getSourceExchangeItem();
+                fingerprint = ((SeamLinkableComponent) source).getOutputFingerprint(output.getOntologyType());
+            } else
+                fingerprint = 0;
+        }
+    }
+
+
+    /**
+     * Read-only list of selected IDs, with a hash index for contains().
+     */
+    private static class IdList extends AbstractList<String> implements RandomAccess {
+        final List<String> ids;
+        final Set<String> index;
+
+        IdList(List<String> ids) {
+            this.ids = ids;
+            this.index = new HashSet<String>(ids);
+        }
+
+        @Override
+        public String get(int i) {
+            return ids.get(i);
+        }
+
+        @Override
+        public int size() {
+            return ids.size();
+        }
+
+        @Override
+        public boolean contains(Object id) {
+            return index.contains(id);
+        }
+    }
+
+
+    /**
+     * Executor for retrieving inputs in parallel, shared by all components
+     * and created when first used. Its threads do not keep the JVM alive.
+     */
+    private static class InputExecutorHolder {
+        static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "SeamInputs-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
 	
 }
@@ -23,9 +23,13 @@
 
 package org.seamless_if.processing.worker;
 
+import org.seamless_if.processing.scheduler.Job;
+import org.seamless_if.processing.scheduler.JobDispatcher;
 import org.seamless_if.processing.scheduler.ModelChainInfo;
+import org.seamless_if.processing.scheduler.Scheduler;
 import org.seamless_if.processing.scheduler.WorkerInfo;
 import org.seamless_if.processing.scheduler.WorkerState;
+import org.seamless_if.processing.scheduler.dto.JobTO;
 
 /**
  * The Worker class co-operates with the Scheduler to get assigned jobs for
@@ -38,9 +42,20 @@ import org.seamless_if.processing.scheduler.WorkerState;
 public class Worker {
 	
 	private WorkerInfo workerInfo = new WorkerInfo();
+	private final JobDispatcher scheduler;
 
 	
 	public Worker(String name, String ip) {
+		this(name, ip, Scheduler.INSTANCE);
+	}
+	
+	
+	/**
+	 * @param scheduler the Scheduler or ShardedScheduler the worker gets
+	 *        its jobs from
+	 */
+	public Worker(String name, String ip, JobDispatcher scheduler) {
+		this.scheduler = scheduler;
 		workerInfo.setName(name);
 		workerInfo.setState(WorkerState.UNKNOWN);
 		workerInfo.setIp(ip);
@@ -55,5 +70,31 @@ public class Worker {
 	public void addAvailableModelChain(ModelChainInfo info) {
 		workerInfo.addAvailableModelChain(info);
 	}
+	
+	
+	/**
+	 * Sets the number of jobs this worker can process concurrently, must be
+	 * set before registering with the Scheduler.
+	 * 
+	 * @param capacity number of slots, at least 1
+	 */
+	public void setCapacity(int capacity) {
+		workerInfo.setCapacity(capacity);
+	}
+	
+	
+	/**
+	 * Waits for the Scheduler to assign a job to this worker, instead of
+	 * polling for it. The worker must be registered with its scheduler and
+	 * have reported to be IDLE.
+	 * 
+	 * @param timeoutInMillis maximum time to wait for a job
+	 * @return JobTO of the assigned job, or null when the timeout expired
+	 * @throws InterruptedException when interrupted while waiting
+	 */
+	public JobTO awaitJob(long timeoutInMillis) throws InterruptedException {
+		Job job = scheduler.awaitJobForWorker(workerInfo.getId(), timeoutInMillis);
+		return (job != null) ? new JobTO(job) : null;
+	}
 }
 
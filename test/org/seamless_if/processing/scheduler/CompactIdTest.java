@@ -0,0 +1,113 @@
+/*
+ * seamframe: CompactIdTest.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Unit test for the CompactId class, identifying jobs, workers and model
+ * chains.
+ */
+public class CompactIdTest {
+
+    @Test
+    public void testNextIsOrdered() {
+        CompactId previous = CompactId.next();
+        for (int i = 0; i < 1000; i++) {
+            CompactId id = CompactId.next();
+            assertTrue(previous.compareTo(id) < 0);
+            assertTrue(!previous.equals(id));
+            assertEquals(CompactId.getNodeId(), id.getNode());
+            previous = id;
+        }
+        assertTrue(Math.abs(System.currentTimeMillis() - previous.getTimeInMillis()) < 60000);
+    }
+
+
+    @Test
+    public void testFormatAndParse() {
+        CompactId id = CompactId.next();
+        String text = id.toString();
+        assertEquals(32, text.length());
+        assertTrue(text == id.toString());
+
+        CompactId parsed = CompactId.parse(text);
+        assertTrue(parsed.isCompact());
+        assertEquals(id, parsed);
+        assertEquals(id.hashCode(), parsed.hashCode());
+        assertEquals(0, id.compareTo(parsed));
+        assertEquals(text, parsed.toString());
+
+        CompactId extreme = new CompactId(-1L, 0L);
+        assertEquals("ffffffffffffffff0000000000000000", extreme.toString());
+        assertEquals(extreme, CompactId.parse(extreme.toString()));
+        assertNull(CompactId.parse(null));
+    }
+
+
+    @Test
+    public void testParseOtherText() {
+        // ids of earlier versions keep their text
+        String text = "-1c7d4b4b:12a3f5e6c7d:-8000";
+        CompactId id = CompactId.parse(text);
+        assertTrue(!id.isCompact());
+        assertEquals(text, id.toString());
+        assertEquals(id, CompactId.parse(text));
+        assertEquals(id.hashCode(), CompactId.parse(text).hashCode());
+        assertTrue(!id.equals(CompactId.parse(text + "1")));
+
+        // upper case digits are not the compact form
+        String upper = CompactId.next().toString().toUpperCase();
+        assertTrue(!CompactId.parse(upper).isCompact());
+        assertEquals(upper, CompactId.parse(upper).toString());
+    }
+
+
+    @Test
+    public void testIdsOfSchedulerObjects() {
+        Job job = new Job();
+        job.setId("legacy-job-id");
+        assertEquals("legacy-job-id", job.getId());
+        assertEquals(CompactId.parse("legacy-job-id"), job.getCompactId());
+
+        // the queue finds jobs by the string form of their id
+        JobQueue queue = new JobQueue();
+        Job other = new Job();
+        queue.add(job);
+        queue.add(other);
+        assertEquals(job, queue.get("legacy-job-id"));
+        assertEquals(other, queue.get(other.getId()));
+        assertEquals(other, queue.get(other.getCompactId()));
+
+        WorkerInfo worker = new WorkerInfo();
+        WorkerInfoList workers = new WorkerInfoList();
+        workers.add(worker);
+        assertEquals(worker, workers.get(worker.getId()));
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ * seamframe: JobHistoryTest.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for the JobHistory class, spilling to archive segments and
+ * retention.
+ */
+public class JobHistoryTest {
+
+    private File archiveDirectory;
+    private JobHistory history;
+
+
+    @Before
+    public void setUp() throws Exception {
+        archiveDirectory = File.createTempFile("history", "");
+        archiveDirectory.delete();
+        history = new JobHistory();
+        history.setHotWindowSize(100);
+        history.setArchiveDirectory(archiveDirectory);
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        history.clear();
+        archiveDirectory.delete();
+    }
+
+
+    private Job createCompletedJob(long experimentId) {
+        ModelChainInfo chain = new ModelChainInfo();
+        chain.setName("chain");
+        chain.setVersion("1.0");
+        Job job = new Job(chain, experimentId);
+        job.setState(JobState.COMPLETED_OK);
+        job.setLogUrl("log-" + job.getId());
+        return job;
+    }
+
+
+    @Test
+    public void testSpillToArchive() throws Exception {
+        Job[] jobs = new Job[1000];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = createCompletedJob(i % 10);
+            history.addJob(jobs[i]);
+        }
+        history.awaitMaintenance();
+
+        assertTrue(history.size() <= 100);
+        assertEquals(jobs.length, history.size() + history.getArchivedCount());
+
+        // archived and in memory jobs can be looked up by id
+        for (Job job : jobs) {
+            Job found = history.getJob(job.getId());
+            assertNotNull(found);
+            assertEquals(job.getState(), found.getState());
+            assertEquals(job.getExperimentId(), found.getExperimentId());
+            assertEquals(job.getLogUrl(), found.getLogUrl());
+            assertEquals(job.getModelChain().getId(), found.getModelChain().getId());
+        }
+        assertNull(history.getJob("unknown"));
+        assertEquals(100, history.getJobsForExperiment(3L).size());
+
+        // segments are picked up again
+        JobHistory reopened = new JobHistory();
+        reopened.setArchiveDirectory(archiveDirectory);
+        assertEquals(history.getArchivedCount(), reopened.getArchivedCount());
+        assertNotNull(reopened.getJob(jobs[0].getId()));
+    }
+
+
+    @Test
+    public void testArchivedFields() throws Exception {
+        Job dependency = createCompletedJob(1);
+        Job job = createCompletedJob(2);
+        job.setPriority(JobPriority.HIGH);
+        job.setDeadlineInMillis(123456789L);
+        job.setSubmitter("alice");
+        job.setRetryCount(2);
+        job.addDependency(dependency);
+        job.setSpeculativeCopyOf(dependency.getId());
+        history.addJob(job);
+        for (int i = 0; i < 200; i++)
+            history.addJob(createCompletedJob(3));
+        history.awaitMaintenance();
+        assertTrue(history.getArchivedCount() > 0);
+
+        Job found = history.getJob(job.getId());
+        assertTrue(found != job);
+        assertEquals(JobPriority.HIGH, found.getPriority());
+        assertEquals(Long.valueOf(123456789L), found.getDeadlineInMillis());
+        assertEquals("alice", found.getSubmitter());
+        assertEquals(2, found.getRetryCount());
+        assertEquals(job.getDependencies(), found.getDependencies());
+        assertEquals(dependency.getId(), found.getSpeculativeCopyOf());
+    }
+
+
+    @Test
+    public void testRetention() throws Exception {
+        history.setRetentionPolicy(HistoryRetentionPolicy.byCount(200));
+        for (int i = 0; i < 1000; i++)
+            history.addJob(createCompletedJob(i));
+        history.awaitMaintenance();
+        assertTrue(history.size() + history.getArchivedCount() <= 250);
+
+        Job old = createCompletedJob(1);
+        old.setLastStateChangeInMillis(System.currentTimeMillis() - 60000);
+        history.clear();
+        history.addJob(old);
+        history.setRetentionPolicy(HistoryRetentionPolicy.byAge(1000));
+        assertNull(history.getJob(old.getId()));
+        assertEquals(0, history.size());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * seamframe: SchedulerConcurrencyTest.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Multi-threaded stress test for the Scheduler. Many workers heartbeat,
+ * wait for jobs and report progress in parallel while jobs are added and
+ * scheduled, checking that every job is processed exactly once.
+ */
+public class SchedulerConcurrencyTest {
+
+    private static final int WORKER_COUNT = 16;
+    private static final int JOB_COUNT = 2000;
+
+    private Scheduler scheduler;
+    private ModelChainInfo chain;
+
+
+    @Before
+    public void setUp() throws Exception {
+        // a scheduler of its own, so the workers do not stay registered with
+        // the one other tests use
+        scheduler = new Scheduler();
+        scheduler.setMetricsObjectName(SchedulerMetrics.OBJECT_NAME + ",test=concurrency");
+        chain = new ModelChainInfo();
+        scheduler.setSchedulingMode(SchedulingMode.EVENT_DRIVEN);
+        scheduler.start();
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.stop();
+        while (scheduler.isRunning()) {
+            Thread.sleep(10);
+        }
+    }
+
+
+    @Test
+    public void testParallelWorkers() throws Exception {
+        final ConcurrentHashMap<String, String> processedBy = new ConcurrentHashMap<String, String>();
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(WORKER_COUNT);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            final WorkerInfo worker = new WorkerInfo("127.0.0.1", "Worker " + i);
+            worker.addAvailableModelChain(chain);
+            scheduler.registerWorker(worker);
+
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String workerId = worker.getId();
+                        while (processed.get() < JOB_COUNT) {
+                            // heartbeat and ask for work
+                            scheduler.updateWorkerState(workerId, WorkerState.IDLE);
+                            Job job = scheduler.awaitJobForWorker(workerId, 50);
+                            if (job == null)
+                                continue;
+
+                            scheduler.updateWorkerState(workerId, WorkerState.BUSY);
+                            scheduler.updateJobState(job.getId(), JobState.IN_PROGRESS);
+                            if (processedBy.putIfAbsent(job.getId(), workerId) != null)
+                                throw new IllegalStateException("Job processed twice: " + job);
+                            scheduler.updateJobState(job.getId(), JobState.COMPLETED_OK);
+                            processed.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        // submit jobs from several threads while workers are running
+        final List<String> jobIds = new ArrayList<String>();
+        List<Thread> submitters = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final List<Job> batch = new ArrayList<Job>();
+            for (int j = 0; j < JOB_COUNT / 4; j++) {
+                Job job = new Job(chain, (long) j);
+                batch.add(job);
+                jobIds.add(job.getId());
+            }
+            submitters.add(new Thread(new Runnable() {
+                public void run() {
+                    for (Job job : batch) {
+                        scheduler.addJob(job);
+                    }
+                }
+            }));
+        }
+        for (Thread submitter : submitters) {
+            submitter.start();
+        }
+        for (Thread submitter : submitters) {
+            submitter.join();
+        }
+
+        assertTrue("Workers did not finish in time", done.await(60, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // every job processed once, and moved to the history
+        assertEquals(JOB_COUNT, processedBy.size());
+        for (String jobId : jobIds) {
+            assertEquals(null, scheduler.getJobFromQueue(jobId));
+            Job job = scheduler.getJobFromHistory(jobId);
+            assertNotNull(job);
+            assertEquals(JobState.COMPLETED_OK, job.getState());
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * seamframe: SchedulerJournalTest.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for the SchedulerJournal class, and recovery of the Scheduler
+ * state from it.
+ */
+public class SchedulerJournalTest {
+
+    private String stateFileName;
+
+
+    @Before
+    public void setUp() throws Exception {
+        File stateFile = File.createTempFile("scheduler", ".xml");
+        stateFile.delete();
+        stateFileName = stateFile.getPath();
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        Scheduler.INSTANCE.setFileName(null);
+        Scheduler.INSTANCE.clear();
+        new File(stateFileName + ".journal").delete();
+        new File(stateFileName + ".journal.old").delete();
+        new File(stateFileName + ".snapshot").delete();
+    }
+
+
+    @Test
+    public void testRecoverSchedulerState() throws Exception {
+        Scheduler.INSTANCE.setFileName(null);
+        Scheduler.INSTANCE.clear();
+        Scheduler.INSTANCE.setFileName(stateFileName);
+
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        String workerId = worker.getId();
+        Scheduler.INSTANCE.registerWorker(worker);
+
+        Job jobA = Scheduler.INSTANCE.addJob(new Job(chain, 1L));
+        Job jobB = Scheduler.INSTANCE.addJob(new Job(chain, 2L));
+        Job jobC = Scheduler.INSTANCE.addJob(new Job(chain, 3L));
+
+        // job A completes, job B is in progress when the scheduler stops
+        Scheduler.INSTANCE.updateWorkerState(workerId, WorkerState.IDLE);
+        Scheduler.INSTANCE.scheduleJobs();
+        assertEquals(jobA, Scheduler.INSTANCE.getJobForWorker(workerId));
+        Scheduler.INSTANCE.updateJobState(jobA.getId(), JobState.IN_PROGRESS);
+        Scheduler.INSTANCE.updateJobState(jobA.getId(), JobState.COMPLETED_OK);
+        Scheduler.INSTANCE.updateWorkerState(workerId, WorkerState.IDLE);
+        Scheduler.INSTANCE.scheduleJobs();
+        assertEquals(jobB, Scheduler.INSTANCE.getJobForWorker(workerId));
+        Scheduler.INSTANCE.updateJobState(jobB.getId(), JobState.IN_PROGRESS);
+
+        // simulate a crash: stop journaling, lose the in-memory state and
+        // leave a partially written record at the end of the journal
+        Scheduler.INSTANCE.setFileName(null);
+        Scheduler.INSTANCE.clear();
+        FileWriter writer = new FileWriter(stateFileName + ".journal", true);
+        writer.write("JOB_STATE\t" + jobC.getId() + "\tCOMPL");
+        writer.close();
+
+        Scheduler.INSTANCE.setFileName(stateFileName);
+
+        // worker known again, waiting for its first state update
+        WorkerInfo recoveredWorker = Scheduler.INSTANCE.getWorker(workerId);
+        assertNotNull(recoveredWorker);
+        assertEquals(WorkerState.UNKNOWN, recoveredWorker.getState());
+        assertTrue(recoveredWorker.hasMatchingModelChain(chain));
+
+        // completed job in history, in progress job aborted, other job waiting
+        assertEquals(JobState.COMPLETED_OK, Scheduler.INSTANCE.getJobFromHistory(jobA.getId()).getState());
+        Job recoveredB = Scheduler.INSTANCE.getJobFromQueue(jobB.getId());
+        assertEquals(JobState.ABORTED, recoveredB.getState());
+        assertNull(recoveredB.getAssignedToWorker());
+        Job recoveredC = Scheduler.INSTANCE.getJobFromQueue(jobC.getId());
+        assertEquals(JobState.WAITING_UNSCHEDULED, recoveredC.getState());
+        assertEquals(Long.valueOf(3L), recoveredC.getExperimentId());
+
+        // aborted job is rescheduled first
+        Scheduler.INSTANCE.updateWorkerState(workerId, WorkerState.IDLE);
+        Scheduler.INSTANCE.scheduleJobs();
+        assertEquals(recoveredB, Scheduler.INSTANCE.getJobForWorker(workerId));
+    }
+
+
+    @Test
+    public void testCompaction() {
+        final List<String[]> state = new CopyOnWriteArrayList<String[]>();
+        SchedulerJournal journal = new SchedulerJournal(stateFileName, new SchedulerJournal.SnapshotWriter() {
+            public void writeSnapshot(SchedulerJournal.RecordHandler out) {
+                for (String[] record : state) {
+                    out.handle(SchedulerJournal.WORKER_REGISTERED, record);
+                }
+            }
+        });
+        journal.setCompactionThreshold(10);
+        journal.open();
+
+        // fields with separators and line breaks must survive
+        for (int i = 0; i < 25; i++) {
+            String[] record = {"id" + i, "127.0.0.1", "worker\t" + i + "\nline\\2"};
+            state.add(record);
+            journal.append(SchedulerJournal.WORKER_REGISTERED, record);
+        }
+        journal.close();
+
+        // compacted in the background, the old journal is gone once done
+        assertTrue(new File(stateFileName + ".snapshot").exists());
+        assertFalse(new File(stateFileName + ".journal.old").exists());
+
+        // every record is replayed at least once, the last one last
+        final List<String[]> replayed = new ArrayList<String[]>();
+        int count = journal.replay(new SchedulerJournal.RecordHandler() {
+            public void handle(String type, String[] fields) {
+                replayed.add(fields);
+            }
+        });
+        Set<String> ids = new HashSet<String>();
+        for (String[] fields : replayed)
+            ids.add(fields[0]);
+        assertEquals(25, ids.size());
+        assertEquals(count, replayed.size());
+        assertEquals("id24", replayed.get(count - 1)[0]);
+        assertEquals("worker\t24\nline\\2", replayed.get(count - 1)[2]);
+    }
+
+
+    @Test
+    public void testReplayInterruptedCompaction() throws Exception {
+        final List<String[]> state = new ArrayList<String[]>();
+        SchedulerJournal journal = new SchedulerJournal(stateFileName, new SchedulerJournal.SnapshotWriter() {
+            public void writeSnapshot(SchedulerJournal.RecordHandler out) {
+                for (String[] record : state) {
+                    out.handle(SchedulerJournal.WORKER_REGISTERED, record);
+                }
+            }
+        });
+        journal.open();
+        for (int i = 0; i < 3; i++)
+            journal.append(SchedulerJournal.WORKER_REGISTERED, "id" + i);
+        journal.close();
+
+        // journal moved aside, but no snapshot written yet
+        assertTrue(new File(stateFileName + ".journal").renameTo(new File(stateFileName + ".journal.old")));
+        journal.open();
+        journal.append(SchedulerJournal.WORKER_REGISTERED, "id3");
+        journal.close();
+        assertTrue(SchedulerJournal.exists(stateFileName));
+
+        final List<String> replayed = new ArrayList<String>();
+        journal.replay(new SchedulerJournal.RecordHandler() {
+            public void handle(String type, String[] fields) {
+                replayed.add(fields[0]);
+            }
+        });
+        assertEquals(4, replayed.size());
+        assertEquals("id0", replayed.get(0));
+        assertEquals("id3", replayed.get(3));
+
+        // the next compaction keeps them until the snapshot is written
+        journal.compact();
+        assertFalse(new File(stateFileName + ".journal.old").exists());
+    }
+
+}
@@ -26,11 +26,22 @@ package org.seamless_if.processing.scheduler;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.seamless_if.processing.scheduler.dto.JobAddResultTO;
+import org.seamless_if.processing.scheduler.dto.JobTO;
 
 /**
  * Unit test for the Scheduler class. This is the main API for the scheduling
@@ -158,6 +169,43 @@ public class SchedulerTest {
     }
 
 
+    @Test
+    public void testAwaitJobForWorker() throws InterruptedException {
+        // worker for a model chain that no other job needs
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        final String workerId = worker.getId();
+        Scheduler.INSTANCE.registerWorker(worker);
+        Scheduler.INSTANCE.updateWorkerState(workerId, WorkerState.IDLE);
+
+        // nothing to do, should time out
+        assertNull(Scheduler.INSTANCE.awaitJobForWorker(workerId, 100));
+
+        Job job = new Job();
+        job.setModelChain(chain);
+        Scheduler.INSTANCE.addJob(job);
+
+        // schedule from another thread while the worker is waiting
+        Thread scheduling = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+                Scheduler.INSTANCE.scheduleJobs();
+            }
+        });
+        scheduling.start();
+
+        Job scheduledJob = Scheduler.INSTANCE.awaitJobForWorker(workerId, 5000);
+        assertNotNull(scheduledJob);
+        assertEquals(job, scheduledJob);
+        scheduling.join();
+    }
+
+
     @Test
     public void testUpdateJobState() {
         // state must have been updated
@@ -204,6 +252,135 @@ public class SchedulerTest {
     }
 
 
+    @Test
+    public void testModelChainIndex() {
+        // chains are found by id, and by name and version
+        assertEquals(chainA, Scheduler.INSTANCE.getModelChainInfo(chainA.getId()));
+        WorkerInfo worker = Scheduler.INSTANCE.registerWorker("127.0.0.1", "Index Worker");
+        ModelChainInfo chain = Scheduler.INSTANCE.registerModelChainForWorker(worker.getId(), "Index Chain", "2.0");
+        assertEquals(chain, Scheduler.INSTANCE.registerModelChainForWorker(workerIdB, "index chain", "2.0"));
+        assertEquals(chain, Scheduler.INSTANCE.getModelChainInfo(chain.getId()));
+
+        // only workers accepting jobs that can run the chain are found
+        assertTrue(Scheduler.INSTANCE.getAcceptingWorkersForModelChain(chain.getId()).isEmpty());
+        Scheduler.INSTANCE.updateWorkerState(workerIdB, WorkerState.IDLE);
+        assertEquals(1, Scheduler.INSTANCE.getAcceptingWorkersForModelChain(chain.getId()).size());
+        assertEquals(workerB, Scheduler.INSTANCE.getAcceptingWorkersForModelChain(chain.getId()).get(0));
+
+        // chain is no longer known when no worker provides it
+        Scheduler.INSTANCE.unregisterModelChainForWorker(workerIdB, chain.getId());
+        Scheduler.INSTANCE.unregisterWorker(worker.getId());
+        assertNull(Scheduler.INSTANCE.getModelChainInfo(chain.getId()));
+    }
+
+
+    @Test
+    public void testWorkerListRemove() {
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        WorkerInfoList workers = new WorkerInfoList();
+        workers.add(worker);
+        worker.setState(WorkerState.IDLE);
+        assertEquals(1, workers.getAcceptingWorkersForModelChain(chain).size());
+
+        // removing through the list interface keeps the indexes in sync
+        assertTrue(workers.remove((Object) worker));
+        assertNull(workers.get(worker.getId()));
+        assertTrue(workers.getAcceptingWorkers().isEmpty());
+        assertTrue(workers.getWorkersForModelChain(chain).isEmpty());
+        assertEquals(WorkerState.REMOVED, worker.getState());
+
+        // a removed worker is not indexed again by a later state change
+        worker.setState(WorkerState.IDLE);
+        assertTrue(workers.getAcceptingWorkers().isEmpty());
+        assertTrue(!workers.remove((Object) worker));
+    }
+
+
+    @Test
+    public void testMultiSlotWorker() {
+        // worker with three slots for a model chain that no other job needs
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        worker.setCapacity(3);
+        String workerId = worker.getId();
+        Scheduler.INSTANCE.registerWorker(worker);
+        for (int i = 0; i < 5; i++) {
+            Scheduler.INSTANCE.addJob(new Job(chain, (long) i));
+        }
+
+        // fills all slots in a single pass
+        Scheduler.INSTANCE.updateWorkerState(workerId, WorkerState.IDLE);
+        Scheduler.INSTANCE.scheduleJobs();
+        assertEquals(3, Scheduler.INSTANCE.getJobsForWorker(workerId).size());
+
+        // worker starts a job, the next one is another slot
+        Job started = Scheduler.INSTANCE.getNextJobForWorker(workerId);
+        Scheduler.INSTANCE.updateWorkerState(workerId, WorkerState.BUSY);
+        Scheduler.INSTANCE.updateJobState(started.getId(), JobState.IN_PROGRESS);
+        assertNotNull(Scheduler.INSTANCE.getNextJobForWorker(workerId));
+        assertTrue(!started.equals(Scheduler.INSTANCE.getNextJobForWorker(workerId)));
+
+        // a busy worker with a free slot gets another job
+        Scheduler.INSTANCE.updateJobState(started.getId(), JobState.COMPLETED_OK);
+        Scheduler.INSTANCE.scheduleJobs();
+        assertEquals(3, Scheduler.INSTANCE.getJobsForWorker(workerId).size());
+    }
+
+
+    @Test
+    public void testJobLeaseExpiry() throws InterruptedException {
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        String workerId = worker.getId();
+        Scheduler.INSTANCE.registerWorker(worker);
+        Job job = new Job(chain, 1L);
+        Scheduler.INSTANCE.addJob(job);
+
+        long jobLeaseTimeout = Scheduler.INSTANCE.getJobLeaseTimeoutInMillis();
+        Scheduler.INSTANCE.setJobLeaseTimeoutInMillis(100);
+        Scheduler.INSTANCE.setJobRetryPolicy(1, 100, 100);
+        try {
+            Scheduler.INSTANCE.updateWorkerState(workerId, WorkerState.IDLE);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(job, Scheduler.INSTANCE.getNextJobForWorker(workerId));
+            Scheduler.INSTANCE.updateJobState(job.getId(), JobState.IN_PROGRESS);
+
+            // heartbeats keep the job
+            for (int i = 0; i < 4; i++) {
+                Thread.sleep(50);
+                assertTrue(Scheduler.INSTANCE.heartbeatJob(job.getId()));
+                Scheduler.INSTANCE.scheduleJobs();
+                assertEquals(JobState.IN_PROGRESS, job.getState());
+            }
+
+            // without heartbeat the job waits for a retry
+            Thread.sleep(200);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(JobState.WAITING_RETRY, job.getState());
+            assertEquals(1, job.getRetryCount());
+
+            // and is scheduled again after the backoff
+            Thread.sleep(200);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(JobState.WAITING_SCHEDULED, job.getState());
+
+            // until it was retried too often
+            Scheduler.INSTANCE.updateJobState(job.getId(), JobState.IN_PROGRESS);
+            Thread.sleep(200);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(JobState.COMPLETED_WITH_ERRORS, job.getState());
+            assertEquals(job, Scheduler.INSTANCE.getJobFromHistory(job.getId()));
+        } finally {
+            Scheduler.INSTANCE.setJobLeaseTimeoutInMillis(jobLeaseTimeout);
+            Scheduler.INSTANCE.setJobRetryPolicy(3, 1000, 60000);
+        }
+    }
+
+
     @Test
     public void testScheduleJobs() {
         // do some scheduling
@@ -242,6 +419,385 @@ public class SchedulerTest {
     }
 
 
+    @Test
+    public void testAddJobs() {
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        Scheduler.INSTANCE.registerWorker(worker);
+
+        // invalid jobs are rejected, the others are all added
+        Job queued = new Job(chain, 1L);
+        Scheduler.INSTANCE.addJob(queued);
+        Job added = new Job(chain, 2L);
+        List<Job> batch = new ArrayList<Job>();
+        batch.add(added);
+        batch.add(queued);
+        batch.add(added);
+        batch.add(new Job(new ModelChainInfo(), 3L));
+        batch.add(null);
+        List<JobAddResult> results = Scheduler.INSTANCE.addJobs(batch);
+        assertEquals(5, results.size());
+        assertTrue(results.get(0).isAdded());
+        assertEquals(added, Scheduler.INSTANCE.getJobFromQueue(added.getId()));
+        for (int i = 1; i < 5; i++) {
+            assertTrue(!results.get(i).isAdded());
+            assertNotNull(results.get(i).getMessage());
+        }
+
+        // remote jobs are resolved against the registered model chains
+        List<JobTO> remote = new ArrayList<JobTO>();
+        remote.add(new JobTO(new Job(chain, 4L)));
+        remote.add(new JobTO(new Job(new ModelChainInfo(), 5L)));
+        List<JobAddResultTO> remoteResults = Scheduler.INSTANCE.addJobTOs(remote);
+        assertTrue(remoteResults.get(0).isAdded());
+        assertEquals(chain, Scheduler.INSTANCE.getJobFromQueue(remoteResults.get(0).getJobId()).getModelChain());
+        assertTrue(!remoteResults.get(1).isAdded());
+
+        // an unknown model chain rejects the whole batch
+        List<Long> experiments = new ArrayList<Long>();
+        experiments.add(6L);
+        experiments.add(7L);
+        for (JobAddResult result : Scheduler.INSTANCE.addJobs("unknown", experiments))
+            assertTrue(!result.isAdded());
+        assertEquals(2, Scheduler.INSTANCE.addJobs(chain.getId(), experiments).size());
+    }
+
+
+    @Test
+    public void testAffinityPlacement() throws InterruptedException {
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker1 = new WorkerInfo();
+        worker1.addAvailableModelChain(chain);
+        WorkerInfo worker2 = new WorkerInfo();
+        worker2.addAvailableModelChain(chain);
+        Scheduler.INSTANCE.registerWorker(worker1);
+        Scheduler.INSTANCE.registerWorker(worker2);
+        AffinityPlacementPolicy affinity = new AffinityPlacementPolicy(100, 8, 4, 2);
+        Scheduler.INSTANCE.setAffinityPlacementPolicy(affinity);
+        try {
+            // worker 1 runs experiment 1
+            Job first = new Job(chain, 1L);
+            Scheduler.INSTANCE.addJob(first);
+            Scheduler.INSTANCE.updateWorkerState(worker1.getId(), WorkerState.IDLE);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(worker1, first.getAssignedToWorker());
+            Scheduler.INSTANCE.updateJobState(first.getId(), JobState.IN_PROGRESS);
+            Scheduler.INSTANCE.updateJobState(first.getId(), JobState.COMPLETED_OK);
+
+            // the next job of experiment 1 goes to worker 1, though queued later
+            Job other = new Job(chain, 2L);
+            Job second = new Job(chain, 1L);
+            Scheduler.INSTANCE.addJob(other);
+            Scheduler.INSTANCE.addJob(second);
+            Scheduler.INSTANCE.updateWorkerState(worker2.getId(), WorkerState.IDLE);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(worker1, second.getAssignedToWorker());
+            assertEquals(worker2, other.getAssignedToWorker());
+            Scheduler.INSTANCE.updateJobState(other.getId(), JobState.IN_PROGRESS);
+            Scheduler.INSTANCE.updateJobState(other.getId(), JobState.COMPLETED_OK);
+
+            // while worker 1 is busy the job waits for it, but not too long
+            Scheduler.INSTANCE.updateJobState(second.getId(), JobState.IN_PROGRESS);
+            Job third = new Job(chain, 1L);
+            Scheduler.INSTANCE.addJob(third);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertNull(third.getAssignedToWorker());
+            Thread.sleep(150);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(worker2, third.getAssignedToWorker());
+
+            assertEquals(4, affinity.getPlacementCount());
+            assertEquals(1, affinity.getExperimentHitCount());
+            assertEquals(0.25, affinity.getCacheHitRate(), 0.001);
+            assertEquals(4, Scheduler.INSTANCE.getMetrics().getAffinityPlacementCount());
+            assertEquals(0.25, Scheduler.INSTANCE.getMetrics().getAffinityCacheHitRate(), 0.001);
+        } finally {
+            Scheduler.INSTANCE.setAffinityPlacementPolicy(null);
+        }
+    }
+
+
+    @Test
+    public void testJobDependencies() {
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        worker.setCapacity(2);
+        Scheduler.INSTANCE.registerWorker(worker);
+        Scheduler.INSTANCE.updateWorkerState(worker.getId(), WorkerState.IDLE);
+
+        // baselines run in parallel, the scenario after both completed
+        Job baseline = new Job(chain, 1L);
+        Job baseYear = new Job(chain, 2L);
+        Job scenario = new Job(chain, 3L);
+        scenario.addDependency(baseline);
+        scenario.addDependency(baseYear);
+        Job report = new Job(chain, 4L);
+        report.addDependency(scenario);
+        Scheduler.INSTANCE.addJob(report);
+        Scheduler.INSTANCE.addJob(scenario);
+        Scheduler.INSTANCE.addJob(baseline);
+        Scheduler.INSTANCE.addJob(baseYear);
+        assertEquals(JobState.WAITING_DEPENDENCIES, scenario.getState());
+        Scheduler.INSTANCE.scheduleJobs();
+        assertEquals(worker, baseline.getAssignedToWorker());
+        assertEquals(worker, baseYear.getAssignedToWorker());
+        assertEquals(JobState.WAITING_DEPENDENCIES, scenario.getState());
+
+        Scheduler.INSTANCE.updateJobState(baseline.getId(), JobState.IN_PROGRESS);
+        Scheduler.INSTANCE.updateJobState(baseline.getId(), JobState.COMPLETED_OK);
+        Scheduler.INSTANCE.scheduleJobs();
+        assertEquals(JobState.WAITING_DEPENDENCIES, scenario.getState());
+        Scheduler.INSTANCE.updateJobState(baseYear.getId(), JobState.IN_PROGRESS);
+        Scheduler.INSTANCE.updateJobState(baseYear.getId(), JobState.COMPLETED_OK);
+        Scheduler.INSTANCE.scheduleJobs();
+        assertEquals(worker, scenario.getAssignedToWorker());
+
+        // failure cascades to the jobs depending on it
+        Scheduler.INSTANCE.updateJobState(scenario.getId(), JobState.IN_PROGRESS);
+        Scheduler.INSTANCE.updateJobState(scenario.getId(), JobState.COMPLETED_WITH_ERRORS);
+        Scheduler.INSTANCE.scheduleJobs();
+        assertEquals(JobState.COMPLETED_WITH_ERRORS, report.getState());
+        assertEquals(report, Scheduler.INSTANCE.getJobFromHistory(report.getId()));
+
+        // unless the policy runs them anyway
+        Scheduler.INSTANCE.setDependencyFailurePolicy(DependencyFailurePolicy.RUN_DEPENDENTS);
+        try {
+            Job rerun = new Job(chain, 5L);
+            rerun.addDependency(scenario);
+            Scheduler.INSTANCE.addJob(rerun);
+            assertEquals(JobState.WAITING_UNSCHEDULED, rerun.getState());
+        } finally {
+            Scheduler.INSTANCE.setDependencyFailurePolicy(DependencyFailurePolicy.FAIL_DEPENDENTS);
+        }
+
+        // cycles are rejected
+        Job first = new Job(chain, 6L);
+        Job second = new Job(chain, 7L);
+        first.addDependency(second);
+        second.addDependency(first);
+        List<Job> batch = new ArrayList<Job>();
+        batch.add(first);
+        batch.add(second);
+        List<JobAddResult> results = Scheduler.INSTANCE.addJobs(batch);
+        assertTrue(results.get(0).isAdded());
+        assertTrue(!results.get(1).isAdded());
+    }
+
+
+    @Test
+    public void testSpeculativeExecution() throws InterruptedException {
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        Scheduler.INSTANCE.registerWorker(worker);
+        Scheduler.INSTANCE.updateWorkerState(worker.getId(), WorkerState.IDLE);
+        Scheduler.INSTANCE.setStragglerPolicy(new StragglerPolicy(0.5, 1.0, 2, true, 50));
+        try {
+            // the usual run time of the chain
+            for (int i = 0; i < 2; i++) {
+                Job job = new Job(chain, (long) i);
+                Scheduler.INSTANCE.addJob(job);
+                Scheduler.INSTANCE.scheduleJobs();
+                Scheduler.INSTANCE.updateJobState(job.getId(), JobState.IN_PROGRESS);
+                Thread.sleep(20);
+                Scheduler.INSTANCE.updateJobState(job.getId(), JobState.COMPLETED_OK);
+            }
+            assertEquals(2, Scheduler.INSTANCE.getRuntimeStatistics(chain.getId()).getCount());
+
+            // a job running far longer gets a copy on another worker
+            Job straggler = new Job(chain, 2L);
+            Scheduler.INSTANCE.addJob(straggler);
+            Scheduler.INSTANCE.scheduleJobs();
+            Scheduler.INSTANCE.updateJobState(straggler.getId(), JobState.IN_PROGRESS);
+            WorkerInfo spare = new WorkerInfo();
+            spare.addAvailableModelChain(chain);
+            Scheduler.INSTANCE.registerWorker(spare);
+            Scheduler.INSTANCE.updateWorkerState(spare.getId(), WorkerState.IDLE);
+            Thread.sleep(200);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertTrue(Scheduler.INSTANCE.isStraggler(straggler.getId()));
+            Job copy = Scheduler.INSTANCE.getNextJobForWorker(spare.getId());
+            assertNotNull(copy);
+            assertEquals(straggler.getId(), copy.getSpeculativeCopyOf());
+
+            // the copy completes first, the straggler is completed with it
+            Scheduler.INSTANCE.updateJobState(copy.getId(), JobState.IN_PROGRESS);
+            Scheduler.INSTANCE.updateJobState(copy.getId(), JobState.COMPLETED_OK);
+            assertEquals(JobState.COMPLETED_OK, straggler.getState());
+            assertEquals(JobState.REMOVED, copy.getState());
+            assertTrue(!Scheduler.INSTANCE.heartbeatJob(straggler.getId()));
+            Scheduler.INSTANCE.updateJobState(straggler.getId(), JobState.COMPLETED_OK);
+            assertEquals(1, Scheduler.INSTANCE.getSpeculativeWinCount());
+        } finally {
+            Scheduler.INSTANCE.setStragglerPolicy(null);
+        }
+    }
+
+
+    @Test
+    public void testFailedSpeculativeRunDropped() throws InterruptedException {
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        Scheduler.INSTANCE.registerWorker(worker);
+        Scheduler.INSTANCE.updateWorkerState(worker.getId(), WorkerState.IDLE);
+        Scheduler.INSTANCE.setStragglerPolicy(new StragglerPolicy(0.5, 1.0, 2, true, 50));
+        try {
+            // the usual run time of the chain
+            for (int i = 0; i < 2; i++) {
+                Job job = new Job(chain, (long) i);
+                Scheduler.INSTANCE.addJob(job);
+                Scheduler.INSTANCE.scheduleJobs();
+                Scheduler.INSTANCE.updateJobState(job.getId(), JobState.IN_PROGRESS);
+                Thread.sleep(20);
+                Scheduler.INSTANCE.updateJobState(job.getId(), JobState.COMPLETED_OK);
+            }
+            WorkerInfo spare = new WorkerInfo();
+            spare.addAvailableModelChain(chain);
+            Scheduler.INSTANCE.registerWorker(spare);
+            Scheduler.INSTANCE.updateWorkerState(spare.getId(), WorkerState.IDLE);
+
+            // the copy fails, the straggler keeps running and completes
+            Job first = new Job(chain, 2L);
+            Job firstCopy = startStragglerWithCopy(first, worker, spare);
+            Scheduler.INSTANCE.updateJobState(firstCopy.getId(), JobState.IN_PROGRESS);
+            Scheduler.INSTANCE.updateJobState(firstCopy.getId(), JobState.COMPLETED_WITH_ERRORS);
+            assertEquals(JobState.REMOVED, firstCopy.getState());
+            assertEquals(JobState.IN_PROGRESS, first.getState());
+            Scheduler.INSTANCE.updateJobState(first.getId(), JobState.COMPLETED_OK);
+            assertEquals(JobState.COMPLETED_OK, first.getState());
+
+            // the straggler fails, its copy completes it
+            Job second = new Job(chain, 3L);
+            Job secondCopy = startStragglerWithCopy(second, worker, spare);
+            Scheduler.INSTANCE.updateJobState(second.getId(), JobState.COMPLETED_WITH_ERRORS);
+            assertEquals(JobState.IN_PROGRESS, second.getState());
+            assertNotNull(Scheduler.INSTANCE.getJobFromQueue(second.getId()));
+            Scheduler.INSTANCE.updateJobState(secondCopy.getId(), JobState.IN_PROGRESS);
+            Scheduler.INSTANCE.updateJobState(secondCopy.getId(), JobState.COMPLETED_OK);
+            assertEquals(JobState.COMPLETED_OK, second.getState());
+            assertEquals(JobState.REMOVED, secondCopy.getState());
+
+            // both runs fail, so the straggler fails
+            Job third = new Job(chain, 4L);
+            Job thirdCopy = startStragglerWithCopy(third, worker, spare);
+            Scheduler.INSTANCE.updateJobState(third.getId(), JobState.COMPLETED_WITH_ERRORS);
+            Scheduler.INSTANCE.updateJobState(thirdCopy.getId(), JobState.IN_PROGRESS);
+            Scheduler.INSTANCE.updateJobState(thirdCopy.getId(), JobState.COMPLETED_WITH_ERRORS);
+            assertEquals(JobState.COMPLETED_WITH_ERRORS, third.getState());
+            assertNull(Scheduler.INSTANCE.getJobFromQueue(third.getId()));
+        } finally {
+            Scheduler.INSTANCE.setStragglerPolicy(null);
+        }
+    }
+
+
+    /**
+     * Adds and starts the job, waits until it is a straggler and returns its
+     * speculative copy, assigned to the other worker.
+     */
+    private Job startStragglerWithCopy(Job job, WorkerInfo worker, WorkerInfo spare) throws InterruptedException {
+        Scheduler.INSTANCE.addJob(job);
+        Scheduler.INSTANCE.scheduleJobs();
+        Scheduler.INSTANCE.updateJobState(job.getId(), JobState.IN_PROGRESS);
+        Thread.sleep(200);
+        Scheduler.INSTANCE.scheduleJobs();
+        WorkerInfo other = worker.equals(job.getAssignedToWorker()) ? spare : worker;
+        Job copy = Scheduler.INSTANCE.getNextJobForWorker(other.getId());
+        assertNotNull(copy);
+        assertEquals(job.getId(), copy.getSpeculativeCopyOf());
+        return copy;
+    }
+
+
+    @Test
+    public void testWorkStealing() throws InterruptedException {
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo slow = new WorkerInfo();
+        slow.addAvailableModelChain(chain);
+        Scheduler.INSTANCE.registerWorker(slow);
+        Scheduler.INSTANCE.updateWorkerState(slow.getId(), WorkerState.IDLE);
+        Scheduler.INSTANCE.setWorkStealingThresholdInMillis(50);
+        try {
+            Job job = new Job(chain, 1L);
+            Scheduler.INSTANCE.addJob(job);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(slow, job.getAssignedToWorker());
+
+            // not taken over before the threshold
+            WorkerInfo idle = new WorkerInfo();
+            idle.addAvailableModelChain(chain);
+            Scheduler.INSTANCE.registerWorker(idle);
+            Scheduler.INSTANCE.updateWorkerState(idle.getId(), WorkerState.IDLE);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(slow, job.getAssignedToWorker());
+
+            // taken over by the idle worker after it
+            long stolen = Scheduler.INSTANCE.getStolenJobCount();
+            Thread.sleep(100);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(idle, job.getAssignedToWorker());
+            assertEquals(JobState.WAITING_SCHEDULED, job.getState());
+            assertEquals(stolen + 1, Scheduler.INSTANCE.getStolenJobCount());
+            assertNull(Scheduler.INSTANCE.getNextJobForWorker(slow.getId()));
+
+            // only the worker it is assigned to can start it
+            try {
+                Scheduler.INSTANCE.updateJobState(job.getId(), JobState.IN_PROGRESS);
+                fail();
+            } catch (Exception e) {
+                // ok
+            }
+            assertEquals(JobState.WAITING_SCHEDULED, job.getState());
+            assertTrue(!Scheduler.INSTANCE.startJob(slow.getId(), job.getId()));
+            assertTrue(Scheduler.INSTANCE.startJob(idle.getId(), job.getId()));
+            assertTrue(!Scheduler.INSTANCE.startJob(idle.getId(), job.getId()));
+            assertEquals(JobState.IN_PROGRESS, job.getState());
+
+            // a started job stays with its worker
+            Thread.sleep(100);
+            Scheduler.INSTANCE.updateWorkerState(slow.getId(), WorkerState.IDLE);
+            Scheduler.INSTANCE.scheduleJobs();
+            assertEquals(idle, job.getAssignedToWorker());
+            Scheduler.INSTANCE.updateJobState(job.getId(), JobState.COMPLETED_OK);
+            assertEquals(JobState.COMPLETED_OK, job.getState());
+        } finally {
+            Scheduler.INSTANCE.setWorkStealingThresholdInMillis(0);
+        }
+    }
+
+
+    @Test
+    public void testMetrics() throws Exception {
+        SchedulerMetrics metrics = Scheduler.INSTANCE.getMetrics();
+        int waiting = metrics.getQueueDepth(JobState.WAITING_UNSCHEDULED);
+        int forChainA = metrics.getQueueDepthForModelChain(chainA.getId());
+        Scheduler.INSTANCE.addJob(new Job(chainA, 10L));
+        assertEquals(waiting + 1, metrics.getQueueDepth(JobState.WAITING_UNSCHEDULED));
+        assertEquals(forChainA + 1, metrics.getQueueDepthForModelChain(chainA.getId()));
+
+        // a job that runs and completes is counted in each state it passed
+        Scheduler.INSTANCE.updateWorkerState(workerIdA, WorkerState.IDLE);
+        Scheduler.INSTANCE.scheduleJobs();
+        Job job = Scheduler.INSTANCE.getNextJobForWorker(workerIdA);
+        assertTrue(metrics.getWorkerUtilisation() > 0);
+        Scheduler.INSTANCE.updateJobState(job.getId(), JobState.IN_PROGRESS);
+        Scheduler.INSTANCE.updateJobState(job.getId(), JobState.COMPLETED_OK);
+        assertTrue(metrics.getTimeInState(JobState.WAITING_SCHEDULED).getCount() > 0);
+        assertTrue(metrics.getTimeInState(JobState.IN_PROGRESS).getCount() > 0);
+        assertTrue(metrics.getSchedulingPassCount() > 0);
+        assertTrue(metrics.getJobsPerMinute() > 0);
+
+        // exposed through JMX
+        assertTrue(metrics.registerMBean());
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Object depth = server.getAttribute(new ObjectName(SchedulerMetrics.OBJECT_NAME), "QueueDepth");
+        assertEquals(metrics.getQueueDepth(), ((Integer) depth).intValue());
+    }
+
+
     @Test
     public void testSchedulingThread() {
         // start the scheduling thread
@@ -268,6 +824,40 @@ public class SchedulerTest {
     }
 
 
+    @Test
+    public void testEventDrivenScheduling() throws InterruptedException {
+        // worker for a model chain that no other job needs
+        ModelChainInfo chain = new ModelChainInfo();
+        WorkerInfo worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        Scheduler.INSTANCE.registerWorker(worker);
+        Scheduler.INSTANCE.updateWorkerState(worker.getId(), WorkerState.IDLE);
+
+        Scheduler.INSTANCE.setSchedulingMode(SchedulingMode.EVENT_DRIVEN);
+        Scheduler.INSTANCE.start();
+        try {
+            Job job = new Job();
+            job.setModelChain(chain);
+            Scheduler.INSTANCE.addJob(job);
+
+            // job should be dispatched well within the polling interval
+            long deadline = System.currentTimeMillis() + 2000;
+            while ((Scheduler.INSTANCE.getJobForWorker(worker.getId()) == null) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            assertEquals(job, Scheduler.INSTANCE.getJobForWorker(worker.getId()));
+            assertEquals(JobState.WAITING_SCHEDULED, job.getState());
+            assertTrue(Scheduler.INSTANCE.getDispatchLatency().getCount() > 0);
+        } finally {
+            Scheduler.INSTANCE.stop();
+            while (Scheduler.INSTANCE.isRunning()) {
+                Thread.sleep(10);
+            }
+            Scheduler.INSTANCE.setSchedulingMode(SchedulingMode.POLLING);
+        }
+    }
+
+
 
     @Test
     public void testSaveState() {
@@ -277,11 +867,37 @@ public class SchedulerTest {
     }
 
     @Test
-    public void testRestoreState() {
-//        String expected = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<queue><experiment id=\"1\" state=\"Waiting\">Sample Experiment 1</experiment><experiment id=\"2\" state=\"Waiting\">Sample Experiment 2</experiment><experiment id=\"3\" state=\"Waiting\">Sample Experiment 3</experiment></queue>";
-//        queue.restoreState(expected);
-//        assertEquals(expected, queue.createState());
-        fail();
+    public void testRestoreState() throws Exception {
+        File stateFile = File.createTempFile("scheduler", ".xml");
+        try {
+            // job A in progress, job B completed
+            Scheduler.INSTANCE.updateJobState(jobIdA, JobState.IN_PROGRESS);
+            Scheduler.INSTANCE.updateJobState(jobIdB, JobState.IN_PROGRESS);
+            Scheduler.INSTANCE.updateJobState(jobIdB, JobState.COMPLETED_OK);
+            Scheduler.INSTANCE.save(stateFile.getPath());
+
+            Scheduler.INSTANCE.clear();
+            assertNull(Scheduler.INSTANCE.getJob(jobIdA));
+            Scheduler.INSTANCE.load(stateFile.getPath());
+
+            // workers restored with their model chains
+            WorkerInfo restoredWorkerA = Scheduler.INSTANCE.getWorker(workerIdA);
+            assertNotNull(restoredWorkerA);
+            assertTrue(restoredWorkerA.hasMatchingModelChain(chainA));
+            assertTrue(restoredWorkerA.hasMatchingModelChain(chainB));
+            assertNotNull(Scheduler.INSTANCE.getWorker(workerIdB));
+
+            // job in progress is aborted, completed job is in history
+            Job restoredJobA = Scheduler.INSTANCE.getJobFromQueue(jobIdA);
+            assertNotNull(restoredJobA);
+            assertEquals(JobState.ABORTED, restoredJobA.getState());
+            assertEquals(chainA, restoredJobA.getModelChain());
+            Job restoredJobB = Scheduler.INSTANCE.getJobFromHistory(jobIdB);
+            assertNotNull(restoredJobB);
+            assertEquals(JobState.COMPLETED_OK, restoredJobB.getState());
+        } finally {
+            stateFile.delete();
+        }
     }
 
 }
@@ -0,0 +1,149 @@
+/*
+ * seamframe: SchedulingPolicyTest.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Unit test for the scheduling policies, ordering the ready jobs of a
+ * JobQueue.
+ */
+public class SchedulingPolicyTest {
+
+    private ModelChainInfo chain;
+    private WorkerInfo worker;
+    private JobQueue queue;
+
+
+    @Before
+    public void setUp() throws Exception {
+        chain = new ModelChainInfo();
+        worker = new WorkerInfo();
+        worker.addAvailableModelChain(chain);
+        queue = new JobQueue();
+    }
+
+
+    private Job addJob(JobPriority priority, Long deadline, String submitter) {
+        Job job = new Job(chain, 0L);
+        job.setPriority(priority);
+        job.setDeadlineInMillis(deadline);
+        job.setSubmitter(submitter);
+        queue.add(job);
+        return job;
+    }
+
+
+    private Job assignNext() {
+        Job job = queue.findJobForWorker(worker);
+        queue.assign(job, worker);
+        return job;
+    }
+
+
+    @Test
+    public void testPriority() {
+        queue.setSchedulingPolicy(new PrioritySchedulingPolicy());
+        Job low = addJob(JobPriority.LOW, null, null);
+        Job normal = addJob(JobPriority.NORMAL, null, null);
+        Job high = addJob(JobPriority.HIGH, null, null);
+        assertEquals(high, assignNext());
+        assertEquals(normal, assignNext());
+
+        // aborted jobs still go first
+        Job aborted = addJob(JobPriority.LOW, null, null);
+        aborted.setState(JobState.ABORTED);
+        assertEquals(aborted, assignNext());
+        assertEquals(low, assignNext());
+    }
+
+
+    @Test
+    public void testDeadline() {
+        Job none = addJob(JobPriority.HIGH, null, null);
+        Job late = addJob(JobPriority.NORMAL, 2000L, null);
+        Job early = addJob(JobPriority.NORMAL, 1000L, null);
+
+        // changing the policy reorders the queued jobs
+        queue.setSchedulingPolicy(new DeadlineSchedulingPolicy());
+        assertEquals(early, assignNext());
+        assertEquals(late, assignNext());
+        assertEquals(none, assignNext());
+    }
+
+
+    @Test
+    public void testFairShare() {
+        FairShareSchedulingPolicy policy = new FairShareSchedulingPolicy();
+        policy.setWeight("b", 2.0);
+        queue.setSchedulingPolicy(policy);
+
+        // a large batch of a does not hold back the jobs of b and c
+        for (int i = 0; i < 100; i++)
+            addJob(JobPriority.NORMAL, null, "a");
+        for (int i = 0; i < 20; i++)
+            addJob(JobPriority.NORMAL, null, "b");
+        for (int i = 0; i < 10; i++)
+            addJob(JobPriority.NORMAL, null, "c");
+
+        int a = 0, b = 0, c = 0;
+        for (int i = 0; i < 40; i++) {
+            String submitter = assignNext().getSubmitter();
+            if ("a".equals(submitter)) a++;
+            else if ("b".equals(submitter)) b++;
+            else c++;
+        }
+        assertEquals(10, a);
+        assertEquals(20, b);
+        assertEquals(10, c);
+    }
+
+
+    @Test
+    public void testFairShareKeepsTagsOnNewKey() {
+        FairShareSchedulingPolicy policy = new FairShareSchedulingPolicy();
+        queue.setSchedulingPolicy(policy);
+        Job a1 = addJob(JobPriority.NORMAL, null, "a");
+        Job a2 = addJob(JobPriority.NORMAL, null, "a");
+
+        // new keys for queued jobs do not charge the submitter again
+        for (int i = 0; i < 5; i++)
+            a1.setPriority(JobPriority.NORMAL);
+        queue.setSchedulingPolicy(policy);
+        Job a3 = addJob(JobPriority.NORMAL, null, "a");
+        Job b1 = addJob(JobPriority.NORMAL, null, "b");
+        Job b2 = addJob(JobPriority.NORMAL, null, "b");
+        Job b3 = addJob(JobPriority.NORMAL, null, "b");
+
+        assertEquals(a1, assignNext());
+        assertEquals(b1, assignNext());
+        assertEquals(a2, assignNext());
+        assertEquals(b2, assignNext());
+        assertEquals(a3, assignNext());
+        assertEquals(b3, assignNext());
+    }
+}
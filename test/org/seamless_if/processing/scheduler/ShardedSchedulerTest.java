@@ -0,0 +1,238 @@
+/*
+ * seamframe: ShardedSchedulerTest.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.seamless_if.processing.scheduler.dto.JobTO;
+import org.seamless_if.processing.worker.Worker;
+
+/**
+ * Unit test for the ShardedScheduler class. Runs a number of workers in
+ * parallel against several shards, with all jobs in a single shard, so the
+ * other shards run dry and their workers have to be moved.
+ */
+public class ShardedSchedulerTest {
+
+    private static final int SHARD_COUNT = 3;
+    private static final int WORKER_COUNT = 6;
+    private static final int JOB_COUNT = 300;
+
+    private ShardedScheduler scheduler;
+    private String stateFileName;
+
+
+    @Before
+    public void setUp() throws Exception {
+        File stateFile = File.createTempFile("sharded", ".xml");
+        stateFile.delete();
+        stateFileName = stateFile.getPath();
+
+        scheduler = new ShardedScheduler(SHARD_COUNT);
+        scheduler.setFileName(stateFileName);
+        scheduler.setSchedulingMode(SchedulingMode.EVENT_DRIVEN);
+        scheduler.start();
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.stop();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            while (scheduler.getShard(i).isRunning()) {
+                Thread.sleep(10);
+            }
+        }
+        scheduler.setFileName(null);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            new File(stateFileName + ".shard" + i + ".journal").delete();
+            new File(stateFileName + ".shard" + i + ".snapshot").delete();
+        }
+    }
+
+
+    @Test
+    public void testPartitioning() {
+        for (long experimentId = 0; experimentId < 100; experimentId++) {
+            int index = scheduler.getShardIndex(experimentId);
+            assertTrue((index >= 0) && (index < SHARD_COUNT));
+            assertEquals(index, scheduler.getShardIndex(experimentId));
+        }
+        assertEquals(0, scheduler.getShardIndex(null));
+    }
+
+
+    @Test
+    public void testWorkersMovedToShardWithJobs() throws Exception {
+        final ConcurrentHashMap<String, String> processedBy = new ConcurrentHashMap<String, String>();
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(WORKER_COUNT);
+
+        String chainId = null;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            final WorkerInfo worker = scheduler.registerWorker("127.0.0.1", "Worker " + i);
+            chainId = scheduler.registerModelChainForWorker(worker.getId(), "ShardedChain", "1.0").getId();
+
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        String workerId = worker.getId();
+                        while (processed.get() < JOB_COUNT) {
+                            scheduler.updateWorkerState(workerId, WorkerState.IDLE);
+                            Job job = scheduler.awaitJobForWorker(workerId, 50);
+                            if (job == null)
+                                continue;
+
+                            if (!scheduler.startJob(workerId, job.getId()))
+                                continue;
+                            scheduler.updateWorkerState(workerId, WorkerState.BUSY);
+                            if (processedBy.putIfAbsent(job.getId(), workerId) != null)
+                                throw new IllegalStateException("Job processed twice: " + job);
+                            scheduler.updateJobState(job.getId(), JobState.COMPLETED_OK);
+                            processed.incrementAndGet();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }));
+        }
+
+        // the same model chain is used in every shard
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            for (WorkerInfo worker : scheduler.getShard(i).getAllWorkers()) {
+                assertEquals(chainId, worker.getAvailableModelChains().get(0).getId());
+            }
+        }
+
+        // all jobs in experiments of the first shard
+        List<String> jobIds = new ArrayList<String>();
+        long experimentId = 0;
+        while (jobIds.size() < JOB_COUNT) {
+            if (scheduler.getShardIndex(experimentId) == 0) {
+                Job job = scheduler.addJob(experimentId, chainId);
+                assertNotNull(job);
+                jobIds.add(job.getId());
+            }
+            experimentId++;
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        assertTrue("Workers did not finish in time", done.await(60, TimeUnit.SECONDS));
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        // every job processed once, in the first shard
+        assertEquals(JOB_COUNT, processedBy.size());
+        for (String jobId : jobIds) {
+            Job job = scheduler.getShard(0).getJobFromHistory(jobId);
+            assertNotNull(job);
+            assertEquals(JobState.COMPLETED_OK, job.getState());
+        }
+        assertTrue(scheduler.getStolenWorkerCount() > 0);
+
+        // every shard has its own journal
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            assertTrue(SchedulerJournal.exists(stateFileName + ".shard" + i));
+        }
+    }
+
+
+    @Test
+    public void testWorkerAwaitsJob() throws Exception {
+        Worker worker = new Worker("Worker", "127.0.0.1", scheduler);
+        String workerId = scheduler.registerWorker(worker.getWorkerInfo()).getId();
+        String chainId = scheduler.registerModelChainForWorker(workerId, "ShardedChain", "1.0").getId();
+        scheduler.updateWorkerState(workerId, WorkerState.IDLE);
+
+        // the job may be in another shard than the worker
+        Job job = scheduler.addJob(Long.valueOf(11), chainId);
+        JobTO assigned = worker.awaitJob(5000);
+        assertNotNull(assigned);
+        assertEquals(job.getId(), assigned.getId());
+    }
+
+
+    @Test
+    public void testRoutingRestoredAfterRestart() throws Exception {
+        WorkerInfo worker = scheduler.registerWorker("127.0.0.1", "Worker");
+        String chainId = scheduler.registerModelChainForWorker(worker.getId(), "ShardedChain", "1.0").getId();
+        Job job = scheduler.addJob(Long.valueOf(7), chainId);
+        int workerShard = indexOf(scheduler.getShardForWorker(worker.getId()));
+
+        scheduler.stop();
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            while (scheduler.getShard(i).isRunning()) {
+                Thread.sleep(10);
+            }
+        }
+        scheduler.setFileName(null);
+
+        ShardedScheduler restarted = new ShardedScheduler(SHARD_COUNT);
+        scheduler = restarted;
+        restarted.setFileName(stateFileName);
+
+        assertSame(restarted.getShard(workerShard), restarted.getShardForWorker(worker.getId()));
+        restarted.updateWorkerState(worker.getId(), WorkerState.IDLE);
+        assertTrue(restarted.heartbeat(worker.getId()));
+        assertEquals(chainId, restarted.getModelChainInfo(chainId).getId());
+        assertEquals(chainId, restarted.registerModelChainForWorker(worker.getId(), "ShardedChain", "1.0").getId());
+        assertNotNull(restarted.addJob(Long.valueOf(8), chainId));
+
+        assertSame(restarted.getShardForExperiment(Long.valueOf(7)), restarted.getShardForJob(job.getId()));
+        assertEquals(job.getId(), restarted.getJob(job.getId()).getId());
+    }
+
+
+    private int indexOf(Scheduler shard) {
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            if (scheduler.getShard(i) == shard)
+                return i;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,246 @@
+/*
+ * seamframe: BinaryCodecTest.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ * ================================================================================
+ */
+
+package org.seamless_if.processing.scheduler.dto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.dom.DOMElement;
+import org.junit.Before;
+import org.junit.Test;
+import org.seamless_if.processing.scheduler.Job;
+import org.seamless_if.processing.scheduler.JobAddResult;
+import org.seamless_if.processing.scheduler.JobPriority;
+import org.seamless_if.processing.scheduler.JobState;
+import org.seamless_if.processing.scheduler.ModelChainInfo;
+import org.seamless_if.processing.scheduler.WorkerInfo;
+import org.seamless_if.processing.scheduler.WorkerState;
+
+/**
+ * Unit test for the BinaryCodec class, and comparison of its size and speed
+ * with the XML form of the Transfer Objects.
+ */
+public class BinaryCodecTest {
+
+    private static final int JOB_COUNT = 200;
+
+    private static Logger logger = Logger.getLogger(BinaryCodecTest.class.getName());
+
+    private WorkerInfo worker;
+    private List<JobTO> jobs;
+
+
+    @Before
+    public void setUp() throws Exception {
+        worker = new WorkerInfo("192.168.1.17", "Worker \u00e9t\u00e9");
+        worker.setCapacity(4);
+        worker.setState(WorkerState.BUSY);
+        for (int i = 0; i < 5; i++) {
+            ModelChainInfo chain = new ModelChainInfo();
+            chain.setName("Chain " + i);
+            worker.addAvailableModelChain(chain);
+        }
+
+        jobs = new ArrayList<JobTO>();
+        for (int i = 0; i < JOB_COUNT; i++) {
+            Job job = new Job(worker.getAvailableModelChains().get(i % 5), (long) i - 10);
+            job.setState(JobState.WAITING_SCHEDULED);
+            job.setAssignedToWorker(worker);
+            job.setPriority(JobPriority.HIGH);
+            job.setSubmitter("submitter");
+            if (i > 0)
+                job.addDependency(jobs.get(i - 1).getId());
+            jobs.add(new JobTO(job));
+        }
+    }
+
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        JobTO job = jobs.get(1);
+        JobTO decoded = (JobTO) BinaryCodec.decode(BinaryCodec.encode(job));
+        assertJobEquals(job, decoded);
+
+        // a job without worker and optional fields
+        JobTO unassigned = new JobTO(new Job(new ModelChainInfo(), null));
+        unassigned.setPriority(null);
+        unassigned.setDependencies(null);
+        assertJobEquals(unassigned, (JobTO) BinaryCodec.decode(BinaryCodec.encode(unassigned)));
+
+        // other objects and null
+        WorkerTO workerTO = new WorkerTO(worker);
+        WorkerTO decodedWorker = (WorkerTO) BinaryCodec.decode(BinaryCodec.encode(workerTO));
+        assertWorkerEquals(workerTO, decodedWorker);
+        assertNull(BinaryCodec.decode(BinaryCodec.encode(null)));
+
+        JobAddResultTO result = new JobAddResultTO(JobAddResult.rejected("job-1", "Duplicate"));
+        JobAddResultTO decodedResult = (JobAddResultTO) BinaryCodec.decode(BinaryCodec.encode(result));
+        assertEquals("job-1", decodedResult.getJobId());
+        assertTrue(!decodedResult.isAdded());
+        assertEquals("Duplicate", decodedResult.getMessage());
+        assertNull(decodedResult.getJob());
+    }
+
+
+    @Test
+    public void testSharedReferences() throws IOException {
+        List<?> decoded = (List<?>) BinaryCodec.decode(BinaryCodec.encode(jobs));
+        assertEquals(JOB_COUNT, decoded.size());
+        for (int i = 0; i < JOB_COUNT; i++)
+            assertJobEquals(jobs.get(i), (JobTO) decoded.get(i));
+
+        // the worker and its chains are decoded once
+        JobTO first = (JobTO) decoded.get(0);
+        JobTO last = (JobTO) decoded.get(JOB_COUNT - 1);
+        assertTrue(first.getAssignedToWorker() == last.getAssignedToWorker());
+        assertTrue(first.getModelChain() == first.getAssignedToWorker().getAvailableModelChains().get(0));
+    }
+
+
+    @Test
+    public void testStream() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        BinaryCodec.write(out, jobs.get(0));
+        BinaryCodec.write(out, jobs.subList(0, 3));
+        out.close();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertJobEquals(jobs.get(0), (JobTO) BinaryCodec.read(in));
+        assertEquals(3, ((List<?>) BinaryCodec.read(in)).size());
+        assertEquals(-1, in.read());
+    }
+
+
+    @Test
+    public void testInvalidMessages() {
+        byte[] message = BinaryCodec.encode(jobs.get(0));
+
+        // later version
+        byte[] versioned = message.clone();
+        versioned[4] = (byte) (BinaryCodec.VERSION + 1);
+        assertInvalid(versioned);
+
+        // truncated, keeping the length consistent
+        byte[] truncated = new byte[message.length - 3];
+        System.arraycopy(message, 0, truncated, 0, truncated.length);
+        int length = truncated.length - 4;
+        truncated[0] = (byte) (length >>> 24);
+        truncated[1] = (byte) (length >>> 16);
+        truncated[2] = (byte) (length >>> 8);
+        truncated[3] = (byte) length;
+        assertInvalid(truncated);
+
+        assertInvalid(new byte[] {0, 0, 0, 2, 1, 99});
+    }
+
+
+    @Test
+    public void testSizeAndSpeedComparedToXml() throws Exception {
+        byte[] xml = encodeXml(jobs);
+        byte[] binary = BinaryCodec.encode(jobs);
+        int singleXmlSize = encodeXml(jobs.subList(1, 2)).length;
+        int singleBinarySize = BinaryCodec.encode(jobs.get(1)).length;
+        assertTrue(singleBinarySize < singleXmlSize);
+        assertTrue(binary.length * 5 < xml.length);
+
+        // both formats encode the jobs to bytes and decode them again
+        int rounds = 20;
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++)
+            DocumentHelper.parseText(new String(encodeXml(jobs), "UTF-8"));
+        long xmlNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++)
+            BinaryCodec.decode(BinaryCodec.encode(jobs));
+        long binaryNanos = System.nanoTime() - start;
+
+        logger.info(JOB_COUNT + " jobs: XML " + xml.length + " bytes, binary " + binary.length + " bytes");
+        logger.info(JOB_COUNT + " jobs x " + rounds + " encoded and decoded: XML " + (xmlNanos / 1000000)
+                + " ms, binary " + (binaryNanos / 1000000) + " ms");
+    }
+
+
+    private static byte[] encodeXml(List<JobTO> jobs) throws IOException {
+        Element root = new DOMElement("jobs");
+        for (JobTO job : jobs)
+            root.add(job.toXml());
+        return root.asXML().getBytes("UTF-8");
+    }
+
+
+    private static void assertInvalid(byte[] message) {
+        try {
+            BinaryCodec.decode(message);
+            fail("Invalid message decoded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+
+    private static void assertJobEquals(JobTO expected, JobTO actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getExperimentId(), actual.getExperimentId());
+        assertEquals(expected.getLogUrl(), actual.getLogUrl());
+        assertEquals(expected.getPriority(), actual.getPriority());
+        assertEquals(expected.getDeadlineInMillis(), actual.getDeadlineInMillis());
+        assertEquals(expected.getSubmitter(), actual.getSubmitter());
+        assertEquals(expected.getDependencies(), actual.getDependencies());
+        assertEquals(expected.getSpeculativeCopyOf(), actual.getSpeculativeCopyOf());
+        assertEquals(expected.getModelChain().getId(), actual.getModelChain().getId());
+        assertEquals(expected.getModelChain().getName(), actual.getModelChain().getName());
+        assertEquals(expected.getModelChain().getVersion(), actual.getModelChain().getVersion());
+        if (expected.getAssignedToWorker() == null)
+            assertNull(actual.getAssignedToWorker());
+        else
+            assertWorkerEquals(expected.getAssignedToWorker(), actual.getAssignedToWorker());
+    }
+
+
+    private static void assertWorkerEquals(WorkerTO expected, WorkerTO actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getIp(), actual.getIp());
+        assertEquals(expected.getState(), actual.getState());
+        assertEquals(expected.getLastStateUpdateInMillis(), actual.getLastStateUpdateInMillis());
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getCapacity(), actual.getCapacity());
+        assertEquals(expected.getAvailableModelChains(), actual.getAvailableModelChains());
+    }
+
+}
@@ -34,12 +34,21 @@
  */
 package org.seamless_if.processing.sofa;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.alterra.openmi.sdk.backbone.Event;
 import nl.alterra.openmi.sdk.backbone.ValueSet;
+import nl.alterra.openmi.sdk.configuration.Trigger;
 
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.openmi.standard.IEvent;
+import org.openmi.standard.ITime;
 import org.seamless_ip.ontologies.indi.IIndicatorValue;
 import org.seamless_ip.ontologies.indi.IndicatorValueSimple;
 import org.seamless_ip.ontologies.seamproj.Problem;
@@ -98,4 +107,152 @@ public class TestSeamChain {
         Assert.assertEquals(2.0F, ((IndicatorValueSimple) result.getValue(1)).getValue(), 0.1);
     }
 
+
+    @Test
+    public void testPartitionTriggers() {
+        // second trigger shares the problem provider with the first one
+        SeamTrigger shared = createTrigger("shared", problemLC, new IndicatorValueProviderComponent("sharedValueLC"));
+
+        // third trigger has a subgraph of its own
+        SeamTrigger independent = createIndependentTrigger("independent",
+                new IndicatorValueProviderComponent("independentValueLC"));
+
+        List<List<Trigger>> groups = chain.partitionTriggers(chain.getComposition().getTriggers());
+        Assert.assertEquals(2, groups.size());
+        Assert.assertEquals(2, groups.get(0).size());
+        Assert.assertSame(trigger, groups.get(0).get(0));
+        Assert.assertSame(shared, groups.get(0).get(1));
+        Assert.assertEquals(1, groups.get(1).size());
+        Assert.assertSame(independent, groups.get(1).get(0));
+    }
+
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testParallelExecution() {
+        // both providers must be calculating at the same time to pass the gate
+        CountDownLatch gate = new CountDownLatch(2);
+        chain = new SeamChain("Parallel Model Chain");
+        GatedIndicatorValueProvider firstLC = new GatedIndicatorValueProvider("firstValueLC", gate);
+        GatedIndicatorValueProvider secondLC = new GatedIndicatorValueProvider("secondValueLC", gate);
+        SeamTrigger first = createIndependentTrigger("first", firstLC);
+        SeamTrigger second = createIndependentTrigger("second", secondLC);
+
+        chain.setParallelExecution(true);
+        Assert.assertTrue(chain.isParallelExecution());
+        chain.initialize(null);
+        chain.execute();
+
+        Assert.assertTrue(firstLC.passed);
+        Assert.assertTrue(secondLC.passed);
+        Assert.assertSame(2, ((ValueSet<IIndicatorValue>) first.getLastCalculatedValues()).getCount());
+        Assert.assertSame(2, ((ValueSet<IIndicatorValue>) second.getLastCalculatedValues()).getCount());
+    }
+
+
+    @Test
+    public void testParallelExecutionFailure() {
+        chain = new SeamChain("Failing Model Chain");
+        SeamTrigger failing = new SeamTrigger("failing");
+        chain.addComponent(failing);
+
+        // blocks until cancelled, the next trigger in its group is not pulled
+        ProblemProviderComponent sharedProblemLC = new ProblemProviderComponent("sharedProblemLC");
+        chain.addComponent(sharedProblemLC);
+        GatedIndicatorValueProvider blockedLC = new GatedIndicatorValueProvider("blockedValueLC", new CountDownLatch(2));
+        createTrigger("blocked", sharedProblemLC, blockedLC);
+        GatedIndicatorValueProvider nextLC = new GatedIndicatorValueProvider("nextValueLC", null);
+        createTrigger("next", sharedProblemLC, nextLC);
+
+        chain.setParallelExecution(true);
+        chain.initialize(null);
+        try {
+            chain.execute();
+            Assert.fail("Failing trigger not reported");
+        } catch (SeamException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("'failing'"));
+        }
+        Assert.assertFalse(blockedLC.passed);
+        Assert.assertEquals(0, nextLC.executions.get());
+    }
+
+
+    @Test
+    public void testParallelExecutionAbort() {
+        chain = new SeamChain("Aborted Model Chain");
+        GatedIndicatorValueProvider abortingLC = new GatedIndicatorValueProvider("abortingValueLC", null) {
+            @Override
+            protected void executeHook(ITime time, Class<?> T, List<String> ids) throws SeamException {
+                sendEvent(new Event(time, IEvent.EventType.Other, this, "ABORT"));
+            }
+        };
+        createIndependentTrigger("aborting", abortingLC);
+        ProblemProviderComponent sharedProblemLC = new ProblemProviderComponent("sharedProblemLC");
+        chain.addComponent(sharedProblemLC);
+        GatedIndicatorValueProvider blockedLC = new GatedIndicatorValueProvider("blockedValueLC", new CountDownLatch(2));
+        createTrigger("blocked", sharedProblemLC, blockedLC);
+        GatedIndicatorValueProvider nextLC = new GatedIndicatorValueProvider("nextValueLC", null);
+        createTrigger("next", sharedProblemLC, nextLC);
+
+        chain.setParallelExecution(true);
+        chain.initialize(null);
+        try {
+            chain.execute();
+            Assert.fail("Abort not reported");
+        } catch (SeamException e) {
+            Assert.assertEquals("Execution of experiment aborted", e.getMessage());
+        }
+        Assert.assertFalse(blockedLC.passed);
+        Assert.assertEquals(0, nextLC.executions.get());
+    }
+
+
+    private SeamTrigger createIndependentTrigger(String id, IndicatorValueProviderComponent values) {
+        ProblemProviderComponent problem = new ProblemProviderComponent(id + "ProblemLC");
+        chain.addComponent(problem);
+        return createTrigger(id, problem, values);
+    }
+
+
+    private SeamTrigger createTrigger(String id, ProblemProviderComponent problem, IndicatorValueProviderComponent values) {
+        SeamTrigger result = new SeamTrigger(id);
+        chain.addComponent(values);
+        chain.addComponent(result);
+        chain.createLink(problem, result, Problem.class);
+        chain.createLink(values, result, IIndicatorValue.class);
+        return result;
+    }
+
+
+    /**
+     * Indicator value provider that, when given a gate, counts it down and
+     * waits for it to open before calculating.
+     */
+    private static class GatedIndicatorValueProvider extends IndicatorValueProviderComponent {
+        final AtomicInteger executions = new AtomicInteger();
+        volatile boolean passed;
+        private final CountDownLatch gate;
+
+
+        public GatedIndicatorValueProvider(String ID, CountDownLatch gate) {
+            super(ID);
+            this.gate = gate;
+        }
+
+
+        @Override
+        protected void executeHook(ITime time, Class<?> T, List<String> ids) throws SeamException {
+            executions.incrementAndGet();
+            if (gate != null) {
+                gate.countDown();
+                try {
+                    passed = gate.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new SeamException(e);
+                }
+            }
+            super.executeHook(time, T, ids);
+        }
+    }
+
 }
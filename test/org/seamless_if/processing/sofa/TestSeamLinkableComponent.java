@@ -0,0 +1,495 @@
+/*
+ * seamframe: TestSeamLinkableComponent.java
+ * ==============================================================================
+ * This work has been carried out as part of the SEAMLESS Integrated Framework
+ * project, EU 6th Framework Programme, contract no. 010036-2 and/or as part
+ * of the SEAMLESS association.
+ *
+ * Copyright (c) 2009 The SEAMLESS Association.
+ *
+ * For more information: http://www.seamlessassociation.org;
+ * email: info@seamless-if.org
+ *
+ * The contents of this file is subject to the SEAMLESS Association License for
+ * software infrastructure and model components Version 1.1 (the "License");
+ * you may not use this file except in compliance with the License. You may
+ * obtain a copy of the License at http://www.seamlessassociation.org/License.htm
+ *
+ * Software distributed under the License is distributed on an "AS IS"  basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for
+ * the specific governing rights and limitations.
+ *
+ * The Initial Developers of the Original Code are:
+ *  - Ioannis Athanasiadis; IDSIA Dalle Molle Institute for Artificial Intelligence
+ *  - Sander Janssen; Alterra, Wageningen UR
+ *  - Benny Johnsson; Lund University
+ *  - Rob Knapen; Alterra, Wageningen UR
+ *  - Hongtao Li; IDSIA Dalle Molle Institute for Artificial Intelligence
+ *  - Michiel Rop; Alterra, Wageningen UR / ilionX
+ *  - Lorenzo Ruinelli; IDSIA Dalle Molle Institute for Artificial Intelligence
+ *
+ * ================================================================================
+ * Contributor(s): N/A
+ * ================================================================================
+ */
+package org.seamless_if.processing.sofa;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.alterra.openmi.sdk.backbone.Element;
+import nl.alterra.openmi.sdk.backbone.ElementSet;
+import nl.alterra.openmi.sdk.backbone.Link;
+import nl.alterra.openmi.sdk.backbone.LinkableComponent;
+import nl.alterra.openmi.sdk.backbone.ValueSet;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.openmi.standard.IElementSet;
+import org.openmi.standard.ITime;
+import org.seamless_ip.ontologies.indi.EndorsedIndicator;
+import org.seamless_ip.ontologies.indi.IIndicatorValue;
+import org.seamless_ip.ontologies.indi.IndicatorValueSimple;
+import org.seamless_ip.ontologies.seamproj.Experiment;
+import org.seamless_ip.ontologies.seamproj.Model;
+import org.seamless_ip.ontologies.seamproj.Problem;
+
+/**
+ * Unit test for SeamLinkableComponent, retrieving inputs in parallel,
+ * recalculating outputs incrementally, detecting input changes and
+ * filtering indicator values on requested ids.
+ */
+public class TestSeamLinkableComponent {
+    private static final long CALCULATION_TIME_IN_MILLIS = 300;
+
+    private SeamChain chain;
+    private SeamTrigger trigger;
+
+
+    @Before
+    public void setUp() {
+        chain = new SeamChain("Test Model Chain");
+        trigger = new SeamTrigger("trigger");
+        chain.addComponent(trigger);
+    }
+
+
+    @Test
+    public void testSequentialByDefault() {
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class}, new Class<?>[] {IIndicatorValue.class});
+        Assert.assertFalse(consumer.isParallelInputs());
+    }
+
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testParallelInputs() {
+        SlowComponent problems = createComponent("problems", CALCULATION_TIME_IN_MILLIS, new Class<?>[0], new Class<?>[] {Problem.class});
+        SlowComponent models = createComponent("models", CALCULATION_TIME_IN_MILLIS, new Class<?>[0], new Class<?>[] {Model.class});
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class, Model.class}, new Class<?>[] {IIndicatorValue.class});
+        link(problems, consumer, Problem.class);
+        link(models, consumer, Model.class);
+        Link output = link(consumer, trigger, IIndicatorValue.class);
+        consumer.setParallelInputs(true);
+
+        long start = System.currentTimeMillis();
+        ValueSet<?> result = (ValueSet<?>) consumer.getValues(null, output.getID());
+        long elapsed = System.currentTimeMillis() - start;
+
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(1, problems.executions.get());
+        Assert.assertEquals(1, models.executions.get());
+        Assert.assertEquals(1, consumer.inputs.get(Problem.class).size());
+        Assert.assertEquals(1, consumer.inputs.get(Model.class).size());
+        Assert.assertTrue("Took " + elapsed + " ms", elapsed < 2 * CALCULATION_TIME_IN_MILLIS);
+        Assert.assertTrue(consumer.getInputTimeSavedInMillis() > 0);
+    }
+
+
+    @Test
+    public void testSharedSourceComputedOnce() {
+        SlowComponent source = createComponent("source", CALCULATION_TIME_IN_MILLIS, new Class<?>[0], new Class<?>[] {Problem.class, Model.class});
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class, Model.class}, new Class<?>[] {IIndicatorValue.class});
+        link(source, consumer, Problem.class);
+        link(source, consumer, Model.class);
+        Link output = link(consumer, trigger, IIndicatorValue.class);
+        consumer.setParallelInputs(true);
+
+        consumer.getValues(null, output.getID());
+        Assert.assertEquals(1, source.executions.get());
+        Assert.assertEquals(1, consumer.inputs.get(Problem.class).size());
+        Assert.assertEquals(1, consumer.inputs.get(Model.class).size());
+        Assert.assertEquals(0, consumer.getInputTimeSavedInMillis());
+    }
+
+
+    @Test
+    public void testSharedUpstreamComputedOnce() {
+        // two components in parallel, both retrieving from the same component
+        SlowComponent upstream = createComponent("upstream", CALCULATION_TIME_IN_MILLIS, new Class<?>[0], new Class<?>[] {Problem.class});
+        SlowComponent left = createComponent("left", 0, new Class<?>[] {Problem.class}, new Class<?>[] {Model.class});
+        SlowComponent right = createComponent("right", 0, new Class<?>[] {Problem.class}, new Class<?>[] {Experiment.class});
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Model.class, Experiment.class}, new Class<?>[] {IIndicatorValue.class});
+        link(upstream, left, Problem.class);
+        link(upstream, right, Problem.class);
+        link(left, consumer, Model.class);
+        link(right, consumer, Experiment.class);
+        Link output = link(consumer, trigger, IIndicatorValue.class);
+        chain.setParallelInputs(true);
+
+        consumer.getValues(null, output.getID());
+        Assert.assertEquals(1, upstream.executions.get());
+        Assert.assertEquals(1, left.executions.get());
+        Assert.assertEquals(1, right.executions.get());
+        Assert.assertEquals(1, consumer.executions.get());
+    }
+
+
+    @Test
+    public void testIncrementalRecomputation() {
+        SlowComponent problems = createComponent("problems", 0, new Class<?>[0], new Class<?>[] {Problem.class});
+        SlowComponent models = createComponent("models", 0, new Class<?>[0], new Class<?>[] {Model.class});
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class, Model.class}, new Class<?>[] {IIndicatorValue.class, Experiment.class});
+        SlowComponent sink = createComponent("sink", 0, new Class<?>[] {Experiment.class}, new Class<?>[0]);
+        consumer.declareOutputDependencies(IIndicatorValue.class, Problem.class);
+        consumer.declareOutputDependencies(Experiment.class, Model.class);
+        link(problems, consumer, Problem.class);
+        link(models, consumer, Model.class);
+        Link indicators = link(consumer, trigger, IIndicatorValue.class);
+        Link experiments = link(consumer, sink, Experiment.class);
+
+        // the first request calculates both outputs
+        consumer.getValues(null, indicators.getID());
+        consumer.getValues(null, experiments.getID());
+        Assert.assertEquals(1, consumer.executions.get());
+        Assert.assertEquals(1, consumer.outputs.get(IIndicatorValue.class).size());
+        Assert.assertEquals(1, consumer.outputs.get(Experiment.class).size());
+
+        // nothing changed, so nothing is recalculated
+        consumer.getValues(null, indicators.getID());
+        consumer.getValues(null, experiments.getID());
+        Assert.assertEquals(1, consumer.executions.get());
+
+        // a new model only affects the experiments
+        models.change();
+        consumer.getValues(null, indicators.getID());
+        Assert.assertEquals(1, consumer.executions.get());
+        consumer.getValues(null, experiments.getID());
+        Assert.assertEquals(2, consumer.executions.get());
+        Assert.assertEquals(Experiment.class, consumer.lastType);
+        Assert.assertEquals(1, consumer.outputs.get(IIndicatorValue.class).size());
+    }
+
+
+    @Test
+    public void testInvalidatedOutputsRecalculatedTogether() {
+        SlowComponent problems = createComponent("problems", 0, new Class<?>[0], new Class<?>[] {Problem.class});
+        SlowComponent models = createComponent("models", 0, new Class<?>[0], new Class<?>[] {Model.class});
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class, Model.class}, new Class<?>[] {IIndicatorValue.class, Experiment.class});
+        SlowComponent sink = createComponent("sink", 0, new Class<?>[] {Experiment.class}, new Class<?>[0]);
+        consumer.declareOutputDependencies(IIndicatorValue.class, Problem.class);
+        consumer.declareOutputDependencies(Experiment.class, Model.class);
+        link(problems, consumer, Problem.class);
+        link(models, consumer, Model.class);
+        Link indicators = link(consumer, trigger, IIndicatorValue.class);
+        Link experiments = link(consumer, sink, Experiment.class);
+
+        consumer.getValues(null, indicators.getID());
+        Assert.assertEquals(1, consumer.executions.get());
+
+        // both outputs are invalidated and recalculated by a single request
+        problems.change();
+        models.change();
+        consumer.getValues(null, indicators.getID());
+        Assert.assertEquals(2, consumer.executions.get());
+        consumer.getValues(null, experiments.getID());
+        Assert.assertEquals(2, consumer.executions.get());
+        Assert.assertEquals(1, consumer.outputs.get(IIndicatorValue.class).size());
+        Assert.assertEquals(1, consumer.outputs.get(Experiment.class).size());
+    }
+
+
+    @Test
+    public void testUndeclaredOutputsDependOnAllInputs() {
+        SlowComponent problems = createComponent("problems", 0, new Class<?>[0], new Class<?>[] {Problem.class});
+        SlowComponent models = createComponent("models", 0, new Class<?>[0], new Class<?>[] {Model.class});
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class, Model.class}, new Class<?>[] {IIndicatorValue.class, Experiment.class});
+        link(problems, consumer, Problem.class);
+        link(models, consumer, Model.class);
+        Link indicators = link(consumer, trigger, IIndicatorValue.class);
+
+        consumer.getValues(null, indicators.getID());
+        Assert.assertEquals(1, consumer.executions.get());
+
+        models.change();
+        consumer.getValues(null, indicators.getID());
+        Assert.assertEquals(2, consumer.executions.get());
+        Assert.assertEquals(1, consumer.outputs.get(IIndicatorValue.class).size());
+        Assert.assertEquals(1, consumer.outputs.get(Experiment.class).size());
+    }
+
+
+    @Test
+    public void testInputRefilledInPlace() {
+        SlowComponent problems = createComponent("problems", 0, new Class<?>[0], new Class<?>[] {Problem.class});
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class}, new Class<?>[] {IIndicatorValue.class});
+        link(problems, consumer, Problem.class);
+        Link output = link(consumer, trigger, IIndicatorValue.class);
+
+        consumer.getValues(null, output.getID());
+        Assert.assertEquals("problems#0", consumer.inputs.get(Problem.class).get(0));
+
+        // the source refills the same value set, which must still be seen as a change
+        ValueSet<?> refilled = problems.outputs.get(Problem.class);
+        problems.change();
+        consumer.getValues(null, output.getID());
+        Assert.assertSame(refilled, problems.outputs.get(Problem.class));
+        Assert.assertEquals("problems#1", consumer.inputs.get(Problem.class).get(0));
+        Assert.assertEquals(2, consumer.executions.get());
+    }
+
+
+    @Test
+    public void testFingerprintsAvoidComparisons() {
+        SlowComponent problems = createComponent("problems", 0, new Class<?>[0], new Class<?>[] {Problem.class});
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class}, new Class<?>[] {IIndicatorValue.class});
+        link(problems, consumer, Problem.class);
+        Link output = link(consumer, trigger, IIndicatorValue.class);
+        Assert.assertEquals(0, problems.getOutputFingerprint(Problem.class));
+
+        consumer.getValues(null, output.getID());
+        long fingerprint = problems.getOutputFingerprint(Problem.class);
+        Assert.assertTrue(fingerprint != 0);
+        Assert.assertEquals(1, consumer.getInputComparisonCount());
+        Assert.assertEquals(0, consumer.getAvoidedInputComparisonCount());
+
+        // unchanged input is detected by its fingerprint only
+        consumer.getValues(null, output.getID());
+        Assert.assertEquals(1, consumer.getInputComparisonCount());
+        Assert.assertEquals(1, consumer.getAvoidedInputComparisonCount());
+        Assert.assertEquals(1, consumer.executions.get());
+
+        // recalculated input gets a new fingerprint, and values are compared
+        problems.change();
+        consumer.getValues(null, output.getID());
+        Assert.assertTrue(problems.getOutputFingerprint(Problem.class) != fingerprint);
+        Assert.assertEquals(2, consumer.getInputComparisonCount());
+        Assert.assertEquals(1, consumer.getAvoidedInputComparisonCount());
+        Assert.assertEquals(2, consumer.executions.get());
+
+        consumer.resetInputComparisonCounts();
+        Assert.assertEquals(0, consumer.getInputComparisonCount());
+        Assert.assertEquals(0, consumer.getAvoidedInputComparisonCount());
+    }
+
+
+    @Test
+    public void testStampedFingerprint() {
+        SlowComponent problems = createComponent("problems", 0, new Class<?>[0], new Class<?>[] {Problem.class});
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class}, new Class<?>[] {IIndicatorValue.class});
+        link(problems, consumer, Problem.class);
+        Link output = link(consumer, trigger, IIndicatorValue.class);
+        problems.stamp = 42;
+
+        consumer.getValues(null, output.getID());
+        Assert.assertEquals(42, problems.getOutputFingerprint(Problem.class));
+
+        // same content hash after recalculating, so values are not compared
+        problems.change();
+        consumer.getValues(null, output.getID());
+        Assert.assertEquals(1, consumer.getInputComparisonCount());
+        Assert.assertEquals(1, consumer.getAvoidedInputComparisonCount());
+    }
+
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFilterIndicatorValues() {
+        IndicatorComponent indicators = new IndicatorComponent("indicators", 20000, false);
+        chain.addComponent(indicators);
+        Link output = link(indicators, trigger, IIndicatorValue.class);
+        selectEvenIndicators(20000);
+
+        ValueSet<IIndicatorValue> result = (ValueSet<IIndicatorValue>) indicators.getValues(null, output.getID());
+        Assert.assertEquals(10000, result.size());
+        for (int i = 0; i < result.size(); i++)
+            Assert.assertEquals(2L * i, result.getValue(i).getIndicator().getId().longValue());
+        Assert.assertEquals(20000, indicators.calculated);
+    }
+
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFilterPushedDown() {
+        IndicatorComponent indicators = new IndicatorComponent("indicators", 20000, true);
+        chain.addComponent(indicators);
+        Link output = link(indicators, trigger, IIndicatorValue.class);
+        selectEvenIndicators(20000);
+
+        ValueSet<IIndicatorValue> result = (ValueSet<IIndicatorValue>) indicators.getValues(null, output.getID());
+        Assert.assertEquals(10000, result.size());
+        Assert.assertEquals(10000, indicators.calculated);
+    }
+
+
+    private void selectEvenIndicators(int count) {
+        ElementSet es = new ElementSet();
+        es.setElementType(IElementSet.ElementType.IDBased);
+        for (int i = 0; i < count; i += 2) {
+            Element element = new Element();
+            element.setID(Integer.toString(i));
+            es.addElement(element);
+        }
+        trigger.getInputExchangeItem(IIndicatorValue.class.getSimpleName()).setElementSet(es);
+    }
+
+
+    @Test(expected = SeamException.class)
+    public void testDeclareUnknownDependency() {
+        SlowComponent consumer = createComponent("consumer", 0, new Class<?>[] {Problem.class}, new Class<?>[] {IIndicatorValue.class});
+        consumer.declareOutputDependencies(IIndicatorValue.class, Model.class);
+    }
+
+
+    private Link link(SeamLinkableComponent source, LinkableComponent target, Class<?> type) {
+        return chain.getComposition().createLink(source, source.getOutputExchangeItem(type.getSimpleName()),
+                target, target.getInputExchangeItem(type.getSimpleName()));
+    }
+
+
+    private SlowComponent createComponent(String id, long calculationTimeInMillis, Class<?>[] inputTypes, Class<?>[] outputTypes) {
+        SlowComponent component = new SlowComponent(id, calculationTimeInMillis, inputTypes, outputTypes);
+        chain.addComponent(component);
+        return component;
+    }
+
+
+    /**
+     * Test component that takes a while to calculate, and produces a value
+     * for each of its outputs.
+     */
+    private static class SlowComponent extends SeamLinkableComponent {
+        final AtomicInteger executions = new AtomicInteger();
+        volatile Class<?> lastType;
+        private final long calculationTimeInMillis;
+        private volatile int revision;
+        volatile long stamp;
+
+
+        SlowComponent(String id, long calculationTimeInMillis, Class<?>[] inputTypes, Class<?>[] outputTypes) {
+            super(id);
+            this.calculationTimeInMillis = calculationTimeInMillis;
+            for (Class<?> type : inputTypes)
+                registerInputExchangeItem(type);
+            for (Class<?> type : outputTypes)
+                registerOutputExchangeItem(type);
+        }
+
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected void executeHook(ITime time, Class<?> aClass) throws SeamException {
+            executions.incrementAndGet();
+            lastType = aClass;
+            try {
+                Thread.sleep(calculationTimeInMillis);
+            } catch (InterruptedException e) {
+                throw new SeamException(e);
+            }
+            // calculates all outputs, whichever type is requested
+            for (ValueSet<Object> values : outputs.values())
+                values.add(getID() + "#" + revision);
+            if (stamp != 0)
+                setOutputFingerprint(aClass, stamp);
+        }
+
+
+        /**
+         * Makes the component produce different values on its next
+         * calculation.
+         */
+        void change() {
+            revision++;
+            // cleared in place and refilled when requested next, like models do
+            for (ValueSet<?> values : outputs.values())
+                values.clear();
+        }
+
+
+        @Override
+        protected void executeHook(ITime time, Class<?> aClass, List<String> ids) throws SeamException {
+            executeHook(time, aClass);
+        }
+
+
+        @Override
+        public String getComponentID() {
+            return getID();
+        }
+
+
+        @Override
+        public String getModelID() {
+            return getID() + "_V1";
+        }
+    }
+
+
+    /**
+     * Test component that calculates a value for each of a number of
+     * indicators, either all of them or only the requested ones.
+     */
+    private static class IndicatorComponent extends SeamLinkableComponent {
+        int calculated;
+        private final int count;
+        private final boolean skipUnrequested;
+        private final ValueSet<IIndicatorValue> output;
+
+
+        @SuppressWarnings("unchecked")
+        IndicatorComponent(String id, int count, boolean skipUnrequested) {
+            super(id);
+            this.count = count;
+            this.skipUnrequested = skipUnrequested;
+            output = registerOutputExchangeItem(IIndicatorValue.class);
+        }
+
+
+        @Override
+        protected void executeHook(ITime time, Class<?> aClass) throws SeamException {
+            executeHook(time, aClass, null);
+        }
+
+
+        @Override
+        protected void executeHook(ITime time, Class<?> aClass, List<String> ids) throws SeamException {
+            for (long i = 0; i < count; i++) {
+                if (skipUnrequested && (ids != null) && !ids.contains(Long.toString(i)))
+                    continue;
+
+                EndorsedIndicator indicator = new EndorsedIndicator();
+                indicator.setId(i);
+                IndicatorValueSimple value = new IndicatorValueSimple();
+                value.setId(i);
+                value.setValue((float) i);
+                value.setIndicator(indicator);
+                output.add(value);
+                calculated++;
+            }
+        }
+
+
+        @Override
+        public String getComponentID() {
+            return getID();
+        }
+
+
+        @Override
+        public String getModelID() {
+            return getID() + "_V1";
+        }
+    }
+
+}